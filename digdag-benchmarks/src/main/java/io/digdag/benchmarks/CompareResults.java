@@ -0,0 +1,121 @@
+package io.digdag.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compares JMH results (-rf json) of a baseline commit and a current commit.
+ *
+ * A benchmark regresses if its score is worse than the baseline by more
+ * than the threshold and the difference is larger than the sum of the
+ * score errors of both runs. Exits with status 1 if any benchmark
+ * regresses so that CI fails.
+ *
+ * Usage: CompareResults <baseline.json> <current.json> [threshold percent (default 10)]
+ */
+public class CompareResults
+{
+    private CompareResults()
+    { }
+
+    public static void main(String[] args)
+        throws IOException
+    {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: CompareResults <baseline.json> <current.json> [threshold percent]");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10.0;
+
+        ObjectMapper mapper = new ObjectMapper();
+        Map<String, JsonNode> baseline = load(mapper, new File(args[0]));
+        Map<String, JsonNode> current = load(mapper, new File(args[1]));
+
+        int regressions = 0;
+        for (Map.Entry<String, JsonNode> pair : current.entrySet()) {
+            JsonNode cur = pair.getValue();
+            JsonNode base = baseline.get(pair.getKey());
+            if (base == null) {
+                System.out.println(String.format(Locale.ENGLISH, "NEW        %s: %s", pair.getKey(), formatScore(cur)));
+                continue;
+            }
+
+            double baseScore = score(base);
+            double curScore = score(cur);
+            // positive if current is better
+            double change = higherIsBetter(cur)
+                ? (curScore - baseScore) / baseScore * 100
+                : (baseScore - curScore) / baseScore * 100;
+            boolean significant = Math.abs(curScore - baseScore) > scoreError(base) + scoreError(cur);
+
+            String status;
+            if (change < -threshold && significant) {
+                status = "REGRESSED";
+                regressions++;
+            }
+            else if (change > threshold && significant) {
+                status = "IMPROVED";
+            }
+            else {
+                status = "OK";
+            }
+            System.out.println(String.format(Locale.ENGLISH, "%-10s %s: %s -> %s (%+.1f%%)",
+                        status, pair.getKey(), formatScore(base), formatScore(cur), change));
+        }
+        for (String key : baseline.keySet()) {
+            if (!current.containsKey(key)) {
+                System.out.println(String.format(Locale.ENGLISH, "REMOVED    %s", key));
+            }
+        }
+
+        if (regressions > 0) {
+            System.out.println(regressions + " benchmark(s) regressed more than " + threshold + "%");
+            System.exit(1);
+        }
+    }
+
+    // benchmark name with params -> result
+    private static Map<String, JsonNode> load(ObjectMapper mapper, File file)
+        throws IOException
+    {
+        Map<String, JsonNode> results = new LinkedHashMap<>();
+        for (JsonNode result : mapper.readTree(file)) {
+            StringBuilder sb = new StringBuilder(result.get("benchmark").asText());
+            JsonNode params = result.get("params");
+            if (params != null) {
+                sb.append(' ').append(params.toString());
+            }
+            results.put(sb.toString(), result);
+        }
+        return results;
+    }
+
+    private static boolean higherIsBetter(JsonNode result)
+    {
+        return result.get("mode").asText().equals("thrpt");
+    }
+
+    private static double score(JsonNode result)
+    {
+        return result.get("primaryMetric").get("score").asDouble();
+    }
+
+    private static double scoreError(JsonNode result)
+    {
+        // NaN if the benchmark ran only one iteration
+        double error = result.get("primaryMetric").get("scoreError").asDouble();
+        return Double.isNaN(error) ? 0.0 : error;
+    }
+
+    private static String formatScore(JsonNode result)
+    {
+        JsonNode metric = result.get("primaryMetric");
+        return String.format(Locale.ENGLISH, "%.3f +- %.3f %s",
+                score(result), scoreError(result), metric.get("scoreUnit").asText());
+    }
+}
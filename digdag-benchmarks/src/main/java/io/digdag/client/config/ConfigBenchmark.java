@@ -0,0 +1,91 @@
+package io.digdag.client.config;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import static io.digdag.client.DigdagClient.objectMapper;
+
+/**
+ * Config operations that OperatorManager and WorkflowExecutor repeat for
+ * every task to build params: merge of exported params of parent tasks,
+ * deepCopy, and setAll.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ConfigBenchmark
+{
+    // number of top-level keys of params
+    @Param({"10", "200"})
+    public int keys;
+
+    private Config params;
+    private Config export;
+
+    @Setup
+    public void setUp()
+    {
+        ConfigFactory cf = new ConfigFactory(objectMapper());
+        params = newParams(cf, "base");
+        // half of the keys overlap so that merge recurses into nested objects
+        export = cf.create();
+        for (int i = keys / 2; i < keys + keys / 2; i++) {
+            export.set("var" + i, newNested(cf, "export", i));
+        }
+    }
+
+    private Config newParams(ConfigFactory cf, String prefix)
+    {
+        Config config = cf.create()
+            .set("timezone", "UTC")
+            .set("session_time", "2016-10-17T00:00:00+00:00")
+            .set("session_id", 1234)
+            .set("task_name", "+main+step");
+        for (int i = 0; i < keys; i++) {
+            config.set("var" + i, newNested(cf, prefix, i));
+        }
+        return config;
+    }
+
+    private static Config newNested(ConfigFactory cf, String prefix, int i)
+    {
+        return cf.create()
+            .set("name", prefix + " " + i)
+            .set("list", new int[] {i, i + 1, i + 2})
+            .set("table", cf.create()
+                    .set("database", "db_" + i)
+                    .set("options", cf.create()
+                        .set("mode", prefix)
+                        .set("columns", new String[] {"a", "b", "c"})));
+    }
+
+    @Benchmark
+    public Config deepCopy()
+    {
+        return params.deepCopy();
+    }
+
+    @Benchmark
+    public Config merge()
+    {
+        return params.deepCopy().merge(export);
+    }
+
+    @Benchmark
+    public Config setAll()
+    {
+        return params.deepCopy().setAll(export);
+    }
+}
@@ -0,0 +1,98 @@
+package io.digdag.core.agent;
+
+import java.util.concurrent.TimeUnit;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigFactory;
+import io.digdag.spi.TemplateException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import static io.digdag.client.DigdagClient.objectMapper;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ConfigEvalEngineBenchmark
+{
+    // number of variables exported by upstream tasks
+    @Param({"10", "500"})
+    public int exportSize;
+
+    // number of values of a task config. half of them include templates.
+    @Param({"40"})
+    public int fieldCount;
+
+    private ConfigEvalEngine engine;
+    private Config params;
+    private Config templatedConfig;
+    private Config plainConfig;
+
+    @Setup
+    public void setUp()
+    {
+        ConfigFactory cf = new ConfigFactory(objectMapper());
+        engine = new ConfigEvalEngine();
+
+        // params similar to what OperatorManager builds: runtime params,
+        // session params, and _export of parent tasks
+        params = cf.create()
+            .set("timezone", "UTC")
+            .set("session_time", "2016-10-17T00:00:00+00:00")
+            .set("session_date", "2016-10-17")
+            .set("session_date_compact", "20161017")
+            .set("session_id", 1234)
+            .set("task_name", "+main+step");
+        for (int i = 0; i < exportSize; i++) {
+            params.set("var" + i, cf.create()
+                    .set("name", "value " + i)
+                    .set("list", new int[] {i, i + 1, i + 2}));
+        }
+
+        templatedConfig = cf.create();
+        plainConfig = cf.create();
+        for (int i = 0; i < fieldCount; i++) {
+            if (i % 2 == 0) {
+                templatedConfig.set("field" + i, "s3://bucket/${session_date_compact}/${var" + (i % Math.max(exportSize, 1)) + ".name}");
+            }
+            else {
+                templatedConfig.set("field" + i, "plain value " + i);
+            }
+            plainConfig.set("field" + i, "plain value " + i);
+        }
+        templatedConfig.set("nested", cf.create()
+                .set("query", "select * from t where d = '${session_date}'")
+                .set("limit", 100));
+    }
+
+    @Benchmark
+    public Config evalTemplated()
+        throws TemplateException
+    {
+        return engine.eval(templatedConfig, params);
+    }
+
+    @Benchmark
+    public Config evalPlain()
+        throws TemplateException
+    {
+        return engine.eval(plainConfig, params);
+    }
+
+    @Benchmark
+    public String template()
+        throws TemplateException
+    {
+        return engine.template("${session_date} ${var0.name}", params);
+    }
+}
@@ -0,0 +1,55 @@
+package io.digdag.core.database;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Properties;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigFactory;
+
+/**
+ * Database of benchmarks.
+ *
+ * Uses an in-memory H2 database by default so that benchmarks run without
+ * any external service. Set DIGDAG_TEST_POSTGRESQL environment variable
+ * (same format as tests of digdag-core) to run on PostgreSQL.
+ */
+public class BenchmarkDatabase
+{
+    private BenchmarkDatabase()
+    { }
+
+    public static DatabaseConfig databaseConfig(ConfigFactory cf, int maximumPoolSize)
+        throws IOException
+    {
+        String pg = System.getenv("DIGDAG_TEST_POSTGRESQL");
+        if (pg != null && !pg.isEmpty()) {
+            Properties props = new Properties();
+            try (StringReader reader = new StringReader(pg)) {
+                props.load(reader);
+            }
+            Config config = cf.create();
+            for (String key : props.stringPropertyNames()) {
+                config.set("database." + key, props.getProperty(key));
+            }
+            config.set("database.type", "postgresql");
+            return DatabaseConfig.convertFrom(config);
+        }
+        else {
+            return DatabaseConfig.builder()
+                .type("h2")
+                .path(Optional.absent())
+                .remoteDatabaseConfig(Optional.absent())
+                .options(ImmutableMap.of())
+                .expireLockInterval(10)
+                .autoMigrate(true)
+                .connectionTimeout(30)
+                .idleTimeout(600)
+                .validationTimeout(5)
+                .minimumPoolSize(0)
+                .maximumPoolSize(maximumPoolSize)
+                .build();
+        }
+    }
+}
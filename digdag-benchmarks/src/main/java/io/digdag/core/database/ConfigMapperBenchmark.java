@@ -0,0 +1,79 @@
+package io.digdag.core.database;
+
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.concurrent.TimeUnit;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigFactory;
+import org.h2.tools.SimpleResultSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import static io.digdag.client.DigdagClient.objectMapper;
+
+/**
+ * ConfigMapper serializing and deserializing params stored in tasks,
+ * session_attempts and task_state_details.
+ *
+ * Reads from an in-memory ResultSet so that the score doesn't include
+ * database access.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ConfigMapperBenchmark
+{
+    // number of top-level keys of the config
+    @Param({"10", "500"})
+    public int keys;
+
+    private ConfigMapper mapper;
+    private Config config;
+    private SimpleResultSet resultSet;
+
+    @Setup
+    public void setUp()
+    {
+        ConfigFactory cf = new ConfigFactory(objectMapper());
+        mapper = new ConfigMapper(cf);
+
+        config = cf.create();
+        for (int i = 0; i < keys; i++) {
+            config.set("var" + i, cf.create()
+                    .set("name", "value " + i)
+                    .set("list", new int[] {i, i + 1, i + 2})
+                    .set("nested", cf.create().set("enabled", i % 2 == 0)));
+        }
+
+        resultSet = new SimpleResultSet();
+        resultSet.setAutoClose(false);
+        resultSet.addColumn("config", Types.VARCHAR, 0, 0);
+        resultSet.addRow(mapper.toText(config));
+    }
+
+    @Benchmark
+    public String toText()
+    {
+        return mapper.toText(config);
+    }
+
+    @Benchmark
+    public Config fromResultSet()
+        throws SQLException
+    {
+        resultSet.beforeFirst();
+        resultSet.next();
+        return mapper.fromResultSetOrEmpty(resultSet, "config");
+    }
+}
@@ -0,0 +1,62 @@
+package io.digdag.core.log;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import io.digdag.spi.LogFileHandle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing and sorting log file names of an attempt, which log servers do
+ * to list log files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class LogFilesBenchmark
+{
+    // number of log files of an attempt
+    @Param({"100", "10000"})
+    public int files;
+
+    private List<String> fileNames;
+
+    @Setup
+    public void setUp()
+    {
+        fileNames = new ArrayList<>();
+        Instant time = Instant.ofEpochSecond(1476662400L);
+        for (int i = 0; i < files; i++) {
+            time = time.plusMillis(1500);
+            fileNames.add(LogFiles.formatFileName("+bench+group" + (i / 10) + "+task" + (i % 10), time, "4321@agent" + (i % 3)));
+        }
+        // log servers list files in arbitrary order
+        Collections.shuffle(fileNames, new Random(0));
+    }
+
+    @Benchmark
+    public List<LogFileHandle> parseAndSort()
+    {
+        List<LogFileHandle> handles = new ArrayList<>(fileNames.size());
+        for (String fileName : fileNames) {
+            handles.add(LogFiles.buildLogFileHandleFromFileName(fileName, 1024));
+        }
+        return LogFiles.sortLogFileHandles(handles);
+    }
+}
@@ -0,0 +1,177 @@
+package io.digdag.core.workflow;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigFactory;
+import io.digdag.core.agent.AgentId;
+import io.digdag.core.database.BenchmarkDatabase;
+import io.digdag.core.database.ConfigMapper;
+import io.digdag.core.database.DataSourceProvider;
+import io.digdag.core.database.DatabaseConfig;
+import io.digdag.core.database.DatabaseMigrator;
+import io.digdag.core.database.DatabaseProjectStoreManager;
+import io.digdag.core.database.DatabaseSessionStoreManager;
+import io.digdag.core.repository.ArchiveType;
+import io.digdag.core.repository.ImmutableRevision;
+import io.digdag.core.repository.Project;
+import io.digdag.core.repository.ProjectControl;
+import io.digdag.core.repository.StoredRevision;
+import io.digdag.core.repository.StoredWorkflowDefinition;
+import io.digdag.core.repository.WorkflowDefinition;
+import io.digdag.core.schedule.SchedulerManager;
+import io.digdag.core.session.SessionStoreManager;
+import io.digdag.spi.ScheduleTime;
+import io.digdag.spi.TaskQueueRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.skife.jdbi.v2.DBI;
+import static io.digdag.client.DigdagClient.objectMapper;
+
+/**
+ * Time for a WorkflowExecutor loop to enqueue all tasks of attempts with
+ * a large parallel fan-out.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dio.digdag.limits.maxWorkflowTasks=1000000")
+public class EnqueueReadyTasksBenchmark
+{
+    // number of attempts submitted at once
+    @Param({"10"})
+    public int attempts;
+
+    // number of parallel tasks of an attempt
+    @Param({"999"})
+    public int tasks;
+
+    private ConfigFactory cf;
+    private DataSourceProvider dsp;
+    private SessionStoreManager sm;
+    private WorkflowExecutor exec;
+    private AttemptBuilder attemptBuilder;
+    private StoredRevision rev;
+    private StoredWorkflowDefinition wf;
+
+    private final CountingTaskQueueDispatcher dispatcher = new CountingTaskQueueDispatcher();
+    private Instant sessionTime = Instant.ofEpochSecond(1476662400L);
+    private int total;
+
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+        cf = new ConfigFactory(objectMapper());
+        ConfigMapper cfm = new ConfigMapper(cf);
+        DatabaseConfig databaseConfig = BenchmarkDatabase.databaseConfig(cf, 10);
+
+        dsp = new DataSourceProvider(databaseConfig);
+        DBI dbi = new DBI(dsp.get());
+        new DatabaseMigrator(dbi, databaseConfig).migrate();
+
+        DatabaseProjectStoreManager psm = new DatabaseProjectStoreManager(dbi, cfm, databaseConfig);
+        sm = new DatabaseSessionStoreManager(dbi, cf, cfm, objectMapper(), databaseConfig);
+        exec = new WorkflowExecutor(psm, sm, dispatcher, new WorkflowCompiler(),
+                cf, objectMapper(), cf.create(), (notification) -> { });
+        attemptBuilder = new AttemptBuilder(new SchedulerManager(ImmutableSet.of()), new SlaCalculator());
+
+        Config config = cf.create().set("_parallel", true);
+        for (int i = 0; i < tasks; i++) {
+            config.set("+t" + i, cf.create().set("echo>", "task " + i));
+        }
+        WorkflowDefinition def = WorkflowDefinition.of("fan_out", config, ZoneId.of("UTC"));
+        psm.getProjectStore(0).putAndLockProject(
+                Project.of("bench-" + System.nanoTime()),
+                (store, stored) -> {
+                    ProjectControl lock = new ProjectControl(store, stored);
+                    rev = lock.insertRevision(ImmutableRevision.builder()
+                            .name("rev")
+                            .defaultParams(cf.create())
+                            .archiveType(ArchiveType.NONE)
+                            .userInfo(cf.create())
+                            .build());
+                    wf = lock.insertWorkflowDefinitionsWithoutSchedules(rev, ImmutableList.of(def)).get(0);
+                    return lock.get();
+                });
+    }
+
+    @Setup(Level.Iteration)
+    public void submitAttempts()
+        throws Exception
+    {
+        for (int i = 0; i < attempts; i++) {
+            sessionTime = sessionTime.plusSeconds(1);
+            AttemptRequest ar = attemptBuilder.buildFromStoredWorkflow(
+                    rev, wf, cf.create(), ScheduleTime.runNow(sessionTime));
+            exec.submitWorkflow(0, ar, wf);
+        }
+        total = dispatcher.getCount() + attempts * tasks;
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        dsp.close();
+    }
+
+    @Benchmark
+    public int enqueueAll()
+    {
+        exec.runWhile(() -> dispatcher.getCount() < total);
+        return dispatcher.getCount();
+    }
+
+    private static class CountingTaskQueueDispatcher
+            implements TaskQueueDispatcher
+    {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        public int getCount()
+        {
+            return count.get();
+        }
+
+        @Override
+        public void dispatch(int siteId, Optional<String> queueName, TaskQueueRequest request)
+        {
+            count.incrementAndGet();
+        }
+
+        @Override
+        public List<String> dispatchAll(int siteId, Optional<String> queueName, List<TaskQueueRequest> requests)
+        {
+            count.addAndGet(requests.size());
+            return ImmutableList.of();
+        }
+
+        @Override
+        public void taskFinished(int siteId, String lockId, AgentId agentId)
+        { }
+
+        @Override
+        public boolean deleteInconsistentTask(String lockId)
+        {
+            return false;
+        }
+    }
+}
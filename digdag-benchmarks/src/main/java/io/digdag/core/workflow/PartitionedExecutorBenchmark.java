@@ -0,0 +1,227 @@
+package io.digdag.core.workflow;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.digdag.client.config.ConfigFactory;
+import io.digdag.core.agent.AgentId;
+import io.digdag.core.database.BenchmarkDatabase;
+import io.digdag.core.database.ConfigMapper;
+import io.digdag.core.database.DataSourceProvider;
+import io.digdag.core.database.DatabaseConfig;
+import io.digdag.core.database.DatabaseMigrator;
+import io.digdag.core.database.DatabaseProjectStoreManager;
+import io.digdag.core.database.DatabaseSessionStoreManager;
+import io.digdag.core.repository.ArchiveType;
+import io.digdag.core.repository.ImmutableRevision;
+import io.digdag.core.repository.Project;
+import io.digdag.core.repository.ProjectControl;
+import io.digdag.core.repository.StoredRevision;
+import io.digdag.core.repository.StoredWorkflowDefinition;
+import io.digdag.core.repository.WorkflowDefinition;
+import io.digdag.core.schedule.SchedulerManager;
+import io.digdag.core.session.AttemptPartition;
+import io.digdag.core.session.SessionStoreManager;
+import io.digdag.spi.ScheduleTime;
+import io.digdag.spi.TaskQueueRequest;
+import io.digdag.spi.TaskResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.skife.jdbi.v2.DBI;
+import static io.digdag.client.DigdagClient.objectMapper;
+
+/**
+ * Attempts completed per minute by WorkflowExecutor loops running for
+ * attempt partitions in parallel (executor.partitions of the server).
+ *
+ * Tasks succeed as soon as they're dispatched so that the score shows
+ * throughput of state propagation and enqueuing. Uses an in-memory H2
+ * database by default. Set DIGDAG_TEST_POSTGRESQL environment variable
+ * (same format as tests of digdag-core) to run on PostgreSQL, where
+ * contention of loops is closer to production.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MINUTES)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PartitionedExecutorBenchmark
+{
+    private static final int ATTEMPTS = 100;
+
+    // number of attempt partitions run by parallel loops
+    @Param({"1", "2", "4"})
+    public int partitions;
+
+    private ConfigFactory cf;
+    private DataSourceProvider dsp;
+    private SessionStoreManager sm;
+    private WorkflowExecutor exec;
+    private AttemptBuilder attemptBuilder;
+    private StoredRevision rev;
+    private StoredWorkflowDefinition wf;
+    private ExecutorService loops;
+    private ExecutorService completers;
+
+    private final BlockingQueue<Long> dispatchedTaskIds = new LinkedBlockingQueue<>();
+    private final AgentId agentId = AgentId.of("bench");
+
+    private Instant sessionTime = Instant.ofEpochSecond(1476662400L);
+
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+        cf = new ConfigFactory(objectMapper());
+        ConfigMapper cfm = new ConfigMapper(cf);
+        DatabaseConfig databaseConfig = BenchmarkDatabase.databaseConfig(cf, 20);
+
+        dsp = new DataSourceProvider(databaseConfig);
+        DBI dbi = new DBI(dsp.get());
+        new DatabaseMigrator(dbi, databaseConfig).migrate();
+
+        DatabaseProjectStoreManager psm = new DatabaseProjectStoreManager(dbi, cfm, databaseConfig);
+        sm = new DatabaseSessionStoreManager(dbi, cf, cfm, objectMapper(), databaseConfig);
+        exec = new WorkflowExecutor(psm, sm, new CompletingTaskQueueDispatcher(), new WorkflowCompiler(),
+                cf, objectMapper(), cf.create(), (notification) -> { });
+        attemptBuilder = new AttemptBuilder(new SchedulerManager(ImmutableSet.of()), new SlaCalculator());
+
+        WorkflowDefinition def = WorkflowDefinition.of(
+                "bench",
+                cf.create()
+                    .set("+a", cf.create().set("echo>", "a"))
+                    .set("+b", cf.create().set("echo>", "b"))
+                    .set("+c", cf.create().set("echo>", "c")),
+                ZoneId.of("UTC"));
+        psm.getProjectStore(0).putAndLockProject(
+                Project.of("bench-" + System.nanoTime()),
+                (store, stored) -> {
+                    ProjectControl lock = new ProjectControl(store, stored);
+                    rev = lock.insertRevision(ImmutableRevision.builder()
+                            .name("rev")
+                            .defaultParams(cf.create())
+                            .archiveType(ArchiveType.NONE)
+                            .userInfo(cf.create())
+                            .build());
+                    wf = lock.insertWorkflowDefinitionsWithoutSchedules(rev, ImmutableList.of(def)).get(0);
+                    return lock.get();
+                });
+
+        loops = Executors.newFixedThreadPool(partitions,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("bench-loop-%d").build());
+        completers = Executors.newFixedThreadPool(4,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("bench-completer-%d").build());
+        for (int i = 0; i < 4; i++) {
+            completers.submit(this::completeTasks);
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        loops.shutdownNow();
+        completers.shutdownNow();
+        dsp.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ATTEMPTS)
+    public void runAttempts()
+        throws Exception
+    {
+        for (int i = 0; i < ATTEMPTS; i++) {
+            sessionTime = sessionTime.plusSeconds(1);
+            AttemptRequest ar = attemptBuilder.buildFromStoredWorkflow(
+                    rev, wf, cf.create(), ScheduleTime.runNow(sessionTime));
+            exec.submitWorkflow(0, ar, wf);
+        }
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < partitions; i++) {
+            AttemptPartition partition = AttemptPartition.of(i, partitions);
+            futures.add(loops.submit(() -> {
+                exec.runWhile(partition, () -> sm.isAnyNotDoneAttempts());
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    private void completeTasks()
+    {
+        try {
+            while (true) {
+                long taskId = dispatchedTaskIds.take();
+                // the task may be still READY until the enqueuing transaction commits
+                if (!exec.taskSucceeded(0, taskId, "bench", agentId, TaskResult.empty(cf))) {
+                    Thread.sleep(1);
+                    dispatchedTaskIds.put(taskId);
+                }
+            }
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class CompletingTaskQueueDispatcher
+            implements TaskQueueDispatcher
+    {
+        @Override
+        public void dispatch(int siteId, Optional<String> queueName, TaskQueueRequest request)
+        {
+            dispatchedTaskIds.add(parseTaskId(request.getUniqueName()));
+        }
+
+        @Override
+        public List<String> dispatchAll(int siteId, Optional<String> queueName, List<TaskQueueRequest> requests)
+        {
+            for (TaskQueueRequest request : requests) {
+                dispatch(siteId, queueName, request);
+            }
+            return ImmutableList.of();
+        }
+
+        @Override
+        public void taskFinished(int siteId, String lockId, AgentId agentId)
+        { }
+
+        @Override
+        public boolean deleteInconsistentTask(String lockId)
+        {
+            return false;
+        }
+
+        // unique name is "<task id>" or "<task id>.r<retry count>" (see WorkflowExecutor.encodeUniqueQueuedTaskName)
+        private long parseTaskId(String uniqueName)
+        {
+            int posDot = uniqueName.indexOf('.');
+            return Long.parseLong(posDot >= 0 ? uniqueName.substring(0, posDot) : uniqueName);
+        }
+    }
+}
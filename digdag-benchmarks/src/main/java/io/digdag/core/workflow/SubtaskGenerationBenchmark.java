@@ -0,0 +1,175 @@
+package io.digdag.core.workflow;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigFactory;
+import io.digdag.core.agent.AgentId;
+import io.digdag.core.database.BenchmarkDatabase;
+import io.digdag.core.database.ConfigMapper;
+import io.digdag.core.database.DataSourceProvider;
+import io.digdag.core.database.DatabaseConfig;
+import io.digdag.core.database.DatabaseMigrator;
+import io.digdag.core.database.DatabaseProjectStoreManager;
+import io.digdag.core.database.DatabaseSessionStoreManager;
+import io.digdag.core.repository.ArchiveType;
+import io.digdag.core.repository.ImmutableRevision;
+import io.digdag.core.repository.Project;
+import io.digdag.core.repository.ProjectControl;
+import io.digdag.core.repository.StoredRevision;
+import io.digdag.core.repository.StoredWorkflowDefinition;
+import io.digdag.core.repository.WorkflowDefinition;
+import io.digdag.core.schedule.SchedulerManager;
+import io.digdag.core.session.SessionStoreManager;
+import io.digdag.core.session.StoredSessionAttemptWithSession;
+import io.digdag.spi.ScheduleTime;
+import io.digdag.spi.TaskQueueRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.skife.jdbi.v2.DBI;
+import static io.digdag.client.DigdagClient.objectMapper;
+
+/**
+ * Time to store subtasks generated by a for_each> or loop>-like operator.
+ *
+ * Uses an in-memory H2 database by default. Set DIGDAG_TEST_POSTGRESQL
+ * environment variable (same format as tests of digdag-core) to run on
+ * PostgreSQL.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Dio.digdag.limits.maxWorkflowTasks=1000000")
+public class SubtaskGenerationBenchmark
+{
+    // number of generated child tasks
+    @Param({"100", "1000", "10000"})
+    public int fanOut;
+
+    // run children in parallel, or sequentially (adds fanOut - 1 dependencies)
+    @Param({"true", "false"})
+    public boolean parallel;
+
+    private ConfigFactory cf;
+    private DataSourceProvider dsp;
+    private SessionStoreManager sm;
+    private WorkflowExecutor exec;
+    private AttemptBuilder attemptBuilder;
+    private StoredRevision rev;
+    private StoredWorkflowDefinition wf;
+    private WorkflowTaskList subtasks;
+
+    private Instant sessionTime = Instant.ofEpochSecond(1476662400L);
+    private long rootTaskId;
+
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+        cf = new ConfigFactory(objectMapper());
+        ConfigMapper cfm = new ConfigMapper(cf);
+        DatabaseConfig databaseConfig = BenchmarkDatabase.databaseConfig(cf, 10);
+
+        dsp = new DataSourceProvider(databaseConfig);
+        DBI dbi = new DBI(dsp.get());
+        new DatabaseMigrator(dbi, databaseConfig).migrate();
+
+        DatabaseProjectStoreManager psm = new DatabaseProjectStoreManager(dbi, cfm, databaseConfig);
+        sm = new DatabaseSessionStoreManager(dbi, cf, cfm, objectMapper(), databaseConfig);
+        exec = new WorkflowExecutor(psm, sm, new NullTaskQueueDispatcher(), new WorkflowCompiler(),
+                cf, objectMapper(), cf.create(), (notification) -> { });
+        attemptBuilder = new AttemptBuilder(new SchedulerManager(ImmutableSet.of()), new SlaCalculator());
+
+        WorkflowDefinition def = WorkflowDefinition.of(
+                "bench",
+                cf.create().set("+generate", cf.create().set("echo>", "generate")),
+                ZoneId.of("UTC"));
+        psm.getProjectStore(0).putAndLockProject(
+                Project.of("bench-" + System.nanoTime()),
+                (store, stored) -> {
+                    ProjectControl lock = new ProjectControl(store, stored);
+                    rev = lock.insertRevision(ImmutableRevision.builder()
+                            .name("rev")
+                            .defaultParams(cf.create())
+                            .archiveType(ArchiveType.NONE)
+                            .userInfo(cf.create())
+                            .build());
+                    wf = lock.insertWorkflowDefinitionsWithoutSchedules(rev, ImmutableList.of(def)).get(0);
+                    return lock.get();
+                });
+
+        Config subtaskConfig = cf.create().set("_parallel", parallel);
+        for (int i = 0; i < fanOut; i++) {
+            subtaskConfig.set("+child" + i, cf.create().set("echo>", "child " + i));
+        }
+        subtasks = new WorkflowCompiler().compileTasks("+bench+generate", "^sub", subtaskConfig);
+    }
+
+    @Setup(Level.Iteration)
+    public void startAttempt()
+        throws Exception
+    {
+        // a new session so that each iteration starts with an attempt without generated tasks
+        sessionTime = sessionTime.plusSeconds(1);
+        AttemptRequest ar = attemptBuilder.buildFromStoredWorkflow(
+                rev, wf, cf.create(), ScheduleTime.runNow(sessionTime));
+        StoredSessionAttemptWithSession attempt = exec.submitWorkflow(0, ar, wf);
+        rootTaskId = sm.getTaskRelations(attempt.getId()).get(0).getId();
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        dsp.close();
+    }
+
+    @Benchmark
+    public long addGeneratedSubtasks()
+    {
+        return sm.lockTaskIfExists(rootTaskId, (store, task) ->
+                new TaskControl(store, task).addGeneratedSubtasks(subtasks, ImmutableList.of(), false)
+            ).get();
+    }
+
+    private static class NullTaskQueueDispatcher
+            implements TaskQueueDispatcher
+    {
+        @Override
+        public void dispatch(int siteId, Optional<String> queueName, TaskQueueRequest request)
+        { }
+
+        @Override
+        public List<String> dispatchAll(int siteId, Optional<String> queueName, List<TaskQueueRequest> requests)
+        {
+            return ImmutableList.of();
+        }
+
+        @Override
+        public void taskFinished(int siteId, String lockId, AgentId agentId)
+        { }
+
+        @Override
+        public boolean deleteInconsistentTask(String lockId)
+        {
+            return false;
+        }
+    }
+}
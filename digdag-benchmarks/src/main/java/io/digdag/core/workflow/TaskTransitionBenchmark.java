@@ -0,0 +1,156 @@
+package io.digdag.core.workflow;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import io.digdag.client.config.ConfigFactory;
+import io.digdag.core.agent.AgentId;
+import io.digdag.core.database.BenchmarkDatabase;
+import io.digdag.core.database.ConfigMapper;
+import io.digdag.core.database.DataSourceProvider;
+import io.digdag.core.database.DatabaseConfig;
+import io.digdag.core.database.DatabaseMigrator;
+import io.digdag.core.database.DatabaseProjectStoreManager;
+import io.digdag.core.database.DatabaseSessionStoreManager;
+import io.digdag.core.repository.ArchiveType;
+import io.digdag.core.repository.ImmutableRevision;
+import io.digdag.core.repository.Project;
+import io.digdag.core.repository.ProjectControl;
+import io.digdag.core.repository.StoredRevision;
+import io.digdag.core.repository.StoredWorkflowDefinition;
+import io.digdag.core.repository.WorkflowDefinition;
+import io.digdag.core.schedule.SchedulerManager;
+import io.digdag.core.session.AttemptPartition;
+import io.digdag.core.session.SessionStoreManager;
+import io.digdag.core.session.StoredSessionAttemptWithSession;
+import io.digdag.spi.ScheduleTime;
+import io.digdag.spi.TaskQueueRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.skife.jdbi.v2.DBI;
+import static io.digdag.client.DigdagClient.objectMapper;
+
+/**
+ * State transitions of a task stored by DatabaseSessionStoreManager.
+ *
+ * An operation is a cycle of READY -> RUNNING -> RETRY_WAITING -> READY,
+ * which runs the same locking and updates as a task that is dispatched
+ * and retried. Uses an in-memory H2 database by default (see
+ * BenchmarkDatabase).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class TaskTransitionBenchmark
+{
+    private ConfigFactory cf;
+    private DataSourceProvider dsp;
+    private SessionStoreManager sm;
+    private long rootTaskId;
+
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+        cf = new ConfigFactory(objectMapper());
+        ConfigMapper cfm = new ConfigMapper(cf);
+        DatabaseConfig databaseConfig = BenchmarkDatabase.databaseConfig(cf, 10);
+
+        dsp = new DataSourceProvider(databaseConfig);
+        DBI dbi = new DBI(dsp.get());
+        new DatabaseMigrator(dbi, databaseConfig).migrate();
+
+        DatabaseProjectStoreManager psm = new DatabaseProjectStoreManager(dbi, cfm, databaseConfig);
+        sm = new DatabaseSessionStoreManager(dbi, cf, cfm, objectMapper(), databaseConfig);
+        WorkflowExecutor exec = new WorkflowExecutor(psm, sm, new NullTaskQueueDispatcher(), new WorkflowCompiler(),
+                cf, objectMapper(), cf.create(), (notification) -> { });
+        AttemptBuilder attemptBuilder = new AttemptBuilder(new SchedulerManager(ImmutableSet.of()), new SlaCalculator());
+
+        WorkflowDefinition def = WorkflowDefinition.of(
+                "bench",
+                cf.create().set("echo>", "task"),
+                ZoneId.of("UTC"));
+        StoredRevision[] rev = new StoredRevision[1];
+        StoredWorkflowDefinition[] wf = new StoredWorkflowDefinition[1];
+        psm.getProjectStore(0).putAndLockProject(
+                Project.of("bench-" + System.nanoTime()),
+                (store, stored) -> {
+                    ProjectControl lock = new ProjectControl(store, stored);
+                    rev[0] = lock.insertRevision(ImmutableRevision.builder()
+                            .name("rev")
+                            .defaultParams(cf.create())
+                            .archiveType(ArchiveType.NONE)
+                            .userInfo(cf.create())
+                            .build());
+                    wf[0] = lock.insertWorkflowDefinitionsWithoutSchedules(rev[0], ImmutableList.of(def)).get(0);
+                    return lock.get();
+                });
+
+        AttemptRequest ar = attemptBuilder.buildFromStoredWorkflow(
+                rev[0], wf[0], cf.create(), ScheduleTime.runNow(Instant.ofEpochSecond(1476662400L)));
+        StoredSessionAttemptWithSession attempt = exec.submitWorkflow(0, ar, wf[0]);
+        // root task runs an operator. it is READY until a loop of WorkflowExecutor runs
+        rootTaskId = sm.getTaskRelations(attempt.getId()).get(0).getId();
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        dsp.close();
+    }
+
+    @Benchmark
+    public int readyToRunningToRetryWaitingToReady()
+    {
+        boolean running = sm.lockTaskIfExists(rootTaskId, (store, task) ->
+                new TaskControl(store, task).setReadyToRunning()
+            ).get();
+        if (!running) {
+            throw new IllegalStateException("Task is not READY");
+        }
+        sm.lockTaskIfExists(rootTaskId, (store, task) ->
+                new TaskControl(store, task).setRunningToRetryWaiting(cf.create(), 0)
+            );
+        return sm.trySetRetryWaitingToReady(AttemptPartition.all());
+    }
+
+    private static class NullTaskQueueDispatcher
+            implements TaskQueueDispatcher
+    {
+        @Override
+        public void dispatch(int siteId, Optional<String> queueName, TaskQueueRequest request)
+        { }
+
+        @Override
+        public List<String> dispatchAll(int siteId, Optional<String> queueName, List<TaskQueueRequest> requests)
+        {
+            return ImmutableList.of();
+        }
+
+        @Override
+        public void taskFinished(int siteId, String lockId, AgentId agentId)
+        { }
+
+        @Override
+        public boolean deleteInconsistentTask(String lockId)
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package io.digdag.core.workflow;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import com.google.common.collect.ImmutableList;
+import io.digdag.core.session.TaskRelation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TaskTree construction and traversals that WorkflowExecutor runs when a
+ * group retries and that the attempt resource runs to list tasks.
+ *
+ * Relations are a root task with groups of sequential tasks, same as a
+ * for_each> with _parallel: false in each group.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class TaskTreeBenchmark
+{
+    // number of tasks except the root task and groups
+    @Param({"100", "10000"})
+    public int tasks;
+
+    private static final int GROUP_SIZE = 10;
+
+    private List<TaskRelation> relations;
+    private TaskTree tree;
+    private long lastTaskId;
+
+    @Setup
+    public void setUp()
+    {
+        relations = new ArrayList<>();
+        long id = 1;
+        long rootId = id++;
+        relations.add(TaskRelation.ofRoot(rootId));
+        for (int g = 0; g < tasks / GROUP_SIZE; g++) {
+            long groupId = id++;
+            relations.add(TaskRelation.of(groupId, rootId, ImmutableList.of()));
+            long upstream = -1;
+            for (int t = 0; t < GROUP_SIZE; t++) {
+                long taskId = id++;
+                relations.add(TaskRelation.of(taskId, groupId,
+                            upstream < 0 ? ImmutableList.of() : ImmutableList.of(upstream)));
+                upstream = taskId;
+            }
+        }
+        lastTaskId = id - 1;
+        tree = new TaskTree(relations);
+    }
+
+    @Benchmark
+    public TaskTree construct()
+    {
+        return new TaskTree(relations);
+    }
+
+    @Benchmark
+    public List<Long> getRecursiveChildrenIdList()
+    {
+        return tree.getRecursiveChildrenIdList(tree.getRootTaskId());
+    }
+
+    @Benchmark
+    public List<Long> getRecursiveParentsUpstreamChildrenIdListFromFar()
+    {
+        return tree.getRecursiveParentsUpstreamChildrenIdListFromFar(lastTaskId);
+    }
+}
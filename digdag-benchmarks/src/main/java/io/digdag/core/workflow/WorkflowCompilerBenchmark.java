@@ -0,0 +1,96 @@
+package io.digdag.core.workflow;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigFactory;
+import io.digdag.core.config.YamlConfigLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import static io.digdag.client.DigdagClient.objectMapper;
+
+/**
+ * Loading and compiling a large .dig file.
+ *
+ * The generated workflow has groups of sequential tasks with _export,
+ * _error and _retry options so that the compiler handles every kind of
+ * task and dependency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class WorkflowCompilerBenchmark
+{
+    // number of groups. each group has 10 tasks.
+    @Param({"10", "500"})
+    public int groups;
+
+    private ConfigFactory cf;
+    private YamlConfigLoader loader;
+    private WorkflowCompiler compiler;
+    private String dig;
+    private Config config;
+
+    @Setup
+    public void setUp()
+        throws IOException
+    {
+        cf = new ConfigFactory(objectMapper());
+        loader = new YamlConfigLoader();
+        compiler = new WorkflowCompiler();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("timezone: UTC\n");
+        sb.append("_export:\n");
+        sb.append("  td:\n");
+        sb.append("    database: bench\n");
+        sb.append("+main:\n");
+        for (int g = 0; g < groups; g++) {
+            sb.append("  +group").append(g).append(":\n");
+            sb.append("    _parallel: ").append(g % 2 == 0).append('\n');
+            sb.append("    _retry: 3\n");
+            sb.append("    _export:\n");
+            sb.append("      group: ").append(g).append('\n');
+            for (int t = 0; t < 10; t++) {
+                sb.append("    +task").append(t).append(":\n");
+                sb.append("      sh>: echo ${session_date} ").append(g).append(' ').append(t).append('\n');
+            }
+            sb.append("    _error:\n");
+            sb.append("      echo>: failed ").append(g).append('\n');
+        }
+        dig = sb.toString();
+        config = loader.loadString(dig).toConfig(cf);
+    }
+
+    @Benchmark
+    public Config load()
+        throws IOException
+    {
+        return loader.loadString(dig).toConfig(cf);
+    }
+
+    @Benchmark
+    public Workflow compile()
+    {
+        return compiler.compile("bench", config);
+    }
+
+    @Benchmark
+    public Workflow loadAndCompile()
+        throws IOException
+    {
+        return compiler.compile("bench", loader.loadString(dig).toConfig(cf));
+    }
+}
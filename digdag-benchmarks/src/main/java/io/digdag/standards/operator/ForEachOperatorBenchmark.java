@@ -0,0 +1,95 @@
+package io.digdag.standards.operator;
+
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import com.google.common.base.Optional;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigFactory;
+import io.digdag.spi.TaskExecutionContext;
+import io.digdag.spi.TaskRequest;
+import io.digdag.spi.TaskResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import static io.digdag.client.DigdagClient.objectMapper;
+
+/**
+ * for_each> operator building combinations of 3 variables and the
+ * subtask config of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dio.digdag.limits.maxWorkflowTasks=1000000")
+public class ForEachOperatorBenchmark
+{
+    // number of values of each variable. generates values^3 subtasks.
+    @Param({"5", "20"})
+    public int values;
+
+    private final TaskExecutionContext context = () -> null;
+
+    private ForEachOperatorFactory factory;
+    private TaskRequest request;
+
+    @Setup
+    public void setUp()
+    {
+        ConfigFactory cf = new ConfigFactory(objectMapper());
+        factory = new ForEachOperatorFactory();
+
+        Config command = cf.create();
+        for (String key : new String[] {"fruit", "verb", "region"}) {
+            String[] list = new String[values];
+            for (int i = 0; i < values; i++) {
+                list[i] = key + i;
+            }
+            command.set(key, list);
+        }
+        Config config = cf.create()
+            .set("_command", command)
+            .set("_do", cf.create()
+                    .set("echo>", "${verb} ${fruit} in ${region}")
+                    .set("_retry", 3));
+
+        request = TaskRequest.builder()
+            .siteId(0)
+            .projectId(1)
+            .projectName(Optional.of("bench"))
+            .workflowName("bench")
+            .revision(Optional.of("rev"))
+            .taskId(1)
+            .attemptId(1)
+            .sessionId(1)
+            .retryAttemptName(Optional.absent())
+            .taskName("+bench+for_each")
+            .lockId("lock")
+            .timeZone(ZoneId.of("UTC"))
+            .sessionUuid(UUID.randomUUID())
+            .sessionTime(Instant.now())
+            .createdAt(Instant.now())
+            .localConfig(cf.create())
+            .config(config)
+            .lastStateParams(cf.create())
+            .build();
+    }
+
+    @Benchmark
+    public TaskResult run()
+    {
+        return factory.newTaskExecutor(Paths.get(""), request).run(context);
+    }
+}
@@ -0,0 +1,143 @@
+package io.digdag.standards.operator.jdbc;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.CharStreams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rows per second of writing query results to a CSV file on the agent side
+ * (pg> download_file without COPY). Rows are generated by a fake
+ * JdbcResultSet so that the database doesn't affect the results.
+ *
+ * Peak heap usage of each iteration is printed at the end of the iteration.
+ * Run with -prof gc to see allocation rate per row.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx256m"})
+public class CsvDownloadBenchmark
+{
+    private static final int ROWS = 100000;
+
+    private static class GeneratedResultSet
+            implements JdbcResultSet
+    {
+        private final Timestamp timestamp = new Timestamp(1476662400000L);
+        private int index = 0;
+
+        @Override
+        public List<String> getColumnNames()
+        {
+            return ImmutableList.of("id", "name", "comment", "score", "created_at", "deleted_at");
+        }
+
+        @Override
+        public List<Object> next()
+        {
+            if (index >= ROWS) {
+                return null;
+            }
+            int i = index++;
+            return Arrays.asList(
+                    i,
+                    "user" + i,
+                    (i % 10 == 0) ? "has \"quotes\", commas\nand newlines" : "plain comment",
+                    i * 0.5,
+                    timestamp,
+                    null);
+        }
+    }
+
+    private final Writer out = CharStreams.nullWriter();
+
+    @Setup(Level.Iteration)
+    public void resetPeakUsage()
+    {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void printPeakUsage()
+    {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        System.out.println("peak heap usage: " + (peak / 1024 / 1024) + "MB");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void writeRows()
+        throws IOException
+    {
+        JdbcResultSet results = new GeneratedResultSet();
+        CsvWriter csvWriter = new CsvWriter(out);
+        csvWriter.addCsvHeader(results.getColumnNames());
+        while (true) {
+            List<Object> values = results.next();
+            if (values == null) {
+                break;
+            }
+            csvWriter.addCsvRowValues(values);
+        }
+    }
+
+    // conversion used before: a List<String> per row and a String per escaped value
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void writeRowsWithStringConversion()
+        throws IOException
+    {
+        JdbcResultSet results = new GeneratedResultSet();
+        CsvWriter csvWriter = new CsvWriter(out);
+        csvWriter.addCsvHeader(results.getColumnNames());
+        while (true) {
+            List<Object> values = results.next();
+            if (values == null) {
+                break;
+            }
+            List<String> row = values.stream()
+                .map(value -> value == null ? null : value.toString())
+                .collect(Collectors.toList());
+            for (int i = 0; i < row.size(); i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                if (row.get(i) != null) {
+                    out.write(csvWriter.escapeAndQuoteCsvValue(row.get(i)));
+                }
+            }
+            out.write("\r\n");
+        }
+    }
+}
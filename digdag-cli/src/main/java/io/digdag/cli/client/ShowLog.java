@@ -17,6 +17,9 @@ import static io.digdag.cli.SystemExitException.systemExit;
 public class ShowLog
     extends ClientCommand
 {
+    // seconds to let the server wait for new logs
+    private static final int LONG_POLLING_SECONDS = 5;
+
     @Parameter(names = {"-v", "--verbose"})
     protected boolean verbose = false;
 
@@ -57,7 +60,7 @@ public class ShowLog
         LogLevel level = verbose ? null : LogLevel.INFO;
         TaskLogWatcher watcher = new TaskLogWatcher(client, attemptId, level, out);
 
-        update(client, watcher, attemptId, taskName);
+        update(client, watcher, attemptId, taskName, 0);
 
         int interval = 500;
         if (follow) {
@@ -68,8 +71,12 @@ public class ShowLog
                 else {
                     Thread.sleep(interval);
                     interval = Math.min(interval * 2, 10000);
-                    boolean updated = update(client, watcher, attemptId, taskName);
-                    if (updated) {
+                    long start = System.currentTimeMillis();
+                    boolean updated = update(client, watcher, attemptId, taskName, LONG_POLLING_SECONDS);
+                    boolean longPolled = System.currentTimeMillis() - start >= LONG_POLLING_SECONDS * 1000L;
+                    if (updated || longPolled) {
+                        // server waits for new logs. back-off is necessary only
+                        // for old servers that don't support long polling.
                         interval = 500;
                     }
                 }
@@ -78,15 +85,15 @@ public class ShowLog
     }
 
     private boolean update(DigdagClient client, TaskLogWatcher watcher,
-            long attemptId, Optional<String> taskName)
+            long attemptId, Optional<String> taskName, int waitSeconds)
         throws IOException
     {
         List<RestLogFileHandle> handles;
         if (taskName.isPresent()) {
-            handles = client.getLogFileHandlesOfTask(attemptId, taskName.get());
+            handles = client.getLogFileHandlesOfTask(attemptId, taskName.get(), watcher.getKnownSize(), waitSeconds);
         }
         else {
-            handles = client.getLogFileHandlesOfAttempt(attemptId);
+            handles = client.getLogFileHandlesOfAttempt(attemptId, watcher.getKnownSize(), waitSeconds);
         }
 
         return watcher.update(handles);
@@ -18,6 +18,7 @@ import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.EOFException;
 import com.google.common.base.Optional;
+import com.google.common.io.CountingInputStream;
 import io.digdag.client.DigdagClient;
 import io.digdag.client.api.RestLogFileHandle;
 import io.digdag.core.log.LogLevel;
@@ -34,6 +35,7 @@ class TaskLogWatcher
     private final Map<String, TaskLogState> stateMap;
     private final LogLevel levelFilter;
     private final PrintStream out;
+    private long knownSize = 0;
 
     TaskLogWatcher(DigdagClient client, long attemptId, LogLevel levelFilterOrNull, PrintStream out)
     {
@@ -44,11 +46,23 @@ class TaskLogWatcher
         this.stateMap = new HashMap<>();
     }
 
+    // total size of log files given to the last update. used for long polling.
+    long getKnownSize()
+    {
+        return knownSize;
+    }
+
     boolean update(List<RestLogFileHandle> handles)
         throws IOException
     {
         boolean updatedAtLeastOne = false;
 
+        long size = 0;
+        for (RestLogFileHandle handle : handles) {
+            size += handle.getFileSize();
+        }
+        knownSize = size;
+
         for (Map.Entry<String, List<RestLogFileHandle>> pair : sortHandles(handles).entrySet()) {
             TaskLogState state = stateMap.get(pair.getKey());
             if (state == null) {
@@ -68,7 +82,8 @@ class TaskLogWatcher
     private class TaskLogState
     {
         private RestLogFileHandle lastFile = null;
-        private int lastLineCount = 0;
+        // bytes of gzip data already shown. it's always at the end of a gzip member.
+        private long lastOffset = 0;
         private boolean lastLineFiltered = false;
 
         boolean update(List<RestLogFileHandle> sortedHandles)
@@ -87,7 +102,7 @@ class TaskLogWatcher
                     else if (lastFile.getFileName().equals(handle.getFileName())) {
                         // showing the last file if its size is grown
                         if (handle.getFileSize() > lastFile.getFileSize()) {
-                            showFileAndUpdate(handle, lastLineCount, lastLineFiltered);
+                            showFileAndUpdate(handle, lastOffset, lastLineFiltered);
                             updated = true;
                         }
                         // following files are all new files
@@ -111,29 +126,29 @@ class TaskLogWatcher
             return updated;
         }
 
-        private void showFileAndUpdate(RestLogFileHandle handle, int lineOffset, boolean lastLineFiltered)
+        private void showFileAndUpdate(RestLogFileHandle handle, long offset, boolean lastLineFiltered)
             throws IOException
         {
-            int lines = 0;
-
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(client.getLogFile(attemptId, handle)), UTF_8))) {
+            // server returns only complete gzip members after offset. reading
+            // them doesn't need decompressing the data shown before.
+            CountingInputStream in = new CountingInputStream(client.getLogFile(attemptId, handle, offset));
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(in), UTF_8))) {
                 String line;
                 while ((line = reader.readLine()) != null) {
-                    lines++;
-                    if (lineOffset > 0) {
-                        lineOffset--;
-                        continue;
-                    }
                     lastLineFiltered = showOrFilterLine(line, lastLineFiltered);
                 }
             }
             catch (EOFException ex) {
-                // OK to ignore Unexpected end of ZLIB input stream
+                // OK to ignore Unexpected end of ZLIB input stream.
+                // GZIPInputStream also throws EOFException if no new data is available.
+            }
+            finally {
+                in.close();
             }
 
             this.lastFile = handle;
-            this.lastLineCount = lines;
-            this.lastLineFiltered = false;
+            this.lastOffset = offset + in.getCount();
+            this.lastLineFiltered = lastLineFiltered;
         }
     }
 
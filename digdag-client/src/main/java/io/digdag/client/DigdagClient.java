@@ -6,6 +6,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.guava.GuavaModule;
 import com.fasterxml.jackson.jaxrs.json.JacksonJsonProvider;
 import com.google.common.base.Optional;
+import com.google.common.io.ByteStreams;
 import io.digdag.client.api.JacksonTimeModule;
 import io.digdag.client.api.LocalTimeOrInstant;
 import io.digdag.client.api.RestLogFileHandle;
@@ -30,9 +31,11 @@ import io.digdag.client.config.ConfigFactory;
 import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
 
 import javax.ws.rs.NotFoundException;
+import javax.ws.rs.ProcessingException;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.MultivaluedHashMap;
@@ -55,6 +58,10 @@ import static java.util.Locale.ENGLISH;
 
 public class DigdagClient implements AutoCloseable
 {
+    // response header of GET /api/logs/{id}/files/{fileName} that tells the
+    // offset where the returned data starts
+    public static final String LOG_FILE_OFFSET_HEADER = "Digdag-Log-File-Offset";
+
     public static class Builder
     {
         private String host = null;
@@ -496,6 +503,19 @@ public class DigdagClient implements AutoCloseable
                 .resolveTemplate("id", attemptId));
     }
 
+    /**
+     * Long-polling version of getLogFileHandlesOfAttempt. Server waits up to
+     * waitSeconds until total size of the log files becomes different from knownSize.
+     */
+    public List<RestLogFileHandle> getLogFileHandlesOfAttempt(long attemptId, long knownSize, int waitSeconds)
+    {
+        return doGet(new GenericType<List<RestLogFileHandle>>() { },
+                target("/api/logs/{id}/files")
+                .resolveTemplate("id", attemptId)
+                .queryParam("known_size", knownSize)
+                .queryParam("wait", waitSeconds));
+    }
+
     public List<RestLogFileHandle> getLogFileHandlesOfTask(long attemptId, String taskName)
     {
         return doGet(new GenericType<List<RestLogFileHandle>>() { },
@@ -504,30 +524,88 @@ public class DigdagClient implements AutoCloseable
                 .queryParam("task", taskName));
     }
 
+    public List<RestLogFileHandle> getLogFileHandlesOfTask(long attemptId, String taskName, long knownSize, int waitSeconds)
+    {
+        return doGet(new GenericType<List<RestLogFileHandle>>() { },
+                target("/api/logs/{id}/files")
+                .resolveTemplate("id", attemptId)
+                .queryParam("task", taskName)
+                .queryParam("known_size", knownSize)
+                .queryParam("wait", waitSeconds));
+    }
+
     public InputStream getLogFile(long attemptId, RestLogFileHandle handle)
+    {
+        return getLogFile(attemptId, handle, 0L);
+    }
+
+    /**
+     * Reads a log file from offset. offset must be 0 or the number of bytes
+     * read from the same file before. If the server doesn't support offset,
+     * the whole file is downloaded and data before offset is skipped.
+     */
+    public InputStream getLogFile(long attemptId, RestLogFileHandle handle, long offset)
     {
         if (handle.getDirect().isPresent()) {
-            Response res = client.target(UriBuilder.fromUri(handle.getDirect().get().getUrl()))
-                    .request()
-                    .get();
+            Invocation.Builder request = client.target(UriBuilder.fromUri(handle.getDirect().get().getUrl()))
+                    .request();
+            if (offset > 0) {
+                request.header("Range", "bytes=" + offset + "-");
+            }
+            Response res = request.get();
             // TODO check status code
-            return res.readEntity(InputStream.class);
+            InputStream in = res.readEntity(InputStream.class);
+            if (offset > 0 && res.getStatus() != Response.Status.PARTIAL_CONTENT.getStatusCode()) {
+                // the storage ignored Range header and returned the whole file
+                skipFully(in, offset);
+            }
+            return in;
         }
         else {
-            return getLogFile(attemptId, handle.getFileName());
+            return getLogFile(attemptId, handle.getFileName(), offset);
         }
     }
 
     public InputStream getLogFile(long attemptId, String fileName)
     {
-        Response res = target("/api/logs/{id}/files/{fileName}")
+        return getLogFile(attemptId, fileName, 0L);
+    }
+
+    public InputStream getLogFile(long attemptId, String fileName, long offset)
+    {
+        WebTarget target = target("/api/logs/{id}/files/{fileName}")
             .resolveTemplate("id", attemptId)
-            .resolveTemplate("fileName", fileName)
+            .resolveTemplate("fileName", fileName);
+        if (offset > 0) {
+            target = target.queryParam("offset", offset);
+        }
+        Response res = target
             .request()
             .headers(headers.get())
             .get();
         // TODO check status code
-        return res.readEntity(InputStream.class);
+        InputStream in = res.readEntity(InputStream.class);
+        if (offset > 0 && !Long.toString(offset).equals(res.getHeaderString(LOG_FILE_OFFSET_HEADER))) {
+            // old servers ignore offset and return the whole file
+            skipFully(in, offset);
+        }
+        return in;
+    }
+
+    private static void skipFully(InputStream in, long bytes)
+    {
+        try {
+            ByteStreams.skipFully(in, bytes);
+        }
+        catch (IOException ex) {
+            try {
+                in.close();
+            }
+            catch (IOException closeError) {
+                ex.addSuppressed(closeError);
+            }
+            throw new ProcessingException(ex);
+        }
     }
 
     public RestSessionAttempt startSessionAttempt(RestSessionAttemptRequest request)
@@ -33,6 +33,7 @@ import io.digdag.core.agent.AgentModule;
 import io.digdag.core.agent.LocalAgentModule;
 import io.digdag.core.storage.StorageModule;
 import io.digdag.core.log.LogModule;
+import io.digdag.core.metrics.MetricRegistry;
 import io.digdag.core.plugin.PluginSet;
 import io.digdag.core.plugin.DynamicPluginModule;
 import io.digdag.core.plugin.SystemPluginModule;
@@ -179,6 +180,7 @@ public class DigdagEmbed
                         binder.bind(ConfigElement.class).toInstance(systemConfig);
                         binder.bind(Config.class).toProvider(SystemConfigProvider.class);
                         binder.bind(TempFileManager.class).toProvider(TempFileManagerProvider.class).in(Scopes.SINGLETON);
+                        binder.bind(MetricRegistry.class).in(Scopes.SINGLETON);
                     }
                 ));
             if (withWorkflowExecutor) {
@@ -13,6 +13,8 @@ public interface AgentConfig
     static final int DEFAULT_HEARTBEAT_INTERVAL = 60;
     static final int DEFAULT_LOCK_RETENTION_TIME = 300;
     static final int DEFAULT_MAX_TASK_THREADS = 0;
+    static final int DEFAULT_MAX_IN_PROCESS_POLLING_INTERVAL = 30;
+    static final int DEFAULT_MAX_IN_PROCESS_POLLING_DURATION = 0;
 
     boolean getEnabled();
 
@@ -22,13 +24,26 @@ public interface AgentConfig
 
     int getMaxThreads();
 
+    // polling with an interval up to this seconds is done in the task thread
+    // without sending the task back to the queue.
+    int getMaxInProcessPollingInterval();
+
+    // a task is sent back to the queue after polling in process for this seconds.
+    // 0 (default) disables in-process polling. state params of in-process polls
+    // are kept only in memory. if the agent crashes or loses the task lock,
+    // the task restarts from the state params stored before the first in-process
+    // poll, and cancel requests are not seen until the task goes back to the queue.
+    int getMaxInProcessPollingDuration();
+
     static ImmutableAgentConfig.Builder defaultBuilder()
     {
         return ImmutableAgentConfig.builder()
             .enabled(true)
             .heartbeatInterval(DEFAULT_HEARTBEAT_INTERVAL)
             .lockRetentionTime(DEFAULT_LOCK_RETENTION_TIME)
-            .maxThreads(DEFAULT_MAX_TASK_THREADS);
+            .maxThreads(DEFAULT_MAX_TASK_THREADS)
+            .maxInProcessPollingInterval(DEFAULT_MAX_IN_PROCESS_POLLING_INTERVAL)
+            .maxInProcessPollingDuration(DEFAULT_MAX_IN_PROCESS_POLLING_DURATION);
     }
 
     static AgentConfig convertFrom(Config config)
@@ -38,6 +53,8 @@ public interface AgentConfig
             .heartbeatInterval(config.get("agent.heartbeatInterval", int.class, DEFAULT_HEARTBEAT_INTERVAL))
             .lockRetentionTime(config.get("agent.lockRetentionTime", int.class, DEFAULT_LOCK_RETENTION_TIME))
             .maxThreads(config.get("agent.max-task-threads", int.class, DEFAULT_MAX_TASK_THREADS))
+            .maxInProcessPollingInterval(config.get("agent.polling.max-in-process-interval", int.class, DEFAULT_MAX_IN_PROCESS_POLLING_INTERVAL))
+            .maxInProcessPollingDuration(config.get("agent.polling.max-in-process-duration", int.class, DEFAULT_MAX_IN_PROCESS_POLLING_DURATION))
             .build();
     }
 }
@@ -1,16 +1,19 @@
 package io.digdag.core.agent;
 
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.charset.Charset;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
 import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
-import javax.script.Invocable;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -20,7 +23,9 @@ import com.google.common.io.CharStreams;
 import com.google.inject.Inject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import jdk.nashorn.api.scripting.NashornException;
 import jdk.nashorn.api.scripting.NashornScriptEngineFactory;
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
 import io.digdag.client.config.Config;
 import io.digdag.spi.TemplateEngine;
 import io.digdag.spi.TemplateException;
@@ -45,6 +50,7 @@ public class ConfigEvalEngine
 
     private final ObjectMapper jsonMapper;
     private final NashornScriptEngineFactory jsEngineFactory;
+    private final ConcurrentMap<String, TemplateScript> scripts = new ConcurrentHashMap<>();
 
     @Inject
     public ConfigEvalEngine()
@@ -61,63 +67,125 @@ public class ConfigEvalEngine
         return config.getFactory().create(built);
     }
 
-    private Invocable newTemplateInvocable(Config params)
+    // A script engine with digdag.js compiled. Timezone is an option of
+    // a script engine. Thus an instance is created for each timezone.
+    private class TemplateScript
     {
-        ScriptEngine jsEngine = jsEngineFactory.getScriptEngine(new String[] {
-            //"--language=es6",  // this is not even accepted with jdk1.8.0_20 and has a bug with jdk1.8.0_51
-            "--no-java",
-            "--no-syntax-extensions",
-            "-timezone=" + params.get("timezone", String.class),
-        });
-        try {
-            jsEngine.eval(DIGDAG_JS);
+        private final ScriptEngine jsEngine;
+        private final CompiledScript compiled;
+
+        TemplateScript(String timezone)
+        {
+            this.jsEngine = jsEngineFactory.getScriptEngine(new String[] {
+                //"--language=es6",  // this is not even accepted with jdk1.8.0_20 and has a bug with jdk1.8.0_51
+                "--no-java",
+                "--no-syntax-extensions",
+                "-timezone=" + timezone,
+            });
+            try {
+                this.compiled = ((Compilable) jsEngine).compile(DIGDAG_JS);
+            }
+            catch (ScriptException | ClassCastException ex) {
+                throw new IllegalStateException("Unexpected script evaluation failure", ex);
+            }
         }
-        catch (ScriptException | ClassCastException ex) {
-            throw new IllegalStateException("Unexpected script evaluation failure", ex);
+
+        // Creates a new global object so that changes made by templates
+        // (global variables, built-in objects such as Array.prototype or
+        // JSON) don't leak to other tasks. Only compilation is shared.
+        TemplateGlobal newGlobal()
+        {
+            return new TemplateGlobal(jsEngine.createBindings(), compiled);
+        }
+    }
+
+    // A JavaScript global object. It must not be used by multiple threads at the same time.
+    private static class TemplateGlobal
+    {
+        private final ScriptObjectMirror templateFunction;
+        private final ScriptObjectMirror templateWithLocalsFunction;
+
+        TemplateGlobal(Bindings bindings, CompiledScript compiled)
+        {
+            try {
+                compiled.eval(bindings);
+            }
+            catch (ScriptException ex) {
+                throw new IllegalStateException("Unexpected script evaluation failure", ex);
+            }
+            this.templateFunction = (ScriptObjectMirror) bindings.get("template");
+            this.templateWithLocalsFunction = (ScriptObjectMirror) bindings.get("templateWithLocals");
         }
-        return (Invocable) jsEngine;
     }
 
-    private String invokeTemplate(Invocable templateInvocable, String code, Config params)
+    private TemplateScript getTemplateScript(Config params)
+    {
+        String timezone = params.get("timezone", String.class);
+        return scripts.computeIfAbsent(timezone, (key) -> new TemplateScript(key));
+    }
+
+    // A string without "${" doesn't include variables. template function only
+    // unescapes "$$" to "$" for such strings.
+    private static boolean needsTemplate(String code)
+    {
+        return code.contains("${");
+    }
+
+    private static String unescapeLiteral(String code)
+    {
+        return code.replace("$$", "$");
+    }
+
+    private String serializeParams(Object params)
         throws TemplateException
     {
-        String context;
         try {
-            context = jsonMapper.writeValueAsString(params);
+            return jsonMapper.writeValueAsString(params);
         }
         catch (RuntimeException | IOException ex) {
             throw new TemplateException("Failed to serialize parameters to JSON", ex);
         }
+    }
+
+    private static String invokeTemplate(ScriptObjectMirror function, String code, Object... args)
+        throws TemplateException
+    {
+        Object[] arguments = new Object[args.length + 1];
+        arguments[0] = code;
+        System.arraycopy(args, 0, arguments, 1, args.length);
         try {
-            return (String) templateInvocable.invokeFunction("template", code, context);
-        }
-        catch (ScriptException ex) {
-            String message;
-            if (ex.getCause() != null) {
-                // ScriptException.getMessage includes filename and line number but they
-                // are confusing because filename is always dummy file name and line number
-                // is not accurate.
-                message = ex.getCause().getMessage();
-            }
-            else {
-                message = ex.getMessage();
-            }
-            throw new TemplateException("Failed to evaluate a variable " + code + " (" + message + ")");
+            return (String) function.call(null, arguments);
         }
-        catch (NoSuchMethodException ex) {
-            throw new TemplateException("Failed to evaluate JavaScript code: " + code, ex);
+        catch (NashornException ex) {
+            // ScriptEngine.eval wraps this exception with ScriptException whose message
+            // includes dummy filename and inaccurate line number. Here uses message of
+            // the original exception in the same way.
+            String message = ex.getMessage();
+            throw new TemplateException("Failed to evaluate a variable " + code + " (" + message + ")");
         }
     }
 
     private class Context
     {
         private final Config params;
-        private final Invocable templateInvocable;
+        private TemplateGlobal global = null;
+        private String paramsJson = null;
 
         public Context(Config params)
         {
             this.params = params;
-            this.templateInvocable = newTemplateInvocable(params);
+        }
+
+        // JavaScript is initialized only when a value includes a template
+        private TemplateGlobal getGlobal()
+            throws TemplateException
+        {
+            if (global == null) {
+                global = getTemplateScript(params).newGlobal();
+                // params are serialized once for all values
+                paramsJson = serializeParams(params);
+            }
+            return global;
         }
 
         private ObjectNode evalObjectRecursive(ObjectNode local)
@@ -178,11 +246,15 @@ public class ConfigEvalEngine
         private JsonNode evalValue(ObjectNode local, String code)
             throws TemplateException
         {
-            Config scopedParams = params.deepCopy();
-            for (Map.Entry<String, JsonNode> pair : ImmutableList.copyOf(local.fields())) {
-                scopedParams.set(pair.getKey(), pair.getValue());
+            String resultText;
+            if (!needsTemplate(code)) {
+                resultText = unescapeLiteral(code);
+            }
+            else {
+                TemplateGlobal global = getGlobal();
+                String locals = local.size() == 0 ? null : serializeParams(local);
+                resultText = invokeTemplate(global.templateWithLocalsFunction, code, paramsJson, locals);
             }
-            String resultText = invokeTemplate(templateInvocable, code, scopedParams);
             if (resultText == null) {
                 return jsonMapper.getNodeFactory().nullNode();
             }
@@ -196,8 +268,14 @@ public class ConfigEvalEngine
     public String template(String content, Config params)
         throws TemplateException
     {
-        Invocable templateInvocable = newTemplateInvocable(params);
-        String resultText = invokeTemplate(templateInvocable, content, params);
+        String resultText;
+        if (!needsTemplate(content)) {
+            resultText = unescapeLiteral(content);
+        }
+        else {
+            TemplateGlobal global = getTemplateScript(params).newGlobal();
+            resultText = invokeTemplate(global.templateFunction, content, serializeParams(params));
+        }
         if (resultText == null) {
             return "";
         }
@@ -25,6 +25,7 @@ import io.digdag.core.repository.StoredRevision;
 import io.digdag.core.repository.ArchiveType;
 import io.digdag.core.storage.ArchiveManager;
 import io.digdag.core.queue.TaskQueueServerManager;
+import io.digdag.core.archive.IndexedArchive;
 import io.digdag.core.log.LogServerManager;
 import io.digdag.core.log.TaskLogger;
 import io.digdag.spi.TaskQueueClient;
@@ -129,6 +130,29 @@ public class InProcessTaskCallbackApi
         }
     }
 
+    @Override
+    public Optional<IndexedArchive> openIndexedArchive(TaskRequest request)
+        throws IOException
+    {
+        if (!request.getRevision().isPresent()) {
+            return Optional.absent();
+        }
+
+        try {
+            return archiveManager.openIndexedArchive(
+                    pm.getProjectStore(request.getSiteId()),
+                    request.getProjectId(),
+                    request.getRevision().get());
+        }
+        catch (ResourceNotFoundException ex) {
+            throw new IllegalStateException(String.format(ENGLISH,
+                        "Archive data for project id=%d revision='%s' is not found in database",
+                        request.getProjectId(),
+                        request.getRevision().or("")
+                        ), ex);
+        }
+    }
+
     @Override
     public void taskSucceeded(int siteId,
             long taskId, String lockId, AgentId agentId,
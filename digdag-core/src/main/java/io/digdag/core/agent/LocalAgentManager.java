@@ -10,7 +10,9 @@ import com.google.common.base.Optional;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.digdag.core.BackgroundExecutor;
 import io.digdag.core.ErrorReporter;
+import io.digdag.core.metrics.MetricRegistry;
 import io.digdag.core.queue.TaskQueueServerManager;
+import org.weakref.jmx.Managed;
 
 public class LocalAgentManager
         implements BackgroundExecutor
@@ -22,6 +24,9 @@ public class LocalAgentManager
     @Inject(optional = true)
     private ErrorReporter errorReporter = ErrorReporter.empty();
 
+    @Inject(optional = true)
+    private MetricRegistry metrics = new MetricRegistry();
+
     @Inject
     public LocalAgentManager(
             AgentConfig config,
@@ -30,7 +35,7 @@ public class LocalAgentManager
             OperatorManager operatorManager)
     {
         if (config.getEnabled()) {
-            this.agentFactory = () -> new MultiThreadAgent(config, agentId, taskServer, operatorManager, errorReporter);
+            this.agentFactory = () -> new MultiThreadAgent(config, agentId, taskServer, operatorManager, errorReporter, metrics);
         }
         else {
             this.agentFactory = null;
@@ -63,6 +68,27 @@ public class LocalAgentManager
         }
     }
 
+    @Managed
+    public int getRunningTaskCount()
+    {
+        MultiThreadAgent agent = this.agent;
+        return agent == null ? 0 : agent.getRunningTaskCount();
+    }
+
+    @Managed
+    public int getFetchSize()
+    {
+        MultiThreadAgent agent = this.agent;
+        return agent == null ? 0 : agent.getFetchSize();
+    }
+
+    @Managed
+    public long getFetchCount()
+    {
+        MultiThreadAgent agent = this.agent;
+        return agent == null ? 0 : agent.getFetchCount();
+    }
+
     @Override
     public void eagerShutdown()
             throws InterruptedException
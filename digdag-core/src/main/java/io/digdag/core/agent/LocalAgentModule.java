@@ -9,6 +9,7 @@ import com.google.inject.multibindings.Multibinder;
 import io.digdag.spi.TemplateEngine;
 import io.digdag.spi.OperatorFactory;
 import io.digdag.spi.CommandLogger;
+import static org.weakref.jmx.guice.ExportBinder.newExporter;
 
 public class LocalAgentModule
         implements Module
@@ -28,5 +29,6 @@ public class LocalAgentModule
         taskExecutorBinder.addBinding().to(CallOperatorFactory.class).in(Scopes.SINGLETON);
 
         binder.bind(LocalAgentManager.class).asEagerSingleton();
+        newExporter(binder).export(LocalAgentManager.class).withGeneratedName();
     }
 }
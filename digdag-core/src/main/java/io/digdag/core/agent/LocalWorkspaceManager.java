@@ -1,29 +1,42 @@
 package io.digdag.core.agent;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.BufferedInputStream;
 import java.nio.channels.Channels;
+import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
+import javax.annotation.PreDestroy;
 import com.google.inject.Inject;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import com.google.common.io.ByteStreams;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import io.digdag.client.config.Config;
 import io.digdag.spi.TaskRequest;
 import io.digdag.spi.StorageObject;
 import io.digdag.core.TempFileManager;
+import io.digdag.core.archive.ArchiveIndex;
+import io.digdag.core.archive.IndexedArchive;
 import io.digdag.core.TempFileManager.TempDir;
 
 public class LocalWorkspaceManager
@@ -32,11 +45,35 @@ public class LocalWorkspaceManager
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     private final TempFileManager tempFiles;
+    private final Optional<WorkspaceCache> cache;
+    private final boolean onDemand;
 
     @Inject
-    public LocalWorkspaceManager(TempFileManager tempFiles)
+    public LocalWorkspaceManager(TempFileManager tempFiles, Config systemConfig)
     {
         this.tempFiles = tempFiles;
+        if (systemConfig.get("agent.workspace-cache.enabled", boolean.class, false)) {
+            long maxSizeMb = systemConfig.get("agent.workspace-cache.max-size-mb", long.class, 1024L);
+            Path cacheDir = systemConfig.getOptional("agent.workspace-cache.path", String.class)
+                .transform(path -> Paths.get(path))
+                .or(() -> tempFiles.createTempDir("workspace-cache").get());
+            this.cache = Optional.of(new WorkspaceCache(cacheDir, maxSizeMb * 1024 * 1024));
+        }
+        else {
+            this.cache = Optional.absent();
+        }
+        // on-demand mode: a task that declares _workspace.include gets only files
+        // that match the glob patterns. Files are fetched using the archive index
+        // if the archive is stored with it.
+        this.onDemand = systemConfig.get("agent.workspace.on-demand.enabled", boolean.class, false);
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        if (cache.isPresent()) {
+            cache.get().close();
+        }
     }
 
     @Override
@@ -44,17 +81,108 @@ public class LocalWorkspaceManager
             throws IOException
     {
         try (TempDir workspacePath = createNewWorkspace(request)) {
+            List<String> includes = onDemand ?
+                request.getConfig().getNestedOrGetEmpty("_workspace").getListOrEmpty("include", String.class) :
+                ImmutableList.of();
+            if (!includes.isEmpty()) {
+                extractIncludedFiles(workspacePath.get(), archiveProvider, includes);
+            }
+            else if (cache.isPresent() && request.getRevision().isPresent()) {
+                // a revision is immutable. archive of the same revision is extracted only once.
+                String key = request.getProjectId() + "/" + request.getRevision().get();
+                cache.get().checkout(key, workspacePath.get(), (destDir) -> extractArchive(destDir, archiveProvider));
+            }
+            else {
+                extractArchive(workspacePath.get(), archiveProvider);
+            }
+            return func.run(workspacePath.get());
+        }
+    }
+
+    private void extractArchive(Path destDir, ArchiveProvider archiveProvider)
+        throws IOException
+    {
+        Optional<StorageObject> in = archiveProvider.open();
+        if (in.isPresent()) {
+            try (TarArchiveInputStream archive = openTarGz(in.get().getContentInputStream())) {
+                extractArchive(destDir, archive, (name) -> true);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    void extractIncludedFiles(Path destDir, ArchiveProvider archiveProvider, List<String> includes)
+        throws IOException
+    {
+        List<PathMatcher> matchers = includes.stream()
+            .map(pattern -> FileSystems.getDefault().getPathMatcher("glob:" + pattern))
+            .collect(Collectors.toList());
+        Predicate<String> filter = (name) -> {
+            Path path = Paths.get(name);
+            return matchers.stream().anyMatch(matcher -> matcher.matches(path));
+        };
+
+        Optional<IndexedArchive> indexed = archiveProvider.openIndexed();
+        if (!indexed.isPresent()) {
+            // read the whole archive but write only matched files
             Optional<StorageObject> in = archiveProvider.open();
             if (in.isPresent()) {
-                try (TarArchiveInputStream archive = new TarArchiveInputStream(new GzipCompressorInputStream(new BufferedInputStream(in.get().getContentInputStream())))) {
-                    extractArchive(workspacePath.get(), archive);
+                try (TarArchiveInputStream archive = openTarGz(in.get().getContentInputStream())) {
+                    extractArchive(destDir, archive, filter);
                 }
             }
-            return func.run(workspacePath.get());
+            return;
+        }
+
+        for (List<ArchiveIndex.Entry> run : coalesceRanges(indexed.get().getIndex().getEntries(), filter)) {
+            extractRange(destDir, indexed.get(), run, filter);
+        }
+    }
+
+    // groups matched entries into runs of adjacent entries. a run is read by one request.
+    @VisibleForTesting
+    static List<List<ArchiveIndex.Entry>> coalesceRanges(List<ArchiveIndex.Entry> entries, Predicate<String> filter)
+    {
+        List<List<ArchiveIndex.Entry>> runs = new ArrayList<>();
+        List<ArchiveIndex.Entry> run = new ArrayList<>();
+        for (ArchiveIndex.Entry entry : entries) {
+            if (!filter.test(entry.getName())) {
+                continue;
+            }
+            if (!run.isEmpty()) {
+                ArchiveIndex.Entry last = run.get(run.size() - 1);
+                if (last.getOffset() + last.getLength() != entry.getOffset()) {
+                    runs.add(run);
+                    run = new ArrayList<>();
+                }
+            }
+            run.add(entry);
+        }
+        if (!run.isEmpty()) {
+            runs.add(run);
+        }
+        return runs;
+    }
+
+    private void extractRange(Path destDir, IndexedArchive indexed, List<ArchiveIndex.Entry> run, Predicate<String> filter)
+        throws IOException
+    {
+        ArchiveIndex.Entry first = run.get(0);
+        ArchiveIndex.Entry last = run.get(run.size() - 1);
+        long length = last.getOffset() + last.getLength() - first.getOffset();
+        try (TarArchiveInputStream archive = openTarGz(indexed.openRange(first.getOffset(), length))) {
+            extractArchive(destDir, archive, filter);
         }
     }
 
-    private void extractArchive(Path destDir, TarArchiveInputStream archive)
+    private static TarArchiveInputStream openTarGz(InputStream in)
+        throws IOException
+    {
+        // ranges of archives rewritten by IndexedArchiveWriter consist of concatenated gzip members
+        return new TarArchiveInputStream(new GzipCompressorInputStream(new BufferedInputStream(in), true));
+    }
+
+    private void extractArchive(Path destDir, TarArchiveInputStream archive, Predicate<String> filter)
         throws IOException
     {
         String prefix = destDir.toAbsolutePath().normalize().toString();
@@ -64,6 +192,9 @@ public class LocalWorkspaceManager
             if (entry == null) {
                 break;
             }
+            if (!filter.test(ArchiveIndex.normalizeName(entry.getName()))) {
+                continue;
+            }
             Path path = destDir.resolve(entry.getName()).normalize();
             if (!path.toString().startsWith(prefix)) {
                 throw new RuntimeException("Archive includes an invalid entry: " + entry.getName());
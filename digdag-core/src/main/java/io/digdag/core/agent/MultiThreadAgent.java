@@ -1,15 +1,21 @@
 package io.digdag.core.agent;
 
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.time.Duration;
 import com.google.common.base.Optional;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.digdag.spi.TaskRequest;
 import io.digdag.core.ErrorReporter;
+import io.digdag.core.metrics.Histogram;
+import io.digdag.core.metrics.MetricRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,6 +24,11 @@ public class MultiThreadAgent
 {
     private static final Logger logger = LoggerFactory.getLogger(MultiThreadAgent.class);
 
+    private static final int MIN_FETCH_SIZE = 4;
+
+    // upper limit of fetch size if number of threads is unlimited
+    private static final int UNLIMITED_THREADS_MAX_FETCH_SIZE = 256;
+
     private final AgentConfig config;
     private final AgentId agentId;
     private final TaskServerApi taskServer;
@@ -25,27 +36,45 @@ public class MultiThreadAgent
     private final ErrorReporter errorReporter;
     private final ThreadPoolExecutor executor;
     private final Object newTaskLock = new Object();
+    private final Object slotLock = new Object();
+    private final int maxThreads;
+    private final int maxFetchSize;
+    private volatile int fetchSize = MIN_FETCH_SIZE;
+    private final AtomicInteger runningCount = new AtomicInteger(0);
+    // nanoTime when task threads finished tasks and became idle
+    private final Queue<Long> idleSince = new ConcurrentLinkedQueue<>();
+    private final AtomicLong fetchCount = new AtomicLong(0);
+    private final Histogram pickupTime;
+    private final Histogram runningTime;
     private volatile boolean stop = false;
 
     public MultiThreadAgent(
             AgentConfig config, AgentId agentId,
             TaskServerApi taskServer, OperatorManager runner,
-            ErrorReporter errorReporter)
+            ErrorReporter errorReporter, MetricRegistry metrics)
     {
         this.agentId = agentId;
         this.config = config;
         this.taskServer = taskServer;
         this.runner = runner;
         this.errorReporter = errorReporter;
+        this.pickupTime = metrics.histogram("digdag_agent_task_pickup_seconds",
+                "Time from a task thread becoming idle until it picks up a task locked for it");
+        this.runningTime = metrics.histogram("digdag_agent_task_run_seconds",
+                "Time to run a task including archive extraction, config evaluation and the operator");
         ThreadFactory threadFactory = new ThreadFactoryBuilder()
             .setDaemon(false)  // make them non-daemon threads so that shutting down agent doesn't kill operator execution
             .setNameFormat("task-thread-%d")
             .build();
         if (config.getMaxThreads() > 0) {
             this.executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(config.getMaxThreads(), threadFactory);
+            this.maxThreads = config.getMaxThreads();
+            this.maxFetchSize = config.getMaxThreads();
         }
         else {
             this.executor = (ThreadPoolExecutor) Executors.newCachedThreadPool(threadFactory);
+            this.maxThreads = Integer.MAX_VALUE;
+            this.maxFetchSize = UNLIMITED_THREADS_MAX_FETCH_SIZE;
         }
     }
 
@@ -59,7 +88,9 @@ public class MultiThreadAgent
             // synchronize newTaskLock not to reject task execution after acquiring them from taskServer
             executor.shutdown();
             activeCount = executor.getActiveCount();
-            newTaskLock.notifyAll();
+        }
+        synchronized (slotLock) {
+            slotLock.notifyAll();
         }
         if (activeCount > 0) {
             logger.info("Waiting for completion of {} running tasks...", activeCount);
@@ -82,29 +113,34 @@ public class MultiThreadAgent
     {
         while (!stop) {
             try {
+                // wait until a task thread becomes available. finishing a task wakes this up
+                // immediately so that the next tasks are fetched without delay.
+                synchronized (slotLock) {
+                    while (!stop && runningCount.get() >= maxThreads) {
+                        slotLock.wait(500);
+                    }
+                }
+                if (stop) {
+                    break;
+                }
+
                 synchronized (newTaskLock) {
                     if (executor.isShutdown()) {
                         break;
                     }
-                    int max = Math.min(executor.getMaximumPoolSize() - executor.getActiveCount(), 10);
+                    int max = Math.min(maxThreads - runningCount.get(), fetchSize);
                     if (max > 0) {
                         List<TaskRequest> reqs = taskServer.lockSharedAgentTasks(max, agentId, config.getLockRetentionTime(), 1000);
+                        fetchCount.incrementAndGet();
+                        adjustFetchSize(max, reqs.size());
+                        if (reqs.size() < max) {
+                            // queue is drained. threads idle from now on are not waiting for this agent
+                            idleSince.clear();
+                        }
                         for (TaskRequest req : reqs) {
-                            executor.submit(() -> {
-                                try {
-                                    runner.run(req);
-                                }
-                                catch (Throwable t) {
-                                    logger.error("Uncaught exception. Task queue will detect this failure and this task will be retried later.", t);
-                                    errorReporter.reportUncaughtError(t);
-                                }
-                            });
+                            submit(req);
                         }
                     }
-                    else {
-                        // no executor thread is available. sleep for a while until a task execution finishes
-                        newTaskLock.wait(500);
-                    }
                 }
             }
             catch (Throwable t) {
@@ -120,4 +156,69 @@ public class MultiThreadAgent
             }
         }
     }
+
+    // fetch size grows while the queue has more tasks than requested, and
+    // shrinks to the number of tasks found when the queue is drained.
+    private void adjustFetchSize(int requested, int fetched)
+    {
+        if (fetched >= requested) {
+            fetchSize = (int) Math.min((long) fetchSize * 2, maxFetchSize);
+        }
+        else {
+            fetchSize = Math.max(MIN_FETCH_SIZE, fetched);
+        }
+    }
+
+    private void submit(TaskRequest req)
+    {
+        Long idleStart = idleSince.poll();
+        runningCount.incrementAndGet();
+        try {
+            executor.submit(() -> {
+                if (idleStart != null) {
+                    pickupTime.recordSince(idleStart);
+                }
+                long startNanos = System.nanoTime();
+                try {
+                    runner.run(req);
+                }
+                catch (Throwable t) {
+                    logger.error("Uncaught exception. Task queue will detect this failure and this task will be retried later.", t);
+                    errorReporter.reportUncaughtError(t);
+                }
+                finally {
+                    runningTime.recordSince(startNanos);
+                    taskFinished();
+                }
+            });
+        }
+        catch (RuntimeException ex) {
+            runningCount.decrementAndGet();
+            throw ex;
+        }
+    }
+
+    private void taskFinished()
+    {
+        idleSince.add(System.nanoTime());
+        runningCount.decrementAndGet();
+        synchronized (slotLock) {
+            slotLock.notifyAll();
+        }
+    }
+
+    public int getRunningTaskCount()
+    {
+        return runningCount.get();
+    }
+
+    public int getFetchSize()
+    {
+        return fetchSize;
+    }
+
+    public long getFetchCount()
+    {
+        return fetchCount.get();
+    }
 }
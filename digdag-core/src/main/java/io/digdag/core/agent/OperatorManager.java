@@ -1,15 +1,20 @@
 package io.digdag.core.agent;
 
+import com.google.common.base.Optional;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import io.digdag.client.config.Config;
 import io.digdag.client.config.ConfigException;
 import io.digdag.client.config.ConfigFactory;
+import io.digdag.core.archive.IndexedArchive;
 import io.digdag.core.log.LogLevel;
 import io.digdag.core.log.TaskContextLogging;
 import io.digdag.core.log.TaskLogger;
 import io.digdag.core.workflow.WorkflowCompiler;
 import io.digdag.core.ErrorReporter;
+import io.digdag.core.metrics.Counter;
+import io.digdag.core.metrics.Histogram;
+import io.digdag.core.metrics.MetricRegistry;
 import io.digdag.spi.Operator;
 import io.digdag.spi.OperatorFactory;
 import io.digdag.spi.SecretAccessContext;
@@ -17,6 +22,7 @@ import io.digdag.spi.SecretAccessPolicy;
 import io.digdag.spi.SecretSelector;
 import io.digdag.spi.SecretStore;
 import io.digdag.spi.SecretStoreManager;
+import io.digdag.spi.StorageObject;
 import io.digdag.spi.TaskExecutionContext;
 import io.digdag.spi.TaskExecutionException;
 import io.digdag.spi.TaskRequest;
@@ -38,6 +44,8 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import static com.google.common.base.Strings.isNullOrEmpty;
@@ -61,6 +69,19 @@ public class OperatorManager
     private final ScheduledExecutorService heartbeatScheduler;
     private final ConcurrentHashMap<Long, TaskRequest> runningTaskMap = new ConcurrentHashMap<>();  // {taskId => TaskRequest}
 
+    private final Object pollingLock = new Object();
+    private volatile boolean stopping = false;
+    // number of task threads waiting for next in-process polling
+    private final AtomicInteger waitingPollCount = new AtomicInteger(0);
+    private final AtomicLong setupCount = new AtomicLong(0);
+    private final AtomicLong setupNanosTotal = new AtomicLong(0);
+
+    private Histogram archiveExtractionTime;
+    private Histogram configEvalTime;
+    private Counter heartbeatErrors;
+    private Counter polls;
+    private Counter inProcessPolls;
+
     @Inject(optional = true)
     private ErrorReporter errorReporter = ErrorReporter.empty();
 
@@ -89,6 +110,24 @@ public class OperatorManager
                 .setNameFormat("heartbeat-%d")
                 .build()
                 );
+        setMetricRegistry(new MetricRegistry());
+    }
+
+    @Inject(optional = true)
+    public void setMetricRegistry(MetricRegistry metrics)
+    {
+        this.archiveExtractionTime = metrics.histogram("digdag_agent_archive_extraction_seconds",
+                "Time to download and extract a project archive before running a task");
+        this.configEvalTime = metrics.histogram("digdag_agent_config_eval_seconds",
+                "Time to evaluate ${...} variables of task config");
+        this.heartbeatErrors = metrics.counter("digdag_agent_heartbeat_errors_total",
+                "Number of failures of sending task heartbeats to a server");
+        this.polls = metrics.counter("digdag_agent_operator_polls_total",
+                "Number of polling requests by operators (TaskExecutionException.ofNextPolling)");
+        this.inProcessPolls = metrics.counter("digdag_agent_operator_in_process_polls_total",
+                "Number of polls done in process without sending tasks back to the queue");
+        metrics.gauge("digdag_agent_running_tasks",
+                "Number of tasks running on this agent", runningTaskMap::size);
     }
 
     @PostConstruct
@@ -104,6 +143,12 @@ public class OperatorManager
     {
         heartbeatScheduler.shutdown();
         // TODO wait for shutdown completion?
+
+        // tasks polling in process are sent back to the queue
+        stopping = true;
+        synchronized (pollingLock) {
+            pollingLock.notifyAll();
+        }
     }
 
     public void run(TaskRequest request)
@@ -132,10 +177,28 @@ public class OperatorManager
 
     private void runWithHeartbeat(TaskRequest request)
     {
+        long startNanos = System.nanoTime();
         try {
-            workspaceManager.withExtractedArchive(request, () -> callback.openArchive(request), (workspacePath) -> {
+            WorkspaceManager.ArchiveProvider archiveProvider = new WorkspaceManager.ArchiveProvider()
+            {
+                @Override
+                public Optional<StorageObject> open()
+                    throws IOException
+                {
+                    return callback.openArchive(request);
+                }
+
+                @Override
+                public Optional<IndexedArchive> openIndexed()
+                    throws IOException
+                {
+                    return callback.openIndexedArchive(request);
+                }
+            };
+            workspaceManager.withExtractedArchive(request, archiveProvider, (workspacePath) -> {
+                archiveExtractionTime.recordSince(startNanos);
                 try {
-                    runWithWorkspace(workspacePath, request);
+                    runWithWorkspace(workspacePath, request, startNanos);
                 }
                 catch (TaskExecutionException ex) {
                     if (ex.getRetryInterval().isPresent()) {
@@ -182,7 +245,7 @@ public class OperatorManager
         }
     }
 
-    private void runWithWorkspace(Path workspacePath, TaskRequest request)
+    private void runWithWorkspace(Path workspacePath, TaskRequest request, long startNanos)
         throws TaskExecutionException
     {
         // evaluate config and creates the complete merged config.
@@ -193,7 +256,9 @@ public class OperatorManager
             Config evalParams = all.deepCopy();
             all.merge(request.getLocalConfig());
 
+            long evalStartNanos = System.nanoTime();
             config = evalEngine.eval(all, evalParams);
+            configEvalTime.recordSince(evalStartNanos);
         }
         catch (TemplateException ex) {
             throw new ConfigException(ex.getMessage(), ex);
@@ -244,7 +309,11 @@ public class OperatorManager
         // re-get workdir from CheckedConfig
         String workdir = checkedConfig.get("_workdir", String.class, "");
 
-        TaskResult result = callExecutor(workspacePath.resolve(workdir), type, mergedRequest);
+        // time to extract archive and evaluate config. in-process polling skips this.
+        setupCount.incrementAndGet();
+        setupNanosTotal.addAndGet(System.nanoTime() - startNanos);
+
+        TaskResult result = callExecutorWithPolling(workspacePath.resolve(workdir), type, mergedRequest);
 
         if (!checkedConfig.isAllUsed()) {
             List<String> usedKeys = checkedConfig.getUsedKeys();
@@ -270,6 +339,77 @@ public class OperatorManager
         }
     }
 
+    // If an operator throws TaskExecutionException.ofNextPolling with a short
+    // interval, this method waits for the interval and calls the operator again
+    // with the same workspace and evaluated config instead of sending the task
+    // back to the queue. The task lock is kept by heartbeat because the task
+    // stays in runningTaskMap. Polling falls back to the queue when it takes
+    // longer than max-in-process-duration, when too many threads are waiting,
+    // or when the agent is shutting down. In-process polling is disabled by
+    // default (see AgentConfig.getMaxInProcessPollingDuration).
+    TaskResult callExecutorWithPolling(Path workspacePath, String type, TaskRequest mergedRequest)
+    {
+        long pollingStartNanos = System.nanoTime();
+        TaskRequest current = mergedRequest;
+        while (true) {
+            try {
+                return callExecutor(workspacePath, type, current);
+            }
+            catch (TaskExecutionException ex) {
+                if (!ex.getRetryInterval().isPresent() || ex.getError(cf).isPresent()) {
+                    throw ex;
+                }
+                polls.inc();
+                int interval = ex.getRetryInterval().get();
+                if (!waitForInProcessPolling(interval, pollingStartNanos)) {
+                    throw ex;
+                }
+                inProcessPolls.inc();
+                logger.debug("Polling task again in process");
+                current = TaskRequest.builder()
+                    .from(current)
+                    .lastStateParams(ex.getStateParams(cf).get())
+                    .build();
+            }
+        }
+    }
+
+    private boolean waitForInProcessPolling(int interval, long pollingStartNanos)
+    {
+        if (interval > agentConfig.getMaxInProcessPollingInterval()) {
+            return false;
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(interval);
+        if (deadline - pollingStartNanos >= TimeUnit.SECONDS.toNanos(agentConfig.getMaxInProcessPollingDuration())) {
+            return false;
+        }
+        // keep at least half of task threads for other tasks
+        int maxWaiting = agentConfig.getMaxThreads() > 0 ? agentConfig.getMaxThreads() / 2 : Integer.MAX_VALUE;
+        if (waitingPollCount.incrementAndGet() > maxWaiting) {
+            waitingPollCount.decrementAndGet();
+            return false;
+        }
+        try {
+            synchronized (pollingLock) {
+                while (!stopping) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return true;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(pollingLock, remaining);
+                }
+            }
+            return false;
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        finally {
+            waitingPollCount.decrementAndGet();
+        }
+    }
+
     protected TaskResult callExecutor(Path workspacePath, String type, TaskRequest mergedRequest)
     {
         OperatorFactory factory = registry.get(mergedRequest, type);
@@ -319,10 +459,35 @@ public class OperatorManager
         }
         catch (Throwable t) {
             logger.error("Uncaught exception during sending task heartbeats to a server. Ignoring. Heartbeat thread will be retried.", t);
+            heartbeatErrors.inc();
             errorReporter.reportUncaughtError(t);
         }
     }
 
+    // number of TaskExecutionException.ofNextPolling thrown by operators
+    public long getPollCount()
+    {
+        return polls.get();
+    }
+
+    // number of polls done in process without sending tasks back to the queue
+    public long getInProcessPollCount()
+    {
+        return inProcessPolls.get();
+    }
+
+    // number of tasks picked up from the queue and prepared to call an operator
+    public long getSetupCount()
+    {
+        return setupCount.get();
+    }
+
+    // total time spent to extract archives and evaluate config before calling operators
+    public long getSetupTimeMillisTotal()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(setupNanosTotal.get());
+    }
+
     public static String formatExceptionMessage(Throwable ex)
     {
         StringBuilder sb = new StringBuilder();
@@ -5,6 +5,7 @@ import java.time.Instant;
 import java.io.IOException;
 import com.google.common.base.Optional;
 import io.digdag.client.config.Config;
+import io.digdag.core.archive.IndexedArchive;
 import io.digdag.core.log.TaskLogger;
 import io.digdag.spi.TaskResult;
 import io.digdag.spi.TaskRequest;
@@ -22,6 +23,10 @@ public interface TaskCallbackApi
     Optional<StorageObject> openArchive(TaskRequest request)
         throws IOException;
 
+    // absent if the archive is not stored with an index
+    Optional<IndexedArchive> openIndexedArchive(TaskRequest request)
+        throws IOException;
+
     void taskSucceeded(int siteId,
             long taskId, String lockId, AgentId agentId,
             TaskResult result);
@@ -0,0 +1,352 @@
+package io.digdag.core.agent;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import io.digdag.core.TempFileManager;
+
+/**
+ * Cache of extracted project archives.
+ *
+ * An archive is extracted once into a base directory. A workspace is a
+ * view of the base directory: directories are created for each workspace
+ * and files are hard links to the files in the base directory. Files are
+ * copied instead if the file system doesn't support hard links.
+ *
+ * Files in base directories are read-only so that a task can't write to
+ * them in place through a hard link. Tasks can still create, delete, or
+ * replace (unlink and create) files in their workspace. A task running as
+ * root or one that runs chmod can still write in place. Such a change is
+ * visible to tasks using the same base directory at the same time, but
+ * checkout finds it by size, modification time and permissions of the
+ * files, and extracts the archive again for later checkouts.
+ *
+ * Base directories that are not used by running checkouts are evicted in
+ * least-recently-used order when total size exceeds the budget.
+ */
+class WorkspaceCache
+{
+    private static final Logger logger = LoggerFactory.getLogger(WorkspaceCache.class);
+
+    private static final Set<PosixFilePermission> WRITE_PERMISSIONS = EnumSet.of(
+            PosixFilePermission.OWNER_WRITE,
+            PosixFilePermission.GROUP_WRITE,
+            PosixFilePermission.OTHERS_WRITE);
+
+    private static final HashFunction FINGERPRINT_HASH = Hashing.murmur3_128();
+
+    public interface Extractor
+    {
+        void extract(Path destDir) throws IOException;
+    }
+
+    private static class Entry
+    {
+        private final String key;
+        private Path path = null;  // null until extraction completes
+        private boolean removed = false;  // extraction failed or files are modified. removed from entries
+        private long size = 0;
+        private long fingerprint = 0;
+        private int users = 0;
+
+        Entry(String key)
+        {
+            this.key = key;
+        }
+    }
+
+    private final Path cacheDir;
+    private final long maxSize;
+
+    // access-ordered map for LRU eviction. guarded by this.
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalSize = 0;
+
+    private volatile boolean hardLinkSupported = true;
+
+    WorkspaceCache(Path cacheDir, long maxSize)
+    {
+        this.cacheDir = cacheDir;
+        this.maxSize = maxSize;
+    }
+
+    public void checkout(String key, Path destDir, Extractor extractor)
+        throws IOException
+    {
+        while (true) {
+            Entry entry;
+            synchronized (this) {
+                entry = entries.get(key);
+                if (entry == null) {
+                    entry = new Entry(key);
+                    entries.put(key, entry);
+                }
+                entry.users++;
+            }
+
+            try {
+                Path base = getOrExtract(entry, extractor);
+                if (base != null) {
+                    if (linkTree(base, destDir) == entry.fingerprint) {
+                        return;
+                    }
+                    // a task wrote to a cached file in place
+                    logger.warn("Files of cached workspace {} are modified. Extracting the archive again.", key);
+                    TempFileManager.deleteFilesIfExistsRecursively(destDir);
+                    Files.createDirectories(destDir);
+                    synchronized (this) {
+                        remove(entry);
+                    }
+                }
+                // extraction by another thread failed or files are modified. retry with a new entry.
+            }
+            finally {
+                List<Entry> evicted;
+                synchronized (this) {
+                    entry.users--;
+                    evicted = evictIfNecessary();
+                    if (entry.removed && entry.users == 0 && entry.path != null) {
+                        evicted.add(entry);
+                    }
+                }
+                for (Entry e : evicted) {
+                    logger.debug("Evicting cached workspace {} ({} bytes)", e.key, e.size);
+                    TempFileManager.deleteFilesIfExistsRecursively(e.path);
+                }
+            }
+        }
+    }
+
+    // returns null if extraction of the entry failed in another thread
+    private Path getOrExtract(Entry entry, Extractor extractor)
+        throws IOException
+    {
+        // other threads that need the same archive wait for the extraction here
+        synchronized (entry) {
+            if (entry.removed) {
+                return null;
+            }
+            if (entry.path != null) {
+                return entry.path;
+            }
+
+            Files.createDirectories(cacheDir);
+            Path dir = Files.createTempDirectory(cacheDir, "workspace_");
+            long size;
+            long fingerprint;
+            try {
+                extractor.extract(dir);
+                size = makeReadOnly(dir);
+                fingerprint = fingerprint(dir);
+            }
+            catch (IOException | RuntimeException ex) {
+                TempFileManager.deleteFilesIfExistsRecursively(dir);
+                // don't leave a broken entry for later checkouts
+                synchronized (this) {
+                    remove(entry);
+                }
+                throw ex;
+            }
+
+            synchronized (this) {
+                entry.path = dir;
+                entry.size = size;
+                entry.fingerprint = fingerprint;
+                totalSize += size;
+            }
+            return dir;
+        }
+    }
+
+    // guarded by this. the directory is deleted when the last user returns.
+    private void remove(Entry entry)
+    {
+        if (!entry.removed) {
+            entry.removed = true;
+            entries.remove(entry.key, entry);
+            if (entry.path != null) {
+                totalSize -= entry.size;
+            }
+        }
+    }
+
+    private List<Entry> evictIfNecessary()
+    {
+        List<Entry> evicted = new ArrayList<>();
+        Iterator<Entry> it = entries.values().iterator();
+        while (totalSize > maxSize && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.users == 0 && entry.path != null) {
+                it.remove();
+                totalSize -= entry.size;
+                evicted.add(entry);
+            }
+        }
+        return evicted;
+    }
+
+    @VisibleForTesting
+    synchronized long getTotalSize()
+    {
+        return totalSize;
+    }
+
+    @VisibleForTesting
+    synchronized int getEntryCount()
+    {
+        return entries.size();
+    }
+
+    public void close()
+    {
+        List<Entry> removed;
+        synchronized (this) {
+            removed = new ArrayList<>(entries.values());
+            entries.clear();
+            totalSize = 0;
+        }
+        // cacheDir itself may be configured by users. delete only directories created here.
+        for (Entry entry : removed) {
+            if (entry.path != null) {
+                TempFileManager.deleteFilesIfExistsRecursively(entry.path);
+            }
+        }
+    }
+
+    // returns total size of regular files
+    private static long makeReadOnly(Path dir)
+        throws IOException
+    {
+        long[] size = new long[] { 0 };
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                throws IOException
+            {
+                if (attrs.isRegularFile()) {
+                    Set<PosixFilePermission> perms = Files.getPosixFilePermissions(file);
+                    perms.removeAll(WRITE_PERMISSIONS);
+                    Files.setPosixFilePermissions(file, perms);
+                    size[0] += attrs.size();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return size[0];
+    }
+
+    private static long fingerprint(Path dir)
+        throws IOException
+    {
+        long[] fingerprint = new long[] { 0 };
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                throws IOException
+            {
+                if (attrs.isRegularFile()) {
+                    fingerprint[0] += fileFingerprint(dir, file, attrs);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return fingerprint[0];
+    }
+
+    // Sum of the fingerprints of files is independent of the order of directory
+    // listing. Change time isn't included because creating a hard link changes it.
+    private static long fileFingerprint(Path base, Path file, BasicFileAttributes attrs)
+        throws IOException
+    {
+        return FINGERPRINT_HASH.newHasher()
+            .putUnencodedChars(base.relativize(file).toString())
+            .putLong(attrs.size())
+            .putLong(attrs.lastModifiedTime().toMillis())
+            .putInt(Files.getPosixFilePermissions(file).hashCode())
+            .hash().asLong();
+    }
+
+    // returns fingerprint of the linked files
+    private long linkTree(Path base, Path destDir)
+        throws IOException
+    {
+        long[] fingerprint = new long[] { 0 };
+        Files.walkFileTree(base, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                throws IOException
+            {
+                Path dest = destDir.resolve(base.relativize(dir).toString());
+                Files.createDirectories(dest);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                throws IOException
+            {
+                Path dest = destDir.resolve(base.relativize(file).toString());
+                if (attrs.isSymbolicLink()) {
+                    Files.createSymbolicLink(dest, Files.readSymbolicLink(file));
+                }
+                else {
+                    linkOrCopy(file, dest);
+                    if (attrs.isRegularFile()) {
+                        fingerprint[0] += fileFingerprint(base, file, attrs);
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc)
+                throws IOException
+            {
+                if (exc != null) {
+                    throw exc;
+                }
+                // set permissions after creating children because the directory may be read-only
+                Path dest = destDir.resolve(base.relativize(dir).toString());
+                Files.setPosixFilePermissions(dest, Files.getPosixFilePermissions(dir));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return fingerprint[0];
+    }
+
+    private void linkOrCopy(Path file, Path dest)
+        throws IOException
+    {
+        if (hardLinkSupported) {
+            try {
+                Files.createLink(dest, file);
+                return;
+            }
+            catch (UnsupportedOperationException | IOException ex) {
+                logger.info("Hard link is not available for workspace cache at {}. Files are copied instead: {}", cacheDir, ex.toString());
+                hardLinkSupported = false;
+            }
+        }
+        Files.copy(file, dest, StandardCopyOption.COPY_ATTRIBUTES);
+    }
+}
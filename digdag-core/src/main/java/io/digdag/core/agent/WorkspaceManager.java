@@ -3,6 +3,7 @@ package io.digdag.core.agent;
 import java.nio.file.Path;
 import java.io.IOException;
 import com.google.common.base.Optional;
+import io.digdag.core.archive.IndexedArchive;
 import io.digdag.spi.TaskRequest;
 import io.digdag.spi.StorageObject;
 
@@ -11,6 +12,12 @@ public interface WorkspaceManager
     public interface ArchiveProvider
     {
         public Optional<StorageObject> open() throws IOException;
+
+        // absent if the archive is not stored with an index
+        public default Optional<IndexedArchive> openIndexed() throws IOException
+        {
+            return Optional.absent();
+        }
     }
 
     public interface WithWorkspaceAction<T>
@@ -0,0 +1,115 @@
+package io.digdag.core.archive;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+import com.google.common.collect.ImmutableList;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Index of a project archive written by IndexedArchiveWriter.
+ *
+ * Each entry of the tar archive is compressed in its own gzip member.
+ * An entry of this index points to the range of the member in the archive
+ * data so that readers can fetch and decompress only the files they need.
+ */
+public class ArchiveIndex
+{
+    private static final int VERSION = 1;
+
+    public static class Entry
+    {
+        private final String name;
+        private final long offset;
+        private final long length;
+
+        public Entry(String name, long offset, long length)
+        {
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        // normalized path name in the archive
+        public String getName()
+        {
+            return name;
+        }
+
+        // offset of the gzip member in the archive data
+        public long getOffset()
+        {
+            return offset;
+        }
+
+        // length of the gzip member
+        public long getLength()
+        {
+            return length;
+        }
+    }
+
+    private final List<Entry> entries;
+
+    public ArchiveIndex(List<Entry> entries)
+    {
+        this.entries = ImmutableList.copyOf(entries);
+    }
+
+    // ordered by offset
+    public List<Entry> getEntries()
+    {
+        return entries;
+    }
+
+    // "./dir/file" and "dir/file" are the same entry
+    public static String normalizeName(String name)
+    {
+        return Paths.get(name).normalize().toString();
+    }
+
+    public byte[] toBytes()
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                byte[] name = entry.getName().getBytes(UTF_8);
+                out.writeInt(name.length);
+                out.write(name);
+                out.writeLong(entry.getOffset());
+                out.writeLong(entry.getLength());
+            }
+        }
+        catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static ArchiveIndex fromBytes(byte[] data)
+    {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported version of archive index: " + version);
+            }
+            int count = in.readInt();
+            ImmutableList.Builder<Entry> entries = ImmutableList.builder();
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[in.readInt()];
+                in.readFully(name);
+                entries.add(new Entry(new String(name, UTF_8), in.readLong(), in.readLong()));
+            }
+            return new ArchiveIndex(entries.build());
+        }
+        catch (IOException ex) {
+            throw new IllegalArgumentException("Invalid archive index", ex);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package io.digdag.core.archive;
+
+import java.io.InputStream;
+import java.io.IOException;
+
+/**
+ * A project archive stored with ArchiveIndex. Ranges of the archive data
+ * are readable without reading the whole archive.
+ */
+public interface IndexedArchive
+{
+    ArchiveIndex getIndex();
+
+    // returns concatenated gzip members in the range
+    InputStream openRange(long offset, long length)
+        throws IOException;
+}
@@ -0,0 +1,151 @@
+package io.digdag.core.archive;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import com.google.common.io.ByteStreams;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+
+/**
+ * Rewrites a tar.gz project archive so that each tar entry is compressed
+ * in its own gzip member, and builds ArchiveIndex of the members.
+ *
+ * The rewritten data starts with the original archive as is, followed by
+ * the indexed members. Readers that decompress only the first gzip member
+ * (e.g. GzipCompressorInputStream without decompressConcatenated, used by
+ * agents of older versions) read the original archive. Readers that
+ * decompress concatenated members also read the original archive because
+ * a tar reader stops at the end-of-archive records of the original
+ * archive. Only ranges in the index point to the indexed members.
+ */
+public class IndexedArchiveWriter
+{
+    private IndexedArchiveWriter()
+    { }
+
+    public static class Result
+    {
+        private final byte[] data;
+        private final ArchiveIndex index;
+
+        Result(byte[] data, ArchiveIndex index)
+        {
+            this.data = data;
+            this.index = index;
+        }
+
+        public byte[] getData()
+        {
+            return data;
+        }
+
+        public ArchiveIndex getIndex()
+        {
+            return index;
+        }
+    }
+
+    public static Result rewrite(byte[] tarGz)
+        throws IOException
+    {
+        MemberOutputStream members = new MemberOutputStream();
+        List<ArchiveIndex.Entry> entries = new ArrayList<>();
+
+        // copy of the original archive for readers that don't know the index
+        members.writeRaw(tarGz);
+
+        try (TarArchiveInputStream in = new TarArchiveInputStream(new GzipCompressorInputStream(new ByteArrayInputStream(tarGz), true))) {
+            // block size = record size = 512 so that closeArchiveEntry writes
+            // all bytes of an entry without padding to a larger block.
+            TarArchiveOutputStream out = new TarArchiveOutputStream(members, 512, 512);
+            out.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            out.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+
+            TarArchiveEntry entry;
+            while (true) {
+                entry = in.getNextTarEntry();
+                if (entry == null) {
+                    break;
+                }
+                long offset = members.size();
+                out.putArchiveEntry(entry);
+                if (entry.isFile()) {
+                    ByteStreams.copy(in, out);
+                }
+                out.closeArchiveEntry();
+                out.flush();
+                members.finishMember();
+                entries.add(new ArchiveIndex.Entry(ArchiveIndex.normalizeName(entry.getName()), offset, members.size() - offset));
+            }
+
+            // end-of-archive records are in the last member which is not in the index
+            out.finish();
+            members.finishMember();
+        }
+
+        return new Result(members.toByteArray(), new ArchiveIndex(entries));
+    }
+
+    private static class MemberOutputStream
+            extends OutputStream
+    {
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        private GZIPOutputStream current = null;
+
+        private GZIPOutputStream current()
+            throws IOException
+        {
+            if (current == null) {
+                current = new GZIPOutputStream(data, 8*1024);
+            }
+            return current;
+        }
+
+        @Override
+        public void write(int b)
+            throws IOException
+        {
+            current().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+            throws IOException
+        {
+            current().write(b, off, len);
+        }
+
+        void writeRaw(byte[] b)
+            throws IOException
+        {
+            finishMember();
+            data.write(b);
+        }
+
+        void finishMember()
+            throws IOException
+        {
+            if (current != null) {
+                current.finish();
+                current = null;
+            }
+        }
+
+        long size()
+        {
+            return data.size();
+        }
+
+        byte[] toByteArray()
+        {
+            return data.toByteArray();
+        }
+    }
+}
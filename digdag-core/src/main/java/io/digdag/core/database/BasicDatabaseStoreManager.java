@@ -8,6 +8,7 @@ import java.time.Instant;
 import java.util.stream.Stream;
 import java.util.stream.Collectors;
 import java.sql.Timestamp;
+import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import org.skife.jdbi.v2.IDBI;
@@ -46,6 +47,9 @@ public abstract class BasicDatabaseStoreManager <D>
     private final Class<? extends D> daoIface;
     private final IDBI dbi;
 
+    // null until the server version is checked
+    private volatile Boolean skipLockedSupported = null;
+
     protected BasicDatabaseStoreManager(String databaseType, Class<? extends D> daoIface, IDBI dbi)
     {
         this.databaseType = databaseType;
@@ -126,6 +130,44 @@ public abstract class BasicDatabaseStoreManager <D>
         }
     }
 
+    // true if "for update skip locked" is available to let transactions lock
+    // different rows instead of waiting for each other. postgresql supports it
+    // since 9.5. the server version is checked only once using the given handle.
+    public boolean isSkipLockedSupported(Handle handle)
+    {
+        switch (databaseType) {
+        case "h2":
+            return false;
+        default:
+            Boolean supported = skipLockedSupported;
+            if (supported == null) {
+                try {
+                    DatabaseMetaData meta = handle.getConnection().getMetaData();
+                    int major = meta.getDatabaseMajorVersion();
+                    int minor = meta.getDatabaseMinorVersion();
+                    supported = major > 9 || (major == 9 && minor >= 5);
+                }
+                catch (SQLException ex) {
+                    throw Throwables.propagate(ex);
+                }
+                if (!supported) {
+                    logger.info("Database server version doesn't support \"for update skip locked\". Using \"for update\" instead.");
+                }
+                skipLockedSupported = supported;
+            }
+            return supported;
+        }
+    }
+
+    // escapes a string so that LIKE ... ESCAPE '\' matches it literally
+    public static String escapeLikePattern(String literal)
+    {
+        return literal
+            .replace("\\", "\\\\")
+            .replace("%", "\\%")
+            .replace("_", "\\_");
+    }
+
     public <T extends Number> String inLargeIdListExpression(Collection<T> idList)
     {
         if (idList.size() == 1) {
@@ -0,0 +1,288 @@
+package io.digdag.core.database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Inject;
+import io.digdag.client.config.Config;
+import io.digdag.core.workflow.TaskStateChannel;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Notifies events to other servers that share the same database.
+ *
+ * On PostgreSQL with database.listenNotify = true, events are sent using
+ * NOTIFY on a dedicated connection and received using LISTEN on another
+ * connection. The listening thread polls notifications received by the
+ * connection every database.listenNotifyPollInterval milliseconds. Otherwise,
+ * publish does nothing and other servers find changes by polling as before.
+ * H2 is an embedded database and all threads that poll it are in this
+ * process, so local wakeup is enough for H2.
+ *
+ * Events published by this process are not delivered to listeners of this
+ * process. Publishers wake up local threads by themselves.
+ */
+public class DatabaseEventChannel
+        implements TaskStateChannel
+{
+    private static final Logger logger = LoggerFactory.getLogger(DatabaseEventChannel.class);
+
+    // a task is enqueued to queued_tasks. agents should poll the queue.
+    public static final String TASK_QUEUE_CHANNEL = "digdag_task_queue";
+
+    // state of a task is changed. workflow executor should propagate it.
+    public static final String TASK_STATE_CHANNEL = "digdag_task_state";
+
+    private static final List<String> CHANNELS = ImmutableList.of(TASK_QUEUE_CHANNEL, TASK_STATE_CHANNEL);
+
+    private final DatabaseConfig config;
+    private final boolean enabled;
+    private final int pollInterval;
+
+    private final Map<String, List<Runnable>> listeners = new ConcurrentHashMap<>();
+    private final Set<String> pendingChannels = ConcurrentHashMap.newKeySet();
+    private final Object pendingLock = new Object();
+
+    private Thread thread = null;
+    private Thread publisherThread = null;
+    // backend pid of the connection sending notifications of this process
+    private volatile int publisherBackendPid = 0;
+    private volatile boolean stop = false;
+
+    @Inject
+    public DatabaseEventChannel(DatabaseConfig config, Config systemConfig)
+    {
+        this.config = config;
+        this.enabled = DatabaseConfig.isPostgres(config.getType()) &&
+            systemConfig.get("database.listenNotify", boolean.class, false);
+        // interval in milliseconds of polling notifications, and of
+        // reconnecting after errors.
+        this.pollInterval = systemConfig.get("database.listenNotifyPollInterval", int.class, 500);
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    public void addListener(String channel, Runnable listener)
+    {
+        listeners.computeIfAbsent(channel, key -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    @Override
+    public void addTaskStateListener(Runnable listener)
+    {
+        addListener(TASK_STATE_CHANNEL, listener);
+    }
+
+    @Override
+    public void publishTaskStateChange()
+    {
+        publish(TASK_STATE_CHANNEL);
+    }
+
+    public void publish(String channel)
+    {
+        if (!enabled) {
+            return;
+        }
+        // notifications are sent by the publisher thread asynchronously so that
+        // a caller doesn't wait for a round trip. the same events are merged.
+        synchronized (pendingLock) {
+            pendingChannels.add(channel);
+            pendingLock.notifyAll();
+        }
+    }
+
+    @PostConstruct
+    public synchronized void start()
+    {
+        if (enabled && thread == null) {
+            thread = new Thread(this::runListener, "database-event-channel");
+            thread.setDaemon(true);
+            thread.start();
+            publisherThread = new Thread(this::runPublisher, "database-event-channel-publisher");
+            publisherThread.setDaemon(true);
+            publisherThread.start();
+        }
+    }
+
+    @PreDestroy
+    public synchronized void shutdown()
+    {
+        stop = true;
+        synchronized (pendingLock) {
+            pendingLock.notifyAll();
+        }
+        join(thread);
+        join(publisherThread);
+        thread = null;
+        publisherThread = null;
+    }
+
+    private void join(Thread thread)
+    {
+        if (thread != null) {
+            try {
+                thread.join(pollInterval * 2L);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void runListener()
+    {
+        while (!stop) {
+            try (Connection conn = connect()) {
+                listen(conn);
+            }
+            catch (Exception ex) {
+                if (stop) {
+                    break;
+                }
+                logger.warn("Database event channel failed. Reconnecting after {} milliseconds.", pollInterval, ex);
+                waitForPending(false);
+            }
+        }
+    }
+
+    private void runPublisher()
+    {
+        while (!stop) {
+            try (Connection conn = connect()) {
+                publish(conn);
+            }
+            catch (Exception ex) {
+                if (stop) {
+                    break;
+                }
+                logger.warn("Database event channel failed to send notifications. Reconnecting after {} milliseconds.", pollInterval, ex);
+                waitForPending(false);
+            }
+        }
+    }
+
+    private Connection connect()
+        throws SQLException
+    {
+        Connection conn = DriverManager.getConnection(
+                DatabaseConfig.buildJdbcUrl(config),
+                DatabaseConfig.buildJdbcProperties(config));
+        conn.setAutoCommit(true);
+        return conn;
+    }
+
+    private void listen(Connection conn)
+        throws SQLException
+    {
+        PGConnection pg = conn.unwrap(PGConnection.class);
+
+        try (Statement stmt = conn.createStatement()) {
+            for (String channel : CHANNELS) {
+                stmt.execute("LISTEN " + channel);
+            }
+        }
+
+        // events may have been missed while the connection was not available
+        for (String channel : CHANNELS) {
+            fire(channel);
+        }
+
+        try (Statement poll = conn.createStatement()) {
+            while (!stop) {
+                // the driver reads notifications from the connection only when
+                // a statement runs. getNotifications returns the received ones.
+                poll.execute("select 1");
+                PGNotification[] notifications = pg.getNotifications();
+                if (notifications != null) {
+                    Set<String> channels = new HashSet<>();
+                    for (PGNotification notification : notifications) {
+                        if (notification.getPID() != publisherBackendPid) {
+                            channels.add(notification.getName());
+                        }
+                    }
+                    for (String channel : channels) {
+                        fire(channel);
+                    }
+                }
+                sleepPollInterval();
+            }
+        }
+    }
+
+    private void sleepPollInterval()
+    {
+        try {
+            Thread.sleep(pollInterval);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            stop = true;
+        }
+    }
+
+    private void publish(Connection conn)
+        throws SQLException
+    {
+        publisherBackendPid = conn.unwrap(PGConnection.class).getBackendPID();
+
+        try (PreparedStatement notify = conn.prepareStatement("select pg_notify(?, '')")) {
+            while (!stop) {
+                Iterator<String> pending = pendingChannels.iterator();
+                while (pending.hasNext()) {
+                    String channel = pending.next();
+                    pending.remove();
+                    notify.setString(1, channel);
+                    notify.execute();
+                }
+                waitForPending(true);
+            }
+        }
+    }
+
+    private void waitForPending(boolean wakeupOnPublish)
+    {
+        synchronized (pendingLock) {
+            if (stop || (wakeupOnPublish && !pendingChannels.isEmpty())) {
+                return;
+            }
+            try {
+                pendingLock.wait(pollInterval);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                stop = true;
+            }
+        }
+    }
+
+    private void fire(String channel)
+    {
+        for (Runnable listener : listeners.getOrDefault(channel, ImmutableList.of())) {
+            try {
+                listener.run();
+            }
+            catch (RuntimeException ex) {
+                logger.error("Uncaught exception in a listener of database event channel '{}'. Ignoring.", channel, ex);
+            }
+        }
+    }
+}
@@ -27,6 +27,12 @@ public class DatabaseMigrator
 		new Migration_20160818043815_AddFinishedAtToSessionAttempts(),
 		new Migration_20160818220026_QueueUniqueName(),
 		new Migration_20160908175551_KeepSecretsUnique(),
+		new Migration_20161017123456_AddTasksOnUpdatedAtIndex(),
+		new Migration_20161018140000_LockSharedTasksWithData(),
+		new Migration_20161020123456_AddDataToTaskArchives(),
+		new Migration_20161024103000_CreateRevisionArchiveIndexes(),
+		new Migration_20161101123456_CreateWorkflowExecutorLeases(),
+		new Migration_20161108123456_AddTasksOnAttemptBucketIndexes(),
 	})
     .sorted(Comparator.comparing(m -> m.getVersion()))
     .collect(Collectors.toList());
@@ -11,6 +11,8 @@ import io.digdag.core.queue.QueueSettingStoreManager;
 import io.digdag.core.repository.ProjectStoreManager;
 import io.digdag.core.schedule.ScheduleStoreManager;
 import io.digdag.core.session.SessionStoreManager;
+import io.digdag.core.workflow.TaskStateChannel;
+import io.digdag.core.workflow.WorkflowExecutorLeaseStoreManager;
 import org.skife.jdbi.v2.DBI;
 
 public class DatabaseModule
@@ -25,10 +27,13 @@ public class DatabaseModule
         binder.bind(DBI.class).toProvider(DbiProvider.class);  // don't make this singleton because DBI.registerMapper is called for each StoreManager
         binder.bind(ConfigMapper.class).in(Scopes.SINGLETON);
         binder.bind(DatabaseMigrator.class).in(Scopes.SINGLETON);
+        binder.bind(DatabaseEventChannel.class).in(Scopes.SINGLETON);
+        binder.bind(TaskStateChannel.class).to(DatabaseEventChannel.class);
         binder.bind(ProjectStoreManager.class).to(DatabaseProjectStoreManager.class).in(Scopes.SINGLETON);
         binder.bind(QueueSettingStoreManager.class).to(DatabaseQueueSettingStoreManager.class).in(Scopes.SINGLETON);
         binder.bind(SessionStoreManager.class).to(DatabaseSessionStoreManager.class).in(Scopes.SINGLETON);
         binder.bind(ScheduleStoreManager.class).to(DatabaseScheduleStoreManager.class).in(Scopes.SINGLETON);
+        binder.bind(WorkflowExecutorLeaseStoreManager.class).to(DatabaseWorkflowExecutorLeaseStoreManager.class).in(Scopes.SINGLETON);
         binder.bind(DatabaseTaskQueueConfig.class).in(Scopes.SINGLETON);
         binder.bind(DatabaseTaskQueueServer.class).in(Scopes.SINGLETON);
     }
@@ -266,6 +266,12 @@ public class DatabaseProjectStoreManager
                     "revisin id=%d", revId);
         }
 
+        @Override
+        public Optional<byte[]> getRevisionArchiveIndex(int revId)
+        {
+            return Optional.fromNullable(autoCommit((handle, dao) -> dao.selectRevisionArchiveIndex(revId)));
+        }
+
         @Override
         public StoredWorkflowDefinitionWithProject getLatestWorkflowDefinitionByName(int projId, String name)
             throws ResourceNotFoundException
@@ -407,6 +413,17 @@ public class DatabaseProjectStoreManager
                 "revision archive=%d", revId);
         }
 
+        @Override
+        public void insertRevisionArchiveIndex(int revId, byte[] index)
+            throws ResourceConflictException
+        {
+            catchConflict(() -> {
+                    dao.insertRevisionArchiveIndex(revId, index);
+                    return true;
+                },
+                "revision archive index=%d", revId);
+        }
+
         /**
          * Create a revision.
          *
@@ -594,6 +611,10 @@ public class DatabaseProjectStoreManager
                 " where id = :revId")
         byte[] selectRevisionArchiveData(@Bind("revId") int revId);
 
+        @SqlQuery("select index_data from revision_archive_indexes" +
+                " where id = :revId")
+        byte[] selectRevisionArchiveIndex(@Bind("revId") int revId);
+
         @SqlQuery("select wd.*, wc.config, wc.timezone," +
                 " proj.id as proj_id, proj.name as proj_name, proj.deleted_name as proj_deleted_name, proj.deleted_at as proj_deleted_at, proj.site_id, proj.created_at as proj_created_at," +
                 " rev.name as rev_name, rev.default_params as rev_default_params" +
@@ -685,6 +706,11 @@ public class DatabaseProjectStoreManager
                 " values (:revId, :data)")
         void insertRevisionArchiveData(@Bind("revId") int revId, @Bind("data") byte[] data);
 
+        @SqlUpdate("insert into revision_archive_indexes" +
+                " (id, index_data)" +
+                " values (:revId, :index)")
+        void insertRevisionArchiveIndex(@Bind("revId") int revId, @Bind("index") byte[] index);
+
         @SqlUpdate("insert into workflow_definitions" +
                 " (revision_id, name, config_id)" +
                 " values (:revId, :name, :configId)")
@@ -1,5 +1,6 @@
 package io.digdag.core.database;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.time.Instant;
@@ -7,7 +8,6 @@ import java.time.ZoneId;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.stream.Stream;
-import java.util.stream.Collectors;
 import com.google.common.primitives.Longs;
 import com.google.common.base.*;
 import com.google.common.collect.*;
@@ -54,24 +54,36 @@ public class DatabaseScheduleStoreManager
     }
 
     @Override
-    public void lockReadySchedules(Instant currentTime, ScheduleAction func)
+    public int lockReadySchedules(Instant currentTime, int limit, ScheduleAction func)
     {
-        List<RuntimeException> exceptions = transaction((handle, dao, ts) -> {
-            return dao.lockReadySchedules(currentTime.getEpochSecond(), 10)  // TODO 10 should be configurable?
-                .stream()
-                .map(schedId -> {
-                    // TODO JOIN + FOR UPDATE doesn't work with H2 database
-                    StoredSchedule sched = dao.getScheduleByIdInternal(schedId);
-                    try {
-                        func.schedule(new DatabaseScheduleControlStore(handle), sched);
-                        return null;
-                    }
-                    catch (RuntimeException ex) {
-                        return ex;
-                    }
-                })
-                .filter(exception -> exception != null)
-                .collect(Collectors.toList());
+        List<RuntimeException> exceptions = new ArrayList<>();
+        List<Integer> lockedIds = transaction((handle, dao, ts) -> {
+            exceptions.clear();
+            List<Integer> ids;
+            if (isSkipLockedSupported(handle)) {
+                // rows locked by other threads or servers are skipped so that
+                // they process other schedules in parallel instead of waiting
+                ids = dao.lockReadySchedulesSkipLocked(currentTime.getEpochSecond(), limit);
+            }
+            else {
+                ids = dao.lockReadySchedules(currentTime.getEpochSecond(), limit);
+            }
+            for (int schedId : ids) {
+                // TODO JOIN + FOR UPDATE doesn't work with H2 database
+                StoredSchedule sched = dao.getScheduleByIdInternal(schedId);
+                if (sched.getNextRunTime().isAfter(currentTime)) {
+                    // another transaction processed this schedule while this
+                    // transaction was waiting for the lock
+                    continue;
+                }
+                try {
+                    func.schedule(new DatabaseScheduleControlStore(handle), sched);
+                }
+                catch (RuntimeException ex) {
+                    exceptions.add(ex);
+                }
+            }
+            return ids;
         });
 
         if (!exceptions.isEmpty()) {
@@ -81,6 +93,7 @@ public class DatabaseScheduleStoreManager
             }
             throw first;
         }
+        return lockedIds.size();
     }
 
     public <T> T lockScheduleById(int schedId, ScheduleLockAction<T> func)
@@ -194,10 +207,18 @@ public class DatabaseScheduleStoreManager
 
         @SqlQuery("select id from schedules" +
                 " where next_run_time <= :currentTime" +
+                " order by next_run_time asc" +
                 " limit :limit" +
                 " for update")
         List<Integer> lockReadySchedules(@Bind("currentTime") long currentTime, @Bind("limit") int limit);
 
+        @SqlQuery("select id from schedules" +
+                " where next_run_time <= :currentTime" +
+                " order by next_run_time asc" +
+                " limit :limit" +
+                " for update skip locked")
+        List<Integer> lockReadySchedulesSkipLocked(@Bind("currentTime") long currentTime, @Bind("limit") int limit);
+
         @SqlQuery("select * from schedules" +
                 " where id = :id" +
                 " for update")
@@ -3,15 +3,20 @@ package io.digdag.core.database;
 import java.util.AbstractMap;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.inject.Inject;
 import io.digdag.client.config.Config;
 import io.digdag.client.config.ConfigFactory;
 import io.digdag.core.repository.ResourceConflictException;
 import io.digdag.core.repository.ResourceNotFoundException;
 import io.digdag.core.session.ArchivedTask;
+import io.digdag.core.session.AttemptPartition;
+import io.digdag.core.session.ReadyTaskSummary;
 import io.digdag.core.session.ResumingTask;
 import io.digdag.core.session.ImmutableArchivedTask;
+import io.digdag.core.session.ImmutableReadyTaskSummary;
 import io.digdag.core.session.ImmutableResumingTask;
 import io.digdag.core.session.ImmutableSession;
 import io.digdag.core.session.ImmutableSessionAttemptSummary;
@@ -24,6 +29,7 @@ import io.digdag.core.session.ImmutableStoredTask;
 import io.digdag.core.session.ImmutableTaskAttemptSummary;
 import io.digdag.core.session.ImmutableTaskRelation;
 import io.digdag.core.session.ImmutableTaskStateSummary;
+import io.digdag.core.session.NewSubtask;
 import io.digdag.core.session.Session;
 import io.digdag.core.session.SessionAttempt;
 import io.digdag.core.session.SessionAttemptControlStore;
@@ -42,6 +48,7 @@ import io.digdag.core.session.StoredTask;
 import io.digdag.core.session.Task;
 import io.digdag.core.session.TaskAttemptSummary;
 import io.digdag.core.session.TaskControlStore;
+import io.digdag.core.session.TaskIdSummary;
 import io.digdag.core.session.TaskRelation;
 import io.digdag.core.session.TaskStateCode;
 import io.digdag.core.session.TaskStateFlags;
@@ -51,7 +58,9 @@ import io.digdag.core.workflow.TaskConfig;
 import io.digdag.spi.TaskReport;
 import io.digdag.spi.TaskResult;
 import org.skife.jdbi.v2.DBI;
+import org.postgresql.PGConnection;
 import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.PreparedBatch;
 import org.skife.jdbi.v2.StatementContext;
 import org.skife.jdbi.v2.sqlobject.Bind;
 import org.skife.jdbi.v2.sqlobject.GetGeneratedKeys;
@@ -60,16 +69,25 @@ import org.skife.jdbi.v2.sqlobject.SqlUpdate;
 import org.skife.jdbi.v2.tweak.ResultSetMapper;
 
 import java.io.IOException;
+import java.io.StringReader;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.time.Instant;
 import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.BiPredicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import static java.time.format.DateTimeFormatter.ISO_INSTANT;
+
 /**
  * Store session state on a database.
  *
@@ -85,12 +103,9 @@ import java.util.stream.Stream;
  *     locked root task
  *
  * Attempt execution:
- *   // generating regular dynamic tasks and monitor tasks
- *   addSubtask:
- *     locked parent task
- *
- *   // generating dynamic tasks that are resumed by previous attempt
- *   addResumedSubtask:
+ *   // generating dynamic tasks and monitor tasks, including tasks that
+ *   // are resumed by previous attempt
+ *   addSubtasks:
  *     locked parent task
  *
  *   // reinserting tasks for group-retry
@@ -111,12 +126,17 @@ public class DatabaseSessionStoreManager
 {
     private static final String DEFAULT_ATTEMPT_NAME = "";
 
+    // size of the beginning of task_archives.data read at once. it includes the header
+    // and the index of tasks unless the attempt has many tasks.
+    private static final int TASK_ARCHIVE_PREFETCH_SIZE = 64 * 1024;
+
     private final ObjectMapper mapper;
     private final ConfigFactory cf;
     private final ConfigMapper cfm;
     private final StoredTaskMapper stm;
     private final ArchivedTaskMapper atm;
     private final TaskAttemptSummaryMapper tasm;
+    private final TaskArchiveFormat archiveFormat;
 
     @Inject
     public DatabaseSessionStoreManager(DBI dbi, ConfigFactory cf, ConfigMapper cfm, ObjectMapper mapper, DatabaseConfig config)
@@ -132,6 +152,7 @@ public class DatabaseSessionStoreManager
         dbi.registerMapper(new StoredSessionAttemptWithSessionMapper(cfm));
         dbi.registerMapper(new TaskStateSummaryMapper());
         dbi.registerMapper(new TaskAttemptSummaryMapper());
+        dbi.registerMapper(new ReadyTaskSummaryMapper());
         dbi.registerMapper(new SessionAttemptSummaryMapper());
         dbi.registerMapper(new StoredSessionMonitorMapper(cfm));
         dbi.registerMapper(new TaskRelationMapper());
@@ -144,6 +165,7 @@ public class DatabaseSessionStoreManager
         this.stm = new StoredTaskMapper(cfm);
         this.atm = new ArchivedTaskMapper(cfm);
         this.tasm = new TaskAttemptSummaryMapper();
+        this.archiveFormat = new TaskArchiveFormat(mapper);
     }
 
     private String bitAnd(String op1, String op2)
@@ -265,9 +287,22 @@ public class DatabaseSessionStoreManager
     }
 
     @Override
-    public List<Long> findAllReadyTaskIds(int maxEntries)
+    public List<ReadyTaskSummary> findReadyTasks(int maxEntries, AttemptPartition partition)
     {
-        return autoCommit((handle, dao) -> dao.findAllTaskIdsByState(TaskStateCode.READY.get(), maxEntries));
+        return autoCommit((handle, dao) ->
+                handle.createQuery(
+                    "select t.id, t.attempt_id, sa.site_id" +
+                    " from tasks t" +
+                    " join session_attempts sa on sa.id = t.attempt_id" +
+                    " where t.state = " + TaskStateCode.READY_CODE +
+                    attemptPartitionCondition("t.attempt_id", partition) +
+                    " order by t.id asc" +
+                    " limit :limit"
+                    )
+                .bind("limit", maxEntries)
+                .map(ReadyTaskSummary.class)
+                .list()
+            );
     }
 
     @Override
@@ -285,19 +320,53 @@ public class DatabaseSessionStoreManager
     }
 
     @Override
-    public List<TaskStateSummary> findRecentlyChangedTasks(Instant updatedSince, long lastId)
+    public List<TaskStateSummary> findRecentlyChangedTasks(Instant updatedSince, long lastId, AttemptPartition partition)
     {
-        return autoCommit((handle, dao) -> dao.findRecentlyChangedTasks(updatedSince, lastId, 100));
+        String condition = "updated_at > :updatedSince" +
+            " or (updated_at = :updatedSince and id > :lastId)";
+        if (!partition.isAll()) {
+            condition = "(" + condition + ")" + attemptPartitionCondition("attempt_id", partition);
+        }
+        String where = condition;
+        return autoCommit((handle, dao) ->
+                handle.createQuery(
+                    "select id, attempt_id, parent_id, state, updated_at" +
+                    " from tasks" +
+                    " where " + where +
+                    " order by updated_at asc, id asc" +
+                    " limit :limit"
+                    )
+                .bind("updatedSince", Timestamp.from(updatedSince))
+                .bind("lastId", lastId)
+                .bind("limit", 100)
+                .map(TaskStateSummary.class)
+                .list()
+            );
     }
 
     @Override
-    public List<TaskStateSummary> findTasksByState(TaskStateCode state, long lastId)
+    public List<TaskStateSummary> findTasksByState(TaskStateCode state, long lastId, AttemptPartition partition)
     {
-        return autoCommit((handle, dao) -> dao.findTasksByState(state.get(), lastId, 100));
+        return autoCommit((handle, dao) ->
+                handle.createQuery(
+                    "select id, attempt_id, parent_id, state, updated_at" +
+                    " from tasks" +
+                    " where state = :state" +
+                    " and id > :lastId" +
+                    attemptPartitionCondition("attempt_id", partition) +
+                    " order by id asc" +
+                    " limit :limit"
+                    )
+                .bind("state", state.get())
+                .bind("lastId", lastId)
+                .bind("limit", 100)
+                .map(TaskStateSummary.class)
+                .list()
+            );
     }
 
     @Override
-    public List<TaskAttemptSummary> findRootTasksByStates(TaskStateCode[] states, long lastId)
+    public List<TaskAttemptSummary> findRootTasksByStates(TaskStateCode[] states, long lastId, AttemptPartition partition)
     {
         return autoCommit((handle, dao) ->
                 handle.createQuery(
@@ -308,6 +377,7 @@ public class DatabaseSessionStoreManager
                         Stream.of(states)
                         .map(it -> Short.toString(it.get())).collect(Collectors.joining(", ")) + ")" +
                     " and id > :lastId" +
+                    attemptPartitionCondition("attempt_id", partition) +
                     " order by id asc" +
                     " limit :limit"
                     )
@@ -322,8 +392,10 @@ public class DatabaseSessionStoreManager
     public boolean requestCancelAttempt(long attemptId)
     {
         return transaction((handle, dao, ts) -> {
+            // updated_at is updated so that IncrementalStatusPropagator of
+            // every server finds canceled tasks.
             int n = handle.createStatement("update tasks" +
-                    " set state_flags = " + bitOr("state_flags", Integer.toString(TaskStateFlags.CANCEL_REQUESTED)) +
+                    " set updated_at = now(), state_flags = " + bitOr("state_flags", Integer.toString(TaskStateFlags.CANCEL_REQUESTED)) +
                     " where attempt_id = :attemptId" +
                     " and state in (" +
                         Stream.of(TaskStateCode.notDoneStates())
@@ -343,9 +415,32 @@ public class DatabaseSessionStoreManager
     }
 
     @Override
-    public int trySetRetryWaitingToReady()
+    public int trySetRetryWaitingToReady(AttemptPartition partition)
     {
-        return autoCommit((handle, dao) -> dao.trySetRetryWaitingToReady());
+        return autoCommit((handle, dao) ->
+                handle.createStatement(
+                    "update tasks" +
+                    " set updated_at = now(), retry_at = NULL, state = " + TaskStateCode.READY_CODE +
+                    " where state in (" + TaskStateCode.RETRY_WAITING_CODE + "," + TaskStateCode.GROUP_RETRY_WAITING_CODE + ")" +
+                    " and retry_at <= now()" +
+                    attemptPartitionCondition("attempt_id", partition)
+                    )
+                .execute()
+            );
+    }
+
+    // additional condition of a query to select tasks of attempts in the
+    // partition. Queries don't change if the partition is all attempts.
+    // The expression must be same with the indexes created by
+    // Migration_20161108123456_AddTasksOnAttemptBucketIndexes so that
+    // PostgreSQL scans only tasks of the partition.
+    private static String attemptPartitionCondition(String attemptIdColumn, AttemptPartition partition)
+    {
+        if (partition.isAll()) {
+            return "";
+        }
+        return " and mod(" + attemptIdColumn + ", " + AttemptPartition.BUCKETS + ") in (" +
+            partition.getBuckets().stream().map(it -> Integer.toString(it)).collect(Collectors.joining(", ")) + ")";
     }
 
     @Override
@@ -361,6 +456,41 @@ public class DatabaseSessionStoreManager
         });
     }
 
+    @Override
+    public <T> T lockTasksInState(List<Long> taskIds, TaskStateCode state, TaskBatchLockAction<T> func)
+    {
+        return transaction((handle, dao, ts) -> {
+            List<StoredTask> tasks;
+            if (taskIds.isEmpty()) {
+                tasks = ImmutableList.of();
+            }
+            else {
+                // lock in order of id to avoid deadlocks with other batches
+                List<Long> locked = handle.createQuery(
+                        "select id from tasks" +
+                        " where id " + inLargeIdListExpression(taskIds) +
+                        " and state = :state" +
+                        " order by id" +
+                        " for update"
+                    )
+                    .bind("state", state.get())
+                    .mapTo(Long.class)
+                    .list();
+                if (locked.isEmpty()) {
+                    tasks = ImmutableList.of();
+                }
+                else {
+                    tasks = handle.createQuery(
+                            selectTaskDetailsQuery() + " where t.id " + inLargeIdListExpression(locked)
+                        )
+                        .map(stm)
+                        .list();
+                }
+            }
+            return func.call(new DatabaseTaskControlStore(handle), tasks);
+        });
+    }
+
     @Override
     public <T> Optional<T> lockTaskIfExists(long taskId, TaskLockActionWithDetails<T> func)
     {
@@ -382,29 +512,36 @@ public class DatabaseSessionStoreManager
     }
 
     @Override
-    public void lockReadySessionMonitors(Instant currentTime, SessionMonitorAction func)
+    public int lockReadySessionMonitors(Instant currentTime, int limit, SessionMonitorAction func)
     {
-        List<RuntimeException> exceptions = transaction((handle, dao, ts) -> {
-            return dao.lockReadySessionMonitors(currentTime.getEpochSecond(), 10)  // TODO 10 should be configurable?
-                .stream()
-                .map(monitor -> {
-                    try {
-                        Optional<Instant> nextRunTime = func.schedule(monitor);
-                        if (nextRunTime.isPresent()) {
-                            dao.updateNextSessionMonitorRunTime(monitor.getId(),
-                                    nextRunTime.get().getEpochSecond());
-                        }
-                        else {
-                            dao.deleteSessionMonitor(monitor.getId());
-                        }
-                        return null;
+        List<RuntimeException> exceptions = new ArrayList<>();
+        List<StoredSessionMonitor> locked = transaction((handle, dao, ts) -> {
+            exceptions.clear();
+            List<StoredSessionMonitor> monitors;
+            if (isSkipLockedSupported(handle)) {
+                // monitors locked by other servers are skipped. a monitor
+                // runs only on the server that locked it.
+                monitors = dao.lockReadySessionMonitorsSkipLocked(currentTime.getEpochSecond(), limit);
+            }
+            else {
+                monitors = dao.lockReadySessionMonitors(currentTime.getEpochSecond(), limit);
+            }
+            for (StoredSessionMonitor monitor : monitors) {
+                try {
+                    Optional<Instant> nextRunTime = func.schedule(monitor);
+                    if (nextRunTime.isPresent()) {
+                        dao.updateNextSessionMonitorRunTime(monitor.getId(),
+                                nextRunTime.get().getEpochSecond());
                     }
-                    catch (RuntimeException ex) {
-                        return ex;
+                    else {
+                        dao.deleteSessionMonitor(monitor.getId());
                     }
-                })
-                .filter(exception -> exception != null)
-                .collect(Collectors.toList());
+                }
+                catch (RuntimeException ex) {
+                    exceptions.add(ex);
+                }
+            }
+            return monitors;
         });
         if (!exceptions.isEmpty()) {
             RuntimeException first = exceptions.get(0);
@@ -413,6 +550,15 @@ public class DatabaseSessionStoreManager
             }
             throw first;
         }
+        return locked.size();
+    }
+
+    @Override
+    public Optional<Instant> getNextSessionMonitorRunTime()
+    {
+        return Optional.fromNullable(autoCommit((handle, dao) -> dao.getMinSessionMonitorRunTime()))
+            .transform(Instant::ofEpochSecond);
+    }
     }
 
     @Override
@@ -431,6 +577,41 @@ public class DatabaseSessionStoreManager
             );
     }
 
+    @Override
+    public List<TaskRelation> getTaskRelations(long attemptId, long lastId)
+    {
+        return autoCommit((handle, dao) ->
+                handle.createQuery(
+                    "select id, parent_id," +
+                    " (select " + commaGroupConcat("upstream_id") + " from task_dependencies where downstream_id = t.id) as upstream_ids" +
+                    " from tasks t" +
+                    " where attempt_id = :attemptId" +
+                    " and id > :lastId" +
+                    " order by id"
+                    )
+                .bind("attemptId", attemptId)
+                .bind("lastId", lastId)
+                .map(new TaskRelationMapper())
+                .list()
+            );
+    }
+
+    @Override
+    public TaskIdSummary getTaskIdSummary(long attemptId)
+    {
+        // uses only tasks_on_attempt_id index
+        return autoCommit((handle, dao) ->
+                handle.createQuery(
+                    "select count(*) as task_count, max(id) as max_task_id" +
+                    " from tasks" +
+                    " where attempt_id = :attemptId"
+                    )
+                .bind("attemptId", attemptId)
+                .map(new TaskIdSummaryMapper())
+                .first()
+            );
+    }
+
     @Override
     public List<Config> getExportParams(List<Long> idList)
     {
@@ -486,6 +667,28 @@ public class DatabaseSessionStoreManager
         return sortConfigListByIdList(idList, list);
     }
 
+    @Override
+    public int compactTaskArchives(int limit)
+    {
+        List<Long> ids = autoCommit((handle, dao) -> dao.findJsonTaskArchiveIds(limit));
+        int count = 0;
+        for (long id : ids) {
+            boolean compacted = transaction((handle, dao, ts) -> {
+                String tasks = dao.lockJsonTaskArchive(id);
+                if (tasks == null) {
+                    // compacted by another server
+                    return false;
+                }
+                dao.updateTaskArchiveData(id, archiveFormat.encode(loadTaskArchive(tasks)));
+                return true;
+            });
+            if (compacted) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     private List<Config> sortConfigListByIdList(List<Long> idList, List<IdConfig> list)
     {
         Map<Long, Config> map = new HashMap<>();
@@ -503,16 +706,7 @@ public class DatabaseSessionStoreManager
         return builder.build();
     }
 
-    private String dumpTaskArchive(List<ArchivedTask> tasks)
-    {
-        try {
-            return mapper.writeValueAsString(tasks);
-        }
-        catch (IOException ex) {
-            throw new RuntimeException(ex);
-        }
-    }
-
+    // loads tasks archived in JSON before TaskArchiveFormat is introduced
     @SuppressWarnings("unchecked")
     private List<ArchivedTask> loadTaskArchive(String data)
     {
@@ -524,6 +718,58 @@ public class DatabaseSessionStoreManager
         }
     }
 
+    // returns absent if the attempt doesn't have archived tasks
+    private Optional<List<ArchivedTask>> loadTaskArchive(int siteId, long attemptId, BiPredicate<Long, String> filter)
+    {
+        return Optional.fromNullable(autoCommit((handle, dao) -> {
+            // H2 reads the whole data because it is embedded. PostgreSQL reads
+            // the beginning of the data first, and the rest only if necessary.
+            boolean readRange = DatabaseConfig.isPostgres(databaseType);
+            TaskArchiveData archive = handle.createQuery(
+                    "select ta.tasks, " +
+                        (readRange ? "substring(ta.data from 1 for " + TASK_ARCHIVE_PREFETCH_SIZE + ")" : "ta.data") + " as data" +
+                    " from task_archives ta" +
+                    " join session_attempts sa on sa.id = ta.id" +
+                    " where sa.id = :attemptId" +
+                    " and sa.site_id = :siteId"
+                )
+                .bind("siteId", siteId)
+                .bind("attemptId", attemptId)
+                .map(new TaskArchiveDataMapper())
+                .first();
+            if (archive == null) {
+                return null;
+            }
+
+            if (archive.tasks != null) {
+                return loadTaskArchive(archive.tasks)
+                    .stream()
+                    .filter(task -> filter.test(task.getId(), task.getFullName()))
+                    .collect(Collectors.toList());
+            }
+
+            byte[] prefix = archive.data;
+            TaskArchiveFormat.RangeReader reader = (offset, length) -> {
+                if (!readRange || prefix.length < TASK_ARCHIVE_PREFETCH_SIZE || offset + length <= prefix.length) {
+                    // prefix is the whole data or includes the range
+                    return Arrays.copyOfRange(prefix, offset, Math.min(offset + length, prefix.length));
+                }
+                return handle.createQuery(
+                        "select NULL as tasks, substring(data from :from for :length) as data" +
+                        " from task_archives" +
+                        " where id = :attemptId"
+                    )
+                    .bind("from", offset + 1)
+                    .bind("length", length)
+                    .bind("attemptId", attemptId)
+                    .map(new TaskArchiveDataMapper())
+                    .first()
+                    .data;
+            };
+            return archiveFormat.open(reader).readTasks(filter);
+        }));
+    }
+
     private StoredTask getTaskById(Handle handle, long taskId)
         throws ResourceNotFoundException
     {
@@ -553,7 +799,7 @@ public class DatabaseSessionStoreManager
         public int aggregateAndInsertTaskArchive(long attemptId)
         {
             int count;
-            String archive;
+            byte[] archive;
 
             {
                 List<ArchivedTask> tasks = handle.createQuery(
@@ -569,7 +815,7 @@ public class DatabaseSessionStoreManager
                     .bind("attemptId", attemptId)
                     .map(atm)
                     .list();
-                archive = dumpTaskArchive(tasks);
+                archive = archiveFormat.encode(tasks);
                 count = tasks.size();
             }
 
@@ -654,27 +900,181 @@ public class DatabaseSessionStoreManager
         }
 
         @Override
-        public long addResumedSubtask(long attemptId, long parentId,
-                TaskType taskType, TaskStateCode state, TaskStateFlags flags,
-                ResumingTask resumingTask)
-        {
-            long taskId = dao.insertResumedTask(attemptId, parentId,
-                    taskType.get(),
-                    state.get(),
-                    flags.get(),
-                    sqlTimestampOf(resumingTask.getUpdatedAt()));
-            dao.insertResumedTaskDetails(taskId,
-                    resumingTask.getFullName(),
-                    resumingTask.getConfig().getLocal(),
-                    resumingTask.getConfig().getExport(),
-                    resumingTask.getSourceTaskId());
-            dao.insertResumedTaskStateDetails(taskId,
-                    resumingTask.getSubtaskConfig(),
-                    resumingTask.getExportParams(),
-                    resumingTask.getStoreParams(),
-                    null,
-                    resumingTask.getError());
-            return taskId;
+        public List<Long> addSubtasks(long attemptId, List<NewSubtask> subtasks)
+        {
+            if (subtasks.isEmpty()) {
+                return ImmutableList.of();
+            }
+            switch (databaseType) {
+            case "h2":
+                return insertSubtasksInBatch(attemptId, subtasks);
+            default:
+                // postgresql
+                return copySubtasks(attemptId, subtasks);
+            }
+        }
+
+        private List<Long> insertSubtasksInBatch(long attemptId, List<NewSubtask> subtasks)
+        {
+            // rows of tasks are inserted one by one to get generated ids. the
+            // other tables are inserted using JDBC batches.
+            List<Long> ids = new ArrayList<>(subtasks.size());
+            for (NewSubtask subtask : subtasks) {
+                long parentId = parentIdOf(subtask, ids);
+                long taskId;
+                if (subtask.getResumingTask().isPresent()) {
+                    taskId = dao.insertResumedTask(attemptId, parentId,
+                            subtask.getTaskType().get(),
+                            subtask.getState().get(),
+                            subtask.getStateFlags().get(),
+                            sqlTimestampOf(subtask.getResumingTask().get().getUpdatedAt()));
+                }
+                else {
+                    taskId = dao.insertTask(attemptId, parentId,
+                            subtask.getTaskType().get(),
+                            subtask.getState().get(),
+                            subtask.getStateFlags().get());  // tasks table don't have unique index
+                }
+                ids.add(taskId);
+            }
+
+            PreparedBatch detailsBatch = handle.prepareBatch(
+                    "insert into task_details (id, full_name, local_config, export_config, resuming_task_id)" +
+                    " values (:id, :fullName, :localConfig, :exportConfig, :resumingTaskId)");
+            PreparedBatch stateDetailsBatch = handle.prepareBatch(
+                    "insert into task_state_details (id, subtask_config, export_params, store_params, report, error)" +
+                    " values (:id, :subtaskConfig, :exportParams, :storeParams, NULL, :error)");
+            PreparedBatch dependencyBatch = handle.prepareBatch(
+                    "insert into task_dependencies (upstream_id, downstream_id)" +
+                    " values (:upstreamId, :downstreamId)");  // task_dependencies table don't have unique index
+            int dependencyCount = 0;
+
+            for (int i = 0; i < subtasks.size(); i++) {
+                NewSubtask subtask = subtasks.get(i);
+                long taskId = ids.get(i);
+                Optional<ResumingTask> resumingTask = subtask.getResumingTask();
+
+                detailsBatch.add()
+                    .bind("id", taskId)
+                    .bind("fullName", subtask.getFullName())
+                    .bind("localConfig", cfm.toBinding(subtask.getConfig().getLocal()))
+                    .bind("exportConfig", cfm.toBinding(subtask.getConfig().getExport()))
+                    .bind("resumingTaskId", resumingTask.transform(t -> t.getSourceTaskId()).orNull());
+
+                stateDetailsBatch.add()
+                    .bind("id", taskId)
+                    .bind("subtaskConfig", cfm.toBinding(resumingTask.transform(t -> t.getSubtaskConfig()).orNull()))
+                    .bind("exportParams", cfm.toBinding(resumingTask.transform(t -> t.getExportParams()).orNull()))
+                    .bind("storeParams", cfm.toBinding(resumingTask.transform(t -> t.getStoreParams()).orNull()))
+                    .bind("error", cfm.toBinding(resumingTask.transform(t -> t.getError()).orNull()));
+
+                for (long upstreamId : upstreamIdsOf(subtask, ids)) {
+                    dependencyBatch.add()
+                        .bind("upstreamId", upstreamId)
+                        .bind("downstreamId", taskId);
+                    dependencyCount++;
+                }
+            }
+
+            detailsBatch.execute();
+            stateDetailsBatch.execute();
+            if (dependencyCount > 0) {
+                dependencyBatch.execute();
+            }
+
+            return ids;
+        }
+
+        private List<Long> copySubtasks(long attemptId, List<NewSubtask> subtasks)
+        {
+            // ids are allocated in advance so that all rows including
+            // references to the new tasks can be sent using COPY.
+            List<Long> ids = handle.createQuery(
+                    "select nextval('tasks_id_seq') from generate_series(1, :count)"
+                )
+                .bind("count", subtasks.size())
+                .mapTo(long.class)
+                .list()
+                .stream()
+                .sorted()
+                .collect(Collectors.toList());
+
+            // same with now() used by insertTask because now() returns start time of the transaction
+            Instant now = handle.createQuery("select now() as date")
+                .mapTo(Instant.class)
+                .first();
+
+            CopyRows tasksRows = new CopyRows();
+            CopyRows detailsRows = new CopyRows();
+            CopyRows stateDetailsRows = new CopyRows();
+            CopyRows dependencyRows = new CopyRows();
+
+            for (int i = 0; i < subtasks.size(); i++) {
+                NewSubtask subtask = subtasks.get(i);
+                long taskId = ids.get(i);
+                Optional<ResumingTask> resumingTask = subtask.getResumingTask();
+
+                tasksRows
+                    .add(taskId)
+                    .add(attemptId)
+                    .add(parentIdOf(subtask, ids))
+                    .add(subtask.getTaskType().get())
+                    .add(subtask.getState().get())
+                    .add(subtask.getStateFlags().get())
+                    .add(ISO_INSTANT.format(resumingTask.transform(t -> t.getUpdatedAt()).or(now)))
+                    .endRow();
+
+                detailsRows
+                    .add(taskId)
+                    .add(subtask.getFullName())
+                    .add(cfm.toBinding(subtask.getConfig().getLocal()))
+                    .add(cfm.toBinding(subtask.getConfig().getExport()))
+                    .add(resumingTask.transform(t -> t.getSourceTaskId()).orNull())
+                    .endRow();
+
+                stateDetailsRows
+                    .add(taskId)
+                    .add(cfm.toBinding(resumingTask.transform(t -> t.getSubtaskConfig()).orNull()))
+                    .add(cfm.toBinding(resumingTask.transform(t -> t.getExportParams()).orNull()))
+                    .add(cfm.toBinding(resumingTask.transform(t -> t.getStoreParams()).orNull()))
+                    .add(null)
+                    .add(cfm.toBinding(resumingTask.transform(t -> t.getError()).orNull()))
+                    .endRow();
+
+                for (long upstreamId : upstreamIdsOf(subtask, ids)) {
+                    dependencyRows
+                        .add(upstreamId)
+                        .add(taskId)
+                        .endRow();
+                }
+            }
+
+            // tasks first because the other tables reference tasks
+            tasksRows.copyIn(handle, "copy tasks (id, attempt_id, parent_id, task_type, state, state_flags, updated_at) from stdin");
+            detailsRows.copyIn(handle, "copy task_details (id, full_name, local_config, export_config, resuming_task_id) from stdin");
+            stateDetailsRows.copyIn(handle, "copy task_state_details (id, subtask_config, export_params, store_params, report, error) from stdin");
+            dependencyRows.copyIn(handle, "copy task_dependencies (upstream_id, downstream_id) from stdin");
+
+            return ids;
+        }
+
+        private long parentIdOf(NewSubtask subtask, List<Long> ids)
+        {
+            if (subtask.getParentIndex().isPresent()) {
+                return ids.get(subtask.getParentIndex().get());
+            }
+            else {
+                return subtask.getParentId().get();
+            }
+        }
+
+        private List<Long> upstreamIdsOf(NewSubtask subtask, List<Long> ids)
+        {
+            List<Long> upstreamIds = new ArrayList<>(subtask.getUpstreamIds());
+            for (int index : subtask.getUpstreamIndexes()) {
+                upstreamIds.add(ids.get(index));
+            }
+            return upstreamIds;
         }
 
         private java.sql.Timestamp sqlTimestampOf(Instant instant)
@@ -705,8 +1105,7 @@ public class DatabaseSessionStoreManager
         @Override
         public List<ResumingTask> getResumingTasksByNamePrefix(long attemptId, String fullNamePrefix)
         {
-            // TODO pattern for LIKE query needs escaping of _ and % characters
-            return dao.findResumingTasksByNamePrefix(attemptId, fullNamePrefix + '%');
+            return dao.findResumingTasksByNamePrefix(attemptId, escapeLikePattern(fullNamePrefix) + '%');
         }
 
         @Override
@@ -732,14 +1131,6 @@ public class DatabaseSessionStoreManager
             return true;
         }
 
-        @Override
-        public void addDependencies(long downstream, List<Long> upstreams)
-        {
-            for (long upstream : upstreams) {
-                dao.insertTaskDependency(downstream, upstream);  // task_dependencies table don't have unique index
-            }
-        }
-
         @Override
         public boolean isAnyProgressibleChild(long taskId)
         {
@@ -809,6 +1200,21 @@ public class DatabaseSessionStoreManager
             return n > 0;
         }
 
+        public int setStateOfTasks(List<Long> taskIds, TaskStateCode beforeState, TaskStateCode afterState)
+        {
+            if (taskIds.isEmpty()) {
+                return 0;
+            }
+            return handle.createStatement("update tasks" +
+                    " set updated_at = now(), state = :newState" +
+                    " where id " + inLargeIdListExpression(taskIds) +
+                    " and state = :oldState"
+                )
+                .bind("oldState", beforeState.get())
+                .bind("newState", afterState.get())
+                .execute();
+        }
+
         public boolean setDoneState(long taskId, TaskStateCode beforeState, TaskStateCode afterState)
         {
             long n = dao.setDoneState(taskId, beforeState.get(), afterState.get());
@@ -1095,6 +1501,34 @@ public class DatabaseSessionStoreManager
 
         @Override
         public List<ArchivedTask> getTasksOfAttempt(long attemptId)
+        {
+            return getTasksOfAttempt(attemptId, "", ImmutableMap.of(), (id, fullName) -> true);
+        }
+
+        @Override
+        public List<ArchivedTask> getTasksOfAttemptByIds(long attemptId, List<Long> taskIds)
+        {
+            if (taskIds.isEmpty()) {
+                return ImmutableList.of();
+            }
+            Set<Long> idSet = new HashSet<>(taskIds);
+            return getTasksOfAttempt(attemptId,
+                    " and t.id " + inLargeIdListExpression(taskIds),
+                    ImmutableMap.of(),
+                    (id, fullName) -> idSet.contains(id));
+        }
+
+        @Override
+        public List<ArchivedTask> getTasksOfAttemptByNamePrefix(long attemptId, String fullNamePrefix)
+        {
+            return getTasksOfAttempt(attemptId,
+                    " and td.full_name like :namePrefix escape '\\'",
+                    ImmutableMap.of("namePrefix", escapeLikePattern(fullNamePrefix) + '%'),
+                    (id, fullName) -> fullName.startsWith(fullNamePrefix));
+        }
+
+        private List<ArchivedTask> getTasksOfAttempt(long attemptId,
+                String condition, Map<String, ?> params, BiPredicate<Long, String> archiveFilter)
         {
             List<ArchivedTask> tasks = autoCommit((handle, dao) ->
                     handle.createQuery(
@@ -1106,17 +1540,19 @@ public class DatabaseSessionStoreManager
                         " join task_state_details ts on t.id = ts.id" +
                         " where sa.site_id = :siteId" +
                         " and t.attempt_id = :attemptId" +
+                        condition +
                         " order by t.id"
                         )
                     .bind("siteId", siteId)
                     .bind("attemptId", attemptId)
+                    .bindFromMap(params)
                     .map(atm)
                     .list()
                 );
             if (tasks.isEmpty()) {
-                String archive = autoCommit((handle, dao) -> dao.getTaskArchiveById(siteId, attemptId));
-                if (archive != null) {
-                    return loadTaskArchive(archive);
+                Optional<List<ArchivedTask>> archived = loadTaskArchive(siteId, attemptId, archiveFilter);
+                if (archived.isPresent()) {
+                    return archived.get();
                 }
             }
             return tasks;
@@ -1406,9 +1842,6 @@ public class DatabaseSessionStoreManager
         @GetGeneratedKeys
         long insertSessionMonitor(@Bind("attemptId") long attemptId, @Bind("nextRunTime") long nextRunTime, @Bind("type") String type, @Bind("config") Config config);
 
-        @SqlQuery("select id from tasks where state = :state limit :limit")
-        List<Long> findAllTaskIdsByState(@Bind("state") short state, @Bind("limit") int limit);
-
         @SqlQuery("select id, session_id, state_flags from session_attempts where id = :attemptId for update")
         SessionAttemptSummary lockAttempt(@Bind("attemptId") long attemptId);
 
@@ -1462,26 +1895,9 @@ public class DatabaseSessionStoreManager
 
         @SqlQuery("select * from resuming_tasks" +
                 " where attempt_id = :attemptId" +
-                " and full_name like :fullNamePattern")
+                " and full_name like :fullNamePattern escape '\\'")
         List<ResumingTask> findResumingTasksByNamePrefix(@Bind("attemptId") long attemptId, @Bind("fullNamePattern") String fullNamePattern);
 
-        @SqlQuery("select id, attempt_id, parent_id, state, updated_at" +
-                " from tasks" +
-                " where updated_at > :updatedSince" +
-                " or (updated_at = :updatedSince and id > :lastId)" +
-                " order by updated_at asc, id asc" +
-                " limit :limit")
-        List<TaskStateSummary> findRecentlyChangedTasks(@Bind("updatedSince") Instant updatedSince, @Bind("lastId") long lastId, @Bind("limit") int limit);
-
-        @SqlQuery("select id, attempt_id, parent_id, state, updated_at" +
-                " from tasks" +
-                " where state = :state" +
-                " and id > :lastId" +
-                " order by id asc" +
-                //" order by updated_at asc, id asc" +
-                " limit :limit")
-        List<TaskStateSummary> findTasksByState(@Bind("state") short state, @Bind("lastId") long lastId, @Bind("limit") int limit);
-
         @SqlQuery("select id from tasks" +
                 " where id = :id" +
                 " for update")
@@ -1515,34 +1931,51 @@ public class DatabaseSessionStoreManager
                 " where id = :id")
         long setSuccessfulReport(@Bind("id") long taskId, @Bind("subtaskConfig") Config subtaskConfig, @Bind("exportParams") Config exportParams, @Bind("storeParams") Config storeParams, @Bind("report") Config report);
 
-        @SqlUpdate("update tasks" +
-                " set updated_at = now(), retry_at = NULL, state = " + TaskStateCode.READY_CODE +
-                " where state in (" + TaskStateCode.RETRY_WAITING_CODE +"," + TaskStateCode.GROUP_RETRY_WAITING_CODE + ")" +
-                " and retry_at <= now()")
-        int trySetRetryWaitingToReady();
-
         @SqlQuery("select * from session_monitors" +
                 " where next_run_time <= :currentTime" +
+                " order by next_run_time asc" +
                 " limit :limit" +
                 " for update")
         List<StoredSessionMonitor> lockReadySessionMonitors(@Bind("currentTime") long currentTime, @Bind("limit") int limit);
 
+        @SqlQuery("select * from session_monitors" +
+                " where next_run_time <= :currentTime" +
+                " order by next_run_time asc" +
+                " limit :limit" +
+                " for update skip locked")
+        List<StoredSessionMonitor> lockReadySessionMonitorsSkipLocked(@Bind("currentTime") long currentTime, @Bind("limit") int limit);
+
+        @SqlQuery("select next_run_time from session_monitors" +
+                " order by next_run_time asc" +
+                " limit 1")
+        Long getMinSessionMonitorRunTime();
+
         @SqlUpdate("update session_monitors" +
                 " set next_run_time = :nextRunTime, updated_at = now()" +
                 " where id = :id")
         void updateNextSessionMonitorRunTime(@Bind("id") long id, @Bind("nextRunTime") long nextRunTime);
 
-        @SqlQuery("select tasks" +
-                " from task_archives ta" +
-                " join session_attempts sa on sa.id = ta.id" +
-                " where sa.id = :attemptId" +
-                " and sa.site_id = :siteId")
-        String getTaskArchiveById(@Bind("siteId") int siteId, @Bind("attemptId") long attemptId);
-
         @SqlUpdate("insert into task_archives" +
-                " (id, tasks, created_at)" +
-                " values (:attemptId, :tasks, now())")
-        void insertTaskArchive(@Bind("attemptId") long attemptId, @Bind("tasks") String tasks);
+                " (id, data, created_at)" +
+                " values (:attemptId, :data, now())")
+        void insertTaskArchive(@Bind("attemptId") long attemptId, @Bind("data") byte[] data);
+
+        @SqlQuery("select id from task_archives" +
+                " where data is null" +
+                " order by id" +
+                " limit :limit")
+        List<Long> findJsonTaskArchiveIds(@Bind("limit") int limit);
+
+        @SqlQuery("select tasks from task_archives" +
+                " where id = :id" +
+                " and data is null" +
+                " for update")
+        String lockJsonTaskArchive(@Bind("id") long id);
+
+        @SqlUpdate("update task_archives" +
+                " set data = :data, tasks = NULL" +
+                " where id = :id")
+        int updateTaskArchiveData(@Bind("id") long id, @Bind("data") byte[] data);
 
         @SqlUpdate("delete from session_monitors" +
                 " where id = :id")
@@ -1569,6 +2002,96 @@ public class DatabaseSessionStoreManager
         int deleteResumingTasks(@Bind("attemptId") long attemptId);
     }
 
+    // rows of COPY ... FROM STDIN in text format
+    private static class CopyRows
+    {
+        private final StringBuilder data = new StringBuilder();
+        private boolean firstColumn = true;
+        private int rowCount = 0;
+
+        CopyRows add(Object value)
+        {
+            if (!firstColumn) {
+                data.append('\t');
+            }
+            firstColumn = false;
+
+            if (value == null) {
+                data.append("\\N");
+                return this;
+            }
+            String text = value.toString();
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                switch (c) {
+                case '\\':
+                    data.append("\\\\");
+                    break;
+                case '\n':
+                    data.append("\\n");
+                    break;
+                case '\r':
+                    data.append("\\r");
+                    break;
+                case '\t':
+                    data.append("\\t");
+                    break;
+                default:
+                    data.append(c);
+                }
+            }
+            return this;
+        }
+
+        CopyRows endRow()
+        {
+            data.append('\n');
+            firstColumn = true;
+            rowCount++;
+            return this;
+        }
+
+        void copyIn(Handle handle, String sql)
+        {
+            if (rowCount == 0) {
+                return;
+            }
+            try {
+                handle.getConnection()
+                    .unwrap(PGConnection.class)
+                    .getCopyAPI()
+                    .copyIn(sql, new StringReader(data.toString()));
+            }
+            catch (SQLException | IOException ex) {
+                throw Throwables.propagate(ex);
+            }
+        }
+    }
+
+    private static class TaskArchiveData
+    {
+        // JSON of tasks archived before TaskArchiveFormat is introduced
+        private final String tasks;
+        private final byte[] data;
+
+        TaskArchiveData(String tasks, byte[] data)
+        {
+            this.tasks = tasks;
+            this.data = data;
+        }
+    }
+
+    private static class TaskArchiveDataMapper
+            implements ResultSetMapper<TaskArchiveData>
+    {
+        @Override
+        public TaskArchiveData map(int index, ResultSet r, StatementContext ctx)
+                throws SQLException
+        {
+            return new TaskArchiveData(r.getString("tasks"), r.getBytes("data"));
+        }
+    }
+
     private static class InstantMapper
             implements ResultSetMapper<Instant>
     {
@@ -1850,6 +2373,7 @@ public class DatabaseSessionStoreManager
         {
             return ImmutableTaskStateSummary.builder()
                 .id(r.getLong("id"))
+                .attemptId(r.getLong("attempt_id"))
                 .parentId(getOptionalLong(r, "parent_id"))
                 .state(TaskStateCode.of(r.getInt("state")))
                 .updatedAt(getTimestampInstant(r, "updated_at"))
@@ -1857,6 +2381,21 @@ public class DatabaseSessionStoreManager
         }
     }
 
+    private static class ReadyTaskSummaryMapper
+            implements ResultSetMapper<ReadyTaskSummary>
+    {
+        @Override
+        public ReadyTaskSummary map(int index, ResultSet r, StatementContext ctx)
+                throws SQLException
+        {
+            return ImmutableReadyTaskSummary.builder()
+                .id(r.getLong("id"))
+                .attemptId(r.getLong("attempt_id"))
+                .siteId(r.getInt("site_id"))
+                .build();
+        }
+    }
+
     private static class TaskAttemptSummaryMapper
             implements ResultSetMapper<TaskAttemptSummary>
     {
@@ -1887,6 +2426,18 @@ public class DatabaseSessionStoreManager
         }
     }
 
+    private static class TaskIdSummaryMapper
+            implements ResultSetMapper<TaskIdSummary>
+    {
+        @Override
+        public TaskIdSummary map(int index, ResultSet r, StatementContext ctx)
+                throws SQLException
+        {
+            // max(id) is null if the attempt has no tasks. getLong returns 0 for null.
+            return TaskIdSummary.of(r.getLong("task_count"), r.getLong("max_task_id"));
+        }
+    }
+
     private static class StoredSessionMonitorMapper
             implements ResultSetMapper<StoredSessionMonitor>
     {
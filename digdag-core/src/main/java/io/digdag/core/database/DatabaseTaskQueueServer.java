@@ -1,10 +1,16 @@
 package io.digdag.core.database;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -18,12 +24,18 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.digdag.core.ErrorReporter;
+import io.digdag.core.metrics.Counter;
+import io.digdag.core.metrics.Histogram;
+import io.digdag.core.metrics.MetricRegistry;
 import io.digdag.core.queue.QueueSettingStore;
 import io.digdag.core.queue.QueueSettingStoreManager;
 import io.digdag.core.queue.StoredQueueSetting;
 import io.digdag.core.queue.ImmutableStoredQueueSetting;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.PreparedBatch;
+import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
 import org.skife.jdbi.v2.sqlobject.SqlQuery;
 import org.skife.jdbi.v2.sqlobject.SqlUpdate;
 import org.skife.jdbi.v2.sqlobject.Bind;
@@ -52,18 +64,23 @@ public class DatabaseTaskQueueServer
 
     private final int expireLockInterval;
     private final LocalLockMap localLockMap = new LocalLockMap();
+    private final AtomicInteger siteCursor = new AtomicInteger(0);
     private final ScheduledExecutorService expireExecutor;
 
     @Inject(optional = true)
     private ErrorReporter errorReporter = ErrorReporter.empty();
 
+    private Optional<DatabaseEventChannel> eventChannel = Optional.absent();
+
+    private Histogram lockSharedAgentTasksTime;
+    private Counter lockedSharedAgentTasks;
+    private Counter heartbeatFailures;
+
     @Inject
     public DatabaseTaskQueueServer(DBI dbi, DatabaseConfig config, DatabaseTaskQueueConfig queueConfig, ObjectMapper taskObjectMapper)
     {
         super(config.getType(), Dao.class, dbi);
 
-        dbi.registerMapper(new ImmutableTaskQueueLockMapper());
-
         this.queueConfig = queueConfig;
         this.taskObjectMapper = taskObjectMapper;
         this.expireLockInterval = config.getExpireLockInterval();
@@ -73,6 +90,26 @@ public class DatabaseTaskQueueServer
                 .setNameFormat("lock-expire-%d")
                 .build()
                 );
+        setMetricRegistry(new MetricRegistry());
+    }
+
+    @Inject(optional = true)
+    public void setEventChannel(DatabaseEventChannel eventChannel)
+    {
+        this.eventChannel = Optional.of(eventChannel);
+        // tasks enqueued by other servers
+        eventChannel.addListener(DatabaseEventChannel.TASK_QUEUE_CHANNEL, this::interruptLocalWait);
+    }
+
+    @Inject(optional = true)
+    public void setMetricRegistry(MetricRegistry metrics)
+    {
+        this.lockSharedAgentTasksTime = metrics.histogram("digdag_queue_lock_shared_agent_tasks_seconds",
+                "Time to lock tasks for agents excluding sleep when no tasks are ready");
+        this.lockedSharedAgentTasks = metrics.counter("digdag_queue_locked_shared_agent_tasks_total",
+                "Number of tasks locked for agents");
+        this.heartbeatFailures = metrics.counter("digdag_queue_heartbeat_failures_total",
+                "Number of task locks that heartbeats couldn't extend because they're not found or expired");
     }
 
     private final Object localTaskNoticeHelper = new Object();
@@ -86,6 +123,14 @@ public class DatabaseTaskQueueServer
         }
     }
 
+    private void noticeEnqueue()
+    {
+        interruptLocalWait();
+        if (eventChannel.isPresent()) {
+            eventChannel.get().publish(DatabaseEventChannel.TASK_QUEUE_CHANNEL);
+        }
+    }
+
     private void sleepForEnqueue(long maxSleepMillis)
     {
         synchronized (localTaskNoticeHelper) {
@@ -141,6 +186,130 @@ public class DatabaseTaskQueueServer
         }
     }
 
+    @Override
+    public List<String> enqueueDefaultQueueTasks(int siteId, List<TaskQueueRequest> requests)
+    {
+        if (requests.isEmpty()) {
+            return ImmutableList.of();
+        }
+
+        List<String> conflicts;
+        try {
+            conflicts = transaction((handle, dao, ts) -> enqueueBatch(handle, siteId, requests), ResourceConflictException.class);
+        }
+        catch (ResourceConflictException ex) {
+            // another thread inserted one of the tasks concurrently.
+            // fallback to enqueue them one by one to find the conflicted ones.
+            return TaskQueueServer.super.enqueueDefaultQueueTasks(siteId, requests);
+        }
+
+        noticeEnqueue();
+
+        return conflicts;
+    }
+
+    private List<String> enqueueBatch(Handle handle, int siteId, List<TaskQueueRequest> requests)
+        throws ResourceConflictException
+    {
+        Set<String> alreadyQueued = new HashSet<>(selectQueuedTaskIds(handle, siteId, requests).keySet());
+
+        PreparedBatch taskBatch = handle.prepareBatch(
+                "insert into queued_tasks" +
+                " (site_id, queue_id, unique_name, data, created_at)" +
+                " values (:siteId, NULL, :uniqueName, :data, now())");
+        ImmutableList.Builder<TaskQueueRequest> inserting = ImmutableList.builder();
+        ImmutableList.Builder<String> conflicts = ImmutableList.builder();
+        for (TaskQueueRequest request : requests) {
+            if (alreadyQueued.add(request.getUniqueName())) {
+                taskBatch.add()
+                    .bind("siteId", siteId)
+                    .bind("uniqueName", request.getUniqueName())
+                    .bind("data", request.getData().orNull());
+                inserting.add(request);
+            }
+            else {
+                conflicts.add(request.getUniqueName());
+            }
+        }
+
+        List<TaskQueueRequest> inserted = inserting.build();
+        if (inserted.isEmpty()) {
+            return conflicts.build();
+        }
+        try {
+            taskBatch.execute();
+        }
+        catch (UnableToExecuteStatementException ex) {
+            if (isBatchConflictException(ex)) {
+                throw new ResourceConflictException("Resource already exists: tasks in site id=" + siteId);
+            }
+            throw ex;
+        }
+
+        // queued_task_locks.id must be same with queued_tasks.id
+        Map<String, Long> ids = selectQueuedTaskIds(handle, siteId, inserted);
+        PreparedBatch lockBatch = handle.prepareBatch(
+                "insert into queued_task_locks" +
+                " (id, site_id, queue_id, priority)" +
+                " values (:id, :siteId, NULL, :priority)");
+        for (TaskQueueRequest request : inserted) {
+            lockBatch.add()
+                .bind("id", ids.get(request.getUniqueName()))
+                .bind("siteId", siteId)
+                .bind("priority", request.getPriority());
+        }
+        lockBatch.execute();
+
+        return conflicts.build();
+    }
+
+    // unique names are bound as parameters. Queries are split so that
+    // the number of parameters of a statement doesn't grow unlimitedly.
+    private static final int SELECT_QUEUED_TASK_IDS_CHUNK_SIZE = 500;
+
+    private Map<String, Long> selectQueuedTaskIds(Handle handle, int siteId, List<TaskQueueRequest> requests)
+    {
+        Map<String, Long> ids = new HashMap<>();
+        for (List<TaskQueueRequest> chunk : Lists.partition(requests, SELECT_QUEUED_TASK_IDS_CHUNK_SIZE)) {
+            StringBuilder sql = new StringBuilder();
+            sql.append("select id, unique_name from queued_tasks" +
+                    " where site_id = :siteId" +
+                    " and unique_name in (");
+            for (int i = 0; i < chunk.size(); i++) {
+                if (i > 0) {
+                    sql.append(", ");
+                }
+                sql.append(":n").append(i);
+            }
+            sql.append(")");
+
+            Query<Map<String, Object>> query = handle.createQuery(sql.toString())
+                .bind("siteId", siteId);
+            for (int i = 0; i < chunk.size(); i++) {
+                query.bind("n" + i, chunk.get(i).getUniqueName());
+            }
+
+            for (Map<String, Object> row : query.list()) {
+                ids.put((String) row.get("unique_name"), ((Number) row.get("id")).longValue());
+            }
+        }
+        return ids;
+    }
+
+    private boolean isBatchConflictException(UnableToExecuteStatementException ex)
+    {
+        if (ex.getCause() instanceof SQLException) {
+            SQLException sqlEx = (SQLException) ex.getCause();
+            while (sqlEx != null) {
+                if (isConflictException(sqlEx)) {
+                    return true;
+                }
+                sqlEx = sqlEx.getNextException();
+            }
+        }
+        return false;
+    }
+
     @Override
     public void enqueueQueueBoundTask(int queueId, TaskQueueRequest request)
         throws TaskConflictException
@@ -172,7 +341,7 @@ public class DatabaseTaskQueueServer
             return queuedTaskId;
         }, ResourceConflictException.class);
 
-        interruptLocalWait();
+        noticeEnqueue();
 
         return id;
     }
@@ -252,69 +421,109 @@ public class DatabaseTaskQueueServer
 
     public List<String> taskHeartbeat(int siteId, List<String> lockedIds, String agentId, int lockSeconds)
     {
+        // group lock ids by queue id so that a statement extends all locks of the group.
+        // queue id is null for shared tasks.
+        Map<Integer, List<Long>> taskLockIdsOfQueues = new HashMap<>();
+        for (String formatted : lockedIds) {
+            Integer queueId = isSharedTaskLockId(formatted) ? null : parseQueueId(formatted);
+            taskLockIdsOfQueues.computeIfAbsent(queueId, key -> new ArrayList<>())
+                .add(parseTaskLockId(formatted));
+        }
+
+        Map<Integer, Set<Long>> extendedOfQueues = new HashMap<>();
+        for (Map.Entry<Integer, List<Long>> pair : taskLockIdsOfQueues.entrySet()) {
+            extendedOfQueues.put(pair.getKey(),
+                    taskHeartbeat0(siteId, pair.getKey(), pair.getValue(), agentId, lockSeconds));
+        }
+
         ImmutableList.Builder<String> notFoundList = ImmutableList.builder();
         for (String formatted : lockedIds) {
-            boolean success;
-            if (isSharedTaskLockId(formatted)) {
-                success = taskHeartbeat0(siteId, null, parseTaskLockId(formatted), agentId, lockSeconds);
-            }
-            else {
-                success = taskHeartbeat0(siteId, parseQueueId(formatted), parseTaskLockId(formatted), agentId, lockSeconds);
-            }
-            if (!success) {
+            Integer queueId = isSharedTaskLockId(formatted) ? null : parseQueueId(formatted);
+            if (!extendedOfQueues.get(queueId).contains(parseTaskLockId(formatted))) {
                 notFoundList.add(formatted);
             }
         }
-        return notFoundList.build();
+        List<String> notFound = notFoundList.build();
+        heartbeatFailures.add(notFound.size());
+        return notFound;
     }
 
-    private boolean taskHeartbeat0(int siteId, Integer queueId, long taskLockId, String agentId, int lockSeconds)
+    private Set<Long> taskHeartbeat0(int siteId, Integer queueId, List<Long> taskLockIds, String agentId, int lockSeconds)
     {
-        return autoCommit((handle, dao) -> {
-            String lockExpireTimeSql;
-            if (isEmbededDatabase()) {
-                lockExpireTimeSql = Long.toString(Instant.now().getEpochSecond() + lockSeconds);
-            }
-            else {
-                lockExpireTimeSql = statementUnixTimestampSql() + " + " + Integer.toString(lockSeconds);
-            }
-            return handle.createStatement(
-                    "update queued_task_locks" +
-                    " set lock_expire_time = " + lockExpireTimeSql +
-                    " where id = :id" +
-                    " and lock_agent_id = :agentId" +
-                    " and coalesce(site_id, (select site_id from queue_settings where id = :queueId)) = :siteId"
-                )
-                .bind("expireTime", Instant.now().getEpochSecond() + lockSeconds)
-                .bind("id", taskLockId)
-                .bind("agentId", agentId)
-                .bind("queueId", queueId)
-                .bind("siteId", siteId)
-                .execute();
-        }) > 0;
+        String condition =
+            " where id " + inLargeIdListExpression(taskLockIds) +
+            " and lock_agent_id = :agentId" +
+            " and coalesce(site_id, (select site_id from queue_settings where id = :queueId)) = :siteId";
+
+        if (isEmbededDatabase()) {
+            // H2 doesn't support UPDATE ... RETURNING. select the locks in the same transaction instead.
+            return transaction((handle, dao, ts) -> {
+                List<Long> ids = handle.createQuery(
+                        "select id from queued_task_locks" + condition
+                    )
+                    .bind("agentId", agentId)
+                    .bind("queueId", queueId)
+                    .bind("siteId", siteId)
+                    .mapTo(long.class)
+                    .list();
+                if (!ids.isEmpty()) {
+                    handle.createStatement(
+                            "update queued_task_locks" +
+                            " set lock_expire_time = :expireTime" +
+                            " where id " + inLargeIdListExpression(ids) +
+                            " and lock_agent_id = :agentId"
+                        )
+                        .bind("expireTime", Instant.now().getEpochSecond() + lockSeconds)
+                        .bind("agentId", agentId)
+                        .execute();
+                }
+                return new HashSet<>(ids);
+            });
+        }
+        else {
+            return autoCommit((handle, dao) ->
+                    new HashSet<>(handle.createQuery(
+                            "update queued_task_locks" +
+                            " set lock_expire_time = " + statementUnixTimestampSql() + " + " + Integer.toString(lockSeconds) +
+                            condition +
+                            " returning id"
+                        )
+                        .bind("agentId", agentId)
+                        .bind("queueId", queueId)
+                        .bind("siteId", siteId)
+                        .mapTo(long.class)
+                        .list())
+                    );
+        }
     }
 
     @Override
     public List<TaskQueueLock> lockSharedAgentTasks(int count, String agentId, int lockSeconds, long maxSleepMillis)
     {
-        for (int siteId : autoCommit((handle, dao) -> dao.getActiveSiteIdList())) {
-            List<Long> taskLockIds = tryLockSharedAgentTasks(siteId, count, agentId, lockSeconds);
-            if (!taskLockIds.isEmpty()) {
-                ImmutableList.Builder<TaskQueueLock> builder = ImmutableList.builder();
-                for (long taskLockId : taskLockIds) {
-                    ImmutableTaskQueueLock data = autoCommit((handle, dao) -> dao.getTaskData(taskLockId));
-                    if (data == null) {
-                        // queued_task is deleted after tryLockSharedAgentTasks call.
-                        // it is possible just because there are 2 different transactions.
-                    }
-                    else {
-                        String lockId = formatSharedTaskLockId(taskLockId);
-                        builder.add(data.withLockId(lockId));
-                    }
-                }
-                return builder.build();
+        long startNanos = System.nanoTime();
+        List<Integer> siteIds = autoCommit((handle, dao) -> dao.getActiveSiteIdList());
+        if (!siteIds.isEmpty()) {
+            // start from a different site every time so that tasks of the
+            // first site don't always take precedence over the other sites.
+            int offset = Math.floorMod(siteCursor.getAndIncrement(), siteIds.size());
+
+            ImmutableList.Builder<TaskQueueLock> builder = ImmutableList.builder();
+            int remaining = count;
+            for (int i = 0; i < siteIds.size() && remaining > 0; i++) {
+                int siteId = siteIds.get((offset + i) % siteIds.size());
+                List<TaskQueueLock> locks = tryLockSharedAgentTasks(siteId, remaining, agentId, lockSeconds);
+                builder.addAll(locks);
+                remaining -= locks.size();
+            }
+
+            List<TaskQueueLock> locked = builder.build();
+            if (!locked.isEmpty()) {
+                lockSharedAgentTasksTime.recordSince(startNanos);
+                lockedSharedAgentTasks.add(locked.size());
+                return locked;
             }
         }
+        lockSharedAgentTasksTime.recordSince(startNanos);
 
         // no tasks are ready to lock. sleep.
         if (maxSleepMillis >= 0) {
@@ -323,13 +532,15 @@ public class DatabaseTaskQueueServer
         return ImmutableList.of();
     }
 
-    private List<Long> tryLockSharedAgentTasks(int siteId,
+    private List<TaskQueueLock> tryLockSharedAgentTasks(int siteId,
             int count, String agentId, int lockSeconds)
     {
         int siteMaxConcurrency = queueConfig.getSiteMaxConcurrency(siteId);
 
+        // another thread of this process is locking tasks of this site.
+        // don't wait for it but try other sites.
         try {
-            if (!localLockMap.tryLock(siteId, 500)) {
+            if (!localLockMap.tryLock(siteId, 0)) {
                 return ImmutableList.of();
             }
         }
@@ -373,32 +584,51 @@ public class DatabaseTaskQueueServer
                             .bind("limit", count)
                             .mapTo(long.class)
                             .list();
+                    if (taskLockIds.isEmpty()) {
+                        return ImmutableList.<TaskQueueLock>of();
+                    }
+
+                    String idList = taskLockIds.stream()
+                        .map(it -> Long.toString(it)).collect(Collectors.joining(", "));
                     handle.createStatement(
                             "update queued_task_locks" +
                             " set lock_expire_time = :expireTime, lock_agent_id = :agentId" +
-                            " where id in (" +
-                                taskLockIds.stream()
-                                .map(it -> Long.toString(it)).collect(Collectors.joining(", ")) +
-                            ")"
+                            " where id in (" + idList + ")"
                         )
                         .bind("expireTime", Instant.now().getEpochSecond() + lockSeconds)
                         .bind("agentId", agentId)
                         .execute();
-                    return taskLockIds;
+
+                    // fetch data in the same transaction. this doesn't need round trips
+                    // per task and locked tasks can't be deleted before this query.
+                    Map<Long, TaskQueueLock> locks = new HashMap<>();
+                    for (TaskQueueLock lock : handle.createQuery(
+                                "select id, unique_name, data from queued_tasks" +
+                                " where id in (" + idList + ")"
+                            )
+                            .map(new SharedTaskQueueLockMapper())
+                            .list()) {
+                        locks.put(parseTaskLockId(lock.getLockId()), lock);
+                    }
+                    return taskLockIds.stream()
+                        .filter(locks::containsKey)
+                        .map(locks::get)
+                        .collect(Collectors.toList());
                 });
             }
             else {
-                // see DatabaseMigrator for the definition of lock_shared_tasks function.
+                // see Migration_20161018140000_LockSharedTasksWithData for the definition of lock_shared_tasks_with_data function.
                 return autoCommit((handle, dao) ->
                         handle.createQuery(
-                            "select lock_shared_tasks(:siteId, :siteMaxConcurrency, :limit, :lockExpireSeconds, :agentId)"
+                            "select locked_id as id, locked_unique_name as unique_name, locked_data as data" +
+                            " from lock_shared_tasks_with_data(:siteId, :siteMaxConcurrency, :limit, :lockExpireSeconds, :agentId)"
                         )
                         .bind("siteId", siteId)
                         .bind("siteMaxConcurrency", siteMaxConcurrency)
                         .bind("limit", count)
                         .bind("lockExpireSeconds", lockSeconds)
                         .bind("agentId", agentId)
-                        .mapTo(long.class)
+                        .map(new SharedTaskQueueLockMapper())
                         .list()
                     );
             }
@@ -443,15 +673,15 @@ public class DatabaseTaskQueueServer
         }
     }
 
-    private static class ImmutableTaskQueueLockMapper
-            implements ResultSetMapper<ImmutableTaskQueueLock>
+    private static class SharedTaskQueueLockMapper
+            implements ResultSetMapper<TaskQueueLock>
     {
         @Override
-        public ImmutableTaskQueueLock map(int index, ResultSet r, StatementContext ctx)
+        public TaskQueueLock map(int index, ResultSet r, StatementContext ctx)
                 throws SQLException
         {
             return ImmutableTaskQueueLock.builder()
-                .lockId("")  // should be reset later
+                .lockId(formatSharedTaskLockId(r.getLong("id")))
                 .uniqueName(r.getString("unique_name"))
                 .data(getOptionalBytes(r, "data"))
                 .build();
@@ -502,9 +732,6 @@ public class DatabaseTaskQueueServer
                 @Bind("siteId") Integer siteId, @Bind("queueId") Integer queueId,
                 @Bind("priority") int priority);
 
-        @SqlQuery("select unique_name, data from queued_tasks where id = :taskLockId")
-        ImmutableTaskQueueLock getTaskData(@Bind("taskLockId") long taskLockId);
-
         @SqlUpdate("delete from queued_task_locks" +
                 " where id = :taskLockId" +
                 " and lock_agent_id = :agentId")
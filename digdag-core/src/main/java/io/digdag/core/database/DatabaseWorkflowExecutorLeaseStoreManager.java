@@ -0,0 +1,123 @@
+package io.digdag.core.database;
+
+import java.time.Instant;
+import com.google.inject.Inject;
+import io.digdag.core.repository.ResourceConflictException;
+import io.digdag.core.workflow.WorkflowExecutorLeaseStoreManager;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.sqlobject.Bind;
+import org.skife.jdbi.v2.sqlobject.SqlQuery;
+import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+
+public class DatabaseWorkflowExecutorLeaseStoreManager
+        extends BasicDatabaseStoreManager<DatabaseWorkflowExecutorLeaseStoreManager.Dao>
+        implements WorkflowExecutorLeaseStoreManager
+{
+    @Inject
+    public DatabaseWorkflowExecutorLeaseStoreManager(DBI dbi, DatabaseConfig config)
+    {
+        super(config.getType(), Dao.class, dbi);
+    }
+
+    @Override
+    public boolean tryAcquireLease(int partitionIndex, String owner, Instant currentTime, Instant expireTime)
+    {
+        int updated = autoCommit((handle, dao) ->
+                dao.updateLease(partitionIndex, owner, currentTime.getEpochSecond(), expireTime.getEpochSecond()));
+        if (updated > 0) {
+            return true;
+        }
+
+        try {
+            return catchConflict(() ->
+                    autoCommit((handle, dao) ->
+                        dao.insertLease(partitionIndex, owner, expireTime.getEpochSecond()) > 0),
+                    "workflow executor lease partition=%d", partitionIndex);
+        }
+        catch (ResourceConflictException ex) {
+            // another owner inserted the lease
+            return false;
+        }
+    }
+
+    @Override
+    public void releaseLease(int partitionIndex, String owner)
+    {
+        autoCommit((handle, dao) -> dao.deleteLease(partitionIndex, owner));
+    }
+
+    @Override
+    public void heartbeat(String owner, Instant currentTime, Instant expireTime)
+    {
+        autoCommit((handle, dao) -> dao.deleteExpiredOwners(currentTime.getEpochSecond()));
+
+        int updated = autoCommit((handle, dao) -> dao.updateOwner(owner, expireTime.getEpochSecond()));
+        if (updated > 0) {
+            return;
+        }
+
+        try {
+            catchConflict(() ->
+                    autoCommit((handle, dao) -> dao.insertOwner(owner, expireTime.getEpochSecond())),
+                    "workflow executor owner=%s", owner);
+        }
+        catch (ResourceConflictException ex) {
+            // inserted by itself in another thread. this doesn't happen usually
+        }
+    }
+
+    @Override
+    public void removeOwner(String owner)
+    {
+        autoCommit((handle, dao) -> dao.deleteOwner(owner));
+    }
+
+    @Override
+    public int countLiveOwners(Instant currentTime)
+    {
+        return autoCommit((handle, dao) -> dao.countLiveOwners(currentTime.getEpochSecond()));
+    }
+
+    public interface Dao
+    {
+        @SqlUpdate("update workflow_executor_leases" +
+                " set owner = :owner, expire_time = :expireTime" +
+                " where partition_index = :partitionIndex" +
+                " and (owner = :owner or expire_time < :currentTime)")
+        int updateLease(@Bind("partitionIndex") int partitionIndex, @Bind("owner") String owner,
+                @Bind("currentTime") long currentTime, @Bind("expireTime") long expireTime);
+
+        @SqlUpdate("insert into workflow_executor_leases" +
+                " (partition_index, owner, expire_time)" +
+                " values (:partitionIndex, :owner, :expireTime)")
+        int insertLease(@Bind("partitionIndex") int partitionIndex, @Bind("owner") String owner,
+                @Bind("expireTime") long expireTime);
+
+        @SqlUpdate("delete from workflow_executor_leases" +
+                " where partition_index = :partitionIndex" +
+                " and owner = :owner")
+        int deleteLease(@Bind("partitionIndex") int partitionIndex, @Bind("owner") String owner);
+
+        @SqlUpdate("update workflow_executor_owners" +
+                " set expire_time = :expireTime" +
+                " where owner = :owner")
+        int updateOwner(@Bind("owner") String owner, @Bind("expireTime") long expireTime);
+
+        @SqlUpdate("insert into workflow_executor_owners" +
+                " (owner, expire_time)" +
+                " values (:owner, :expireTime)")
+        int insertOwner(@Bind("owner") String owner, @Bind("expireTime") long expireTime);
+
+        @SqlUpdate("delete from workflow_executor_owners" +
+                " where owner = :owner")
+        int deleteOwner(@Bind("owner") String owner);
+
+        @SqlUpdate("delete from workflow_executor_owners" +
+                " where expire_time < :currentTime")
+        int deleteExpiredOwners(@Bind("currentTime") long currentTime);
+
+        @SqlQuery("select count(*) from workflow_executor_owners" +
+                " where expire_time >= :currentTime")
+        int countLiveOwners(@Bind("currentTime") long currentTime);
+    }
+}
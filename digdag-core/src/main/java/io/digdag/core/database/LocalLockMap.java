@@ -17,6 +17,10 @@ public class LocalLockMap
             if (set.add(i)) {
                 return true;
             }
+            else if (maxTimeout <= 0) {
+                // wait(0) waits forever
+                return false;
+            }
             else {
                 wait(maxTimeout);
                 if (set.add(i)) {
@@ -0,0 +1,255 @@
+package io.digdag.core.database;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiPredicate;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import io.digdag.core.session.ArchivedTask;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Binary format of task_archives.data.
+ *
+ * Layout of version 1:
+ *
+ *   magic "DGTA" (4 bytes), version (1 byte), length of index (int)
+ *   index: deflate-compressed
+ *     number of tasks (int)
+ *     for each task: id (long), full name (int length + UTF-8), block number (int),
+ *       offset in the block (int), length (int)
+ *     number of blocks (int)
+ *     for each block: offset from the beginning of blocks (int), length (int)
+ *   blocks: deflate-compressed JSON of tasks, about BLOCK_SIZE bytes each before compression
+ *
+ * Tasks are stored in order of id. Readers read the header and the index first,
+ * and then read and decompress only the blocks that include requested tasks.
+ */
+class TaskArchiveFormat
+{
+    interface RangeReader
+    {
+        // offset is 0-origin
+        byte[] read(int offset, int length);
+    }
+
+    static class Entry
+    {
+        private final long id;
+        private final String fullName;
+        private final int block;
+        private final int offset;
+        private final int length;
+
+        Entry(long id, String fullName, int block, int offset, int length)
+        {
+            this.id = id;
+            this.fullName = fullName;
+            this.block = block;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        long getId()
+        {
+            return id;
+        }
+
+        String getFullName()
+        {
+            return fullName;
+        }
+    }
+
+    static final int HEADER_SIZE = 9;
+
+    private static final byte[] MAGIC = new byte[] { 'D', 'G', 'T', 'A' };
+    private static final byte VERSION = 1;
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private final ObjectMapper mapper;
+
+    TaskArchiveFormat(ObjectMapper mapper)
+    {
+        this.mapper = mapper;
+    }
+
+    byte[] encode(List<ArchivedTask> tasks)
+    {
+        try {
+            List<Entry> entries = new ArrayList<>();
+            List<int[]> blocks = new ArrayList<>();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+
+            for (ArchivedTask task : tasks) {
+                byte[] json = mapper.writeValueAsBytes(task);
+                if (block.size() > 0 && block.size() + json.length > BLOCK_SIZE) {
+                    blocks.add(writeBlock(body, block));
+                }
+                entries.add(new Entry(task.getId(), task.getFullName(), blocks.size(), block.size(), json.length));
+                block.write(json);
+            }
+            if (block.size() > 0) {
+                blocks.add(writeBlock(body, block));
+            }
+
+            ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+            try (DataOutputStream index = new DataOutputStream(new DeflaterOutputStream(indexBytes))) {
+                index.writeInt(entries.size());
+                for (Entry entry : entries) {
+                    byte[] name = entry.fullName.getBytes(UTF_8);
+                    index.writeLong(entry.id);
+                    index.writeInt(name.length);
+                    index.write(name);
+                    index.writeInt(entry.block);
+                    index.writeInt(entry.offset);
+                    index.writeInt(entry.length);
+                }
+                index.writeInt(blocks.size());
+                for (int[] b : blocks) {
+                    index.writeInt(b[0]);
+                    index.writeInt(b[1]);
+                }
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_SIZE + indexBytes.size() + body.size());
+            out.write(MAGIC);
+            out.write(VERSION);
+            out.write(ByteBuffer.allocate(4).putInt(indexBytes.size()).array());
+            indexBytes.writeTo(out);
+            body.writeTo(out);
+            return out.toByteArray();
+        }
+        catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static int[] writeBlock(ByteArrayOutputStream body, ByteArrayOutputStream block)
+        throws IOException
+    {
+        int offset = body.size();
+        // closing ByteArrayOutputStream has no effect
+        try (DeflaterOutputStream out = new DeflaterOutputStream(body)) {
+            block.writeTo(out);
+        }
+        block.reset();
+        return new int[] { offset, body.size() - offset };
+    }
+
+    Reader open(RangeReader reader)
+    {
+        byte[] header = reader.read(0, HEADER_SIZE);
+        if (header.length != HEADER_SIZE || !Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC)) {
+            throw new RuntimeException("Failed to load task archive: invalid header");
+        }
+        if (header[MAGIC.length] != VERSION) {
+            throw new RuntimeException("Failed to load task archive: unsupported version " + header[MAGIC.length]);
+        }
+        int indexLength = ByteBuffer.wrap(header, MAGIC.length + 1, 4).getInt();
+
+        try (DataInputStream index = new DataInputStream(new InflaterInputStream(
+                        new ByteArrayInputStream(reader.read(HEADER_SIZE, indexLength))))) {
+            int entryCount = index.readInt();
+            ImmutableList.Builder<Entry> entries = ImmutableList.builder();
+            for (int i = 0; i < entryCount; i++) {
+                long id = index.readLong();
+                byte[] name = new byte[index.readInt()];
+                index.readFully(name);
+                entries.add(new Entry(id, new String(name, UTF_8), index.readInt(), index.readInt(), index.readInt()));
+            }
+            int blockCount = index.readInt();
+            int[][] blocks = new int[blockCount][];
+            for (int i = 0; i < blockCount; i++) {
+                blocks[i] = new int[] { index.readInt(), index.readInt() };
+            }
+            return new Reader(reader, HEADER_SIZE + indexLength, entries.build(), blocks);
+        }
+        catch (IOException ex) {
+            throw new RuntimeException("Failed to load task archive", ex);
+        }
+    }
+
+    class Reader
+    {
+        private final RangeReader reader;
+        private final int blocksOffset;
+        private final List<Entry> entries;
+        private final int[][] blocks;
+
+        private Reader(RangeReader reader, int blocksOffset, List<Entry> entries, int[][] blocks)
+        {
+            this.reader = reader;
+            this.blocksOffset = blocksOffset;
+            this.entries = entries;
+            this.blocks = blocks;
+        }
+
+        List<Entry> getEntries()
+        {
+            return entries;
+        }
+
+        // filter receives id and full name of tasks
+        List<ArchivedTask> readTasks(BiPredicate<Long, String> filter)
+        {
+            List<Entry> selected = new ArrayList<>();
+            for (Entry entry : entries) {
+                if (filter.test(entry.id, entry.fullName)) {
+                    selected.add(entry);
+                }
+            }
+            if (selected.isEmpty()) {
+                return ImmutableList.of();
+            }
+
+            // entries are ordered by block. read the range that covers all
+            // necessary blocks at once.
+            int firstBlock = selected.get(0).block;
+            int lastBlock = selected.get(selected.size() - 1).block;
+            int rangeOffset = blocks[firstBlock][0];
+            int rangeEnd = blocks[lastBlock][0] + blocks[lastBlock][1];
+            byte[] range = reader.read(blocksOffset + rangeOffset, rangeEnd - rangeOffset);
+
+            try {
+                Map<Integer, byte[]> inflated = new HashMap<>();
+                ImmutableList.Builder<ArchivedTask> tasks = ImmutableList.builder();
+                for (Entry entry : selected) {
+                    byte[] block = inflated.get(entry.block);
+                    if (block == null) {
+                        int[] b = blocks[entry.block];
+                        try (InflaterInputStream in = new InflaterInputStream(
+                                    new ByteArrayInputStream(range, b[0] - rangeOffset, b[1]))) {
+                            block = ByteStreams.toByteArray(in);
+                        }
+                        inflated.put(entry.block, block);
+                    }
+                    tasks.add(mapper.readValue(block, entry.offset, entry.length, ArchivedTask.class));
+                }
+                return tasks.build();
+            }
+            catch (IOException ex) {
+                throw new RuntimeException("Failed to load task archive", ex);
+            }
+        }
+    }
+
+    static RangeReader byteArrayReader(byte[] data)
+    {
+        return (offset, length) -> Arrays.copyOfRange(data, offset, Math.min(offset + length, data.length));
+    }
+}
@@ -0,0 +1,64 @@
+package io.digdag.core.database.migrate;
+
+import org.skife.jdbi.v2.Handle;
+
+public class Migration_20161018140000_LockSharedTasksWithData
+        implements Migration
+{
+    @Override
+    public void migrate(Handle handle, MigrationContext context)
+    {
+        if (context.isPostgres()) {
+            // same with lock_shared_tasks but returns unique_name and data of the locked tasks
+            // so that agents don't have to fetch them one by one.
+            // names of the returned columns have prefix because they conflict with column names otherwise.
+            handle.update(
+                "CREATE FUNCTION lock_shared_tasks_with_data(target_site_id int, target_site_max_concurrency bigint, limit_count int, lock_expire_seconds int, agent_id text)" +
+                " returns table (locked_id bigint, locked_unique_name text, locked_data bytea) as $$\n" +
+                "BEGIN\n" +
+                "  IF pg_try_advisory_xact_lock(23300, target_site_id) THEN\n" +
+                "    RETURN QUERY\n" +
+                "      with updated as (\n" +
+                "        update queued_task_locks\n" +
+                "        set lock_expire_time = cast(extract(epoch from statement_timestamp()) as bigint) + lock_expire_seconds,\n" +
+                "            lock_agent_id = agent_id\n" +
+                "        where id = any(\n" +
+                "          select queued_task_locks.id\n" +
+                "          from queued_task_locks\n" +
+                "          where lock_expire_time is null\n" +
+                "          and site_id = target_site_id\n" +
+                "          and not exists (\n" +
+                "            select * from (\n" +
+                "              select queue_id, count(*) as count\n" +
+                "              from queued_task_locks\n" +
+                "              where lock_expire_time is not null\n" +
+                "                and site_id = target_site_id\n" +
+                "              group by queue_id\n" +
+                "            ) runnings\n" +
+                "            join queues on queues.id = runnings.queue_id\n" +
+                "            where runnings.count >= queues.max_concurrency\n" +
+                "              and runnings.queue_id = queued_task_locks.queue_id\n" +
+                "          )\n" +
+                "          and not exists (\n" +
+                "            select count(*)\n" +
+                "            from queued_task_locks\n" +
+                "            where lock_expire_time is not null\n" +
+                "              and site_id = target_site_id\n" +
+                "            having count(*) >= target_site_max_concurrency\n" +
+                "          )\n" +
+                "          order by queue_id, priority desc, id\n" +
+                "          limit limit_count\n" +
+                "        )\n" +
+                "        returning queue_id, priority, id\n" +
+                "      )\n" +
+                "      select updated.id, queued_tasks.unique_name, queued_tasks.data\n" +
+                "      from updated\n" +
+                "      join queued_tasks on queued_tasks.id = updated.id\n" +
+                "      order by updated.queue_id, updated.priority desc, updated.id;\n" +
+                "  END IF;\n" +
+                "END;\n" +
+                "$$ LANGUAGE plpgsql VOLATILE\n" +
+            "");
+        }
+    }
+}
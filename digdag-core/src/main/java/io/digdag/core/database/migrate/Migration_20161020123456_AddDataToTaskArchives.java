@@ -0,0 +1,28 @@
+package io.digdag.core.database.migrate;
+
+import org.skife.jdbi.v2.Handle;
+
+public class Migration_20161020123456_AddDataToTaskArchives
+        implements Migration
+{
+    @Override
+    public void migrate(Handle handle, MigrationContext context)
+    {
+        // task_archives.data stores tasks in TaskArchiveFormat. tasks column
+        // stores JSON of tasks archived before this migration.
+        if (context.isPostgres()) {
+            handle.update("alter table task_archives" +
+                    " add column data bytea");
+            handle.update("alter table task_archives" +
+                    " alter column tasks drop not null");
+            // for compaction of archives stored in JSON
+            handle.update("create index task_archives_on_json_format on task_archives (id) where data is null");
+        }
+        else {
+            handle.update("alter table task_archives" +
+                    " add column data blob");
+            handle.update("alter table task_archives" +
+                    " alter column tasks set null");
+        }
+    }
+}
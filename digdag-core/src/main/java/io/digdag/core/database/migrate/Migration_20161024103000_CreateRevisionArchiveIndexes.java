@@ -0,0 +1,18 @@
+package io.digdag.core.database.migrate;
+
+import org.skife.jdbi.v2.Handle;
+
+public class Migration_20161024103000_CreateRevisionArchiveIndexes
+        implements Migration
+{
+    @Override
+    public void migrate(Handle handle, MigrationContext context)
+    {
+        // revision_archive_indexes stores ArchiveIndex of archives rewritten by IndexedArchiveWriter
+        handle.update(
+                context.newCreateTableBuilder("revision_archive_indexes")
+                .addIntIdNoAutoIncrement("id", "references revisions (id)")
+                .addLongBinary("index_data", "not null")
+                .build());
+    }
+}
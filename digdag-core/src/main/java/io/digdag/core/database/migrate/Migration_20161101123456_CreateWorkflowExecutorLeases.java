@@ -0,0 +1,26 @@
+package io.digdag.core.database.migrate;
+
+import org.skife.jdbi.v2.Handle;
+
+public class Migration_20161101123456_CreateWorkflowExecutorLeases
+        implements Migration
+{
+    @Override
+    public void migrate(Handle handle, MigrationContext context)
+    {
+        // workflow_executor_leases stores owners of attempt partitions run by WorkflowExecutor loops
+        handle.update(
+                context.newCreateTableBuilder("workflow_executor_leases")
+                .add("partition_index", "int primary key")
+                .addString("owner", "not null")
+                .addLong("expire_time", "not null")
+                .build());
+
+        // workflow_executor_owners stores servers running WorkflowExecutor loops to calculate fair share of partitions
+        handle.update(
+                context.newCreateTableBuilder("workflow_executor_owners")
+                .addString("owner", "primary key")
+                .addLong("expire_time", "not null")
+                .build());
+    }
+}
@@ -0,0 +1,20 @@
+package io.digdag.core.database.migrate;
+
+import org.skife.jdbi.v2.Handle;
+
+public class Migration_20161108123456_AddTasksOnAttemptBucketIndexes
+        implements Migration
+{
+    @Override
+    public void migrate(Handle handle, MigrationContext context)
+    {
+        // for queries of WorkflowExecutor loops of attempt partitions. the
+        // expression must be same with AttemptPartition.BUCKETS and
+        // DatabaseSessionStoreManager.attemptPartitionCondition.
+        // h2 doesn't support indexes on expressions.
+        if (context.isPostgres()) {
+            handle.update("create index tasks_on_attempt_bucket_and_state_and_id on tasks (mod(attempt_id, 64), state, id)");
+            handle.update("create index tasks_on_attempt_bucket_and_updated_at_and_id on tasks (mod(attempt_id, 64), updated_at, id)");
+        }
+    }
+}
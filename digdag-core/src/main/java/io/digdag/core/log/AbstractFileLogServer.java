@@ -3,6 +3,7 @@ package io.digdag.core.log;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.zip.GZIPOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
@@ -23,6 +24,7 @@ import io.digdag.spi.LogFileHandle;
 import io.digdag.spi.ImmutableLogFileHandle;
 import io.digdag.spi.DirectDownloadHandle;
 import io.digdag.spi.DirectUploadHandle;
+import io.digdag.spi.Storage;
 import io.digdag.spi.StorageFileNotFoundException;
 import io.digdag.client.config.Config;
 import java.time.format.DateTimeFormatter;
@@ -36,9 +38,20 @@ public abstract class AbstractFileLogServer
 
     protected abstract void putFile(String dateDir, String attemptDir, String fileName, byte[] gzData);
 
+    protected abstract void putFile(String dateDir, String attemptDir, String fileName, long gzDataLength, Storage.UploadStreamProvider gzData)
+        throws IOException;
+
     protected abstract byte[] getFile(String dateDir, String attemptDir, String fileName)
             throws StorageFileNotFoundException;
 
+    protected InputStream openFile(String dateDir, String attemptDir, String fileName, long offset)
+            throws StorageFileNotFoundException, IOException
+    {
+        InputStream in = new ByteArrayInputStream(getFile(dateDir, attemptDir, fileName));
+        ByteStreams.skipFully(in, offset);
+        return in;
+    }
+
     protected abstract void listFiles(String dateDir, String attemptDir, FileMetadataConsumer fileNameConsumer);
 
     public interface FileMetadataConsumer
@@ -67,6 +80,20 @@ public abstract class AbstractFileLogServer
         return fileName;
     }
 
+    @Override
+    public String putFile(LogFilePrefix prefix, String taskName, Instant firstLogTime, String agentId,
+            long gzDataLength, Storage.UploadStreamProvider gzData)
+        throws IOException
+    {
+        String dateDir = LogFiles.formatDataDir(prefix);
+        String attemptDir = LogFiles.formatSessionAttemptDir(prefix);
+        String fileName = LogFiles.formatFileName(taskName, firstLogTime, agentId);
+
+        putFile(dateDir, attemptDir, fileName, gzDataLength, gzData);
+
+        return fileName;
+    }
+
     @Override
     public byte[] getFile(LogFilePrefix prefix, String fileName)
             throws StorageFileNotFoundException
@@ -76,6 +103,15 @@ public abstract class AbstractFileLogServer
         return getFile(dateDir, attemptDir, fileName);
     }
 
+    @Override
+    public InputStream openFile(LogFilePrefix prefix, String fileName, long offset)
+            throws StorageFileNotFoundException, IOException
+    {
+        String dateDir = LogFiles.formatDataDir(prefix);
+        String attemptDir = LogFiles.formatSessionAttemptDir(prefix);
+        return openFile(dateDir, attemptDir, fileName, offset);
+    }
+
     @Override
     public List<LogFileHandle> getFileHandles(LogFilePrefix prefix, Optional<String> taskName)
     {
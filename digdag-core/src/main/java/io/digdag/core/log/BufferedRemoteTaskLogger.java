@@ -1,7 +1,9 @@
 package io.digdag.core.log;
 
 import java.time.Instant;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
+import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
@@ -12,8 +14,8 @@ import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 import java.time.Instant;
 import com.google.common.base.Throwables;
-import com.google.common.io.ByteStreams;
 import io.digdag.core.TempFileManager;
+import io.digdag.spi.Storage;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class BufferedRemoteTaskLogger
@@ -21,7 +23,8 @@ public class BufferedRemoteTaskLogger
 {
     public static interface Uploader
     {
-        void upload(Instant firstLogTime, byte[] gzData);
+        void upload(Instant firstLogTime, long gzDataLength, Storage.UploadStreamProvider gzData)
+            throws IOException;
     }
 
     private static final int UPLOAD_THRESHOLD = 16 * 1024 * 1024;
@@ -29,6 +32,7 @@ public class BufferedRemoteTaskLogger
     private final TempFileManager tempFiles;
     private final String tempFilePrefix;
     private final Uploader uploader;
+    private final int compressionLevel;
     private final ReentrantReadWriteLock lock;
     private final ReadLock logAppendLock;
     private final WriteLock logUploadLock;
@@ -37,10 +41,17 @@ public class BufferedRemoteTaskLogger
 
     public BufferedRemoteTaskLogger(TempFileManager tempFiles, String tempFilePrefix,
             Uploader uploader)
+    {
+        this(tempFiles, tempFilePrefix, uploader, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public BufferedRemoteTaskLogger(TempFileManager tempFiles, String tempFilePrefix,
+            Uploader uploader, int compressionLevel)
     {
         this.tempFiles = tempFiles;
         this.tempFilePrefix = tempFilePrefix;
         this.uploader = uploader;
+        this.compressionLevel = compressionLevel;
         this.lock = new ReentrantReadWriteLock();
         this.logAppendLock = lock.readLock();
         this.logUploadLock = lock.writeLock();
@@ -89,8 +100,8 @@ public class BufferedRemoteTaskLogger
                         throw new IOException("Task logger is already closed");
                     }
                     currentFile = new CountingLogOutputStream(
-                            tempFiles.createTempFile("logs", tempFilePrefix, ".log.gz").get()
-                            );
+                            tempFiles.createTempFile("logs", tempFilePrefix, ".log.gz").get(),
+                            compressionLevel);
                 }
             }
         }
@@ -107,12 +118,9 @@ public class BufferedRemoteTaskLogger
                 Instant firstLogTime = currentFile.getOpenTime();
                 currentFile = null;
 
-                byte[] gzData;
-                try (InputStream in = Files.newInputStream(path)) {
-                    gzData = ByteStreams.toByteArray(in);
-                }
-
-                uploader.upload(firstLogTime, gzData);
+                // uploader reads the file as a stream. FileInputStream allows
+                // uploaders to transfer data using FileChannel.
+                uploader.upload(firstLogTime, Files.size(path), () -> new FileInputStream(path.toFile()));
                 Files.deleteIfExists(path);
             }
             if (atClose) {
@@ -142,11 +150,11 @@ public class BufferedRemoteTaskLogger
         private final Instant openTime;
         private int count;
 
-        public CountingLogOutputStream(Path path)
+        public CountingLogOutputStream(Path path, int compressionLevel)
             throws IOException
         {
             super(Files.newOutputStream(path), 8*1024);
-            this.def.setLevel(9);
+            this.def.setLevel(compressionLevel);
             this.path = path;
             this.openTime = Instant.now();
         }
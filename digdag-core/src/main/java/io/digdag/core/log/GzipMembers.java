@@ -0,0 +1,177 @@
+package io.digdag.core.log;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Utilities for log files that consist of concatenated gzip members.
+ *
+ * A log file that is still being written may end with an incomplete
+ * member. Readers resume reading a log file at the end of the last
+ * complete member so that they don't have to decompress the file
+ * from the beginning again.
+ */
+public class GzipMembers
+{
+    private GzipMembers()
+    { }
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    /**
+     * Returns number of bytes of complete gzip members at the beginning of in.
+     */
+    public static long completeLength(InputStream in)
+        throws IOException
+    {
+        PushbackInputStream pin = new PushbackInputStream(in, BUFFER_SIZE);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        byte[] discard = new byte[BUFFER_SIZE];
+        long complete = 0;
+        long pos = 0;
+
+        while (true) {
+            int headerLength = readHeader(pin);
+            if (headerLength < 0) {
+                return complete;
+            }
+            pos += headerLength;
+
+            Inflater inflater = new Inflater(true);
+            try {
+                int lastLength = 0;
+                while (!inflater.finished()) {
+                    if (inflater.needsInput()) {
+                        lastLength = pin.read(buffer);
+                        if (lastLength < 0) {
+                            return complete;
+                        }
+                        inflater.setInput(buffer, 0, lastLength);
+                        pos += lastLength;
+                    }
+                    try {
+                        inflater.inflate(discard);
+                    }
+                    catch (DataFormatException ex) {
+                        throw new IOException("Invalid gzip data", ex);
+                    }
+                }
+                int remaining = inflater.getRemaining();
+                pin.unread(buffer, lastLength - remaining, remaining);
+                pos -= remaining;
+            }
+            finally {
+                inflater.end();
+            }
+
+            // CRC32 and ISIZE
+            if (!skipFully(pin, 8)) {
+                return complete;
+            }
+            pos += 8;
+
+            complete = pos;
+        }
+    }
+
+    // returns -1 if the header is incomplete
+    private static int readHeader(InputStream in)
+        throws IOException
+    {
+        byte[] header = new byte[10];
+        int n = readFully(in, header, header.length);
+        if (n < header.length) {
+            if (n > 0 && (header[0] & 0xff) != 0x1f) {
+                throw new IOException("Invalid gzip header");
+            }
+            return -1;
+        }
+        if ((header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b || header[2] != 8) {
+            throw new IOException("Invalid gzip header");
+        }
+        int flags = header[3] & 0xff;
+        int length = header.length;
+
+        if ((flags & FEXTRA) != 0) {
+            byte[] xlen = new byte[2];
+            if (readFully(in, xlen, 2) < 2) {
+                return -1;
+            }
+            int extraLength = (xlen[0] & 0xff) | ((xlen[1] & 0xff) << 8);
+            if (!skipFully(in, extraLength)) {
+                return -1;
+            }
+            length += 2 + extraLength;
+        }
+        if ((flags & FNAME) != 0) {
+            int skipped = skipZeroTerminated(in);
+            if (skipped < 0) {
+                return -1;
+            }
+            length += skipped;
+        }
+        if ((flags & FCOMMENT) != 0) {
+            int skipped = skipZeroTerminated(in);
+            if (skipped < 0) {
+                return -1;
+            }
+            length += skipped;
+        }
+        if ((flags & FHCRC) != 0) {
+            if (!skipFully(in, 2)) {
+                return -1;
+            }
+            length += 2;
+        }
+        return length;
+    }
+
+    private static int readFully(InputStream in, byte[] b, int length)
+        throws IOException
+    {
+        int n = 0;
+        while (n < length) {
+            int r = in.read(b, n, length - n);
+            if (r < 0) {
+                break;
+            }
+            n += r;
+        }
+        return n;
+    }
+
+    private static boolean skipFully(InputStream in, int length)
+        throws IOException
+    {
+        for (int i = 0; i < length; i++) {
+            if (in.read() < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipZeroTerminated(InputStream in)
+        throws IOException
+    {
+        int count = 0;
+        while (true) {
+            int c = in.read();
+            if (c < 0) {
+                return -1;
+            }
+            count++;
+            if (c == 0) {
+                return count;
+            }
+        }
+    }
+}
@@ -2,21 +2,38 @@ package io.digdag.core.log;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPOutputStream;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
 import java.io.FileNotFoundException;
 import java.time.Instant;
 import java.time.ZoneId;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.DirectoryStream;
+import javax.annotation.PreDestroy;
 import com.google.inject.Inject;
 import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import io.digdag.core.agent.AgentId;
 import io.digdag.spi.LogServer;
 import io.digdag.spi.LogServerFactory;
@@ -24,6 +41,7 @@ import io.digdag.spi.LogFilePrefix;
 import io.digdag.spi.LogFileHandle;
 import io.digdag.spi.DirectDownloadHandle;
 import io.digdag.spi.DirectUploadHandle;
+import io.digdag.spi.Storage;
 import io.digdag.spi.StorageFileNotFoundException;
 import io.digdag.client.config.Config;
 import java.time.format.DateTimeFormatter;
@@ -31,14 +49,32 @@ import static java.util.Locale.ENGLISH;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.nio.file.StandardOpenOption.CREATE;
 import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
 
 public class LocalFileLogServerFactory
     implements LogServerFactory
 {
+    private static final Logger logger = LoggerFactory.getLogger(LocalFileLogServerFactory.class);
+
     private static final String LOG_GZ_FILE_SUFFIX = ".log.gz";
 
+    // LocalFileDirectTaskLogger writes a gzip member when buffered logs
+    // exceed FLUSH_SIZE or FLUSH_INTERVAL_MILLIS elapsed since the last flush.
+    // flushExecutor flushes loggers that don't receive more logs.
+    private static final int FLUSH_SIZE = 64 * 1024;
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 10000;
+
     private final Path logPath;
     private final AgentId agentId;
+    private final Set<LocalFileLogServer.LocalFileDirectTaskLogger> openLoggers = ConcurrentHashMap.newKeySet();
+
+    // started when the first logger opens so that servers using another
+    // log server don't run the thread. guarded by this.
+    private ScheduledExecutorService flushExecutor = null;
+    private boolean closed = false;
 
     @Inject
     public LocalFileLogServerFactory(Config systemConfig, AgentId agentId)
@@ -49,6 +85,60 @@ public class LocalFileLogServerFactory
         this.agentId = agentId;
     }
 
+    private synchronized void startFlushExecutor()
+    {
+        if (flushExecutor == null && !closed) {
+            flushExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("log-flush-%d")
+                    .build()
+                    );
+            flushExecutor.scheduleWithFixedDelay(this::flushIdleLoggers,
+                    FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown()
+        throws InterruptedException
+    {
+        ScheduledExecutorService executor;
+        synchronized (this) {
+            closed = true;
+            executor = flushExecutor;
+            flushExecutor = null;
+        }
+        if (executor != null) {
+            executor.shutdown();
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                logger.warn("Flushing task logs didn't finish in {} milliseconds", SHUTDOWN_TIMEOUT_MILLIS);
+            }
+        }
+        // loggers that are still open don't run the periodic flush any more.
+        // write their buffered logs so that they are readable.
+        for (LocalFileLogServer.LocalFileDirectTaskLogger taskLogger : openLoggers) {
+            try {
+                taskLogger.flush();
+            }
+            catch (RuntimeException ex) {
+                logger.warn("Failed to flush task log", ex);
+            }
+        }
+    }
+
+    private void flushIdleLoggers()
+    {
+        for (LocalFileLogServer.LocalFileDirectTaskLogger taskLogger : openLoggers) {
+            try {
+                taskLogger.flushIfIdle();
+            }
+            catch (RuntimeException ex) {
+                logger.warn("Failed to flush task log", ex);
+            }
+        }
+    }
+
     @Override
     public String getType()
     {
@@ -99,6 +189,30 @@ public class LocalFileLogServerFactory
             }
         }
 
+        @Override
+        protected void putFile(String dateDir, String attemptDir, String fileName, long gzDataLength, Storage.UploadStreamProvider gzData)
+            throws IOException
+        {
+            Path dir = getPrefixDir(dateDir, attemptDir);
+            Files.createDirectories(dir);
+            Path path = dir.resolve(fileName);
+            try (InputStream in = gzData.open();
+                    FileChannel out = FileChannel.open(path, CREATE, WRITE, TRUNCATE_EXISTING)) {
+                // FileInputStream can transfer data from file to file without copying it to heap
+                ReadableByteChannel src = (in instanceof FileInputStream) ?
+                    ((FileInputStream) in).getChannel() : Channels.newChannel(in);
+                long pos = 0;
+                while (pos < gzDataLength) {
+                    long n = out.transferFrom(src, pos, gzDataLength - pos);
+                    if (n <= 0) {
+                        throw new EOFException(String.format(ENGLISH,
+                                    "Log data is shorter than expected length %d bytes: %d bytes", gzDataLength, pos));
+                    }
+                    pos += n;
+                }
+            }
+        }
+
         @Override
         protected void listFiles(String dateDir, String attemptDir, FileMetadataConsumer consumer)
         {
@@ -136,6 +250,33 @@ public class LocalFileLogServerFactory
             }
         }
 
+        @Override
+        protected InputStream openFile(String dateDir, String attemptDir, String fileName, long offset)
+            throws StorageFileNotFoundException, IOException
+        {
+            Path path = getPrefixDir(dateDir, attemptDir).resolve(fileName);
+            FileChannel channel;
+            try {
+                channel = FileChannel.open(path, READ);
+            }
+            catch (NoSuchFileException ex) {
+                throw new StorageFileNotFoundException(ex);
+            }
+            try {
+                // the file may be being written by LocalFileDirectTaskLogger.
+                // return only complete gzip members. the scanning stream isn't
+                // closed because closing it closes the channel.
+                channel.position(offset);
+                long length = GzipMembers.completeLength(new BufferedInputStream(Channels.newInputStream(channel)));
+                channel.position(offset);
+                return ByteStreams.limit(Channels.newInputStream(channel), length);
+            }
+            catch (IOException | RuntimeException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+
         private Path getPrefixDir(String dateDir, String attemptDir)
         {
             return logPath.resolve(dateDir).resolve(attemptDir);
@@ -155,6 +296,8 @@ public class LocalFileLogServerFactory
             implements TaskLogger
         {
             private final OutputStream output;
+            private final ByteArrayOutputStream buffer;
+            private long lastFlushTime;
 
             public LocalFileDirectTaskLogger(LogFilePrefix prefix, String taskName)
                 throws IOException
@@ -167,7 +310,11 @@ public class LocalFileLogServerFactory
                 Files.createDirectories(dir);
                 Path path = dir.resolve(fileName);
 
-                this.output = new GZIPOutputStream(Files.newOutputStream(path, CREATE, APPEND), 16*1024);
+                this.output = Files.newOutputStream(path, CREATE, APPEND);
+                this.buffer = new ByteArrayOutputStream(FLUSH_SIZE);
+                this.lastFlushTime = System.currentTimeMillis();
+                openLoggers.add(this);
+                startFlushExecutor();
             }
 
             @Override
@@ -178,20 +325,64 @@ public class LocalFileLogServerFactory
             }
 
             @Override
-            public void log(byte[] data, int off, int len)
+            public synchronized void log(byte[] data, int off, int len)
+            {
+                try {
+                    buffer.write(data, off, len);
+                    if (buffer.size() >= FLUSH_SIZE || System.currentTimeMillis() - lastFlushTime >= FLUSH_INTERVAL_MILLIS) {
+                        flushMember();
+                    }
+                }
+                catch (IOException ex) {
+                    throw Throwables.propagate(ex);
+                }
+            }
+
+            synchronized void flush()
+            {
+                try {
+                    flushMember();
+                }
+                catch (IOException ex) {
+                    throw Throwables.propagate(ex);
+                }
+            }
+
+            synchronized void flushIfIdle()
             {
                 try {
-                    output.write(data, off, len);
+                    if (System.currentTimeMillis() - lastFlushTime >= FLUSH_INTERVAL_MILLIS) {
+                        flushMember();
+                    }
                 }
                 catch (IOException ex) {
                     throw Throwables.propagate(ex);
                 }
             }
 
+            // writes buffered logs as a gzip member. Readers can read the file
+            // until the end of the last member without waiting for close.
+            private void flushMember()
+                throws IOException
+            {
+                if (buffer.size() > 0) {
+                    ByteArrayOutputStream member = new ByteArrayOutputStream();
+                    try (GZIPOutputStream gz = new GZIPOutputStream(member, 16*1024)) {
+                        buffer.writeTo(gz);
+                    }
+                    member.writeTo(output);
+                    output.flush();
+                    buffer.reset();
+                }
+                lastFlushTime = System.currentTimeMillis();
+            }
+
             @Override
-            public void close()
+            public synchronized void close()
             {
+                openLoggers.remove(this);
                 try {
+                    flushMember();
                     output.close();
                 }
                 catch (IOException ex) {
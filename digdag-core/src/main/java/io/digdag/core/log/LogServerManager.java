@@ -1,6 +1,7 @@
 package io.digdag.core.log;
 
 import java.util.Set;
+import java.util.zip.Deflater;
 import com.google.inject.Inject;
 import io.digdag.core.session.StoredSessionAttemptWithSession;
 import io.digdag.spi.LogServer;
@@ -15,11 +16,18 @@ import io.digdag.core.storage.StorageManager;
 import io.digdag.core.log.NullLogServerFactory.NullLogServer;
 import io.digdag.core.log.LocalFileLogServerFactory.LocalFileLogServer;
 import io.digdag.core.TempFileManager;
+import io.digdag.core.metrics.Counter;
+import io.digdag.core.metrics.Histogram;
+import io.digdag.core.metrics.MetricRegistry;
 
 public class LogServerManager
 {
     private final LogServer logServer;
     private final TempFileManager tempFiles;
+    private final int compressionLevel;
+
+    private Counter uploadedBytes;
+    private Histogram uploadTime;
 
     @Inject
     public LogServerManager(Set<LogServerFactory> factories, Config systemConfig, TempFileManager tempFiles,
@@ -34,6 +42,23 @@ public class LogServerManager
             this.logServer = factory.getLogServer();
         }
         this.tempFiles = tempFiles;
+        // level 9 spends much more CPU than the default level while log files
+        // become only slightly smaller.
+        this.compressionLevel = systemConfig.get("log-server.compression-level", int.class, Deflater.DEFAULT_COMPRESSION);
+        if (compressionLevel != Deflater.DEFAULT_COMPRESSION &&
+                (compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION)) {
+            throw new ConfigException("log-server.compression-level must be between 0 and 9: " + compressionLevel);
+        }
+        setMetricRegistry(new MetricRegistry());
+    }
+
+    @Inject(optional = true)
+    public void setMetricRegistry(MetricRegistry metrics)
+    {
+        this.uploadedBytes = metrics.counter("digdag_log_upload_bytes_total",
+                "Bytes of compressed task log files uploaded to the log server");
+        this.uploadTime = metrics.histogram("digdag_log_upload_seconds",
+                "Time to upload a task log file to the log server");
     }
 
     private static LogServerFactory findLogServer(Set<LogServerFactory> factories, String type)
@@ -78,9 +103,13 @@ public class LogServerManager
         }
         else {
             return new BufferedRemoteTaskLogger(tempFiles, taskName,
-                    (firstLogTime, gzData) -> {
-                        logServer.putFile(prefix, taskName, firstLogTime, agentId.toString(), gzData);
-                    });
+                    (firstLogTime, gzDataLength, gzData) -> {
+                        long startNanos = System.nanoTime();
+                        logServer.putFile(prefix, taskName, firstLogTime, agentId.toString(), gzDataLength, gzData);
+                        uploadTime.recordSince(startNanos);
+                        uploadedBytes.add(gzDataLength);
+                    },
+                    compressionLevel);
         }
     }
 
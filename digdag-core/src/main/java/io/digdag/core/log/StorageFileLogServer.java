@@ -49,6 +49,14 @@ public class StorageFileLogServer
         }
     }
 
+    @Override
+    protected void putFile(String dateDir, String attemptDir, String fileName, long gzDataLength, Storage.UploadStreamProvider gzData)
+        throws IOException
+    {
+        String path = getPrefixDir(dateDir, attemptDir) + fileName;
+        storage.put(path, gzDataLength, gzData);
+    }
+
     @Override
     protected byte[] getFile(String dateDir, String attemptDir, String fileName)
         throws StorageFileNotFoundException
@@ -70,6 +78,23 @@ public class StorageFileLogServer
         }
     }
 
+    @Override
+    protected InputStream openFile(String dateDir, String attemptDir, String fileName, long offset)
+        throws StorageFileNotFoundException, IOException
+    {
+        // files on a storage are complete because they are uploaded at once
+        String path = getPrefixDir(dateDir, attemptDir) + fileName;
+        InputStream in = storage.open(path).getContentInputStream();
+        try {
+            ByteStreams.skipFully(in, offset);
+        }
+        catch (IOException ex) {
+            in.close();
+            throw ex;
+        }
+        return in;
+    }
+
     @Override
     protected void listFiles(String dateDir, String attemptDir, FileMetadataConsumer consumer)
     {
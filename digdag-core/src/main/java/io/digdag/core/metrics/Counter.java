@@ -0,0 +1,48 @@
+package io.digdag.core.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Counter
+        extends Metric
+{
+    private final LongAdder value = new LongAdder();
+
+    Counter(String name, String help)
+    {
+        super(name, help);
+    }
+
+    public void inc()
+    {
+        value.increment();
+    }
+
+    public void add(long n)
+    {
+        value.add(n);
+    }
+
+    public long get()
+    {
+        return value.sum();
+    }
+
+    @Override
+    String getType()
+    {
+        return "counter";
+    }
+
+    @Override
+    void writeSamples(StringBuilder sb)
+    {
+        sb.append(getName()).append(' ').append(get()).append('\n');
+    }
+
+    @Override
+    void collectValues(Map<String, Number> values)
+    {
+        values.put(getName(), get());
+    }
+}
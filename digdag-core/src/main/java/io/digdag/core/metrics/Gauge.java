@@ -0,0 +1,39 @@
+package io.digdag.core.metrics;
+
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+public class Gauge
+        extends Metric
+{
+    private final LongSupplier supplier;
+
+    Gauge(String name, String help, LongSupplier supplier)
+    {
+        super(name, help);
+        this.supplier = supplier;
+    }
+
+    public long get()
+    {
+        return supplier.getAsLong();
+    }
+
+    @Override
+    String getType()
+    {
+        return "gauge";
+    }
+
+    @Override
+    void writeSamples(StringBuilder sb)
+    {
+        sb.append(getName()).append(' ').append(get()).append('\n');
+    }
+
+    @Override
+    void collectValues(Map<String, Number> values)
+    {
+        values.put(getName(), get());
+    }
+}
@@ -0,0 +1,95 @@
+package io.digdag.core.metrics;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of durations.
+ *
+ * Durations are counted in fixed buckets from 1 millisecond to 1 minute
+ * and exported in seconds. Recording a duration doesn't allocate objects
+ * nor take locks.
+ */
+public class Histogram
+        extends Metric
+{
+    // upper bounds of buckets in seconds. the last bucket is +Inf
+    private static final double[] BUCKET_SECONDS = {
+        0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60,
+    };
+
+    private static final long[] BUCKET_NANOS = new long[BUCKET_SECONDS.length];
+
+    static {
+        for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+            BUCKET_NANOS[i] = (long) (BUCKET_SECONDS[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_SECONDS.length + 1);
+    private final LongAdder sumNanos = new LongAdder();
+
+    Histogram(String name, String help)
+    {
+        super(name, help);
+    }
+
+    public void recordNanos(long nanos)
+    {
+        int i = 0;
+        while (i < BUCKET_NANOS.length && nanos > BUCKET_NANOS[i]) {
+            i++;
+        }
+        counts.incrementAndGet(i);
+        sumNanos.add(nanos);
+    }
+
+    // records time elapsed since startNanos, a value of System.nanoTime()
+    public void recordSince(long startNanos)
+    {
+        recordNanos(System.nanoTime() - startNanos);
+    }
+
+    public long getCount()
+    {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public double getSumSeconds()
+    {
+        return sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    @Override
+    String getType()
+    {
+        return "histogram";
+    }
+
+    @Override
+    void writeSamples(StringBuilder sb)
+    {
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+            cumulative += counts.get(i);
+            sb.append(getName()).append("_bucket{le=\"").append(BUCKET_SECONDS[i]).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += counts.get(BUCKET_SECONDS.length);
+        sb.append(getName()).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        sb.append(getName()).append("_sum ").append(getSumSeconds()).append('\n');
+        sb.append(getName()).append("_count ").append(cumulative).append('\n');
+    }
+
+    @Override
+    void collectValues(Map<String, Number> values)
+    {
+        values.put(getName() + "_count", getCount());
+        values.put(getName() + "_sum", getSumSeconds());
+    }
+}
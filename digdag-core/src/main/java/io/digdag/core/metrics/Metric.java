@@ -0,0 +1,34 @@
+package io.digdag.core.metrics;
+
+import java.util.Map;
+
+public abstract class Metric
+{
+    private final String name;
+    private final String help;
+
+    Metric(String name, String help)
+    {
+        this.name = name;
+        this.help = help;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public String getHelp()
+    {
+        return help;
+    }
+
+    // "counter", "gauge" or "histogram" of Prometheus text format
+    abstract String getType();
+
+    // appends sample lines of Prometheus text format
+    abstract void writeSamples(StringBuilder sb);
+
+    // attribute name -> value. used to export metrics as MBean attributes
+    abstract void collectValues(Map<String, Number> values);
+}
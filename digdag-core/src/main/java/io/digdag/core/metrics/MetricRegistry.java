@@ -0,0 +1,84 @@
+package io.digdag.core.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+import com.google.inject.Inject;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Metrics of hot paths of a process.
+ *
+ * A metric is identified by its name. counter() and histogram() return
+ * the registered metric if one with the same name already exists so that
+ * instances of a component share it. gauge() replaces the registered
+ * gauge. digdag-server exports the metrics in Prometheus text format at
+ * /api/metrics and as attributes of an MBean.
+ *
+ * Components constructed without Guice (tests and benchmarks) use their
+ * own registry that is not exported.
+ */
+public class MetricRegistry
+{
+    private final ConcurrentMap<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+    @Inject
+    public MetricRegistry()
+    { }
+
+    public Counter counter(String name, String help)
+    {
+        return getOrRegister(new Counter(name, help), Counter.class);
+    }
+
+    public Histogram histogram(String name, String help)
+    {
+        return getOrRegister(new Histogram(name, help), Histogram.class);
+    }
+
+    public void gauge(String name, String help, LongSupplier supplier)
+    {
+        Metric metric = metrics.put(name, new Gauge(name, help, supplier));
+        checkArgument(metric == null || metric instanceof Gauge,
+                "Metric %s is already registered as a %s", name, metric == null ? null : metric.getType());
+    }
+
+    private <T extends Metric> T getOrRegister(T metric, Class<T> type)
+    {
+        Metric registered = metrics.putIfAbsent(metric.getName(), metric);
+        if (registered == null) {
+            return metric;
+        }
+        checkArgument(type.isInstance(registered),
+                "Metric %s is already registered as a %s", metric.getName(), registered.getType());
+        return type.cast(registered);
+    }
+
+    // Prometheus text exposition format (version 0.0.4)
+    public String toPrometheusText()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Metric metric : metrics.values()) {
+            sb.append("# HELP ").append(metric.getName()).append(' ').append(escapeHelp(metric.getHelp())).append('\n');
+            sb.append("# TYPE ").append(metric.getName()).append(' ').append(metric.getType()).append('\n');
+            metric.writeSamples(sb);
+        }
+        return sb.toString();
+    }
+
+    public Map<String, Number> getValues()
+    {
+        Map<String, Number> values = new LinkedHashMap<>();
+        for (Metric metric : metrics.values()) {
+            metric.collectValues(values);
+        }
+        return values;
+    }
+
+    private static String escapeHelp(String help)
+    {
+        return help.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+}
@@ -2,6 +2,7 @@ package io.digdag.core.queue;
 
 import com.google.inject.Inject;
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import io.digdag.spi.TaskRequest;
 import io.digdag.spi.TaskQueueRequest;
 import io.digdag.spi.TaskQueueServer;
@@ -12,6 +13,7 @@ import io.digdag.core.repository.ResourceNotFoundException;
 import io.digdag.core.repository.ResourceConflictException;
 import io.digdag.core.workflow.TaskQueueDispatcher;
 import org.weakref.jmx.Managed;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class QueueTaskQueueDispatcher
@@ -52,6 +54,30 @@ public class QueueTaskQueueDispatcher
         }
     }
 
+    @Override
+    public List<String> dispatchAll(int siteId, Optional<String> queueName, List<TaskQueueRequest> requests)
+        throws ResourceNotFoundException
+    {
+        enqueueCount.addAndGet(requests.size());
+
+        if (queueName.isPresent()) {
+            int queueId = queueManager.getQueueIdByName(siteId, queueName.get());
+            ImmutableList.Builder<String> conflicts = ImmutableList.builder();
+            for (TaskQueueRequest request : requests) {
+                try {
+                    taskQueueServer.enqueueQueueBoundTask(queueId, request);
+                }
+                catch (TaskConflictException ex) {
+                    conflicts.add(request.getUniqueName());
+                }
+            }
+            return conflicts.build();
+        }
+        else {
+            return taskQueueServer.enqueueDefaultQueueTasks(siteId, requests);
+        }
+    }
+
     @Override
     public void taskFinished(int siteId, String lockId, AgentId agentId)
         throws TaskConflictException, TaskNotFoundException
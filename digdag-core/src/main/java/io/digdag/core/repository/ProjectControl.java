@@ -62,6 +62,12 @@ public class ProjectControl
         store.insertRevisionArchiveData(revId, data);
     }
 
+    public void insertRevisionArchiveIndex(int revId, byte[] index)
+        throws ResourceConflictException
+    {
+        store.insertRevisionArchiveIndex(revId, index);
+    }
+
     public List<StoredWorkflowDefinition> insertWorkflowDefinitions(
             StoredRevision revision, List<WorkflowDefinition> defs,
             SchedulerManager srm, Instant currentTime)
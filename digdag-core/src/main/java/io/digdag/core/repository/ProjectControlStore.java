@@ -16,6 +16,9 @@ public interface ProjectControlStore
     void insertRevisionArchiveData(int revId, byte[] data)
             throws ResourceConflictException;
 
+    void insertRevisionArchiveIndex(int revId, byte[] index)
+            throws ResourceConflictException;
+
     StoredWorkflowDefinition insertWorkflowDefinition(int projId, int revId, WorkflowDefinition workflow, ZoneId workflowTimeZone)
         throws ResourceConflictException;
 
@@ -50,6 +50,9 @@ public interface ProjectStore
     byte[] getRevisionArchiveData(int revId)
             throws ResourceNotFoundException;
 
+    // absent if the archive is stored without an index
+    Optional<byte[]> getRevisionArchiveIndex(int revId);
+
 
     List<StoredWorkflowDefinition> getWorkflowDefinitions(int revId, int pageSize, Optional<Long> lastId);
 
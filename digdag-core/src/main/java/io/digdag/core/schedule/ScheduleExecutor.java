@@ -7,14 +7,18 @@ import java.util.Collections;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.time.Instant;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import com.google.inject.Inject;
 import com.google.common.base.*;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.digdag.client.config.Config;
 import io.digdag.core.ErrorReporter;
+import io.digdag.core.metrics.MetricRegistry;
 import io.digdag.spi.ScheduleTime;
 import io.digdag.spi.Scheduler;
 import io.digdag.core.BackgroundExecutor;
@@ -38,13 +42,21 @@ public class ScheduleExecutor
 {
     private static final Logger logger = LoggerFactory.getLogger(ScheduleExecutor.class);
 
+    private static final int MAX_BATCHES_PER_POLL = 100;
+
     private final ProjectStoreManager rm;
     private final ScheduleStoreManager sm;
     private final SchedulerManager srm;
     private final ScheduleHandler handler;
     private final SessionStoreManager sessionStoreManager;  // used for validation in backfill method
+    private final int pollingInterval;
+    private final int threads;
+    private final int batchSize;
     private ScheduledExecutorService executor;
 
+    private final AtomicLong startedCount = new AtomicLong(0);
+    private volatile long lagMillis = 0;
+
     @Inject(optional = true)
     private ErrorReporter errorReporter = ErrorReporter.empty();
 
@@ -54,29 +66,47 @@ public class ScheduleExecutor
             ScheduleStoreManager sm,
             SchedulerManager srm,
             ScheduleHandler handler,
-            SessionStoreManager sessionStoreManager)
+            SessionStoreManager sessionStoreManager,
+            Config systemConfig)
     {
         this.rm = rm;
         this.sm = sm;
         this.srm = srm;
         this.handler = handler;
         this.sessionStoreManager = sessionStoreManager;
+        this.pollingInterval = systemConfig.get("schedule.polling_interval", int.class, 1000);
+        this.threads = systemConfig.get("schedule.threads", int.class, 1);
+        this.batchSize = systemConfig.get("schedule.batch_size", int.class, 10);
+    }
+
+    @Inject(optional = true)
+    public void setMetricRegistry(MetricRegistry metrics)
+    {
+        metrics.gauge("digdag_schedule_started_schedules",
+                "Number of schedules started by this server", this::getStartedScheduleCount);
+        metrics.gauge("digdag_schedule_lag_milliseconds",
+                "How late the most behind schedule was when the last poll locked it", this::getScheduleLagMillis);
     }
 
     @PostConstruct
     public synchronized void start()
     {
         if (executor == null) {
-            executor = Executors.newSingleThreadScheduledExecutor(
+            executor = Executors.newScheduledThreadPool(threads,
                     new ThreadFactoryBuilder()
                     .setDaemon(true)
                     .setNameFormat("scheduler-%d")
                     .build()
                     );
+            // Each thread locks its own batch of schedules. With PostgreSQL,
+            // schedules locked by other threads or servers are skipped. A
+            // thread holds a database connection while it starts a batch.
+            for (int i = 0; i < threads; i++) {
+                long initialDelay = pollingInterval + (long) pollingInterval * i / threads;
+                executor.scheduleWithFixedDelay(() -> run(),
+                        initialDelay, pollingInterval, TimeUnit.MILLISECONDS);
+            }
         }
-        // TODO make interval configurable?
-        executor.scheduleWithFixedDelay(() -> run(),
-                1, 1, TimeUnit.SECONDS);
     }
 
     @PreDestroy
@@ -95,17 +125,45 @@ public class ScheduleExecutor
         shutdown();
     }
 
+    // number of schedules started by this executor
+    public long getStartedScheduleCount()
+    {
+        return startedCount.get();
+    }
+
+    // how late the most behind schedule was when it was locked by the last
+    // poll. 0 if the last poll found no ready schedules.
+    public long getScheduleLagMillis()
+    {
+        return lagMillis;
+    }
+
     public void run()
     {
+        long maxLag = 0;
         try {
-            sm.lockReadySchedules(Instant.now(), (store, storedSchedule) -> {
-                runSchedule(new ScheduleControl(store, storedSchedule));
-            });
+            // limit number of batches so that schedules that can't be
+            // updated don't keep this thread busy
+            for (int batch = 0; batch < MAX_BATCHES_PER_POLL; batch++) {
+                Instant now = Instant.now();
+                long[] batchMaxLag = new long[] { 0 };
+                int locked = sm.lockReadySchedules(now, batchSize, (store, storedSchedule) -> {
+                    batchMaxLag[0] = Math.max(batchMaxLag[0],
+                            now.toEpochMilli() - storedSchedule.getNextRunTime().toEpochMilli());
+                    runSchedule(new ScheduleControl(store, storedSchedule));
+                });
+                maxLag = Math.max(maxLag, batchMaxLag[0]);
+                if (locked < batchSize) {
+                    break;
+                }
+                // more schedules may be ready. continue without waiting for the next poll.
+            }
         }
         catch (Throwable t) {
             logger.error("An uncaught exception is ignored. Scheduling will be retried.", t);
             errorReporter.reportUncaughtError(t);
         }
+        lagMillis = maxLag;
     }
 
     private boolean runSchedule(ScheduleControl lockedSched)
@@ -159,6 +217,7 @@ public class ScheduleExecutor
             handler.start(def,
                     ScheduleTime.of(scheduleTime, runTime),
                     Optional.absent());
+            startedCount.incrementAndGet();
         }
         catch (SessionAttemptConflictException ex) {
             logger.debug("Scheduled attempt {} is already executed. Skipping", ex.getConflictedSession());
@@ -219,8 +278,8 @@ public class ScheduleExecutor
             Scheduler sr = getSchedulerOfSchedule(sched);
 
             ScheduleTime time = sr.getFirstScheduleTime(currentTime);
-            for (int i=0; i < count; i++) {
-                time = sr.nextScheduleTime(time.getTime());
+            if (count > 0) {
+                time = Iterables.getLast(sr.enumerate(time.getTime(), Instant.MAX, count), time);
             }
             if (sched.getNextScheduleTime().isBefore(time.getTime())) {
                 // OK
@@ -268,26 +327,21 @@ public class ScheduleExecutor
             StoredWorkflowDefinitionWithProject def = rm.getWorkflowDetailsById(sched.getWorkflowDefinitionId());
             Scheduler sr = srm.getScheduler(def);
 
-            boolean useCount = count.isPresent();
-            int remaining = count.or(0);
+            int limit = count.or(Integer.MAX_VALUE);
 
             List<Instant> instants = new ArrayList<>();
-            Instant time = sr.getFirstScheduleTime(fromTime).getTime();
-            while (time.isBefore(sched.getNextScheduleTime())) {
-                if (useCount) {
-                    if (remaining <= 0) {
-                        break;
-                    }
-                    remaining--;
+            Instant firstTime = sr.getFirstScheduleTime(fromTime).getTime();
+            if (limit > 0 && firstTime.isBefore(sched.getNextScheduleTime())) {
+                instants.add(firstTime);
+                for (ScheduleTime time : sr.enumerate(firstTime, sched.getNextScheduleTime(), limit - 1)) {
+                    instants.add(time.getTime());
                 }
-                instants.add(time);
-                time = sr.nextScheduleTime(time).getTime();
             }
 
-            if (useCount && remaining > 0) {
+            if (count.isPresent() && instants.size() < count.get()) {
                 throw new IllegalArgumentException(String.format(ENGLISH,
                         "count is set to %d but there are only %d attempts until the next schedule time",
-                        count.get(), count.get() - remaining));
+                        count.get(), instants.size()));
             }
 
             // confirm sessions with the same attemptName doesn't exist
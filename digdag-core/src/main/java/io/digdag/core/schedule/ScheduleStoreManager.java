@@ -16,7 +16,9 @@ public interface ScheduleStoreManager
         void schedule(ScheduleControlStore store, StoredSchedule schedule);
     }
 
-    void lockReadySchedules(Instant currentTime, ScheduleAction func);
+    // locks up to limit schedules whose next run time is same or before
+    // currentTime and returns number of locked schedules.
+    int lockReadySchedules(Instant currentTime, int limit, ScheduleAction func);
 
     interface ScheduleLockAction <T>
     {
@@ -2,9 +2,14 @@ package io.digdag.core.schedule;
 
 import java.util.Set;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.time.ZoneId;
 import com.google.inject.Inject;
 import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.common.collect.ImmutableMap;
 import io.digdag.spi.Scheduler;
 import io.digdag.spi.SchedulerFactory;
@@ -28,7 +33,15 @@ public class SchedulerManager
         return def.getConfig().getNested("schedule");
     }
 
+    // schedulers of stored workflow definitions. a stored definition never
+    // changes. compiling a schedule is not free (e.g. parsing a cron pattern)
+    // and ScheduleExecutor needs a scheduler every time it runs a schedule.
+    private static final int MAX_CACHED_SCHEDULERS = 10000;
+
     private final Map<String, SchedulerFactory> types;
+    private final Cache<Long, Scheduler> cache = CacheBuilder.newBuilder()
+        .maximumSize(MAX_CACHED_SCHEDULERS)
+        .build();
 
     @Inject
     public SchedulerManager(Set<SchedulerFactory> factories)
@@ -49,15 +62,21 @@ public class SchedulerManager
 
     public Optional<Scheduler> tryGetScheduler(StoredWorkflowDefinitionWithProject def)
     {
-        return tryGetScheduleConfig(def).transform(it ->
-                    getScheduler(it, def.getTimeZone())
-                );
+        if (!tryGetScheduleConfig(def).isPresent()) {
+            return Optional.absent();
+        }
+        return Optional.of(getScheduler(def));
     }
 
     // used by ScheduleExecutor which is certain that the workflow has a scheduler
     Scheduler getScheduler(StoredWorkflowDefinition def)
     {
-        return getScheduler(getScheduleConfig(def), def.getTimeZone());
+        try {
+            return cache.get(def.getId(), () -> getScheduler(getScheduleConfig(def), def.getTimeZone()));
+        }
+        catch (ExecutionException | UncheckedExecutionException ex) {
+            throw Throwables.propagate(ex.getCause());
+        }
     }
 
     private Scheduler getScheduler(Config schedulerConfig, ZoneId workflowTimeZone)
@@ -0,0 +1,68 @@
+package io.digdag.core.session;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.immutables.value.Value;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A subset of attempts.
+ *
+ * An attempt belongs to bucket (attempt id modulo BUCKETS), and a bucket
+ * belongs to partition (bucket modulo count). Because the bucket of an
+ * attempt doesn't depend on count, a single index on the bucket serves any
+ * count of partitions up to BUCKETS.
+ *
+ * A workflow executor loop that handles a partition scans and propagates
+ * only tasks of attempts in the partition. Loops of different partitions
+ * don't lock the same tasks.
+ */
+@Value.Immutable
+public abstract class AttemptPartition
+{
+    // must be same with the index created by Migration_20161108123456_AddTasksOnAttemptBucketIndexes
+    public static final int BUCKETS = 64;
+
+    public abstract int getIndex();
+
+    public abstract int getCount();
+
+    public boolean isAll()
+    {
+        return getCount() == 1;
+    }
+
+    public boolean contains(long attemptId)
+    {
+        return attemptId % BUCKETS % getCount() == getIndex();
+    }
+
+    public List<Integer> getBuckets()
+    {
+        return IntStream.range(0, BUCKETS)
+            .filter(bucket -> bucket % getCount() == getIndex())
+            .boxed()
+            .collect(Collectors.toList());
+    }
+
+    @Value.Check
+    protected void check()
+    {
+        checkArgument(getCount() > 0 && getCount() <= BUCKETS, "count of partitions must be between 1 and %s", BUCKETS);
+        checkArgument(getIndex() >= 0 && getIndex() < getCount(), "index of a partition must be between 0 and count - 1");
+    }
+
+    public static AttemptPartition of(int index, int count)
+    {
+        return ImmutableAttemptPartition.builder()
+            .index(index)
+            .count(count)
+            .build();
+    }
+
+    public static AttemptPartition all()
+    {
+        return of(0, 1);
+    }
+}
@@ -0,0 +1,51 @@
+package io.digdag.core.session;
+
+import java.util.List;
+import com.google.common.base.Optional;
+import io.digdag.core.repository.ModelValidator;
+import io.digdag.core.workflow.TaskConfig;
+import org.immutables.value.Value;
+
+/**
+ * A task given to TaskControlStore.addSubtasks.
+ *
+ * Parent and upstream tasks are either tasks stored already (ids) or tasks
+ * that precede this task in the same list (indexes).
+ */
+@Value.Immutable
+public abstract class NewSubtask
+{
+    public abstract Optional<Long> getParentId();
+
+    public abstract Optional<Integer> getParentIndex();
+
+    public abstract List<Long> getUpstreamIds();
+
+    public abstract List<Integer> getUpstreamIndexes();
+
+    public abstract String getFullName();
+
+    public abstract TaskConfig getConfig();
+
+    public abstract TaskType getTaskType();
+
+    public abstract TaskStateCode getState();
+
+    public abstract TaskStateFlags getStateFlags();
+
+    // set if state of the task is copied from a task of a previous attempt
+    public abstract Optional<ResumingTask> getResumingTask();
+
+    public static ImmutableNewSubtask.Builder builder()
+    {
+        return ImmutableNewSubtask.builder();
+    }
+
+    @Value.Check
+    protected void check()
+    {
+        ModelValidator.builder()
+            .check("parent", getParentId(), getParentId().isPresent() != getParentIndex().isPresent(), "either id or index must be set")
+            .validate("subtask", this);
+    }
+}
@@ -0,0 +1,17 @@
+package io.digdag.core.session;
+
+import org.immutables.value.Value;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
+@Value.Immutable
+@JsonSerialize(as = ImmutableReadyTaskSummary.class)
+@JsonDeserialize(as = ImmutableReadyTaskSummary.class)
+public abstract class ReadyTaskSummary
+{
+    public abstract long getId();
+
+    public abstract long getAttemptId();
+
+    public abstract int getSiteId();
+}
@@ -18,6 +18,7 @@ import io.digdag.core.workflow.TaskControl;
 import io.digdag.core.workflow.Tasks;
 import io.digdag.core.workflow.WorkflowExecutor;
 import io.digdag.core.repository.ResourceNotFoundException;
+import io.digdag.client.config.Config;
 import io.digdag.client.config.ConfigFactory;
 
 public class SessionMonitorExecutor
@@ -25,9 +26,13 @@ public class SessionMonitorExecutor
 {
     private static final Logger logger = LoggerFactory.getLogger(SessionMonitorExecutor.class);
 
+    private static final int MAX_BATCHES_PER_POLL = 100;
+
     private final ConfigFactory cf;
     private final SessionStoreManager sm;
     private final WorkflowExecutor exec;
+    private final int pollingInterval;
+    private final int batchSize;
     private ScheduledExecutorService executor;
 
     @Inject(optional = true)
@@ -37,11 +42,14 @@ public class SessionMonitorExecutor
     public SessionMonitorExecutor(
             ConfigFactory cf,
             SessionStoreManager sm,
-            WorkflowExecutor exec)
+            WorkflowExecutor exec,
+            Config systemConfig)
     {
         this.cf = cf;
         this.sm = sm;
         this.exec = exec;
+        this.pollingInterval = systemConfig.get("session_monitor.polling_interval", int.class, 1000);
+        this.batchSize = systemConfig.get("session_monitor.batch_size", int.class, 10);
     }
 
     @PostConstruct
@@ -54,10 +62,9 @@ public class SessionMonitorExecutor
                     .setNameFormat("session-monitor-scheduler-%d")
                     .build()
                     );
+            executor.schedule(() -> runAndScheduleNext(),
+                    pollingInterval, TimeUnit.MILLISECONDS);
         }
-        // TODO make interval configurable?
-        executor.scheduleWithFixedDelay(() -> run(),
-                1, 1, TimeUnit.SECONDS);
     }
 
     @PreDestroy
@@ -76,17 +83,69 @@ public class SessionMonitorExecutor
         shutdown();
     }
 
-    public void run()
+    private void runAndScheduleNext()
+    {
+        boolean backlog = run();
+
+        // wake up at the next run time of monitors if it comes before the
+        // next polling so that monitors (e.g. SLA alerts) run on time even
+        // with a long polling interval. Monitors added after this check run
+        // at the next polling at the latest.
+        long delay = pollingInterval;
+        if (backlog) {
+            // the poll stopped at MAX_BATCHES_PER_POLL while monitors were
+            // still ready. continue without waiting.
+            delay = 0;
+        }
+        else {
+            try {
+                Optional<Instant> nextRunTime = sm.getNextSessionMonitorRunTime();
+                if (nextRunTime.isPresent()) {
+                    long untilNext = nextRunTime.get().toEpochMilli() - Instant.now().toEpochMilli();
+                    // untilNext <= 0 means that a monitor failed in this poll or
+                    // became ready after it. it runs at the next polling so that
+                    // failing monitors don't keep this thread busy.
+                    if (untilNext > 0 && untilNext < delay) {
+                        delay = untilNext;
+                    }
+                }
+            }
+            catch (Throwable t) {
+                logger.error("An uncaught exception is ignored. This session monitor scheduling will be retried.", t);
+                errorReporter.reportUncaughtError(t);
+            }
+        }
+
+        synchronized (this) {
+            if (executor != null) {
+                executor.schedule(() -> runAndScheduleNext(),
+                        delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    // returns true if all batches of this poll were full. more monitors may be ready.
+    public boolean run()
     {
         try {
-            sm.lockReadySessionMonitors(Instant.now(), (storedMonitor) -> {
-                // runMonitor needs to return next runtime if this monitor should run again later
-                return runMonitor(storedMonitor);
-            });
+            // limit number of batches so that monitors that keep failing
+            // don't keep this thread busy
+            for (int batch = 0; batch < MAX_BATCHES_PER_POLL; batch++) {
+                int locked = sm.lockReadySessionMonitors(Instant.now(), batchSize, (storedMonitor) -> {
+                    // runMonitor needs to return next runtime if this monitor should run again later
+                    return runMonitor(storedMonitor);
+                });
+                if (locked < batchSize) {
+                    return false;
+                }
+                // more monitors may be ready. continue without waiting for the next poll.
+            }
+            return true;
         }
         catch (Throwable t) {
             logger.error("An uncaught exception is ignored. This session monitor scheduling will be retried.", t);
             errorReporter.reportUncaughtError(t);
+            return false;
         }
     }
 
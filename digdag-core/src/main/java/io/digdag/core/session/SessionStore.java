@@ -39,6 +39,11 @@ public interface SessionStore
 
     List<ArchivedTask> getTasksOfAttempt(long attemptId);
 
+    // tasks are ordered by id. tasks not found are ignored.
+    List<ArchivedTask> getTasksOfAttemptByIds(long attemptId, List<Long> taskIds);
+
+    List<ArchivedTask> getTasksOfAttemptByNamePrefix(long attemptId, String fullNamePrefix);
+
     interface SessionLockAction <T>
     {
         T call(SessionControlStore store, StoredSession storedSession)
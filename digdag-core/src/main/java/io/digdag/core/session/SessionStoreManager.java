@@ -28,7 +28,7 @@ public interface SessionStoreManager
     boolean isAnyNotDoneAttempts();
 
     // for WorkflowExecutor.enqueueReadyTasks
-    List<Long> findAllReadyTaskIds(int maxEntries);
+    List<ReadyTaskSummary> findReadyTasks(int maxEntries, AttemptPartition partition);
 
     interface AttemptLockAction <T>
     {
@@ -39,17 +39,17 @@ public interface SessionStoreManager
     <T> Optional<T> lockAttemptIfExists(long attemptId, AttemptLockAction<T> func);
 
     // for WorkflowExecutorManager.IncrementalStatusPropagator.propagateStatus
-    List<TaskStateSummary> findRecentlyChangedTasks(Instant updatedSince, long lastId);
+    List<TaskStateSummary> findRecentlyChangedTasks(Instant updatedSince, long lastId, AttemptPartition partition);
 
     // for WorkflowExecutorManager.propagateAllBlockedToReady
-    List<TaskStateSummary> findTasksByState(TaskStateCode state, long lastId);
+    List<TaskStateSummary> findTasksByState(TaskStateCode state, long lastId, AttemptPartition partition);
 
     // for WorkflowExecutorManager.propagateSessionArchive
-    List<TaskAttemptSummary> findRootTasksByStates(TaskStateCode[] states, long lastId);
+    List<TaskAttemptSummary> findRootTasksByStates(TaskStateCode[] states, long lastId, AttemptPartition partition);
 
     boolean requestCancelAttempt(long attemptId);
 
-    int trySetRetryWaitingToReady();
+    int trySetRetryWaitingToReady(AttemptPartition partition);
 
     interface TaskLockAction <T>
     {
@@ -61,9 +61,18 @@ public interface SessionStoreManager
         T call(TaskControlStore lockedTask, StoredTask storedTask);
     }
 
+    interface TaskBatchLockAction <T>
+    {
+        T call(TaskControlStore lockedTasks, List<StoredTask> storedTasks);
+    }
+
     // overload for polling
     <T> Optional<T> lockTaskIfExists(long taskId, TaskLockAction<T> func);
 
+    // for WorkflowExecutor.enqueueReadyTasks. Locks tasks in the given state
+    // and skips others.
+    <T> T lockTasksInState(List<Long> taskIds, TaskStateCode state, TaskBatchLockAction<T> func);
+
     // overload for taskFinished
     <T> Optional<T> lockTaskIfExists(long taskId, TaskLockActionWithDetails<T> func);
 
@@ -73,13 +82,26 @@ public interface SessionStoreManager
         Optional<Instant> schedule(StoredSessionMonitor monitor);
     }
 
-    void lockReadySessionMonitors(Instant currentTime, SessionMonitorAction func);
+    // locks up to limit monitors whose next run time is same or before
+    // currentTime and returns number of locked monitors.
+    int lockReadySessionMonitors(Instant currentTime, int limit, SessionMonitorAction func);
+
+    // earliest next run time of session monitors
+    Optional<Instant> getNextSessionMonitorRunTime();
 
     List<TaskRelation> getTaskRelations(long attemptId);
 
+    // relations of tasks whose id is larger than lastId ordered by id
+    List<TaskRelation> getTaskRelations(long attemptId, long lastId);
+
+    TaskIdSummary getTaskIdSummary(long attemptId);
+
     List<Config> getExportParams(List<Long> idList);
 
     List<Config> getStoreParams(List<Long> idList);
 
     List<Config> getErrors(List<Long> idList);
+
+    // rewrites task archives stored in the old JSON format. returns number of rewritten archives.
+    int compactTaskArchives(int limit);
 }
@@ -0,0 +1,99 @@
+package io.digdag.core.session;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import com.google.inject.Inject;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import io.digdag.client.config.Config;
+import io.digdag.core.BackgroundExecutor;
+import io.digdag.core.ErrorReporter;
+
+/**
+ * Rewrites task archives stored in the old JSON format using the compressed
+ * format in background.
+ *
+ * executor.task_archive_compaction_interval: seconds between runs. 0 disables compaction. (default: 60)
+ * executor.task_archive_compaction_batch_size: number of archives compacted by a query. (default: 100)
+ */
+public class TaskArchiveCompactor
+        implements BackgroundExecutor
+{
+    private static final Logger logger = LoggerFactory.getLogger(TaskArchiveCompactor.class);
+
+    private final SessionStoreManager sm;
+    private final int interval;
+    private final int batchSize;
+    private ScheduledExecutorService executor;
+    private volatile boolean stop = false;
+
+    @Inject(optional = true)
+    private ErrorReporter errorReporter = ErrorReporter.empty();
+
+    @Inject
+    public TaskArchiveCompactor(SessionStoreManager sm, Config systemConfig)
+    {
+        this.sm = sm;
+        this.interval = systemConfig.get("executor.task_archive_compaction_interval", int.class, 60);
+        this.batchSize = systemConfig.get("executor.task_archive_compaction_batch_size", int.class, 100);
+    }
+
+    @PostConstruct
+    public synchronized void start()
+    {
+        if (interval <= 0) {
+            return;
+        }
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("task-archive-compactor-%d")
+                    .build()
+                    );
+        }
+        executor.scheduleWithFixedDelay(() -> run(),
+                interval, interval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public synchronized void shutdown()
+    {
+        stop = true;
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    @Override
+    public void eagerShutdown()
+    {
+        shutdown();
+    }
+
+    public void run()
+    {
+        try {
+            int total = 0;
+            while (!stop) {
+                int count = sm.compactTaskArchives(batchSize);
+                total += count;
+                if (count < batchSize) {
+                    break;
+                }
+            }
+            if (total > 0) {
+                logger.info("Compacted {} task archives", total);
+            }
+        }
+        catch (Throwable t) {
+            logger.error("An uncaught exception is ignored. Task archive compaction will be retried.", t);
+            errorReporter.reportUncaughtError(t);
+        }
+    }
+}
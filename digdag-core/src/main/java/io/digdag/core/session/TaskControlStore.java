@@ -13,9 +13,9 @@ public interface TaskControlStore
 
     long addSubtask(long attemptId, Task task);
 
-    long addResumedSubtask(long attemptId, long parentId,
-            TaskType taskType, TaskStateCode state, TaskStateFlags flags,
-            ResumingTask resumingTask);
+    // inserts tasks and their dependencies at once. returns ids of the tasks
+    // in the same order with the list.
+    List<Long> addSubtasks(long attemptId, List<NewSubtask> subtasks);
 
     void addResumingTasks(long attemptId, List<ResumingTask> fullNameToTasks);
 
@@ -23,8 +23,6 @@ public interface TaskControlStore
 
     boolean copyInitialTasksForRetry(List<Long> recursiveChildrenIdList);
 
-    void addDependencies(long downstream, List<Long> upstreams);
-
     // return true if one or more child task is progressible.
     boolean isAnyProgressibleChild(long taskId);
 
@@ -38,6 +36,9 @@ public interface TaskControlStore
 
     boolean setState(long taskId, TaskStateCode beforeState, TaskStateCode afterState);
 
+    // returns number of updated tasks
+    int setStateOfTasks(List<Long> taskIds, TaskStateCode beforeState, TaskStateCode afterState);
+
     boolean setDoneState(long taskId, TaskStateCode beforeState, TaskStateCode afterState);
 
     // planned to error
@@ -0,0 +1,20 @@
+package io.digdag.core.session;
+
+import org.immutables.value.Value;
+
+@Value.Immutable
+public abstract class TaskIdSummary
+{
+    public abstract long getTaskCount();
+
+    // 0 if the attempt has no tasks
+    public abstract long getMaxTaskId();
+
+    public static TaskIdSummary of(long taskCount, long maxTaskId)
+    {
+        return ImmutableTaskIdSummary.builder()
+            .taskCount(taskCount)
+            .maxTaskId(maxTaskId)
+            .build();
+    }
+}
@@ -13,6 +13,8 @@ public abstract class TaskStateSummary
 {
     public abstract long getId();
 
+    public abstract long getAttemptId();
+
     public abstract Optional<Long> getParentId();
 
     public abstract TaskStateCode getState();
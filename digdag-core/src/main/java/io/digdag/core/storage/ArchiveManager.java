@@ -1,14 +1,19 @@
 package io.digdag.core.storage;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ByteArrayInputStream;
 import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import com.google.inject.Inject;
 import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.digdag.core.archive.ArchiveIndex;
+import io.digdag.core.archive.IndexedArchive;
 import io.digdag.core.repository.ArchiveType;
 import io.digdag.core.repository.ProjectStore;
 import io.digdag.core.repository.StoredRevision;
@@ -62,7 +67,10 @@ public class ArchiveManager
 
     private final StorageManager storageManager;
     private final ArchiveType uploadArchiveType;
+    private final boolean indexEnabled;
     private final Config systemConfig;
+    // Storage holds a client, connection pool and thread pools. They're reused.
+    private final Map<ArchiveType, Storage> storages = new ConcurrentHashMap<>();
 
     @Inject
     public ArchiveManager(StorageManager storageManager, Config systemConfig)
@@ -70,6 +78,15 @@ public class ArchiveManager
         this.storageManager = storageManager;
         this.systemConfig = systemConfig;
         this.uploadArchiveType = systemConfig.get("archive.type", ArchiveType.class, ArchiveType.DB);
+        this.indexEnabled = systemConfig.get("archive.index.enabled", boolean.class, false);
+    }
+
+    // if true, uploaded archives are rewritten by IndexedArchiveWriter and stored with ArchiveIndex.
+    // rewritten archives keep a copy of the original archive so that agents
+    // of older versions can still extract them.
+    public boolean isIndexEnabled()
+    {
+        return indexEnabled;
     }
 
     public Location newArchiveLocation(
@@ -86,7 +103,8 @@ public class ArchiveManager
 
     public Storage getStorage(ArchiveType type)
     {
-        return storageManager.create(type.getName(), systemConfig, "archive.");
+        return storages.computeIfAbsent(type, (key) ->
+                storageManager.create(key.getName(), systemConfig, "archive."));
     }
 
     private static final DateTimeFormatter DATE_TIME_SUFFIX_FORMAT =
@@ -121,6 +139,60 @@ public class ArchiveManager
         }
     }
 
+    public Optional<IndexedArchive> openIndexedArchive(ProjectStore ps, int projectId, String revisionName)
+        throws ResourceNotFoundException
+    {
+        StoredRevision rev = findRevision(ps, projectId, revisionName);
+
+        ArchiveType type = rev.getArchiveType();
+        if (type.equals(ArchiveType.NONE)) {
+            return Optional.absent();
+        }
+
+        Optional<byte[]> indexData = ps.getRevisionArchiveIndex(rev.getId());
+        if (!indexData.isPresent()) {
+            return Optional.absent();
+        }
+        ArchiveIndex index = ArchiveIndex.fromBytes(indexData.get());
+
+        if (type.equals(ArchiveType.DB)) {
+            // archives in DB are small enough to read at once
+            byte[] data = ps.getRevisionArchiveData(rev.getId());
+            return Optional.of(new IndexedArchive() {
+                public ArchiveIndex getIndex()
+                {
+                    return index;
+                }
+
+                public InputStream openRange(long offset, long length)
+                {
+                    return new ByteArrayInputStream(data, (int) offset, (int) length);
+                }
+            });
+        }
+        else {
+            Storage storage = getStorage(type);
+            String path = rev.getArchivePath().or("");
+            return Optional.of(new IndexedArchive() {
+                public ArchiveIndex getIndex()
+                {
+                    return index;
+                }
+
+                public InputStream openRange(long offset, long length)
+                    throws IOException
+                {
+                    try {
+                        return storage.openRange(path, offset, length).getContentInputStream();
+                    }
+                    catch (StorageFileNotFoundException ex) {
+                        throw new IOException(ex);
+                    }
+                }
+            });
+        }
+    }
+
     public Optional<StoredArchive> getArchive(ProjectStore ps, int projectId, String revisionName)
         throws ResourceNotFoundException
     {
@@ -14,6 +14,8 @@ import io.digdag.core.repository.ResourceNotFoundException;
 import io.digdag.core.session.StoredTask;
 import io.digdag.core.session.SessionStore;
 import io.digdag.core.session.ArchivedTask;
+import io.digdag.core.session.ImmutableNewSubtask;
+import io.digdag.core.session.NewSubtask;
 import io.digdag.core.session.ResumingTask;
 import io.digdag.core.session.Task;
 import io.digdag.core.session.TaskControlStore;
@@ -76,17 +78,6 @@ public class TaskControl
             boolean cancelSiblings, boolean firstTaskIsRootStoredParentTask, boolean isInitialTask,
             List<ResumingTask> resumingTasks)
     {
-        List<Long> indexToId = new ArrayList<>();
-
-        Long rootTaskId;
-        if (firstTaskIsRootStoredParentTask) {
-            // tasks.get(0) == parentTask == root task
-            rootTaskId = parentTaskId;
-        }
-        else {
-            rootTaskId = null;
-        }
-
         Map<String, ResumingTask> resumingTaskMap = resumingTasks
             .stream()
             .collect(Collectors.toMap(t -> t.getFullName(), t -> t));
@@ -98,63 +89,57 @@ public class TaskControl
             throw new TaskLimitExceededException("Too many tasks. Limit: " + Limits.maxWorkflowTasks() + ", Current: " + taskCount + ", Adding: " + tasks.size());
         }
 
-        boolean firstTask = true;
-        for (WorkflowTask wt : tasks) {
+        // skip storing tasks.get(0) if it is already stored as parentTaskId (== root task)
+        int offset = firstTaskIsRootStoredParentTask ? 1 : 0;
 
-            if (firstTask && firstTaskIsRootStoredParentTask) {
-                indexToId.add(rootTaskId);
-                firstTask = false;
-                continue;  // skip storing this task because (tasks.get(0) == parentTaskId == root task) is already stored as parentTaskId
-            }
+        if (cancelSiblings) {
+            // TODO not implemented yet
+        }
 
-            if (firstTask && cancelSiblings) {
-                // TODO not implemented yet
-            }
+        List<NewSubtask> subtasks = new ArrayList<>();
+        for (WorkflowTask wt : tasks.subList(offset, tasks.size())) {
+            ImmutableNewSubtask.Builder builder = NewSubtask.builder()
+                .fullName(wt.getFullName())
+                .taskType(wt.getTaskType())
+                .stateFlags(isInitialTask ? TaskStateFlags.empty().withInitialTask() : TaskStateFlags.empty());
 
-            long parentId = wt.getParentIndex()
-                .transform(index -> indexToId.get(index))
-                .or(parentTaskId);
-            long id;
-            if (resumingTaskMap.containsKey(wt.getFullName())) {
-                id = store.addResumedSubtask(attemptId, parentId,
-                        wt.getTaskType(),
-                        TaskStateCode.SUCCESS,
-                        (isInitialTask ? TaskStateFlags.empty().withInitialTask() : TaskStateFlags.empty()),
-                        resumingTaskMap.get(wt.getFullName()));
+            if (wt.getParentIndex().isPresent() && wt.getParentIndex().get() >= offset) {
+                builder.parentIndex(wt.getParentIndex().get() - offset);
             }
             else {
-                Task task = Task.taskBuilder()
-                    .parentId(Optional.of(parentId))
-                    .fullName(wt.getFullName())
-                    .config(TaskConfig.validate(wt.getConfig()))
-                    .taskType(wt.getTaskType())
-                    .state(TaskStateCode.BLOCKED)
-                    .stateFlags(isInitialTask ? TaskStateFlags.empty().withInitialTask() : TaskStateFlags.empty())
-                    .build();
-
-                id = store.addSubtask(attemptId, task);
+                builder.parentId(parentTaskId);
             }
 
-            indexToId.add(id);
-            if (!wt.getUpstreamIndexes().isEmpty()) {
-                store.addDependencies(
-                        id,
-                        wt.getUpstreamIndexes()
-                            .stream()
-                            .map(index -> indexToId.get(index))
-                            .collect(Collectors.toList())
-                        );
+            for (int index : wt.getUpstreamIndexes()) {
+                builder.addUpstreamIndexes(index - offset);
+            }
+            if (subtasks.isEmpty() && !firstTaskIsRootStoredParentTask) {
+                // the root task of the list
+                builder.addAllUpstreamIds(rootUpstreamIds);
             }
 
-            if (firstTask) {
-                // the root task was stored right now.
-                store.addDependencies(id, rootUpstreamIds);
-                rootTaskId = id;
+            ResumingTask resumingTask = resumingTaskMap.get(wt.getFullName());
+            if (resumingTask != null) {
+                builder.config(resumingTask.getConfig())
+                    .state(TaskStateCode.SUCCESS)
+                    .resumingTask(resumingTask);
+            }
+            else {
+                builder.config(TaskConfig.validate(wt.getConfig()))
+                    .state(TaskStateCode.BLOCKED);
             }
-            firstTask = false;
+
+            subtasks.add(builder.build());
         }
 
-        return rootTaskId;
+        List<Long> ids = store.addSubtasks(attemptId, subtasks);
+
+        if (firstTaskIsRootStoredParentTask) {
+            return parentTaskId;
+        }
+        else {
+            return ids.get(0);
+        }
     }
 
     private static void addResumingTasks(TaskControlStore store, long attemptId, List<ResumingTask> resumingTasks)
@@ -184,7 +169,7 @@ public class TaskControl
     {
         Set<Long> idSet = new HashSet<>(resumingTaskIds);
         List<ResumingTask> resumingTasks = store
-            .getTasksOfAttempt(attemptId)
+            .getTasksOfAttemptByIds(attemptId, resumingTaskIds)
             .stream()
             .filter(archived -> {
                 if (idSet.remove(archived.getId())) {
@@ -1,5 +1,6 @@
 package io.digdag.core.workflow;
 
+import java.util.List;
 import com.google.common.base.Optional;
 import io.digdag.spi.TaskQueueRequest;
 import io.digdag.spi.TaskConflictException;
@@ -12,6 +13,10 @@ public interface TaskQueueDispatcher
     void dispatch(int siteId, Optional<String> queueName, TaskQueueRequest request)
         throws ResourceNotFoundException, TaskConflictException;
 
+    // returns unique names of tasks that are already queued and skipped
+    List<String> dispatchAll(int siteId, Optional<String> queueName, List<TaskQueueRequest> requests)
+        throws ResourceNotFoundException;
+
     void taskFinished(int siteId, String lockId, AgentId agentId)
         throws TaskConflictException, TaskNotFoundException;
 
@@ -0,0 +1,17 @@
+package io.digdag.core.workflow;
+
+/**
+ * Notifies changes of task state to workflow executors of other servers
+ * that share the same database.
+ *
+ * Notifications are hints to wake up executors earlier. Executors still
+ * find changes by polling, so an implementation may drop notifications.
+ */
+public interface TaskStateChannel
+{
+    // listener is called when a server other than this process publishes a change
+    void addTaskStateListener(Runnable listener);
+
+    // must be called after the change is committed
+    void publishTaskStateChange();
+}
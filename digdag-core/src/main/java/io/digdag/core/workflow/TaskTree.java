@@ -1,9 +1,12 @@
 package io.digdag.core.workflow;
 
 import java.util.Objects;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Set;
 import java.util.HashSet;
 import com.google.common.base.Optional;
@@ -21,25 +24,54 @@ public class TaskTree
         T walk(T value, TaskRelation node);
     }
 
-    private final Map<Long, TaskRelation> map;
+    private final Map<Long, TaskRelation> map = new LinkedHashMap<>();
+
+    // indexes to avoid scanning all tasks. Lists of children and order of
+    // tasks follow the order of the given relations.
+    private final Map<Long, List<TaskRelation>> children = new HashMap<>();
+    private final Map<Long, Integer> order = new HashMap<>();
+    private Long rootTaskId = null;
 
     public TaskTree(List<TaskRelation> rels)
     {
-        ImmutableMap.Builder<Long, TaskRelation> builder = ImmutableMap.builder();
+        addAll(rels);
+    }
+
+    // Tasks are only added to an attempt. Existing tasks don't change their
+    // parent or upstreams.
+    void addAll(List<TaskRelation> rels)
+    {
         for (TaskRelation rel : rels) {
-            builder.put(rel.getId(), rel);
+            if (map.containsKey(rel.getId())) {
+                throw new IllegalArgumentException("Duplicated task id: " + rel.getId());
+            }
+            map.put(rel.getId(), rel);
+            order.put(rel.getId(), order.size());
+            if (rel.getParentId().isPresent()) {
+                children.computeIfAbsent(rel.getParentId().get(), (key) -> new ArrayList<>()).add(rel);
+            }
+            else if (rootTaskId == null) {
+                rootTaskId = rel.getId();
+            }
         }
-        this.map = builder.build();
+    }
+
+    int size()
+    {
+        return map.size();
+    }
+
+    boolean contains(long id)
+    {
+        return map.containsKey(id);
     }
 
     public long getRootTaskId()
     {
-        for (TaskRelation rel : map.values()) {
-            if (!rel.getParentId().isPresent()) {
-                return rel.getId();
-            }
+        if (rootTaskId == null) {
+            throw new IllegalStateException("Root task doesn't exist in an attempt: "+map.values());
         }
-        throw new IllegalStateException("Root task doesn't exist in an attempt: "+map.values());
+        return rootTaskId;
     }
 
     private TaskRelation get(long id)
@@ -96,12 +128,9 @@ public class TaskTree
 
     public <T> T walkChildrenRecursively(long id, T value, Walker<T> walker)
     {
-        for (TaskRelation rel : map.values()) {
-            if (rel.getParentId().isPresent() && rel.getParentId().get() == id) {
-                TaskRelation child = rel;
-                value = walker.walk(value, child);
-                value = walkChildrenRecursively(child.getId(), value, walker);
-            }
+        for (TaskRelation child : children.getOrDefault(id, ImmutableList.of())) {
+            value = walker.walk(value, child);
+            value = walkChildrenRecursively(child.getId(), value, walker);
         }
         return value;
     }
@@ -113,17 +142,22 @@ public class TaskTree
 
     private <T> T walkUpstreamSiblings(long id, T value, Walker<T> walker, Set<Long> walkedSet)
     {
-        Set<Long> upstreams = ImmutableSet.copyOf(get(id).getUpstreams());
-        for (TaskRelation rel : map.values()) {
-            // here uses order of map.values instead of order of get(id).getUpstreams
-            // so that farther (younger) siblings always comes first
-            if (upstreams.contains(rel.getId())) {
-                // here has deduplication because upstream ids could include
-                // same id with with upstream's upstreams.
-                if (walkedSet.add(rel.getId())) {
-                    value = walkUpstreamSiblings(rel.getId(), value, walker, walkedSet);
-                    value = walker.walk(value, rel);
-                }
+        // here uses order of map.values instead of order of get(id).getUpstreams
+        // so that farther (younger) siblings always comes first
+        List<TaskRelation> upstreams = new ArrayList<>();
+        for (long upstreamId : ImmutableSet.copyOf(get(id).getUpstreams())) {
+            TaskRelation rel = map.get(upstreamId);
+            if (rel != null) {
+                upstreams.add(rel);
+            }
+        }
+        upstreams.sort(Comparator.comparingInt(rel -> order.get(rel.getId())));
+        for (TaskRelation rel : upstreams) {
+            // here has deduplication because upstream ids could include
+            // same id with with upstream's upstreams.
+            if (walkedSet.add(rel.getId())) {
+                value = walkUpstreamSiblings(rel.getId(), value, walker, walkedSet);
+                value = walker.walk(value, rel);
             }
         }
         return value;
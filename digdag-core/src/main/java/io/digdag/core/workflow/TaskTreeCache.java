@@ -0,0 +1,200 @@
+package io.digdag.core.workflow;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.digdag.client.config.Config;
+import io.digdag.core.session.SessionStoreManager;
+import io.digdag.core.session.TaskIdSummary;
+import io.digdag.core.session.TaskRelation;
+
+/**
+ * Cache of task relations and params of attempts.
+ *
+ * Tasks are only added to an attempt and relations of existing tasks don't
+ * change. A cached tree is validated using count and max id of tasks of the
+ * attempt, which can be read using an index, and only tasks added after the
+ * last load are loaded. Count is necessary in addition to max id because
+ * tasks with smaller ids may be committed later by another transaction.
+ *
+ * Export and store params are cached only while the tree doesn't change.
+ * They're read after the tasks are planned or done. Adding tasks (including
+ * retrying a group) may reset them.
+ *
+ * Total number of cached tasks and params is bounded by maxWeight.
+ */
+class TaskTreeCache
+{
+    interface AttemptTasks
+    {
+        TaskTree getTaskTree();
+
+        List<Config> getExportParams(List<Long> idList);
+
+        List<Config> getStoreParams(List<Long> idList);
+    }
+
+    private final SessionStoreManager sm;
+    private final Cache<Long, Entry> cache;
+
+    TaskTreeCache(SessionStoreManager sm, long maxWeight)
+    {
+        this.sm = sm;
+        this.cache = CacheBuilder.newBuilder()
+            .maximumWeight(maxWeight)
+            .weigher((Long attemptId, Entry entry) -> entry.weight)
+            .build();
+    }
+
+    public <T> T withAttemptTasks(long attemptId, Function<AttemptTasks, T> func)
+    {
+        Entry entry;
+        try {
+            entry = cache.get(attemptId, () -> new Entry(attemptId));
+        }
+        catch (ExecutionException ex) {
+            throw Throwables.propagate(ex.getCause());
+        }
+
+        T result;
+        int oldWeight;
+        int newWeight;
+        synchronized (entry) {
+            oldWeight = entry.weight;
+            entry.refresh();
+            result = func.apply(entry);
+            newWeight = entry.updateWeight();
+        }
+
+        if (oldWeight != newWeight) {
+            // guava evaluates weight only when an entry is put
+            cache.asMap().replace(attemptId, entry, entry);
+        }
+        return result;
+    }
+
+    // called after tasks are added to an attempt
+    public void invalidateParams(long attemptId)
+    {
+        Entry entry = cache.getIfPresent(attemptId);
+        if (entry != null) {
+            synchronized (entry) {
+                entry.clearParams();
+            }
+        }
+    }
+
+    @VisibleForTesting
+    long size()
+    {
+        return cache.size();
+    }
+
+    private class Entry
+            implements AttemptTasks
+    {
+        private final long attemptId;
+        private TaskTree tree = null;
+        private long taskCount = 0;
+        private long maxTaskId = 0;
+        private final Map<Long, Config> exportParams = new HashMap<>();
+        private final Map<Long, Config> storeParams = new HashMap<>();
+        private volatile int weight = 1;
+
+        Entry(long attemptId)
+        {
+            this.attemptId = attemptId;
+        }
+
+        void refresh()
+        {
+            TaskIdSummary summary = sm.getTaskIdSummary(attemptId);
+            if (tree != null && summary.getTaskCount() == taskCount && summary.getMaxTaskId() == maxTaskId) {
+                return;
+            }
+
+            clearParams();
+
+            if (tree != null && summary.getTaskCount() > taskCount) {
+                List<TaskRelation> added = sm.getTaskRelations(attemptId, maxTaskId);
+                if (!added.isEmpty() &&
+                        taskCount + added.size() == summary.getTaskCount() &&
+                        added.get(added.size() - 1).getId() == summary.getMaxTaskId()) {
+                    tree.addAll(added);
+                    taskCount += added.size();
+                    maxTaskId = summary.getMaxTaskId();
+                    return;
+                }
+                // some tasks were committed with smaller ids than maxTaskId
+            }
+
+            List<TaskRelation> rels = sm.getTaskRelations(attemptId, 0L);
+            tree = new TaskTree(rels);
+            taskCount = rels.size();
+            maxTaskId = rels.isEmpty() ? 0L : rels.get(rels.size() - 1).getId();
+        }
+
+        void clearParams()
+        {
+            exportParams.clear();
+            storeParams.clear();
+        }
+
+        int updateWeight()
+        {
+            long w = 1L + taskCount + exportParams.size() + storeParams.size();
+            weight = (int) Math.min(w, Integer.MAX_VALUE);
+            return weight;
+        }
+
+        @Override
+        public TaskTree getTaskTree()
+        {
+            return tree;
+        }
+
+        @Override
+        public List<Config> getExportParams(List<Long> idList)
+        {
+            return getParams(idList, exportParams, sm::getExportParams);
+        }
+
+        @Override
+        public List<Config> getStoreParams(List<Long> idList)
+        {
+            return getParams(idList, storeParams, sm::getStoreParams);
+        }
+
+        private List<Config> getParams(List<Long> idList, Map<Long, Config> cached,
+                Function<List<Long>, List<Config>> loader)
+        {
+            List<Long> missing = new ArrayList<>();
+            for (long id : idList) {
+                if (!cached.containsKey(id)) {
+                    missing.add(id);
+                }
+            }
+            if (!missing.isEmpty()) {
+                List<Config> loaded = loader.apply(missing);
+                for (int i = 0; i < missing.size(); i++) {
+                    cached.put(missing.get(i), loaded.get(i));
+                }
+            }
+
+            // callers merge the params into other configs. return copies so that
+            // cached params are not modified.
+            List<Config> params = new ArrayList<>(idList.size());
+            for (long id : idList) {
+                params.add(cached.get(id).deepCopy());
+            }
+            return params;
+        }
+    }
+}
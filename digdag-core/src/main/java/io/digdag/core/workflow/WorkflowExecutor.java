@@ -3,19 +3,26 @@ package io.digdag.core.workflow;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import io.digdag.client.config.Config;
 import io.digdag.client.config.ConfigException;
 import io.digdag.client.config.ConfigFactory;
 import io.digdag.core.agent.AgentId;
+import io.digdag.core.metrics.Counter;
+import io.digdag.core.metrics.Histogram;
+import io.digdag.core.metrics.MetricRegistry;
 import io.digdag.core.repository.ProjectStoreManager;
 import io.digdag.core.repository.ResourceConflictException;
 import io.digdag.core.repository.ResourceNotFoundException;
 import io.digdag.core.repository.StoredProject;
 import io.digdag.core.repository.StoredRevision;
 import io.digdag.core.repository.WorkflowDefinition;
+import io.digdag.core.session.AttemptPartition;
+import io.digdag.core.session.ReadyTaskSummary;
 import io.digdag.core.session.ResumingTask;
 import io.digdag.core.session.Session;
 import io.digdag.core.session.SessionAttempt;
@@ -42,8 +49,14 @@ import org.slf4j.LoggerFactory;
 
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -52,6 +65,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -73,7 +87,12 @@ import static java.util.Locale.ENGLISH;
  *
  * READY:
  *   enqueueReadyTasks:
- *     enqueueTask:
+ *     enqueueTasks:
+ *       (if CANCEL_REQUESTED flag is set) lockedTask.setToCanceled:
+ *         : CANCELED
+ *       store.setStateOfTasks:
+ *         : RUNNING
+ *     enqueueTask (if enqueueTasks failed to dispatch a batch):
  *       (if CANCEL_REQUESTED flag is set) lockedTask.setToCanceled:
  *         : CANCELED
  *       lockedTask.setReadyToRunning:
@@ -159,7 +178,23 @@ public class WorkflowExecutor
 
     private final Lock propagatorLock = new ReentrantLock();
     private final Condition propagatorCondition = propagatorLock.newCondition();
-    private volatile boolean propagatorNotice = false;
+    // Counters instead of flags so that every runWhile loop (one per
+    // partition) sees a notice even if another loop saw it first.
+    private long propagatorNoticeCount = 0;  // guarded by propagatorLock
+
+    private final boolean incrementalPropagation;
+    private final int incrementalPropagationOverlap;
+    private final int fullPropagationInterval;
+    private final int enqueueFetchSize;
+    private final int enqueueBatchSize;
+    private final TaskTreeCache taskTreeCache;
+
+    private Optional<TaskStateChannel> taskStateChannel = Optional.absent();
+
+    private Histogram propagationTime;
+    private Histogram enqueueTime;
+    private Counter enqueuedTasks;
+    private final AtomicLong readyTaskCount = new AtomicLong();
 
     @Inject
     public WorkflowExecutor(
@@ -180,6 +215,34 @@ public class WorkflowExecutor
         this.archiveMapper = archiveMapper;
         this.systemConfig = systemConfig;
         this.notifier = notifier;
+        this.incrementalPropagation = systemConfig.get("executor.incremental_propagation", boolean.class, true);
+        this.incrementalPropagationOverlap = systemConfig.get("executor.incremental_propagation_overlap", int.class, 10);
+        this.fullPropagationInterval = systemConfig.get("executor.full_propagation_interval", int.class, 60);
+        this.enqueueFetchSize = systemConfig.get("executor.enqueue_fetch_size", int.class, 10000);
+        this.enqueueBatchSize = systemConfig.get("executor.enqueue_batch_size", int.class, 100);
+        this.taskTreeCache = new TaskTreeCache(sm, systemConfig.get("executor.task_tree_cache_max_tasks", long.class, 200000L));
+        setMetricRegistry(new MetricRegistry());
+    }
+
+    @Inject(optional = true)
+    public void setMetricRegistry(MetricRegistry metrics)
+    {
+        this.propagationTime = metrics.histogram("digdag_executor_propagation_seconds",
+                "Time of a round of state propagation and enqueuing of a workflow executor loop");
+        this.enqueueTime = metrics.histogram("digdag_executor_enqueue_seconds",
+                "Time to enqueue a batch of ready tasks (executor.enqueue_batch_size)");
+        this.enqueuedTasks = metrics.counter("digdag_executor_enqueued_tasks_total",
+                "Number of ready tasks processed by enqueuing batches");
+        metrics.gauge("digdag_executor_ready_tasks",
+                "Number of ready tasks found by the last scan (up to executor.enqueue_fetch_size)", readyTaskCount::get);
+    }
+
+    @Inject(optional = true)
+    public void setTaskStateChannel(TaskStateChannel taskStateChannel)
+    {
+        this.taskStateChannel = Optional.of(taskStateChannel);
+        // tasks changed by agents of other servers
+        taskStateChannel.addTaskStateListener(this::noticeStatusPropagate);
     }
 
     public StoredSessionAttemptWithSession submitWorkflow(int siteId,
@@ -325,6 +388,7 @@ public class WorkflowExecutor
 
         if (updated) {
             noticeStatusPropagate();
+            publishTaskStateChange();
         }
 
         return updated;
@@ -334,7 +398,7 @@ public class WorkflowExecutor
     {
         propagatorLock.lock();
         try {
-            propagatorNotice = true;
+            propagatorNoticeCount++;
             propagatorCondition.signalAll();
         }
         finally {
@@ -342,11 +406,20 @@ public class WorkflowExecutor
         }
     }
 
+    private void publishTaskStateChange()
+    {
+        // this must be called after committing the change. otherwise, other
+        // servers may wake up before the change becomes visible.
+        if (taskStateChannel.isPresent()) {
+            taskStateChannel.get().publishTaskStateChange();
+        }
+    }
+
     public void noticeRunWhileConditionChange()
     {
         propagatorLock.lock();
         try {
-            // don't set propagatorNotice but break wait in runWhile
+            // don't count up propagatorNoticeCount but break wait in runWhile
             propagatorCondition.signalAll();
         }
         finally {
@@ -391,44 +464,81 @@ public class WorkflowExecutor
 
     public void runWhile(BooleanSupplier cond)
             throws InterruptedException
+    {
+        runWhile(AttemptPartition.all(), cond);
+    }
+
+    /**
+     * Runs the loop for tasks of attempts in the partition.
+     *
+     * Multiple loops of different partitions can run at the same time on
+     * a server or on servers sharing the database. Tasks are still locked
+     * when they change, so running loops of the same partition is safe
+     * but they contend for the same rows.
+     */
+    public void runWhile(AttemptPartition partition, BooleanSupplier cond)
+            throws InterruptedException
     {
         try (TaskQueuer queuer = new TaskQueuer()) {
+            long lastNoticeCount;
+            propagatorLock.lock();
+            try {
+                lastNoticeCount = propagatorNoticeCount;
+            }
+            finally {
+                propagatorLock.unlock();
+            }
+
             Instant date = sm.getStoreTime();
-            propagateAllBlockedToReady();
-            retryRetryWaitingTasks();
-            enqueueReadyTasks(queuer);  // TODO enqueue all (not only first 100)
-            propagateAllPlannedToDone();
-            propagateSessionArchive();
+            propagateAllBlockedToReady(partition);
+            retryRetryWaitingTasks(partition);
+            enqueueReadyTasks(queuer, partition);
+            propagateAllPlannedToDone(partition);
+            propagateSessionArchive(partition);
+
+            // IncrementalStatusPropagator checks only tasks changed since the last loop.
+            // Full scan runs periodically as a safety net in case a change is missed
+            // (e.g. a transaction that takes longer than the overlap window to commit).
+            IncrementalStatusPropagator prop = incrementalPropagation
+                ? new IncrementalStatusPropagator(date, partition)
+                : null;
+            long lastFullPropagation = System.nanoTime();
 
-            //IncrementalStatusPropagator prop = new IncrementalStatusPropagator(date);  // TODO doesn't work yet
             int waitMsec = INITIAL_INTERVAL;
             while (cond.getAsBoolean()) {
-                //boolean inced = prop.run();
-                //boolean retried = retryRetryWaitingTasks();
-                //if (inced || retried) {
-                //    enqueueReadyTasks(queuer);
-                //    propagatorNotice = true;
-                //}
-
-                propagateAllBlockedToReady();
-                retryRetryWaitingTasks();
-                enqueueReadyTasks(queuer);
-                boolean someDone = propagateAllPlannedToDone();
-
-                if (someDone) {
-                    propagateSessionArchive();
+                boolean someDone;
+                long startNanos = System.nanoTime();
+
+                if (prop != null && !isFullPropagationRequired(lastFullPropagation)) {
+                    someDone = prop.run();
+                    retryRetryWaitingTasks(partition);
+                    enqueueReadyTasks(queuer, partition);
                 }
                 else {
+                    lastFullPropagation = System.nanoTime();
+
+                    propagateAllBlockedToReady(partition);
+                    retryRetryWaitingTasks(partition);
+                    enqueueReadyTasks(queuer, partition);
+                    someDone = propagateAllPlannedToDone(partition);
+
+                    if (someDone) {
+                        propagateSessionArchive(partition);
+                    }
+                }
+                propagationTime.recordSince(startNanos);
+
+                if (!someDone) {
                     propagatorLock.lock();
                     try {
-                        if (propagatorNotice) {
-                            propagatorNotice = false;
+                        if (propagatorNoticeCount != lastNoticeCount) {
+                            lastNoticeCount = propagatorNoticeCount;
                             waitMsec = INITIAL_INTERVAL;
                         }
                         else {
                             boolean noticed = propagatorCondition.await(waitMsec, TimeUnit.MILLISECONDS);
-                            if (noticed && propagatorNotice) {
-                                propagatorNotice = false;
+                            if (noticed && propagatorNoticeCount != lastNoticeCount) {
+                                lastNoticeCount = propagatorNoticeCount;
                                 waitMsec = INITIAL_INTERVAL;
                             }
                             else {
@@ -444,13 +554,18 @@ public class WorkflowExecutor
         }
     }
 
-    private boolean propagateAllBlockedToReady()
+    private boolean isFullPropagationRequired(long lastFullPropagation)
+    {
+        return System.nanoTime() - lastFullPropagation >= TimeUnit.SECONDS.toNanos(fullPropagationInterval);
+    }
+
+    private boolean propagateAllBlockedToReady(AttemptPartition partition)
     {
         boolean anyChanged = false;
         long lastTaskId = 0;
         Set<Long> checkedParentIds = new HashSet<>();
         while (true) {
-            List<TaskStateSummary> tasks = sm.findTasksByState(TaskStateCode.BLOCKED, lastTaskId);
+            List<TaskStateSummary> tasks = sm.findTasksByState(TaskStateCode.BLOCKED, lastTaskId, partition);
             if (tasks.isEmpty()) {
                 break;
             }
@@ -481,12 +596,12 @@ public class WorkflowExecutor
         return anyChanged;
     }
 
-    private boolean propagateAllPlannedToDone()
+    private boolean propagateAllPlannedToDone(AttemptPartition partition)
     {
         boolean anyChanged = false;
         long lastTaskId = 0;
         while (true) {
-            List<TaskStateSummary> tasks = sm.findTasksByState(TaskStateCode.PLANNED, lastTaskId);
+            List<TaskStateSummary> tasks = sm.findTasksByState(TaskStateCode.PLANNED, lastTaskId, partition);
             if (tasks.isEmpty()) {
                 break;
             }
@@ -592,9 +707,15 @@ public class WorkflowExecutor
     private Config collectErrorParams(Config export, StoredTask task)
     {
         List<Long> childrenFromThis;
+        List<Config> childrenStoreParams;
         {
-            TaskTree tree = new TaskTree(sm.getTaskRelations(task.getAttemptId()));
-            childrenFromThis = tree.getRecursiveChildrenIdList(task.getId());
+            List<Config> stores = new ArrayList<>();
+            childrenFromThis = taskTreeCache.withAttemptTasks(task.getAttemptId(), (tasks) -> {
+                List<Long> children = tasks.getTaskTree().getRecursiveChildrenIdList(task.getId());
+                stores.addAll(tasks.getStoreParams(children));
+                return children;
+            });
+            childrenStoreParams = stores;
         }
 
         Config error = cf.create();
@@ -607,7 +728,6 @@ public class WorkflowExecutor
 
         Config storeParams = cf.create();
         {
-            List<Config> childrenStoreParams = sm.getStoreParams(childrenFromThis);
             for (Config childStoreParams : childrenStoreParams) {
                 storeParams.merge(childStoreParams);
             }
@@ -618,128 +738,150 @@ public class WorkflowExecutor
             .set("error", error);
     }
 
-    private boolean propagateSessionArchive()
+    private boolean propagateSessionArchive(AttemptPartition partition)
     {
         boolean anyChanged = false;
         long lastTaskId = 0;
         while (true) {
-            List<TaskAttemptSummary> tasks = sm.findRootTasksByStates(TaskStateCode.doneStates(), lastTaskId);
+            List<TaskAttemptSummary> tasks = sm.findRootTasksByStates(TaskStateCode.doneStates(), lastTaskId, partition);
             if (tasks.isEmpty()) {
                 break;
             }
             anyChanged =
                 tasks
                 .stream()
-                .map(task -> {
-                    return sm.lockAttemptIfExists(task.getAttemptId(), (store, summary) -> {
-                        if (summary.getStateFlags().isDone()) {
-                            // already archived. This means that another thread archived
-                            // this attempt after findRootTasksByStates call.
-                            return false;
-                        }
-                        else {
-                            SessionAttemptControl control = new SessionAttemptControl(store, task.getAttemptId());
-                            control.archiveTasks(archiveMapper, task.getState() == TaskStateCode.SUCCESS);
-                            return true;
-                        }
-                    }).or(false);
-                })
+                .map(task -> archiveSession(task.getAttemptId(), task.getState()))
                 .reduce(anyChanged, (a, b) -> a || b);
             lastTaskId = tasks.get(tasks.size() - 1).getId();
         }
         return anyChanged;
     }
 
+    private boolean archiveSession(long attemptId, TaskStateCode rootTaskState)
+    {
+        return sm.lockAttemptIfExists(attemptId, (store, summary) -> {
+            if (summary.getStateFlags().isDone()) {
+                // already archived. This means that another thread archived
+                // this attempt after findRootTasksByStates call.
+                return false;
+            }
+            else {
+                SessionAttemptControl control = new SessionAttemptControl(store, attemptId);
+                control.archiveTasks(archiveMapper, rootTaskState == TaskStateCode.SUCCESS);
+                return true;
+            }
+        }).or(false);
+    }
+
     private class IncrementalStatusPropagator
     {
-        private Instant updatedSince;
+        // task id -> updated_at of changes that are already propagated.
+        // Used to skip tasks found again in the overlap window.
+        private final Map<Long, Instant> propagatedChanges = new HashMap<>();
 
-        private Instant lastUpdatedAt;
-        private long lastUpdatedId;
+        private final AttemptPartition partition;
 
-        public IncrementalStatusPropagator(Instant updatedSince)
-        {
-            this.updatedSince = updatedSince;
-        }
+        private Instant updatedSince;
 
-        public boolean run()
+        public IncrementalStatusPropagator(Instant updatedSince, AttemptPartition partition)
         {
-            return propagateStatus();
+            this.updatedSince = updatedSince;
+            this.partition = partition;
         }
 
-        private synchronized boolean propagateStatus()
+        public synchronized boolean run()
         {
             boolean anyChanged = false;
-            Set<Long> checkedParentIds = new HashSet<>();
 
             Instant nextUpdatedSince = sm.getStoreTime();
-            lastUpdatedAt = updatedSince;
-            lastUpdatedId = 0;
+
+            // updated_at is set by now() which is the beginning of a transaction
+            // on PostgreSQL. A transaction that started before the last run may
+            // commit after it. Scanning with an overlap finds such changes.
+            Instant scanFrom = updatedSince.minusSeconds(incrementalPropagationOverlap);
+            propagatedChanges.values().removeIf(updatedAt -> updatedAt.isBefore(scanFrom));
+
+            Instant lastUpdatedAt = scanFrom;
+            long lastUpdatedId = 0;
 
             while (true) {
-                List<TaskStateSummary> tasks = sm.findRecentlyChangedTasks(lastUpdatedAt, lastUpdatedId);
+                List<TaskStateSummary> tasks = sm.findRecentlyChangedTasks(lastUpdatedAt, lastUpdatedId, partition);
                 if (tasks.isEmpty()) {
                     break;
                 }
-                anyChanged =
-                    tasks
-                    .stream()
-                    .map(task -> {
-                        boolean propagatedToChildren = false;
-                        boolean propagatedFromChildren = false;
-                        boolean propagatedToSelf = false;
-
-                        if (Tasks.isDone(task.getState()) || task.getState() == TaskStateCode.PLANNED) {
-                            // this parent became planned or done. may be transite from planned to done immediately
-                            propagatedToSelf = sm.lockTaskIfExists(task.getId(), (store, storedTask) -> {
-                                return setDoneFromDoneChildren(new TaskControl(store, storedTask));
-                            }).or(false);
-
-                            if (!propagatedToSelf) {
-                                // if this task is not done yet, transite children from blocked to ready
-                                propagatedToChildren = sm.lockTaskIfExists(task.getId(), (store) ->
-                                    // collect parameters and set them to ready tasks at the same time? no, because children's export_params/store_params are not propagated to parents
-                                    store.trySetChildrenBlockedToReadyOrShortCircuitPlannedOrCanceled(task.getId()) > 0
-                                ).or(false);
-                            }
-                        }
 
-                        if (Tasks.isDone(task.getState())) {
-                            if (task.getParentId().isPresent()) {
-                                // this child became done. try to transite parent from planned to done.
-                                // and dependint siblings tasks may be able to start
-                                if (checkedParentIds.add(task.getParentId().get())) {
-                                    propagatedFromChildren = sm.lockTaskIfExists(task.getParentId().get(), (store, storedTask) -> {
-                                        boolean doneFromChildren = setDoneFromDoneChildren(new TaskControl(store, storedTask));
-                                        boolean siblingsToReady = store.trySetChildrenBlockedToReadyOrShortCircuitPlannedOrCanceled(task.getId()) > 0;
-                                        return doneFromChildren || siblingsToReady;
-                                    }).or(false);
-                                }
-                            }
-                            else {
-                                // root task became done.
-                                // TODO return archiveSession(task.getid());
-                                //logger.info("Root task is done with state {}",
-                                //        task.getState());
-                            }
-                        }
-
-                        lastUpdatedAt = task.getUpdatedAt();
-                        lastUpdatedId = task.getId();
+                // a parent task locked once in a page already sees all changes
+                // of its children committed before the page is fetched.
+                Set<Long> checkedParentIds = new HashSet<>();
+                for (TaskStateSummary task : tasks) {
+                    if (!task.getUpdatedAt().equals(propagatedChanges.get(task.getId()))) {
+                        anyChanged = propagateTaskChange(task, checkedParentIds) || anyChanged;
+                        propagatedChanges.put(task.getId(), task.getUpdatedAt());
+                    }
+                }
 
-                        return propagatedToChildren || propagatedFromChildren || propagatedToSelf;
-                    })
-                    .reduce(anyChanged, (a, b) -> a || b);
+                TaskStateSummary last = tasks.get(tasks.size() - 1);
+                lastUpdatedAt = last.getUpdatedAt();
+                lastUpdatedId = last.getId();
             }
             updatedSince = nextUpdatedSince;
 
             return anyChanged;
         }
+
+        private boolean propagateTaskChange(TaskStateSummary task, Set<Long> checkedParentIds)
+        {
+            TaskStateCode state = task.getState();
+
+            if (state == TaskStateCode.PLANNED) {
+                // this task became planned. It may transit from planned to done immediately.
+                // Otherwise, transit its children from blocked to ready.
+                return sm.lockTaskIfExists(task.getId(), (store, storedTask) -> {
+                    if (setDoneFromDoneChildren(new TaskControl(store, storedTask))) {
+                        return true;
+                    }
+                    return store.trySetChildrenBlockedToReadyOrShortCircuitPlannedOrCanceled(task.getId()) > 0;
+                }).or(false);
+            }
+            else if (Tasks.isDone(state)) {
+                if (task.getParentId().isPresent()) {
+                    // this child became done. try to transit parent from planned to done,
+                    // and depending sibling tasks may be able to start.
+                    return propagateToParent(task.getParentId().get(), checkedParentIds);
+                }
+                else {
+                    // root task became done.
+                    return archiveSession(task.getAttemptId(), state);
+                }
+            }
+            else if (state == TaskStateCode.BLOCKED && task.getParentId().isPresent()) {
+                // this task is added to a parent that may be already planned (e.g. group retry).
+                return propagateToParent(task.getParentId().get(), checkedParentIds);
+            }
+            else {
+                // READY tasks are enqueued by enqueueReadyTasks and RETRY_WAITING tasks
+                // are handled by retryRetryWaitingTasks.
+                return false;
+            }
+        }
+
+        private boolean propagateToParent(long parentId, Set<Long> checkedParentIds)
+        {
+            if (!checkedParentIds.add(parentId)) {
+                return false;
+            }
+            return sm.lockTaskIfExists(parentId, (store, storedTask) -> {
+                if (setDoneFromDoneChildren(new TaskControl(store, storedTask))) {
+                    return true;
+                }
+                return store.trySetChildrenBlockedToReadyOrShortCircuitPlannedOrCanceled(parentId) > 0;
+            }).or(false);
+        }
     }
 
-    private boolean retryRetryWaitingTasks()
+    private boolean retryRetryWaitingTasks(AttemptPartition partition)
     {
-        return sm.trySetRetryWaitingToReady() > 0;
+        return sm.trySetRetryWaitingToReady(partition) > 0;
     }
 
     private class TaskQueuer
@@ -788,11 +930,140 @@ public class WorkflowExecutor
         //}
     }
 
-    private void enqueueReadyTasks(TaskQueuer queuer)
+    private void enqueueReadyTasks(TaskQueuer queuer, AttemptPartition partition)
+    {
+        List<ReadyTaskSummary> readyTasks = selectFairly(sm.findReadyTasks(enqueueFetchSize, partition));
+        readyTaskCount.set(readyTasks.size());
+        for (List<ReadyTaskSummary> batch : Lists.partition(readyTasks, enqueueBatchSize)) {
+            long startNanos = System.nanoTime();
+            enqueueTasks(batch);
+            enqueueTime.recordSince(startNanos);
+            enqueuedTasks.add(batch.size());
+        }
+    }
+
+    // Reorder tasks so that sites and attempts are selected in round-robin.
+    // Otherwise, an attempt that has a lot of ready tasks (e.g. a large for_each>)
+    // delays other attempts.
+    @VisibleForTesting
+    static List<ReadyTaskSummary> selectFairly(List<ReadyTaskSummary> tasks)
+    {
+        Map<Integer, Deque<Deque<ReadyTaskSummary>>> attemptsOfSites = new LinkedHashMap<>();
+        Map<Long, Deque<ReadyTaskSummary>> tasksOfAttempts = new HashMap<>();
+        for (ReadyTaskSummary task : tasks) {
+            Deque<ReadyTaskSummary> tasksOfAttempt = tasksOfAttempts.get(task.getAttemptId());
+            if (tasksOfAttempt == null) {
+                tasksOfAttempt = new ArrayDeque<>();
+                tasksOfAttempts.put(task.getAttemptId(), tasksOfAttempt);
+                attemptsOfSites.computeIfAbsent(task.getSiteId(), (key) -> new ArrayDeque<>()).add(tasksOfAttempt);
+            }
+            tasksOfAttempt.add(task);
+        }
+
+        // randomize the first site not to prioritize a specific site always
+        List<Deque<Deque<ReadyTaskSummary>>> sites = new ArrayList<>(attemptsOfSites.values());
+        Collections.shuffle(sites);
+
+        List<ReadyTaskSummary> selected = new ArrayList<>(tasks.size());
+        while (!sites.isEmpty()) {
+            Iterator<Deque<Deque<ReadyTaskSummary>>> it = sites.iterator();
+            while (it.hasNext()) {
+                Deque<Deque<ReadyTaskSummary>> attempts = it.next();
+                Deque<ReadyTaskSummary> tasksOfAttempt = attempts.removeFirst();
+                selected.add(tasksOfAttempt.removeFirst());
+                if (!tasksOfAttempt.isEmpty()) {
+                    attempts.addLast(tasksOfAttempt);
+                }
+                if (attempts.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+        return selected;
+    }
+
+    private void enqueueTasks(List<ReadyTaskSummary> readyTasks)
     {
-        for (long taskId : sm.findAllReadyTaskIds(100)) {  // TODO randomize this resut to achieve concurrency
+        List<Long> taskIds = readyTasks.stream()
+            .map(ReadyTaskSummary::getId)
+            .collect(Collectors.toList());
+
+        List<Long> fallbackTaskIds = sm.lockTasksInState(taskIds, TaskStateCode.READY, (store, lockedTasks) -> {
+            Map<Long, StoredTask> lockedTaskMap = new HashMap<>();
+            for (StoredTask task : lockedTasks) {
+                lockedTaskMap.put(task.getId(), task);
+            }
+
+            // keep order of readyTasks so that the task queue receives tasks in the fair order
+            Map<Integer, List<StoredTask>> dispatchingTasksOfSites = new LinkedHashMap<>();
+            for (ReadyTaskSummary readyTask : readyTasks) {
+                StoredTask task = lockedTaskMap.get(readyTask.getId());
+                if (task == null) {
+                    // already enqueued by another thread
+                    continue;
+                }
+                if (task.getTaskType().isGroupingOnly()) {
+                    retryGroupingTask(new TaskControl(store, task));
+                }
+                else if (task.getStateFlags().isCancelRequested()) {
+                    new TaskControl(store, task).setToCanceled();
+                }
+                else {
+                    dispatchingTasksOfSites.computeIfAbsent(readyTask.getSiteId(), (key) -> new ArrayList<>()).add(task);
+                }
+            }
+
+            ImmutableList.Builder<Long> failedTaskIds = ImmutableList.builder();
+            for (Map.Entry<Integer, List<StoredTask>> pair : dispatchingTasksOfSites.entrySet()) {
+                int siteId = pair.getKey();
+                List<StoredTask> tasks = pair.getValue();
+
+                // TODO make queue name configurable. see also enqueueTask.
+                Optional<String> queueName = Optional.absent();
+
+                List<TaskQueueRequest> requests = tasks.stream()
+                    .map(task -> TaskQueueRequest.builder()
+                            .priority(0)  // TODO make this configurable
+                            .uniqueName(encodeUniqueQueuedTaskName(task))
+                            .data(Optional.absent())
+                            .build())
+                    .collect(Collectors.toList());
+                List<Long> ids = tasks.stream()
+                    .map(StoredTask::getId)
+                    .collect(Collectors.toList());
+
+                logger.debug("Queuing {} tasks of site id={}", requests.size(), siteId);
+                try {
+                    List<String> conflicts = dispatcher.dispatchAll(siteId, queueName, requests);
+                    for (String encodedUnique : conflicts) {
+                        logger.warn("Task name {} is already queued in queue={} of site id={}. Skipped enqueuing",
+                                encodedUnique, queueName.or("<shared>"), siteId);
+                    }
+                }
+                catch (Exception ex) {
+                    // enqueueTask handles errors of each task
+                    logger.warn("Failed to enqueue {} tasks at once. Retrying them one by one.", ids.size(), ex);
+                    failedTaskIds.addAll(ids);
+                    continue;
+                }
+
+                ////
+                // don't throw exceptions after here. tasks are already dispatched to a queue
+                //
+
+                int updated = store.setStateOfTasks(ids, TaskStateCode.READY, TaskStateCode.RUNNING);
+                if (updated != ids.size()) {
+                    // return value of setStateOfTasks must be same with number of tasks because
+                    // these tasks are locked (won't be updated by other machines concurrently)
+                    // and confirmed that current state is READY.
+                    logger.warn("Unexpected state change failure from READY to RUNNING: {} of {} tasks are updated", updated, ids.size());
+                }
+            }
+            return failedTaskIds.build();
+        });
+
+        for (long taskId : fallbackTaskIds) {
             enqueueTask(dispatcher, taskId);
-            //queuer.asyncEnqueueTask(taskId);  // TODO async queuing is probably unnecessary but not sure
         }
     }
 
@@ -1008,9 +1279,10 @@ public class WorkflowExecutor
         // rest task state of subtasks
         StoredTask task = lockedTask.get();
 
-        TaskTree tree = new TaskTree(sm.getTaskRelations(task.getAttemptId()));
-        List<Long> childrenIdList = tree.getRecursiveChildrenIdList(task.getId());
+        List<Long> childrenIdList = taskTreeCache.withAttemptTasks(task.getAttemptId(),
+                (tasks) -> tasks.getTaskTree().getRecursiveChildrenIdList(task.getId()));
         lockedTask.copyInitialTasksForRetry(childrenIdList);
+        taskTreeCache.invalidateParams(task.getAttemptId());
 
         lockedTask.setGroupRetryReadyToPlanned();
 
@@ -1024,6 +1296,7 @@ public class WorkflowExecutor
             taskFailed(new TaskControl(store, task), error)
         ).or(false);
         if (changed) {
+            publishTaskStateChange();
             try {
                 dispatcher.taskFinished(siteId, lockId, agentId);
             }
@@ -1045,6 +1318,7 @@ public class WorkflowExecutor
                     result)
         ).or(false);
         if (changed) {
+            publishTaskStateChange();
             try {
                 dispatcher.taskFinished(siteId, lockId, agentId);
             }
@@ -1068,6 +1342,7 @@ public class WorkflowExecutor
                 error)
         ).or(false);
         if (changed) {
+            publishTaskStateChange();
             try {
                 dispatcher.taskFinished(siteId, lockId, agentId);
             }
@@ -1174,18 +1449,21 @@ public class WorkflowExecutor
 
     private void collectParams(Config params, StoredTask task, StoredSessionAttempt attempt)
     {
-        List<Long> parentsFromRoot;
-        List<Long> parentsUpstreamChildrenFromFar;
-        {
-            TaskTree tree = new TaskTree(sm.getTaskRelations(attempt.getId()));
-            parentsFromRoot = tree.getRecursiveParentIdListFromRoot(task.getId());
-            parentsUpstreamChildrenFromFar = tree.getRecursiveParentsUpstreamChildrenIdListFromFar(task.getId());
-        }
+        List<Long> parentsFromRoot = new ArrayList<>();
+        List<Long> parentsUpstreamChildrenFromFar = new ArrayList<>();
+        List<Config> exports = new ArrayList<>();
+        List<Config> stores = new ArrayList<>();
+        taskTreeCache.withAttemptTasks(attempt.getId(), (tasks) -> {
+            TaskTree tree = tasks.getTaskTree();
+            parentsFromRoot.addAll(tree.getRecursiveParentIdListFromRoot(task.getId()));
+            parentsUpstreamChildrenFromFar.addAll(tree.getRecursiveParentsUpstreamChildrenIdListFromFar(task.getId()));
+            exports.addAll(tasks.getExportParams(parentsFromRoot));
+            stores.addAll(tasks.getStoreParams(parentsUpstreamChildrenFromFar));
+            return null;
+        });
 
         // task merge order is:
         //   export < store < local
-        List<Config> exports = sm.getExportParams(parentsFromRoot);
-        List<Config> stores = sm.getStoreParams(parentsUpstreamChildrenFromFar);
         for (int si=0; si < parentsUpstreamChildrenFromFar.size(); si++) {
             Config stored = stores.get(si);
             long taskId = parentsUpstreamChildrenFromFar.get(si);
@@ -1200,6 +1478,13 @@ public class WorkflowExecutor
         params.merge(task.getConfig().getExport());
     }
 
+    private long addGeneratedSubtasks(TaskControl lockedTask, WorkflowTaskList tasks, List<Long> rootUpstreamIds, boolean cancelSiblings)
+    {
+        long rootTaskId = lockedTask.addGeneratedSubtasks(tasks, rootUpstreamIds, cancelSiblings);
+        taskTreeCache.invalidateParams(lockedTask.get().getAttemptId());
+        return rootTaskId;
+    }
+
     private Optional<Long> addSubtasksIfNotEmpty(TaskControl lockedTask, Config subtaskConfig)
     {
         if (subtaskConfig.isEmpty()) {
@@ -1212,7 +1497,7 @@ public class WorkflowExecutor
         }
 
         logger.trace("Adding sub tasks: {}", tasks);
-        long rootTaskId = lockedTask.addGeneratedSubtasks(tasks, ImmutableList.of(), true);
+        long rootTaskId = addGeneratedSubtasks(lockedTask, tasks, ImmutableList.of(), true);
         return Optional.of(rootTaskId);
     }
 
@@ -1241,7 +1526,7 @@ public class WorkflowExecutor
         }
 
         logger.trace("Adding error tasks: {}", tasks);
-        long rootTaskId = lockedTask.addGeneratedSubtasks(tasks, ImmutableList.of(), false);
+        long rootTaskId = addGeneratedSubtasks(lockedTask, tasks, ImmutableList.of(), false);
         taskIds.add(rootTaskId);
         return taskIds;
     }
@@ -1252,7 +1537,7 @@ public class WorkflowExecutor
         config.set("_type", "notify");
         config.set("_command", "Workflow session attempt failed");
         WorkflowTaskList tasks = compiler.compileTasks(rootTask.get().getFullName(), "^failure-alert", config);
-        return rootTask.addGeneratedSubtasks(tasks, ImmutableList.of(), false);
+        return addGeneratedSubtasks(rootTask, tasks, ImmutableList.of(), false);
     }
 
     private Optional<Long> addCheckTasksIfAny(TaskControl lockedTask, Optional<Long> upstreamTaskId)
@@ -1269,7 +1554,7 @@ public class WorkflowExecutor
 
         logger.trace("Adding check tasks: {}"+tasks);
         List<Long> upstreamTaskIdList = upstreamTaskId.transform(id -> ImmutableList.of(id)).or(ImmutableList.of());
-        long rootTaskId = lockedTask.addGeneratedSubtasks(tasks, upstreamTaskIdList, false);
+        long rootTaskId = addGeneratedSubtasks(lockedTask, tasks, upstreamTaskIdList, false);
         return Optional.of(rootTaskId);
     }
 
@@ -1291,7 +1576,7 @@ public class WorkflowExecutor
         }
 
         logger.trace("Adding {} tasks: {}", type, tasks);
-        long rootTaskId = lockedTask.addGeneratedSubtasks(tasks, ImmutableList.of(), false);
+        long rootTaskId = addGeneratedSubtasks(lockedTask, tasks, ImmutableList.of(), false);
         return Optional.of(rootTaskId);
     }
 
@@ -1315,7 +1600,7 @@ public class WorkflowExecutor
             WorkflowTaskList tasks = compiler.compileTasks(lockedTask.get().getFullName(), "^" + type + "^alert", config);
             logger.trace("Adding {} tasks: {}", type, tasks);
             // TODO: attempt should not fail if the alert notification task fails
-            lockedTask.addGeneratedSubtasks(tasks, ImmutableList.of(), false);
+            addGeneratedSubtasks(lockedTask, tasks, ImmutableList.of(), false);
         }
 
         // Fail the attempt?
@@ -1333,7 +1618,7 @@ public class WorkflowExecutor
             config.set("_command", "SLA violation");
             WorkflowTaskList tasks = compiler.compileTasks(lockedTask.get().getFullName(), "^" + type + "^fail", config);
             logger.trace("Adding {} tasks: {}", type, tasks);
-            lockedTask.addGeneratedSubtasks(tasks, ImmutableList.of(), false);
+            addGeneratedSubtasks(lockedTask, tasks, ImmutableList.of(), false);
         }
     }
 }
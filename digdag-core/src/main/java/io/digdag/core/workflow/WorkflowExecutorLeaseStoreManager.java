@@ -0,0 +1,32 @@
+package io.digdag.core.workflow;
+
+import java.time.Instant;
+
+/**
+ * Leases of attempt partitions held by workflow executor loops.
+ *
+ * A server runs WorkflowExecutor loops only for partitions that it leases
+ * so that servers sharing the database don't scan the same tasks. Leases
+ * don't guarantee exclusiveness (tasks are locked when they change); they
+ * only avoid contention.
+ *
+ * currentTime and expireTime are expected to be based on the clock of the
+ * database (SessionStoreManager.getStoreTime) so that all servers agree on
+ * expiration.
+ */
+public interface WorkflowExecutorLeaseStoreManager
+{
+    // acquires a lease if it's not held, expired, or already held by the owner.
+    // Expiration time is extended if acquired.
+    boolean tryAcquireLease(int partitionIndex, String owner, Instant currentTime, Instant expireTime);
+
+    void releaseLease(int partitionIndex, String owner);
+
+    // registers the owner as live until expireTime and removes expired owners
+    void heartbeat(String owner, Instant currentTime, Instant expireTime);
+
+    void removeOwner(String owner);
+
+    // number of owners whose heartbeat isn't expired
+    int countLiveOwners(Instant currentTime);
+}
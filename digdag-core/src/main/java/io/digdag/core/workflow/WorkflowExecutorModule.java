@@ -4,6 +4,7 @@ import com.google.inject.Module;
 import com.google.inject.Binder;
 import com.google.inject.Scopes;
 import io.digdag.core.session.SessionMonitorExecutor;
+import io.digdag.core.session.TaskArchiveCompactor;
 
 public class WorkflowExecutorModule
         implements Module
@@ -17,5 +18,6 @@ public class WorkflowExecutorModule
 
         // session
         binder.bind(SessionMonitorExecutor.class).asEagerSingleton();
+        binder.bind(TaskArchiveCompactor.class).asEagerSingleton();
     }
 }
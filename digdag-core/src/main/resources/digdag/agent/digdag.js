@@ -57,3 +57,18 @@ function template(code, variables)
 
   return vs;
 }
+
+// params and locals are JSON strings. params are parsed for each value so
+// that a template that modifies params doesn't change results of other
+// values. locals overwrite variables of params, or null.
+function templateWithLocals(code, params, locals)
+{
+  var variables = JSON.parse(params);
+  if (locals != null) {
+    var parsed = JSON.parse(locals);
+    for (var key in parsed) {
+      variables[key] = parsed[key];
+    }
+  }
+  return template(code, variables);
+}
@@ -0,0 +1,126 @@
+package io.digdag.core.agent;
+
+import com.google.common.collect.ImmutableList;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigFactory;
+import io.digdag.spi.TemplateException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import static io.digdag.core.database.DatabaseTestingUtils.createConfigFactory;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ConfigEvalEngineTest
+{
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    private final ConfigFactory cf = createConfigFactory();
+    private final ConfigEvalEngine engine = new ConfigEvalEngine();
+
+    private Config params()
+    {
+        return cf.create()
+            .set("timezone", "Asia/Tokyo")
+            .set("name", "foo")
+            .set("nested", cf.create().set("key", "value"));
+    }
+
+    @Test
+    public void evalTemplates()
+        throws Exception
+    {
+        Config config = cf.create()
+            .set("plain", "no variables")
+            .set("escaped", "costs $$5")
+            .set("escapedWithVariable", "${name} costs $$5")
+            .set("variable", "${name}-${nested.key}")
+            .set("json", "${nested}");
+
+        Config evaluated = engine.eval(config, params());
+
+        assertThat(evaluated.get("plain", String.class), is("no variables"));
+        // strings without variables skip JavaScript but the result must be the same
+        assertThat(evaluated.get("escaped", String.class), is("costs $5"));
+        assertThat(evaluated.get("escapedWithVariable", String.class), is("foo costs $5"));
+        assertThat(evaluated.get("variable", String.class), is("foo-value"));
+        assertThat(evaluated.get("json", String.class), is("{\"key\":\"value\"}"));
+    }
+
+    @Test
+    public void localValuesOverwriteParams()
+        throws Exception
+    {
+        Config config = cf.create()
+            .set("name", "bar")
+            .set("greeting", "hello ${name}");
+
+        Config evaluated = engine.eval(config, params());
+
+        assertThat(evaluated.get("greeting", String.class), is("hello bar"));
+    }
+
+    @Test
+    public void templatesDontModifyParamsOfOtherValues()
+        throws Exception
+    {
+        // params are serialized once for all values of a config
+        Config config = cf.create()
+            .set("modify", "${nested.key = 'modified'}")
+            .set("read", "${nested.key}");
+
+        Config evaluated = engine.eval(config, params());
+
+        assertThat(evaluated.get("modify", String.class), is("modified"));
+        assertThat(evaluated.get("read", String.class), is("value"));
+    }
+
+    @Test
+    public void templatesCanModifyParams()
+        throws Exception
+    {
+        Config config = cf.create()
+            .set("sorted", "${list.sort()}")
+            .set("pushed", "${list.push(0)}");
+
+        Config evaluated = engine.eval(config, params().set("list", ImmutableList.of(3, 1, 2)));
+
+        assertThat(evaluated.get("sorted", String.class), is("[1,2,3]"));
+        assertThat(evaluated.get("pushed", String.class), is("4"));
+    }
+
+    @Test
+    public void templateUsesTimezone()
+        throws Exception
+    {
+        String text = engine.template("${new Date(0).getHours()}", params());
+        assertThat(text, is("9"));
+
+        String utc = engine.template("${new Date(0).getHours()}", params().set("timezone", "UTC"));
+        assertThat(utc, is("0"));
+    }
+
+    @Test
+    public void globalVariablesDontLeakToNextEvaluation()
+        throws Exception
+    {
+        engine.template("${leaked = 1}", params());
+
+        exception.expect(TemplateException.class);
+        exception.expectMessage(containsString("ReferenceError: \"leaked\" is not defined"));
+        engine.template("${leaked}", params());
+    }
+
+    @Test
+    public void builtInObjectsDontLeakToNextEvaluation()
+        throws Exception
+    {
+        engine.template("${Array.prototype.join = Array.prototype.reverse}", params());
+
+        String text = engine.template("${[1, 2].join('-')}", params());
+        assertThat(text, is("1-2"));
+    }
+}
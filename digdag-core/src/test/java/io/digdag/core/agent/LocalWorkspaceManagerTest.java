@@ -0,0 +1,163 @@
+package io.digdag.core.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import io.digdag.core.TempFileManager;
+import io.digdag.core.archive.ArchiveIndex;
+import io.digdag.core.archive.IndexedArchive;
+import io.digdag.core.archive.IndexedArchiveWriter;
+import io.digdag.spi.StorageObject;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static io.digdag.core.database.DatabaseTestingUtils.createConfig;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class LocalWorkspaceManagerTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalWorkspaceManager workspaceManager;
+    private byte[] archive;
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        workspaceManager = new LocalWorkspaceManager(
+                new TempFileManager(folder.newFolder("tmp").toPath()),
+                createConfig());
+
+        Map<String, String> files = new LinkedHashMap<>();
+        files.put("digdag.dig", "timezone: UTC\n");
+        files.put("scripts/a.py", "print('a')\n");
+        files.put("scripts/b.py", "print('b')\n");
+        files.put("query.sql", "select 1\n");
+        files.put("scripts/c.py", "print('c')\n");
+        archive = tarGz(files);
+    }
+
+    private static byte[] tarGz(Map<String, String> files)
+        throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GZIPOutputStream(out))) {
+            for (Map.Entry<String, String> file : files.entrySet()) {
+                byte[] data = file.getValue().getBytes(UTF_8);
+                TarArchiveEntry entry = new TarArchiveEntry("./" + file.getKey());
+                entry.setSize(data.length);
+                tar.putArchiveEntry(entry);
+                tar.write(data);
+                tar.closeArchiveEntry();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static List<String> listFiles(Path dir)
+        throws Exception
+    {
+        return Files.walk(dir)
+            .filter(path -> Files.isRegularFile(path))
+            .map(path -> dir.relativize(path).toString())
+            .sorted()
+            .collect(Collectors.toList());
+    }
+
+    @Test
+    public void coalesceAdjacentEntries()
+    {
+        List<ArchiveIndex.Entry> entries = ImmutableList.of(
+                new ArchiveIndex.Entry("a", 100, 10),
+                new ArchiveIndex.Entry("b", 110, 20),
+                new ArchiveIndex.Entry("c", 130, 5),
+                new ArchiveIndex.Entry("d", 135, 5),
+                new ArchiveIndex.Entry("e", 140, 5));
+
+        List<List<ArchiveIndex.Entry>> runs = LocalWorkspaceManager.coalesceRanges(entries, name -> !name.equals("c"));
+
+        // "c" is skipped. "d" is not adjacent to "b" any more.
+        assertThat(runs.size(), is(2));
+        assertThat(runs.get(0).stream().map(ArchiveIndex.Entry::getName).collect(Collectors.toList()), contains("a", "b"));
+        assertThat(runs.get(1).stream().map(ArchiveIndex.Entry::getName).collect(Collectors.toList()), contains("d", "e"));
+
+        assertThat(LocalWorkspaceManager.coalesceRanges(entries, name -> false).isEmpty(), is(true));
+    }
+
+    @Test
+    public void extractIncludedFilesWithIndex()
+        throws Exception
+    {
+        IndexedArchiveWriter.Result result = IndexedArchiveWriter.rewrite(archive);
+        byte[] data = result.getData();
+        List<Long> requestedOffsets = new ArrayList<>();
+
+        Path dest = folder.newFolder("dest").toPath();
+        workspaceManager.extractIncludedFiles(dest, new WorkspaceManager.ArchiveProvider()
+        {
+            @Override
+            public Optional<StorageObject> open()
+            {
+                throw new AssertionError("whole archive must not be read");
+            }
+
+            @Override
+            public Optional<IndexedArchive> openIndexed()
+            {
+                return Optional.of(new IndexedArchive()
+                {
+                    @Override
+                    public ArchiveIndex getIndex()
+                    {
+                        return result.getIndex();
+                    }
+
+                    @Override
+                    public InputStream openRange(long offset, long length)
+                    {
+                        requestedOffsets.add(offset);
+                        return new ByteArrayInputStream(Arrays.copyOfRange(data, (int) offset, (int) (offset + length)));
+                    }
+                });
+            }
+        }, ImmutableList.of("scripts/*.py", "digdag.dig"));
+
+        assertThat(listFiles(dest), contains("digdag.dig", "scripts/a.py", "scripts/b.py", "scripts/c.py"));
+        assertThat(new String(Files.readAllBytes(dest.resolve("scripts/b.py")), UTF_8), is("print('b')\n"));
+
+        // digdag.dig, a.py and b.py are adjacent. query.sql splits c.py into another range.
+        assertThat(requestedOffsets.size(), is(2));
+    }
+
+    @Test
+    public void extractIncludedFilesWithoutIndex()
+        throws Exception
+    {
+        Path dest = folder.newFolder("dest").toPath();
+        workspaceManager.extractIncludedFiles(dest,
+                () -> Optional.of(new StorageObject(new ByteArrayInputStream(archive), archive.length)),
+                ImmutableList.of("*.sql"));
+
+        assertThat(listFiles(dest), contains("query.sql"));
+    }
+}
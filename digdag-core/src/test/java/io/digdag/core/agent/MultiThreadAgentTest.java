@@ -0,0 +1,109 @@
+package io.digdag.core.agent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.google.common.base.Optional;
+import io.digdag.core.ErrorReporter;
+import io.digdag.core.metrics.MetricRegistry;
+import io.digdag.spi.TaskRequest;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class MultiThreadAgentTest
+{
+    private static class QueueTaskServer
+            implements TaskServerApi
+    {
+        private final AtomicInteger remaining;
+        private final AtomicInteger running;
+        private final int maxThreads;
+        final List<Integer> requests = Collections.synchronizedList(new ArrayList<>());
+        volatile boolean overRequested = false;
+
+        QueueTaskServer(int tasks, AtomicInteger running, int maxThreads)
+        {
+            this.remaining = new AtomicInteger(tasks);
+            this.running = running;
+            this.maxThreads = maxThreads;
+        }
+
+        @Override
+        public List<TaskRequest> lockSharedAgentTasks(int count, AgentId agentId, int lockSeconds, long maxSleepMillis)
+        {
+            requests.add(count);
+            if (count > maxThreads - running.get()) {
+                overRequested = true;
+            }
+            List<TaskRequest> reqs = new ArrayList<>();
+            while (reqs.size() < count && remaining.getAndDecrement() > 0) {
+                reqs.add(mock(TaskRequest.class));
+            }
+            if (reqs.isEmpty()) {
+                try {
+                    Thread.sleep(Math.min(maxSleepMillis, 10));
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return reqs;
+        }
+
+        @Override
+        public void interruptLocalWait()
+        { }
+    }
+
+    @Test
+    public void fetchNextTasksWhenTaskFinishes()
+        throws Exception
+    {
+        int maxThreads = 50;
+        int taskCount = 1000;
+
+        AtomicInteger running = new AtomicInteger(0);
+        CountDownLatch finished = new CountDownLatch(taskCount);
+        OperatorManager runner = mock(OperatorManager.class);
+        doAnswer(invocation -> {
+            running.incrementAndGet();
+            Thread.sleep(5);
+            running.decrementAndGet();
+            finished.countDown();
+            return null;
+        }).when(runner).run(any(TaskRequest.class));
+
+        QueueTaskServer server = new QueueTaskServer(taskCount, running, maxThreads);
+        AgentConfig config = AgentConfig.defaultBuilder().maxThreads(maxThreads).build();
+        MetricRegistry metrics = new MetricRegistry();
+        MultiThreadAgent agent = new MultiThreadAgent(config, AgentId.of("test"), server, runner, ErrorReporter.empty(), metrics);
+
+        Thread thread = new Thread(agent);
+        thread.start();
+        try {
+            // threads are refilled as soon as tasks finish. previously, a full
+            // pool slept 500ms before fetching next tasks.
+            assertThat(finished.await(30, TimeUnit.SECONDS), is(true));
+        }
+        finally {
+            agent.shutdown(Optional.absent());
+            thread.join();
+        }
+
+        assertThat(server.overRequested, is(false));
+        // fetch size grows beyond the initial size while the queue has tasks
+        assertThat(Collections.max(server.requests), greaterThan(10));
+        assertThat(Collections.max(server.requests), lessThanOrEqualTo(maxThreads));
+        assertThat(metrics.getValues().get("digdag_agent_task_pickup_seconds_count").longValue(), greaterThan(0L));
+    }
+}
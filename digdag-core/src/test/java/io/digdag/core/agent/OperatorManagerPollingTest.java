@@ -0,0 +1,201 @@
+package io.digdag.core.agent;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import com.google.common.base.Optional;
+import io.digdag.client.config.ConfigElement;
+import io.digdag.client.config.ConfigFactory;
+import io.digdag.spi.SecretAccessPolicy;
+import io.digdag.spi.SecretStoreManager;
+import io.digdag.spi.TaskExecutionException;
+import io.digdag.spi.TaskRequest;
+import io.digdag.spi.TaskResult;
+import io.digdag.core.metrics.MetricRegistry;
+import io.digdag.core.workflow.WorkflowCompiler;
+import org.junit.Test;
+
+import static io.digdag.core.database.DatabaseTestingUtils.createConfigFactory;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+public class OperatorManagerPollingTest
+{
+    private final ConfigFactory cf = createConfigFactory();
+
+    private class PollingOperatorManager
+            extends OperatorManager
+    {
+        private final int pollInterval;
+        private final int pollsUntilDone;
+        final List<Integer> states = new ArrayList<>();
+
+        PollingOperatorManager(AgentConfig config, int pollInterval, int pollsUntilDone)
+        {
+            super(config, AgentId.of("test"),
+                    mock(TaskCallbackApi.class), mock(WorkspaceManager.class),
+                    mock(WorkflowCompiler.class), cf,
+                    mock(ConfigEvalEngine.class), mock(OperatorRegistry.class),
+                    mock(SecretStoreManager.class), mock(SecretAccessPolicy.class));
+            this.pollInterval = pollInterval;
+            this.pollsUntilDone = pollsUntilDone;
+        }
+
+        @Override
+        protected TaskResult callExecutor(Path workspacePath, String type, TaskRequest mergedRequest)
+        {
+            int count = mergedRequest.getLastStateParams().get("count", int.class, 0);
+            states.add(count);
+            if (count < pollsUntilDone) {
+                throw TaskExecutionException.ofNextPolling(pollInterval,
+                        ConfigElement.copyOf(cf.create().set("count", count + 1)));
+            }
+            return TaskResult.empty(cf);
+        }
+    }
+
+    private TaskRequest request()
+    {
+        return TaskRequest.builder()
+            .siteId(0)
+            .projectId(1)
+            .projectName(Optional.of("proj"))
+            .workflowName("wf")
+            .revision(Optional.of("rev"))
+            .taskId(1)
+            .attemptId(1)
+            .sessionId(1)
+            .retryAttemptName(Optional.absent())
+            .taskName("+wf+poll")
+            .lockId("lock")
+            .timeZone(ZoneId.of("UTC"))
+            .sessionUuid(UUID.randomUUID())
+            .sessionTime(Instant.now())
+            .createdAt(Instant.now())
+            .localConfig(cf.create())
+            .config(cf.create())
+            .lastStateParams(cf.create())
+            .build();
+    }
+
+    private static AgentConfig inProcessPollingConfig()
+    {
+        return AgentConfig.defaultBuilder().maxInProcessPollingDuration(60).build();
+    }
+
+    @Test
+    public void pollingIsSentBackToQueueByDefault()
+    {
+        // in-process polling is opt-in. state params are stored by retryTask
+        // before every wait so that a crashed agent resumes from the last poll.
+        PollingOperatorManager manager = new PollingOperatorManager(AgentConfig.defaultBuilder().build(), 1, 3);
+        try {
+            manager.callExecutorWithPolling(Paths.get(""), "poll", request());
+            fail();
+        }
+        catch (TaskExecutionException ex) {
+            assertThat(ex.getRetryInterval(), is(Optional.of(1)));
+            assertThat(ex.getStateParams(cf).get().get("count", int.class), is(1));
+        }
+        assertThat(manager.states.toString(), is("[0]"));
+        assertThat(manager.getInProcessPollCount(), is(0L));
+    }
+
+    @Test
+    public void pollInProcess()
+    {
+        PollingOperatorManager manager = new PollingOperatorManager(inProcessPollingConfig(), 0, 3);
+        manager.callExecutorWithPolling(Paths.get(""), "poll", request());
+
+        // state params of the previous poll are passed to the next poll
+        assertThat(manager.states.toString(), is("[0, 1, 2, 3]"));
+        assertThat(manager.getPollCount(), is(3L));
+        assertThat(manager.getInProcessPollCount(), is(3L));
+    }
+
+    @Test
+    public void pollCountsAreExportedAsCounters()
+    {
+        MetricRegistry metrics = new MetricRegistry();
+        PollingOperatorManager manager = new PollingOperatorManager(inProcessPollingConfig(), 0, 2);
+        manager.setMetricRegistry(metrics);
+        manager.callExecutorWithPolling(Paths.get(""), "poll", request());
+
+        String text = metrics.toPrometheusText();
+        assertThat(text.contains("# TYPE digdag_agent_operator_polls_total counter\n"), is(true));
+        assertThat(text.contains("# TYPE digdag_agent_operator_in_process_polls_total counter\n"), is(true));
+        assertThat(metrics.getValues().get("digdag_agent_operator_polls_total"), is(2L));
+        assertThat(metrics.getValues().get("digdag_agent_operator_in_process_polls_total"), is(2L));
+    }
+
+    @Test
+    public void longIntervalIsSentBackToQueue()
+    {
+        AgentConfig config = AgentConfig.defaultBuilder()
+            .maxInProcessPollingInterval(10)
+            .maxInProcessPollingDuration(60)
+            .build();
+        PollingOperatorManager manager = new PollingOperatorManager(config, 60, 3);
+        try {
+            manager.callExecutorWithPolling(Paths.get(""), "poll", request());
+            fail();
+        }
+        catch (TaskExecutionException ex) {
+            assertThat(ex.getRetryInterval(), is(Optional.of(60)));
+            assertThat(ex.getStateParams(cf).get().get("count", int.class), is(1));
+        }
+        assertThat(manager.getPollCount(), is(1L));
+        assertThat(manager.getInProcessPollCount(), is(0L));
+    }
+
+    @Test
+    public void disableInProcessPolling()
+    {
+        AgentConfig config = AgentConfig.defaultBuilder().maxInProcessPollingDuration(0).build();
+        PollingOperatorManager manager = new PollingOperatorManager(config, 1, 3);
+        try {
+            manager.callExecutorWithPolling(Paths.get(""), "poll", request());
+            fail();
+        }
+        catch (TaskExecutionException ex) {
+            assertThat(ex.getRetryInterval(), is(Optional.of(1)));
+        }
+        assertThat(manager.getInProcessPollCount(), is(0L));
+    }
+
+    @Test
+    public void shutdownSendsPollingTaskBackToQueueWithLatestState()
+        throws Exception
+    {
+        PollingOperatorManager manager = new PollingOperatorManager(inProcessPollingConfig(), 10, 3);
+        Thread shutdown = new Thread(() -> {
+            try {
+                Thread.sleep(500);
+            }
+            catch (InterruptedException ex) {
+                return;
+            }
+            manager.shutdown();
+        });
+        shutdown.start();
+        try {
+            manager.callExecutorWithPolling(Paths.get(""), "poll", request());
+            fail();
+        }
+        catch (TaskExecutionException ex) {
+            // the task goes through retryTask, which stores the state params
+            assertThat(ex.getRetryInterval(), is(Optional.of(10)));
+            assertThat(ex.getStateParams(cf).get().get("count", int.class), is(1));
+        }
+        finally {
+            shutdown.join();
+        }
+        assertThat(manager.getInProcessPollCount(), is(0L));
+    }
+}
@@ -0,0 +1,186 @@
+package io.digdag.core.agent;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class WorkspaceCacheTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path cacheDir;
+    private final AtomicInteger extractCount = new AtomicInteger(0);
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        cacheDir = folder.newFolder("cache").toPath();
+    }
+
+    private void extract(Path destDir)
+        throws IOException
+    {
+        extractCount.incrementAndGet();
+        Files.createDirectories(destDir.resolve("dir"));
+        Files.write(destDir.resolve("dir/file.txt"), "content".getBytes(UTF_8));
+        Files.createSymbolicLink(destDir.resolve("link.txt"), destDir.getFileSystem().getPath("dir/file.txt"));
+    }
+
+    @Test
+    public void extractOnceAndCreateIndependentViews()
+        throws Exception
+    {
+        WorkspaceCache cache = new WorkspaceCache(cacheDir, 1024 * 1024);
+
+        Path ws1 = folder.newFolder("ws1").toPath();
+        Path ws2 = folder.newFolder("ws2").toPath();
+        cache.checkout("1/rev", ws1, this::extract);
+        cache.checkout("1/rev", ws2, this::extract);
+
+        assertThat(extractCount.get(), is(1));
+        assertThat(new String(Files.readAllBytes(ws1.resolve("dir/file.txt")), UTF_8), is("content"));
+        assertThat(new String(Files.readAllBytes(ws2.resolve("link.txt")), UTF_8), is("content"));
+        assertThat(Files.isSymbolicLink(ws2.resolve("link.txt")), is(true));
+
+        // files created or deleted in a workspace don't affect others
+        Files.write(ws1.resolve("dir/new.txt"), "new".getBytes(UTF_8));
+        Files.delete(ws1.resolve("dir/file.txt"));
+        assertThat(Files.exists(ws2.resolve("dir/new.txt")), is(false));
+        assertThat(Files.exists(ws2.resolve("dir/file.txt")), is(true));
+
+        // files are read-only. replacing a file doesn't modify the cache
+        assertThat(Files.getPosixFilePermissions(ws2.resolve("dir/file.txt")).contains(PosixFilePermission.OWNER_WRITE), is(false));
+        Files.delete(ws2.resolve("dir/file.txt"));
+        Files.write(ws2.resolve("dir/file.txt"), "replaced".getBytes(UTF_8));
+        Path ws3 = folder.newFolder("ws3").toPath();
+        cache.checkout("1/rev", ws3, this::extract);
+        assertThat(extractCount.get(), is(1));
+        assertThat(new String(Files.readAllBytes(ws3.resolve("dir/file.txt")), UTF_8), is("content"));
+
+        cache.close();
+    }
+
+    @Test
+    public void modifiedFilesAreExtractedAgain()
+        throws Exception
+    {
+        WorkspaceCache cache = new WorkspaceCache(cacheDir, 1024 * 1024);
+
+        Path ws1 = folder.newFolder("ws1").toPath();
+        cache.checkout("1/rev", ws1, this::extract);
+
+        // a task running as root or after chmod can write to a file in place
+        Path file = ws1.resolve("dir/file.txt");
+        Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-r--r--"));
+        Files.write(file, "modified".getBytes(UTF_8), StandardOpenOption.TRUNCATE_EXISTING);
+
+        Path ws2 = folder.newFolder("ws2").toPath();
+        cache.checkout("1/rev", ws2, this::extract);
+        assertThat(extractCount.get(), is(2));
+        assertThat(new String(Files.readAllBytes(ws2.resolve("dir/file.txt")), UTF_8), is("content"));
+        assertThat(cache.getEntryCount(), is(1));
+        assertThat(cache.getTotalSize(), is(7L));
+
+        cache.close();
+    }
+
+    @Test
+    public void failedExtractionIsNotCached()
+        throws Exception
+    {
+        WorkspaceCache cache = new WorkspaceCache(cacheDir, 1024 * 1024);
+
+        try {
+            cache.checkout("1/rev", folder.newFolder().toPath(), (destDir) -> {
+                throw new IOException("failed");
+            });
+            fail();
+        }
+        catch (IOException ex) {
+            assertThat(ex.getMessage(), is("failed"));
+        }
+        assertThat(cache.getEntryCount(), is(0));
+
+        Path ws = folder.newFolder().toPath();
+        cache.checkout("1/rev", ws, this::extract);
+        assertThat(new String(Files.readAllBytes(ws.resolve("dir/file.txt")), UTF_8), is("content"));
+        assertThat(cache.getEntryCount(), is(1));
+
+        cache.close();
+    }
+
+    @Test
+    public void evictLeastRecentlyUsedEntries()
+        throws Exception
+    {
+        // each entry is 7 bytes. budget allows 2 entries
+        WorkspaceCache cache = new WorkspaceCache(cacheDir, 15);
+
+        cache.checkout("1/a", folder.newFolder().toPath(), this::extract);
+        cache.checkout("1/b", folder.newFolder().toPath(), this::extract);
+        cache.checkout("1/a", folder.newFolder().toPath(), this::extract);
+        assertThat(extractCount.get(), is(2));
+
+        // evicts 1/b, which is least recently used
+        cache.checkout("1/c", folder.newFolder().toPath(), this::extract);
+        assertThat(cache.getEntryCount(), is(2));
+        assertThat(cache.getTotalSize(), is(14L));
+
+        cache.checkout("1/a", folder.newFolder().toPath(), this::extract);
+        assertThat(extractCount.get(), is(3));
+        cache.checkout("1/b", folder.newFolder().toPath(), this::extract);
+        assertThat(extractCount.get(), is(4));
+
+        cache.close();
+    }
+
+    @Test
+    public void concurrentCheckouts()
+        throws Exception
+    {
+        WorkspaceCache cache = new WorkspaceCache(cacheDir, 1024 * 1024);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Path>> futures = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                Path ws = folder.newFolder().toPath();
+                futures.add(executor.submit(() -> {
+                    cache.checkout("1/rev", ws, this::extract);
+                    return ws;
+                }));
+            }
+            for (Future<Path> future : futures) {
+                Path ws = future.get();
+                assertThat(new String(Files.readAllBytes(ws.resolve("dir/file.txt")), UTF_8), is("content"));
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        assertThat(extractCount.get(), is(1));
+
+        cache.close();
+    }
+}
@@ -0,0 +1,101 @@
+package io.digdag.core.archive;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import com.google.common.io.ByteStreams;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.junit.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class IndexedArchiveWriterTest
+{
+    private static byte[] tarGz(Map<String, String> files)
+        throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GZIPOutputStream(out))) {
+            for (Map.Entry<String, String> file : files.entrySet()) {
+                byte[] data = file.getValue().getBytes(UTF_8);
+                TarArchiveEntry entry = new TarArchiveEntry("./" + file.getKey());
+                entry.setSize(data.length);
+                tar.putArchiveEntry(entry);
+                tar.write(data);
+                tar.closeArchiveEntry();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static Map<String, String> readTarGz(InputStream in)
+        throws Exception
+    {
+        return readTarGz(in, true);
+    }
+
+    private static Map<String, String> readTarGz(InputStream in, boolean decompressConcatenated)
+        throws Exception
+    {
+        Map<String, String> files = new LinkedHashMap<>();
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(new GzipCompressorInputStream(in, decompressConcatenated))) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                files.put(ArchiveIndex.normalizeName(entry.getName()), new String(ByteStreams.toByteArray(tar), UTF_8));
+            }
+        }
+        return files;
+    }
+
+    @Test
+    public void rewriteWithIndex()
+        throws Exception
+    {
+        Map<String, String> files = new LinkedHashMap<>();
+        files.put("digdag.dig", "timezone: UTC\n");
+        files.put("scripts/a.py", "print('a')\n");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            sb.append("line ").append(i).append('\n');
+        }
+        files.put("scripts/b.sql", sb.toString());
+        files.put("query.sql", "select 1\n");
+
+        byte[] original = tarGz(files);
+        IndexedArchiveWriter.Result result = IndexedArchiveWriter.rewrite(original);
+        byte[] data = result.getData();
+
+        // rewritten data is still a tar.gz file
+        assertThat(readTarGz(new ByteArrayInputStream(data)), is(files));
+
+        // readers that don't decompress concatenated members read the original archive
+        assertThat(Arrays.copyOf(data, original.length), is(original));
+        assertThat(readTarGz(new ByteArrayInputStream(data), false), is(files));
+
+        ArchiveIndex index = ArchiveIndex.fromBytes(result.getIndex().toBytes());
+        assertThat(index.getEntries().size(), is(4));
+
+        // a range of the index contains only its entry
+        for (ArchiveIndex.Entry entry : index.getEntries()) {
+            byte[] range = Arrays.copyOfRange(data, (int) entry.getOffset(), (int) (entry.getOffset() + entry.getLength()));
+            Map<String, String> single = readTarGz(new ByteArrayInputStream(range));
+            assertThat(single.keySet().size(), is(1));
+            assertThat(single.get(entry.getName()), is(files.get(entry.getName())));
+        }
+
+        // adjacent entries can be read at once
+        ArchiveIndex.Entry second = index.getEntries().get(1);
+        ArchiveIndex.Entry third = index.getEntries().get(2);
+        byte[] range = Arrays.copyOfRange(data, (int) second.getOffset(), (int) (third.getOffset() + third.getLength()));
+        assertThat(readTarGz(new ByteArrayInputStream(range)).keySet().size(), is(2));
+    }
+}
@@ -0,0 +1,72 @@
+package io.digdag.core.database;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import io.digdag.client.config.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+import static io.digdag.core.database.DatabaseTestingUtils.createConfig;
+import static io.digdag.core.database.DatabaseTestingUtils.setupDatabase;
+
+public class DatabaseEventChannelTest
+{
+    private DatabaseFactory factory;
+    private DatabaseEventChannel publisher;
+    private DatabaseEventChannel subscriber;
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        factory = setupDatabase();
+        Config systemConfig = createConfig()
+            .set("database.listenNotify", true)
+            .set("database.listenNotifyPollInterval", 100);
+        publisher = new DatabaseEventChannel(factory.getConfig(), systemConfig);
+        subscriber = new DatabaseEventChannel(factory.getConfig(), systemConfig);
+    }
+
+    @After
+    public void destroy()
+    {
+        publisher.shutdown();
+        subscriber.shutdown();
+        factory.close();
+    }
+
+    @Test
+    public void disabledOnH2()
+    {
+        assumeTrue(factory.getConfig().getType().equals("h2"));
+
+        assertThat(publisher.isEnabled(), is(false));
+        // publish is no-op
+        publisher.publish(DatabaseEventChannel.TASK_QUEUE_CHANNEL);
+    }
+
+    @Test
+    public void deliverToOtherChannels()
+        throws Exception
+    {
+        assumeTrue(factory.getConfig().getType().equals("postgresql"));
+
+        CountDownLatch connected = new CountDownLatch(1);
+        CountDownLatch received = new CountDownLatch(2);
+        subscriber.addListener(DatabaseEventChannel.TASK_STATE_CHANNEL, () -> {
+            // listeners are called once when the channel connects to the database
+            connected.countDown();
+            received.countDown();
+        });
+        subscriber.start();
+        publisher.start();
+        assertThat(connected.await(10, TimeUnit.SECONDS), is(true));
+
+        publisher.publish(DatabaseEventChannel.TASK_STATE_CHANNEL);
+
+        assertThat(received.await(10, TimeUnit.SECONDS), is(true));
+    }
+}
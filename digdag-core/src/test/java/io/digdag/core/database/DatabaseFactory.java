@@ -2,6 +2,7 @@ package io.digdag.core.database;
 
 import com.google.common.base.Throwables;
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import com.google.inject.Provider;
 import io.digdag.client.config.ConfigFactory;
 import io.digdag.core.agent.AgentId;
@@ -12,6 +13,8 @@ import io.digdag.spi.Notifier;
 import io.digdag.spi.TaskQueueRequest;
 import org.skife.jdbi.v2.DBI;
 
+import java.util.List;
+
 import static io.digdag.client.DigdagClient.objectMapper;
 import static io.digdag.core.database.DatabaseTestingUtils.createConfigFactory;
 import static io.digdag.core.database.DatabaseTestingUtils.createConfigMapper;
@@ -57,13 +60,23 @@ public class DatabaseFactory
         return new DatabaseSessionStoreManager(dbi, createConfigFactory(), createConfigMapper(), objectMapper(), config);
     }
 
+    public DatabaseWorkflowExecutorLeaseStoreManager getWorkflowExecutorLeaseStoreManager()
+    {
+        return new DatabaseWorkflowExecutorLeaseStoreManager(dbi, config);
+    }
+
     public WorkflowExecutor getWorkflowExecutor()
+    {
+        return getWorkflowExecutor(new NullTaskQueueDispatcher());
+    }
+
+    public WorkflowExecutor getWorkflowExecutor(TaskQueueDispatcher dispatcher)
     {
         ConfigFactory configFactory = createConfigFactory();
         return new WorkflowExecutor(
                 getProjectStoreManager(),
                 getSessionStoreManager(),
-                new NullTaskQueueDispatcher(),
+                dispatcher,
                 new WorkflowCompiler(),
                 configFactory,
                 objectMapper(),
@@ -88,6 +101,12 @@ public class DatabaseFactory
         public void dispatch(int siteId, Optional<String> queueName, TaskQueueRequest request)
         { }
 
+        @Override
+        public List<String> dispatchAll(int siteId, Optional<String> queueName, List<TaskQueueRequest> requests)
+        {
+            return ImmutableList.of();
+        }
+
         @Override
         public void taskFinished(int siteId, String lockId, AgentId agentId)
         { }
@@ -2,9 +2,12 @@ package io.digdag.core.database;
 
 import java.time.ZoneId;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.Arrays;
+import java.util.stream.Collectors;
 import io.digdag.client.config.Config;
 import io.digdag.client.config.ConfigFactory;
 import io.digdag.spi.TaskQueueData;
@@ -16,6 +19,7 @@ import io.digdag.spi.TaskNotFoundException;
 import io.digdag.core.repository.ResourceNotFoundException;
 import com.google.common.base.Optional;
 import org.junit.Rule;
+import org.skife.jdbi.v2.TimingCollector;
 import org.junit.Test;
 import org.junit.Before;
 import org.junit.After;
@@ -58,6 +62,7 @@ public class DatabaseQueueTest
     @After
     public void destroy()
     {
+        taskQueue.shutdown();
         factory.close();
     }
 
@@ -123,6 +128,30 @@ public class DatabaseQueueTest
         assertThat(poll2.get(1).getUniqueName(), is("4"));
     }
 
+    @Test
+    public void pollFromMultipleSites()
+        throws Exception
+    {
+        int anotherSiteId = 1;
+
+        taskQueue.enqueueDefaultQueueTask(siteId, generateRequest("1"));
+        taskQueue.enqueueDefaultQueueTask(siteId, generateRequest("2"));
+        taskQueue.enqueueDefaultQueueTask(anotherSiteId, generateRequest("3"));
+        taskQueue.enqueueDefaultQueueTask(anotherSiteId, generateRequest("4"));
+
+        // a poll locks tasks of all sites up to the count
+        List<TaskQueueLock> poll1 = taskQueue.lockSharedAgentTasks(4, "agent1", 300, 10);
+        assertThat(poll1.size(), is(4));
+        assertThat(poll1.stream().map(TaskQueueLock::getUniqueName).sorted().collect(Collectors.toList()),
+                is(Arrays.asList("1", "2", "3", "4")));
+        for (TaskQueueLock lock : poll1) {
+            assertThat(lock.getData(), is(Optional.absent()));
+        }
+
+        List<TaskQueueLock> poll2 = taskQueue.lockSharedAgentTasks(4, "agent1", 300, 10);
+        assertThat(poll2, is(Arrays.asList()));
+    }
+
     @Test
     public void enqueueRejectedIfDuplicatedTaskId()
         throws Exception
@@ -136,6 +165,50 @@ public class DatabaseQueueTest
         taskQueue.enqueueDefaultQueueTask(siteId, req1Dup);
     }
 
+    @Test
+    public void batchEnqueueSkipsDuplicatedTaskId()
+        throws Exception
+    {
+        TaskQueueRequest req1 = generateRequest("1");
+        TaskQueueRequest req2 = generateRequest("2");
+        TaskQueueRequest req3 = generateRequest("3");
+
+        taskQueue.enqueueDefaultQueueTask(siteId, req2);
+
+        List<String> conflicted = taskQueue.enqueueDefaultQueueTasks(siteId, Arrays.asList(req1, req2, req3));
+        assertThat(conflicted, is(Arrays.asList("2")));
+
+        // tasks are polled in the order of enqueue
+        List<TaskQueueLock> poll1 = taskQueue.lockSharedAgentTasks(2, "agent1", 300, 10);
+        assertThat(poll1.size(), is(2));
+        assertThat(poll1.get(0).getUniqueName(), is("2"));
+        assertThat(poll1.get(1).getUniqueName(), is("1"));
+        assertThat(poll1.get(1), is(withLockId(req1, poll1.get(1).getLockId())));
+
+        taskQueue.deleteTask(siteId, poll1.get(0).getLockId(), "agent1");
+
+        List<TaskQueueLock> poll2 = taskQueue.lockSharedAgentTasks(2, "agent1", 300, 10);
+        assertThat(poll2.size(), is(1));
+        assertThat(poll2.get(0).getUniqueName(), is("3"));
+    }
+
+    @Test
+    public void batchEnqueueSkipsDuplicatedTaskIdOfLargeBatch()
+        throws Exception
+    {
+        // more requests than the number of unique names selected by a statement
+        List<TaskQueueRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 1200; i++) {
+            requests.add(generateRequest(Integer.toString(i)));
+        }
+
+        taskQueue.enqueueDefaultQueueTask(siteId, requests.get(10));
+        taskQueue.enqueueDefaultQueueTask(siteId, requests.get(1100));
+
+        List<String> conflicted = taskQueue.enqueueDefaultQueueTasks(siteId, requests);
+        assertThat(conflicted, is(Arrays.asList("10", "1100")));
+    }
+
     @Test
     public void deleteRejectedIfAgentIdMismatch()
         throws Exception
@@ -240,6 +313,76 @@ public class DatabaseQueueTest
         assertThat(failedLockIdList, is(Arrays.asList(poll1.get(0).getLockId())));
     }
 
+    @Test
+    public void heartbeatReportsOnlyMissingLocks()
+        throws Exception
+    {
+        taskQueue.enqueueDefaultQueueTask(siteId, generateRequest("1"));
+        taskQueue.enqueueDefaultQueueTask(siteId, generateRequest("2"));
+
+        List<TaskQueueLock> poll1 = taskQueue.lockSharedAgentTasks(2, "agent1", 300, 10);
+        assertThat(poll1.size(), is(2));
+
+        taskQueue.deleteTask(siteId, poll1.get(1).getLockId(), "agent1");
+
+        List<String> failedLockIdList = taskQueue.taskHeartbeat(siteId,
+                Arrays.asList(poll1.get(0).getLockId(), poll1.get(1).getLockId(), "s9999"),
+                "agent1", 3);
+        assertThat(failedLockIdList, is(Arrays.asList(poll1.get(1).getLockId(), "s9999")));
+    }
+
+    @Test
+    public void heartbeatExtendsLocksWithAStatement()
+        throws Exception
+    {
+        int taskCount = 64;
+
+        Config systemConfig = createConfigFactory()
+            .create()
+            .set("queue.db.max_concurrency", taskCount);
+        DatabaseTaskQueueServer taskQueue = new DatabaseTaskQueueServer(
+                factory.get(),
+                factory.getConfig(),
+                new DatabaseTaskQueueConfig(systemConfig),
+                objectMapper());
+        try {
+            for (int i = 0; i < taskCount; i++) {
+                taskQueue.enqueueDefaultQueueTask(siteId, generateRequest(Integer.toString(i)));
+            }
+            List<String> lockIds = taskQueue.lockSharedAgentTasks(taskCount, "agent1", 300, 10)
+                .stream()
+                .map(TaskQueueLock::getLockId)
+                .collect(Collectors.toList());
+            assertThat(lockIds.size(), is(taskCount));
+
+            AtomicInteger updates = new AtomicInteger(0);
+            factory.get().setTimingCollector((elapsedTime, ctx) -> {
+                if (ctx.getRawSql().startsWith("update queued_task_locks")) {
+                    updates.incrementAndGet();
+                }
+            });
+            long expireTimeAtLeast = Instant.now().getEpochSecond() + 3600;
+            try {
+                assertThat(taskQueue.taskHeartbeat(siteId, lockIds, "agent1", 3600), is(Arrays.asList()));
+            }
+            finally {
+                factory.get().setTimingCollector(TimingCollector.NOP_TIMING_COLLECTOR);
+            }
+
+            // all locks are extended by a statement
+            assertThat(updates.get(), is(1));
+            long extended = factory.get().withHandle(handle ->
+                    handle.createQuery("select count(*) from queued_task_locks where lock_expire_time >= :time")
+                    .bind("time", expireTimeAtLeast)
+                    .mapTo(long.class)
+                    .first());
+            assertThat(extended, is((long) taskCount));
+        }
+        finally {
+            taskQueue.shutdown();
+        }
+    }
+
     private TaskQueueRequest generateRequest(String uniqueName)
     {
         return TaskQueueRequest.builder()
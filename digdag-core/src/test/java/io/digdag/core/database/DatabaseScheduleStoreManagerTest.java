@@ -174,20 +174,27 @@ public class DatabaseScheduleStoreManagerTest
         assertEquals(sched4.getId(), (long) schedManager.lockScheduleById(sched4.getId(), (store, schedule) -> schedule.getId()));
 
         List<Integer> lockedByRuntime1 = new ArrayList<>();
-        schedManager.lockReadySchedules(runTime1, (store, schedule) -> {
+        schedManager.lockReadySchedules(runTime1, 10, (store, schedule) -> {
             lockedByRuntime1.add(schedule.getId());
         });
         assertEquals(ImmutableList.of(sched1.getId()), lockedByRuntime1);
 
         List<Integer> lockedByRuntime2 = new ArrayList<>();
-        schedManager.lockReadySchedules(runTime2, (store, schedule) -> {
+        schedManager.lockReadySchedules(runTime2, 10, (store, schedule) -> {
             lockedByRuntime2.add(schedule.getId());
         });
         assertEquals(ImmutableList.of(sched3.getId(), sched4.getId()), lockedByRuntime2);
 
+        // schedules with earlier next run time are locked first
+        List<Integer> limited = new ArrayList<>();
+        assertEquals(1, schedManager.lockReadySchedules(runTime2, 1, (store, schedule) -> {
+            limited.add(schedule.getId());
+        }));
+        assertEquals(ImmutableList.of(sched3.getId()), limited);
+
         // exception during lockReadySchedules
         try {
-            schedManager.lockReadySchedules(runTime2, (store, schedule) -> {
+            schedManager.lockReadySchedules(runTime2, 10, (store, schedule) -> {
                 throw new RuntimeException("processing " + schedule.getId());
             });
             fail();
@@ -205,7 +212,7 @@ public class DatabaseScheduleStoreManagerTest
         Instant schedTime4 = now.plusSeconds(40);
 
         try {
-            schedManager.lockReadySchedules(runTime2, (store, schedule) -> {
+            schedManager.lockReadySchedules(runTime2, 10, (store, schedule) -> {
                 if (schedule.getId() == sched3.getId()) {
                     throw new RuntimeException();
                 }
@@ -219,7 +226,7 @@ public class DatabaseScheduleStoreManagerTest
         }
 
         List<Integer> updated = new ArrayList<>();
-        schedManager.lockReadySchedules(runTime2, (store, schedule) -> {
+        schedManager.lockReadySchedules(runTime2, 10, (store, schedule) -> {
             updated.add(schedule.getId());
             store.updateNextScheduleTime(schedule.getId(), ScheduleTime.of(schedTime4, runTime4), schedTime1);
         });
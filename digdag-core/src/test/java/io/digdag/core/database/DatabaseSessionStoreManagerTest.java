@@ -12,7 +12,9 @@ import io.digdag.core.schedule.*;
 import io.digdag.core.session.*;
 import io.digdag.core.workflow.*;
 import io.digdag.spi.ScheduleTime;
+import io.digdag.spi.TaskReport;
 import io.digdag.client.config.ConfigFactory;
+import static io.digdag.client.DigdagClient.objectMapper;
 import static io.digdag.core.database.DatabaseTestingUtils.*;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.*;
@@ -217,6 +219,47 @@ public class DatabaseSessionStoreManagerTest
         });
     }
 
+    @Test
+    public void testFindRecentlyChangedTasks()
+        throws Exception
+    {
+        List<TaskStateSummary> tasks = manager.findRecentlyChangedTasks(Instant.ofEpochSecond(0), 0, AttemptPartition.all());
+        assertThat(tasks.isEmpty(), is(false));
+        for (TaskStateSummary task : tasks) {
+            assertThat(task.getAttemptId(), is(otherProjAttempt1.getId()));
+        }
+
+        TaskStateSummary last = tasks.get(tasks.size() - 1);
+        assertThat(manager.findRecentlyChangedTasks(last.getUpdatedAt(), last.getId(), AttemptPartition.all()).isEmpty(), is(true));
+
+        int index = (int) (otherProjAttempt1.getId() % 2);
+        assertThat(manager.findRecentlyChangedTasks(Instant.ofEpochSecond(0), 0, AttemptPartition.of(index, 2)), is(tasks));
+        assertThat(manager.findRecentlyChangedTasks(Instant.ofEpochSecond(0), 0, AttemptPartition.of(1 - index, 2)).isEmpty(), is(true));
+        assertThat(manager.findTasksByState(tasks.get(0).getState(), 0, AttemptPartition.of(1 - index, 2)).isEmpty(), is(true));
+    }
+
+    @Test
+    public void testAttemptPartitions()
+        throws Exception
+    {
+        List<TaskStateSummary> tasks = manager.findRecentlyChangedTasks(Instant.ofEpochSecond(0), 0, AttemptPartition.all());
+
+        // tasks of an attempt are found only in the partition that contains the attempt
+        for (int count : new int[] { 3, AttemptPartition.BUCKETS }) {
+            for (int index = 0; index < count; index++) {
+                AttemptPartition partition = AttemptPartition.of(index, count);
+                List<TaskStateSummary> found = manager.findRecentlyChangedTasks(Instant.ofEpochSecond(0), 0, partition);
+                if (partition.contains(otherProjAttempt1.getId())) {
+                    assertThat(found, is(tasks));
+                    assertThat(manager.findTasksByState(tasks.get(0).getState(), 0, partition).isEmpty(), is(false));
+                }
+                else {
+                    assertThat(found.isEmpty(), is(true));
+                }
+            }
+        }
+    }
+
     @Test
     public void testGetAndNotFounds()
         throws Exception
@@ -422,6 +465,204 @@ public class DatabaseSessionStoreManagerTest
         assertThat(activeArchive, is(store.getTasksOfAttempt(attempt1.getId())));
     }
 
+    @Test
+    public void testTaskArchive()
+        throws Exception
+    {
+        long attemptId = otherProjAttempt1.getId();
+        List<ArchivedTask> activeTasks = store.getTasksOfAttempt(attemptId);
+        assertThat(activeTasks.size(), is(2));
+        ArchivedTask child = activeTasks.get(1);
+
+        manager.lockAttemptIfExists(attemptId, (store, summary) -> {
+            store.aggregateAndInsertTaskArchive(attemptId);
+            store.deleteAllTasksOfAttempt(attemptId);
+            return true;
+        });
+
+        assertThat(store.getTasksOfAttempt(attemptId), is(activeTasks));
+        assertThat(store.getTasksOfAttemptByIds(attemptId, ImmutableList.of(child.getId())), is(ImmutableList.of(child)));
+        assertThat(store.getTasksOfAttemptByNamePrefix(attemptId, child.getFullName()), is(ImmutableList.of(child)));
+        assertThat(manager.getSessionStore(1).getTasksOfAttempt(attemptId), is(ImmutableList.of()));
+
+        // archives stored in JSON by old versions are readable and compacted
+        try (org.skife.jdbi.v2.Handle handle = factory.get().open()) {
+            handle.createStatement("update task_archives set tasks = :tasks, data = NULL where id = :id")
+                .bind("tasks", objectMapper().writeValueAsString(activeTasks))
+                .bind("id", attemptId)
+                .execute();
+        }
+        assertThat(store.getTasksOfAttempt(attemptId), is(activeTasks));
+        assertThat(store.getTasksOfAttemptByIds(attemptId, ImmutableList.of(child.getId())), is(ImmutableList.of(child)));
+
+        assertThat(manager.compactTaskArchives(10), is(1));
+        assertThat(manager.compactTaskArchives(10), is(0));
+        assertThat(store.getTasksOfAttempt(attemptId), is(activeTasks));
+    }
+
+    @Test
+    public void testGetTasksOfAttemptByNamePrefixMatchesLiterally()
+        throws Exception
+    {
+        WorkflowDefinition def1 = WorkflowDefinition.of(
+                wf1.getName(),
+                cf.create()
+                    .setNested("+a_b", cf.create().set("sh>", "echo a_b"))
+                    .setNested("+axb", cf.create().set("sh>", "echo axb"))
+                    .setNested("+a%b", cf.create().set("sh>", "echo a%b")),
+                ZoneId.of("UTC")
+                );
+        AttemptRequest ar1 = attemptBuilder.buildFromStoredWorkflow(
+                rev,
+                wf1,
+                cf.create(),
+                ScheduleTime.runNow(Instant.ofEpochSecond(Instant.now().getEpochSecond())));
+        long attemptId = exec.submitWorkflow(0, ar1, def1).getId();
+
+        String prefix = "+" + wf1.getName() + "+a_b";
+        List<ArchivedTask> active = store.getTasksOfAttemptByNamePrefix(attemptId, prefix);
+        assertThat(active.size(), is(1));
+        assertThat(active.get(0).getFullName(), is(prefix));
+        assertThat(store.getTasksOfAttemptByNamePrefix(attemptId, "+" + wf1.getName() + "+a%").size(), is(1));
+
+        manager.lockAttemptIfExists(attemptId, (store, summary) -> {
+            store.aggregateAndInsertTaskArchive(attemptId);
+            store.deleteAllTasksOfAttempt(attemptId);
+            return true;
+        });
+
+        assertThat(store.getTasksOfAttemptByNamePrefix(attemptId, prefix), is(active));
+    }
+
+    @Test
+    public void testSessionMonitors()
+        throws Exception
+    {
+        long attemptId = otherProjAttempt1.getId();
+        assertThat(manager.getNextSessionMonitorRunTime(), is(Optional.absent()));
+
+        try (org.skife.jdbi.v2.Handle handle = factory.get().open()) {
+            for (long nextRunTime : new long[] { 300L, 100L, 200L }) {
+                handle.createStatement("insert into session_monitors (attempt_id, next_run_time, type, config, created_at, updated_at)" +
+                        " values (:attemptId, :nextRunTime, 'sla', '{}', now(), now())")
+                    .bind("attemptId", attemptId)
+                    .bind("nextRunTime", nextRunTime)
+                    .execute();
+            }
+        }
+        assertThat(manager.getNextSessionMonitorRunTime(), is(Optional.of(Instant.ofEpochSecond(100L))));
+
+        // monitors with earlier next run time are locked first
+        List<Instant> locked = new ArrayList<>();
+        assertThat(manager.lockReadySessionMonitors(Instant.ofEpochSecond(250L), 1, (monitor) -> {
+            locked.add(monitor.getNextRunTime());
+            return Optional.absent();
+        }), is(1));
+        assertThat(locked, is(ImmutableList.of(Instant.ofEpochSecond(100L))));
+
+        // a monitor runs again if the action returns next run time
+        locked.clear();
+        assertThat(manager.lockReadySessionMonitors(Instant.ofEpochSecond(250L), 10, (monitor) -> {
+            locked.add(monitor.getNextRunTime());
+            return Optional.of(Instant.ofEpochSecond(400L));
+        }), is(1));
+        assertThat(locked, is(ImmutableList.of(Instant.ofEpochSecond(200L))));
+        assertThat(manager.getNextSessionMonitorRunTime(), is(Optional.of(Instant.ofEpochSecond(300L))));
+
+        assertThat(manager.lockReadySessionMonitors(Instant.ofEpochSecond(250L), 10, (monitor) -> {
+            throw new AssertionError();
+        }), is(0));
+    }
+
+    @Test
+    public void testAddSubtasks()
+        throws Exception
+    {
+        long attemptId = otherProjAttempt1.getId();
+        long rootId = manager.getTaskRelations(attemptId).get(0).getId();
+
+        ResumingTask resumingTask = ImmutableResumingTask.builder()
+            .sourceTaskId(rootId)
+            .fullName("+otherProjWf1^sub+resumed")
+            .config(TaskConfig.validate(cf.create().set("echo>", "resumed")))
+            .updatedAt(Instant.ofEpochSecond(1476662400L))
+            .subtaskConfig(cf.create())
+            .exportParams(cf.create().set("k", "exported\ttab"))
+            .storeParams(cf.create().set("k", "stored\nline"))
+            .report(TaskReport.empty())
+            .error(cf.create())
+            .build();
+
+        // group -> (a, resumed -> b)
+        List<NewSubtask> subtasks = ImmutableList.of(
+                NewSubtask.builder()
+                    .parentId(rootId)
+                    .addUpstreamIds(rootId)
+                    .fullName("+otherProjWf1^sub")
+                    .config(TaskConfig.validate(cf.create()))
+                    .taskType(TaskType.of(TaskType.GROUPING_ONLY))
+                    .state(TaskStateCode.BLOCKED)
+                    .stateFlags(TaskStateFlags.empty())
+                    .build(),
+                NewSubtask.builder()
+                    .parentIndex(0)
+                    .fullName("+otherProjWf1^sub+a")
+                    .config(TaskConfig.validate(cf.create().set("echo>", "a\\b")))
+                    .taskType(TaskType.of(0))
+                    .state(TaskStateCode.BLOCKED)
+                    .stateFlags(TaskStateFlags.empty())
+                    .build(),
+                NewSubtask.builder()
+                    .parentIndex(0)
+                    .fullName("+otherProjWf1^sub+resumed")
+                    .config(resumingTask.getConfig())
+                    .taskType(TaskType.of(0))
+                    .state(TaskStateCode.SUCCESS)
+                    .stateFlags(TaskStateFlags.empty())
+                    .resumingTask(resumingTask)
+                    .build(),
+                NewSubtask.builder()
+                    .parentIndex(0)
+                    .addUpstreamIndexes(2)
+                    .fullName("+otherProjWf1^sub+b")
+                    .config(TaskConfig.validate(cf.create().set("echo>", "b")))
+                    .taskType(TaskType.of(0))
+                    .state(TaskStateCode.BLOCKED)
+                    .stateFlags(TaskStateFlags.empty())
+                    .build());
+
+        List<Long> ids = manager.lockTaskIfExists(rootId, (control) -> control.addSubtasks(attemptId, subtasks)).get();
+        assertThat(ids.size(), is(4));
+
+        Map<Long, ArchivedTask> tasks = new HashMap<>();
+        for (ArchivedTask task : store.getTasksOfAttempt(attemptId)) {
+            tasks.put(task.getId(), task);
+        }
+
+        ArchivedTask group = tasks.get(ids.get(0));
+        assertThat(group.getFullName(), is("+otherProjWf1^sub"));
+        assertThat(group.getParentId(), is(Optional.of(rootId)));
+        assertThat(group.getUpstreams(), is(ImmutableList.of(rootId)));
+        assertThat(group.getState(), is(TaskStateCode.BLOCKED));
+
+        ArchivedTask a = tasks.get(ids.get(1));
+        assertThat(a.getParentId(), is(Optional.of(ids.get(0))));
+        assertThat(a.getUpstreams(), is(ImmutableList.of()));
+        assertThat(a.getConfig().getLocal().get("echo>", String.class), is("a\\b"));
+        assertThat(a.getResumingTaskId(), is(Optional.absent()));
+
+        ArchivedTask resumed = tasks.get(ids.get(2));
+        assertThat(resumed.getState(), is(TaskStateCode.SUCCESS));
+        assertThat(resumed.getUpdatedAt(), is(Instant.ofEpochSecond(1476662400L)));
+        assertThat(resumed.getResumingTaskId(), is(Optional.of(rootId)));
+        assertThat(resumed.getExportParams(), is(resumingTask.getExportParams()));
+        assertThat(resumed.getStoreParams(), is(resumingTask.getStoreParams()));
+
+        ArchivedTask b = tasks.get(ids.get(3));
+        assertThat(b.getParentId(), is(Optional.of(ids.get(0))));
+        assertThat(b.getUpstreams(), is(ImmutableList.of(ids.get(2))));
+    }
+
     private void assertSessionAndLastAttemptEquals(StoredSessionWithLastAttempt session, StoredSessionAttemptWithSession attempt)
     {
         assertThat(session.getId(), is(attempt.getSessionId()));
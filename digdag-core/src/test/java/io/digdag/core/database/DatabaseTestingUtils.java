@@ -92,6 +92,8 @@ public class DatabaseTestingUtils
         "queues",
         "queued_tasks",
         "queued_task_locks",
+        "workflow_executor_leases",
+        "workflow_executor_owners",
     };
 
     public static void cleanDatabase(DigdagEmbed embed)
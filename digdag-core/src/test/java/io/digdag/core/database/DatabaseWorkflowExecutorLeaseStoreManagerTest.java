@@ -0,0 +1,75 @@
+package io.digdag.core.database;
+
+import java.time.Instant;
+import org.junit.*;
+import static io.digdag.core.database.DatabaseTestingUtils.*;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+
+public class DatabaseWorkflowExecutorLeaseStoreManagerTest
+{
+    private DatabaseFactory factory;
+    private DatabaseWorkflowExecutorLeaseStoreManager manager;
+
+    @Before
+    public void setUp()
+    {
+        factory = setupDatabase();
+        manager = factory.getWorkflowExecutorLeaseStoreManager();
+    }
+
+    @After
+    public void destroy()
+    {
+        factory.close();
+    }
+
+    @Test
+    public void testLeases()
+        throws Exception
+    {
+        Instant now = Instant.ofEpochSecond(Instant.now().getEpochSecond());
+        Instant expire = now.plusSeconds(30);
+
+        assertThat(manager.tryAcquireLease(0, "a", now, expire), is(true));
+        assertThat(manager.tryAcquireLease(1, "b", now, expire), is(true));
+
+        // held by another owner
+        assertThat(manager.tryAcquireLease(0, "b", now, expire), is(false));
+
+        // renew
+        assertThat(manager.tryAcquireLease(0, "a", now.plusSeconds(10), expire.plusSeconds(10)), is(true));
+
+        // b's lease expired but a's lease is renewed
+        Instant later = expire.plusSeconds(1);
+        assertThat(manager.tryAcquireLease(1, "a", later, later.plusSeconds(30)), is(true));
+        assertThat(manager.tryAcquireLease(0, "b", later, later.plusSeconds(30)), is(false));
+
+        // release
+        manager.releaseLease(0, "b");  // not owner
+        assertThat(manager.tryAcquireLease(0, "b", later, later.plusSeconds(30)), is(false));
+        manager.releaseLease(0, "a");
+        assertThat(manager.tryAcquireLease(0, "b", later, later.plusSeconds(30)), is(true));
+    }
+
+    @Test
+    public void testOwners()
+        throws Exception
+    {
+        Instant now = Instant.ofEpochSecond(Instant.now().getEpochSecond());
+
+        assertThat(manager.countLiveOwners(now), is(0));
+
+        manager.heartbeat("a", now, now.plusSeconds(30));
+        manager.heartbeat("b", now, now.plusSeconds(10));
+        assertThat(manager.countLiveOwners(now), is(2));
+
+        // renew
+        manager.heartbeat("a", now.plusSeconds(20), now.plusSeconds(50));
+        assertThat(manager.countLiveOwners(now.plusSeconds(20)), is(1));
+        assertThat(manager.countLiveOwners(now.plusSeconds(50)), is(1));
+
+        manager.removeOwner("a");
+        assertThat(manager.countLiveOwners(now.plusSeconds(20)), is(0));
+    }
+}
@@ -0,0 +1,94 @@
+package io.digdag.core.database;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import io.digdag.client.config.ConfigFactory;
+import io.digdag.core.session.ArchivedTask;
+import io.digdag.core.session.ImmutableArchivedTask;
+import io.digdag.core.session.TaskStateCode;
+import io.digdag.core.session.TaskStateFlags;
+import io.digdag.core.session.TaskType;
+import io.digdag.core.workflow.TaskConfig;
+import org.junit.Test;
+
+import static io.digdag.client.DigdagClient.objectMapper;
+import static io.digdag.core.database.DatabaseTestingUtils.createConfigFactory;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+public class TaskArchiveFormatTest
+{
+    private final ConfigFactory cf = createConfigFactory();
+    private final TaskArchiveFormat format = new TaskArchiveFormat(objectMapper());
+
+    private ArchivedTask task(long id, String fullName)
+    {
+        return ImmutableArchivedTask.builder()
+            .id(id)
+            .attemptId(1L)
+            .parentId(id == 1L ? Optional.absent() : Optional.of(1L))
+            .fullName(fullName)
+            .config(TaskConfig.validate(cf.create().set("echo>", "task " + id)))
+            .taskType(TaskType.of(0))
+            .state(TaskStateCode.SUCCESS)
+            .stateFlags(TaskStateFlags.empty())
+            .upstreams(id > 2L ? ImmutableList.of(id - 1) : ImmutableList.of())
+            .updatedAt(Instant.ofEpochSecond(1476662400L + id))
+            .retryAt(Optional.absent())
+            .stateParams(cf.create())
+            .retryCount(0)
+            .subtaskConfig(cf.create())
+            .exportParams(cf.create().set("value", "exported value of task " + id + " with\ttab and\nnewline"))
+            .storeParams(cf.create())
+            .report(Optional.absent())
+            .error(cf.create())
+            .resumingTaskId(Optional.absent())
+            .build();
+    }
+
+    @Test
+    public void readTasksLazily()
+    {
+        List<ArchivedTask> tasks = new ArrayList<>();
+        tasks.add(task(1, "+wf"));
+        for (int i = 2; i <= 2000; i++) {
+            tasks.add(task(i, "+wf+group" + (i % 10) + "+task" + i));
+        }
+
+        byte[] data = format.encode(tasks);
+        byte[] json = objectMapper().valueToTree(tasks).toString().getBytes();
+        assertThat(data.length, lessThan(json.length / 3));
+
+        AtomicInteger readBytes = new AtomicInteger();
+        TaskArchiveFormat.RangeReader counting = (offset, length) -> {
+            readBytes.addAndGet(length);
+            return TaskArchiveFormat.byteArrayReader(data).read(offset, length);
+        };
+
+        TaskArchiveFormat.Reader reader = format.open(counting);
+        assertThat(reader.getEntries().size(), is(2000));
+        assertThat(reader.readTasks((id, fullName) -> true), is(tasks));
+
+        // a single task is read without reading other blocks
+        readBytes.set(0);
+        assertThat(reader.readTasks((id, fullName) -> id == 1500L), is(ImmutableList.of(tasks.get(1499))));
+        assertThat(readBytes.get(), lessThan(data.length / 4));
+
+        assertThat(reader.readTasks((id, fullName) -> fullName.startsWith("+wf+group3+")).size(), is(200));
+        assertThat(reader.readTasks((id, fullName) -> false), is(ImmutableList.of()));
+    }
+
+    @Test
+    public void encodeEmptyList()
+    {
+        byte[] data = format.encode(ImmutableList.of());
+        TaskArchiveFormat.Reader reader = format.open(TaskArchiveFormat.byteArrayReader(data));
+        assertThat(reader.getEntries().size(), is(0));
+        assertThat(reader.readTasks((id, fullName) -> true), is(ImmutableList.of()));
+    }
+}
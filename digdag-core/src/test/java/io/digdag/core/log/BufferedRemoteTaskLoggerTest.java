@@ -0,0 +1,50 @@
+package io.digdag.core.log;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import com.google.common.io.ByteStreams;
+import io.digdag.core.TempFileManager;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class BufferedRemoteTaskLoggerTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void uploadAsStream()
+        throws Exception
+    {
+        TempFileManager tempFiles = new TempFileManager(folder.getRoot().toPath());
+        List<String> uploaded = new ArrayList<>();
+
+        BufferedRemoteTaskLogger logger = new BufferedRemoteTaskLogger(tempFiles, "test",
+                (firstLogTime, gzDataLength, gzData) -> {
+                    byte[] compressed;
+                    try (InputStream in = gzData.open()) {
+                        compressed = ByteStreams.toByteArray(in);
+                    }
+                    assertThat((long) compressed.length, is(gzDataLength));
+                    // uploaders can open the stream again to retry
+                    try (InputStream in = new GZIPInputStream(gzData.open())) {
+                        uploaded.add(new String(ByteStreams.toByteArray(in), UTF_8));
+                    }
+                },
+                1);
+
+        logger.log(LogLevel.INFO, System.currentTimeMillis(), "hello ");
+        logger.log(LogLevel.INFO, System.currentTimeMillis(), "world");
+        logger.close();
+
+        assertThat(uploaded.size(), is(1));
+        assertThat(uploaded.get(0), is("hello world"));
+    }
+}
@@ -0,0 +1,68 @@
+package io.digdag.core.log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class GzipMembersTest
+{
+    private static byte[] member(String text)
+        throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+            gz.write(text.getBytes(UTF_8));
+        }
+        return out.toByteArray();
+    }
+
+    private static long completeLength(byte[] data)
+        throws Exception
+    {
+        return GzipMembers.completeLength(new ByteArrayInputStream(data));
+    }
+
+    @Test
+    public void countCompleteMembers()
+        throws Exception
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            sb.append("line ").append(i).append('\n');
+        }
+        byte[] m1 = member("first\n");
+        byte[] m2 = member(sb.toString());
+        byte[] m3 = member("third\n");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(m1);
+        out.write(m2);
+        out.write(m3);
+        byte[] data = out.toByteArray();
+
+        assertThat(completeLength(data), is((long) data.length));
+        assertThat(completeLength(new byte[0]), is(0L));
+
+        // the last member is being written
+        for (int cut : new int[] { 1, 5, 12, m3.length - 1 }) {
+            byte[] partial = Arrays.copyOf(data, m1.length + m2.length + cut);
+            assertThat(completeLength(partial), is((long) (m1.length + m2.length)));
+        }
+
+        // reading from the end of a member doesn't need the former members
+        byte[] rest = Arrays.copyOfRange(data, m1.length, data.length);
+        assertThat(completeLength(rest), is((long) (m2.length + m3.length)));
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(rest))) {
+            assertThat(new String(ByteStreams.toByteArray(in), UTF_8), is(sb.toString() + "third\n"));
+        }
+    }
+}
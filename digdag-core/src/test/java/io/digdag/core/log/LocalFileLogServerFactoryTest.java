@@ -0,0 +1,135 @@
+package io.digdag.core.log;
+
+import java.io.InputStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import com.google.common.base.Optional;
+import com.google.common.io.ByteStreams;
+import io.digdag.core.agent.AgentId;
+import io.digdag.core.log.LocalFileLogServerFactory.LocalFileLogServer;
+import io.digdag.core.log.LocalFileLogServerFactory.LocalFileLogServer.LocalFileDirectTaskLogger;
+import io.digdag.spi.LogFileHandle;
+import io.digdag.spi.LogFilePrefix;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static io.digdag.core.database.DatabaseTestingUtils.createConfig;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class LocalFileLogServerFactoryTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalFileLogServerFactory factory;
+    private LocalFileLogServer logServer;
+
+    private final LogFilePrefix prefix = LogFilePrefix.builder()
+        .siteId(0)
+        .projectId(1)
+        .workflowName("wf")
+        .sessionTime(Instant.ofEpochSecond(0))
+        .timeZone(ZoneId.of("UTC"))
+        .retryAttemptName(Optional.absent())
+        .createdAt(Instant.now())
+        .build();
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        factory = new LocalFileLogServerFactory(
+                createConfig().set("log-server.local.path", folder.getRoot().toString()),
+                AgentId.of("test"));
+        logServer = (LocalFileLogServer) factory.getLogServer();
+    }
+
+    @After
+    public void shutdown()
+        throws Exception
+    {
+        factory.shutdown();
+    }
+
+    @Test
+    public void idleLoggerIsFlushed()
+        throws Exception
+    {
+        LocalFileDirectTaskLogger taskLogger = logServer.newDirectTaskLogger(prefix, "+wf+task");
+        try {
+            taskLogger.log(LogLevel.INFO, System.currentTimeMillis(), "first line\n");
+
+            // no more logs are written. logs become readable without close.
+            long deadline = System.currentTimeMillis() + 10000;
+            String text = "";
+            while (text.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+                text = readAll();
+            }
+            assertThat(text, is("first line\n"));
+        }
+        finally {
+            taskLogger.close();
+        }
+    }
+
+    @Test
+    public void bufferedLogsAreFlushedAtShutdown()
+        throws Exception
+    {
+        LocalFileDirectTaskLogger taskLogger = logServer.newDirectTaskLogger(prefix, "+wf+task");
+        try {
+            taskLogger.log(LogLevel.INFO, System.currentTimeMillis(), "first line\n");
+            factory.shutdown();
+            assertThat(readAll(), is("first line\n"));
+        }
+        finally {
+            taskLogger.close();
+        }
+    }
+
+    @Test
+    public void readFromOffset()
+        throws Exception
+    {
+        LocalFileDirectTaskLogger taskLogger = logServer.newDirectTaskLogger(prefix, "+wf+task");
+        try {
+            taskLogger.log(LogLevel.INFO, System.currentTimeMillis(), "first line\n");
+            taskLogger.flush();
+            long offset = logServer.getFileHandles(prefix, Optional.absent()).get(0).getFileSize();
+            taskLogger.log(LogLevel.INFO, System.currentTimeMillis(), "second line\n");
+            taskLogger.flush();
+
+            assertThat(readFrom(offset), is("second line\n"));
+        }
+        finally {
+            taskLogger.close();
+        }
+    }
+
+    private String readAll()
+        throws Exception
+    {
+        List<LogFileHandle> handles = logServer.getFileHandles(prefix, Optional.absent());
+        if (handles.isEmpty() || handles.get(0).getFileSize() == 0) {
+            return "";
+        }
+        return readFrom(0);
+    }
+
+    private String readFrom(long offset)
+        throws Exception
+    {
+        List<LogFileHandle> handles = logServer.getFileHandles(prefix, Optional.absent());
+        try (InputStream in = new GZIPInputStream(logServer.openFile(prefix, handles.get(0).getFileName(), offset))) {
+            return new String(ByteStreams.toByteArray(in), UTF_8);
+        }
+    }
+}
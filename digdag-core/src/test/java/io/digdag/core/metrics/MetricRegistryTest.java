@@ -0,0 +1,55 @@
+package io.digdag.core.metrics;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.*;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.*;
+
+public class MetricRegistryTest
+{
+    private MetricRegistry metrics;
+
+    @Before
+    public void setUp()
+    {
+        metrics = new MetricRegistry();
+    }
+
+    @Test
+    public void sharesMetricsOfSameName()
+    {
+        Counter counter = metrics.counter("test_total", "Test counter");
+        assertThat(metrics.counter("test_total", "Test counter"), is(sameInstance(counter)));
+
+        counter.inc();
+        counter.add(2);
+        assertThat(metrics.getValues().get("test_total"), is(3L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMetricOfDifferentType()
+    {
+        metrics.counter("test", "Test counter");
+        metrics.histogram("test", "Test histogram");
+    }
+
+    @Test
+    public void writesPrometheusText()
+    {
+        metrics.gauge("test_gauge", "Test gauge", () -> 7);
+        Histogram histogram = metrics.histogram("test_seconds", "Test histogram");
+        histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(3));
+        histogram.recordNanos(TimeUnit.SECONDS.toNanos(120));
+
+        String text = metrics.toPrometheusText();
+        assertThat(text, containsString("# TYPE test_gauge gauge\ntest_gauge 7\n"));
+        assertThat(text, containsString("# TYPE test_seconds histogram\n"));
+        assertThat(text, containsString("test_seconds_bucket{le=\"0.0025\"} 0\n"));
+        assertThat(text, containsString("test_seconds_bucket{le=\"0.005\"} 1\n"));
+        assertThat(text, containsString("test_seconds_bucket{le=\"60.0\"} 1\n"));
+        assertThat(text, containsString("test_seconds_bucket{le=\"+Inf\"} 2\n"));
+        assertThat(text, containsString("test_seconds_count 2\n"));
+    }
+}
@@ -0,0 +1,181 @@
+package io.digdag.core.workflow;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigFactory;
+import io.digdag.core.agent.AgentId;
+import io.digdag.core.database.DatabaseFactory;
+import io.digdag.core.repository.Project;
+import io.digdag.core.repository.ProjectControl;
+import io.digdag.core.repository.ProjectStore;
+import io.digdag.core.repository.StoredRevision;
+import io.digdag.core.repository.StoredWorkflowDefinition;
+import io.digdag.core.repository.WorkflowDefinition;
+import io.digdag.core.schedule.SchedulerManager;
+import io.digdag.core.session.ImmutableReadyTaskSummary;
+import io.digdag.core.session.ReadyTaskSummary;
+import io.digdag.spi.ScheduleTime;
+import io.digdag.spi.TaskQueueRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static io.digdag.core.database.DatabaseTestingUtils.createConfigFactory;
+import static io.digdag.core.database.DatabaseTestingUtils.createRevision;
+import static io.digdag.core.database.DatabaseTestingUtils.setupDatabase;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class EnqueueReadyTasksTest
+{
+    // throughput of larger fan-outs is measured by EnqueueReadyTasksBenchmark of digdag-benchmarks
+    private static final int FAN_OUT_ATTEMPTS = 3;
+    private static final int FAN_OUT_TASKS = 50;
+
+    private final ConfigFactory cf = createConfigFactory();
+
+    private DatabaseFactory factory;
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        factory = setupDatabase();
+    }
+
+    @After
+    public void destroy()
+    {
+        factory.close();
+    }
+
+    @Test
+    public void selectFairlyAcrossAttemptsAndSites()
+    {
+        List<ReadyTaskSummary> tasks = ImmutableList.of(
+                readyTask(1, 10, 0),
+                readyTask(2, 10, 0),
+                readyTask(3, 10, 0),
+                readyTask(4, 11, 0),
+                readyTask(5, 12, 1));
+
+        List<ReadyTaskSummary> selected = WorkflowExecutor.selectFairly(tasks);
+
+        assertThat(selected.size(), is(5));
+        // each of site 0 and site 1 gets a task at the first round
+        assertThat(selected.subList(0, 2).stream().map(ReadyTaskSummary::getSiteId).sorted().collect(Collectors.toList()),
+                is(ImmutableList.of(0, 1)));
+        // attempts of site 0 are selected in round-robin
+        assertThat(selected.stream().filter(task -> task.getSiteId() == 0).map(ReadyTaskSummary::getId).collect(Collectors.toList()),
+                is(ImmutableList.of(1L, 4L, 2L, 3L)));
+    }
+
+    @Test
+    public void drainFanOut()
+        throws Exception
+    {
+        CountingTaskQueueDispatcher dispatcher = new CountingTaskQueueDispatcher();
+        WorkflowExecutor exec = factory.getWorkflowExecutor(dispatcher);
+        AttemptBuilder attemptBuilder = new AttemptBuilder(
+                new SchedulerManager(ImmutableSet.of()),
+                new SlaCalculator());
+
+        Config config = cf.create().set("_parallel", true);
+        for (int i = 0; i < FAN_OUT_TASKS; i++) {
+            config.set("+t" + i, cf.create().set("echo>", "task " + i));
+        }
+        WorkflowDefinition def = WorkflowDefinition.of("fan_out", config, ZoneId.of("UTC"));
+
+        ProjectStore projectStore = factory.getProjectStoreManager().getProjectStore(0);
+        List<Object> stored = new ArrayList<>();
+        projectStore.putAndLockProject(
+                Project.of("fan_out"),
+                (store, storedProject) -> {
+                    ProjectControl lock = new ProjectControl(store, storedProject);
+                    StoredRevision rev = lock.insertRevision(createRevision("rev1"));
+                    stored.add(rev);
+                    stored.add(lock.insertWorkflowDefinitionsWithoutSchedules(rev, ImmutableList.of(def)).get(0));
+                    return lock.get();
+                });
+        StoredRevision rev = (StoredRevision) stored.get(0);
+        StoredWorkflowDefinition wf = (StoredWorkflowDefinition) stored.get(1);
+
+        for (int i = 0; i < FAN_OUT_ATTEMPTS; i++) {
+            AttemptRequest ar = attemptBuilder.buildFromStoredWorkflow(
+                    rev,
+                    wf,
+                    cf.create(),
+                    ScheduleTime.runNow(Instant.ofEpochSecond(i * 3600L)));
+            exec.submitWorkflow(0, ar, def);
+        }
+
+        int total = FAN_OUT_ATTEMPTS * FAN_OUT_TASKS;
+        exec.runWhile(() -> dispatcher.getCount() < total);
+
+        // every task is enqueued exactly once
+        assertThat(dispatcher.getCount(), is(total));
+        assertThat(dispatcher.getUniqueNames().size(), is(total));
+    }
+
+    private static ReadyTaskSummary readyTask(long id, long attemptId, int siteId)
+    {
+        return ImmutableReadyTaskSummary.builder()
+            .id(id)
+            .attemptId(attemptId)
+            .siteId(siteId)
+            .build();
+    }
+
+    private static class CountingTaskQueueDispatcher
+            implements TaskQueueDispatcher
+    {
+        private final AtomicInteger count = new AtomicInteger(0);
+        private final Set<String> uniqueNames = ConcurrentHashMap.newKeySet();
+
+        public int getCount()
+        {
+            return count.get();
+        }
+
+        public Set<String> getUniqueNames()
+        {
+            return uniqueNames;
+        }
+
+        @Override
+        public void dispatch(int siteId, Optional<String> queueName, TaskQueueRequest request)
+        {
+            count.incrementAndGet();
+            uniqueNames.add(request.getUniqueName());
+        }
+
+        @Override
+        public List<String> dispatchAll(int siteId, Optional<String> queueName, List<TaskQueueRequest> requests)
+        {
+            count.addAndGet(requests.size());
+            for (TaskQueueRequest request : requests) {
+                uniqueNames.add(request.getUniqueName());
+            }
+            return ImmutableList.of();
+        }
+
+        @Override
+        public void taskFinished(int siteId, String lockId, AgentId agentId)
+        { }
+
+        @Override
+        public boolean deleteInconsistentTask(String lockId)
+        {
+            return false;
+        }
+    }
+}
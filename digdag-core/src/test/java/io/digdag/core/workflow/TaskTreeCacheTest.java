@@ -0,0 +1,100 @@
+package io.digdag.core.workflow;
+
+import java.util.List;
+import com.google.common.collect.ImmutableList;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigFactory;
+import io.digdag.core.session.SessionStoreManager;
+import io.digdag.core.session.TaskIdSummary;
+import io.digdag.core.session.TaskRelation;
+import org.junit.Before;
+import org.junit.Test;
+
+import static io.digdag.core.database.DatabaseTestingUtils.createConfigFactory;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TaskTreeCacheTest
+{
+    private final ConfigFactory cf = createConfigFactory();
+
+    private SessionStoreManager sm;
+    private TaskTreeCache cache;
+
+    @Before
+    public void setUp()
+    {
+        sm = mock(SessionStoreManager.class);
+        cache = new TaskTreeCache(sm, 1000);
+    }
+
+    private List<Long> children(long taskId)
+    {
+        return cache.withAttemptTasks(1L, (tasks) -> tasks.getTaskTree().getRecursiveChildrenIdList(taskId));
+    }
+
+    @Test
+    public void loadOnlyAddedTasks()
+    {
+        when(sm.getTaskIdSummary(1L)).thenReturn(TaskIdSummary.of(2, 2));
+        when(sm.getTaskRelations(1L, 0L)).thenReturn(ImmutableList.of(
+                    TaskRelation.ofRoot(1), TaskRelation.of(2, 1, ImmutableList.of())));
+
+        assertThat(children(1), is(ImmutableList.of(2L)));
+        // not changed
+        assertThat(children(1), is(ImmutableList.of(2L)));
+        verify(sm, times(1)).getTaskRelations(eq(1L), anyLong());
+
+        // tasks 3 and 4 are added
+        when(sm.getTaskIdSummary(1L)).thenReturn(TaskIdSummary.of(4, 4));
+        when(sm.getTaskRelations(1L, 2L)).thenReturn(ImmutableList.of(
+                    TaskRelation.of(3, 2, ImmutableList.of()), TaskRelation.of(4, 1, ImmutableList.of(2L))));
+
+        assertThat(children(1), is(ImmutableList.of(2L, 3L, 4L)));
+        verify(sm, times(1)).getTaskRelations(1L, 0L);
+        verify(sm, times(1)).getTaskRelations(1L, 2L);
+    }
+
+    @Test
+    public void reloadIfTaskWithSmallerIdIsCommittedLater()
+    {
+        when(sm.getTaskIdSummary(1L)).thenReturn(TaskIdSummary.of(2, 3));
+        when(sm.getTaskRelations(1L, 0L)).thenReturn(ImmutableList.of(
+                    TaskRelation.ofRoot(1), TaskRelation.of(3, 1, ImmutableList.of())));
+        assertThat(children(1), is(ImmutableList.of(3L)));
+
+        // task 2 is committed after task 3. max id doesn't change
+        when(sm.getTaskIdSummary(1L)).thenReturn(TaskIdSummary.of(3, 3));
+        when(sm.getTaskRelations(1L, 0L)).thenReturn(ImmutableList.of(
+                    TaskRelation.ofRoot(1), TaskRelation.of(2, 1, ImmutableList.of()), TaskRelation.of(3, 1, ImmutableList.of())));
+        assertThat(children(1), is(ImmutableList.of(2L, 3L)));
+        verify(sm, times(2)).getTaskRelations(1L, 0L);
+    }
+
+    @Test
+    public void cacheParamsUntilTasksAreAdded()
+    {
+        when(sm.getTaskIdSummary(1L)).thenReturn(TaskIdSummary.of(1, 1));
+        when(sm.getTaskRelations(1L, 0L)).thenReturn(ImmutableList.of(TaskRelation.ofRoot(1)));
+        when(sm.getStoreParams(ImmutableList.of(1L))).thenReturn(ImmutableList.of(cf.create().set("k", "v")));
+
+        Config params = cache.withAttemptTasks(1L, (tasks) -> tasks.getStoreParams(ImmutableList.of(1L)).get(0));
+        // modifying returned params doesn't change cached params
+        params.set("k", "modified");
+        params = cache.withAttemptTasks(1L, (tasks) -> tasks.getStoreParams(ImmutableList.of(1L)).get(0));
+        assertThat(params.get("k", String.class), is("v"));
+        verify(sm, times(1)).getStoreParams(ImmutableList.of(1L));
+
+        cache.invalidateParams(1L);
+        cache.withAttemptTasks(1L, (tasks) -> tasks.getStoreParams(ImmutableList.of(1L)));
+        verify(sm, times(2)).getStoreParams(ImmutableList.of(1L));
+        verify(sm, never()).getExportParams(ImmutableList.of(1L));
+    }
+}
@@ -0,0 +1,117 @@
+package io.digdag.server;
+
+import com.google.common.base.Throwables;
+import com.google.inject.Inject;
+import io.digdag.core.metrics.MetricRegistry;
+
+import java.util.Map;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Exports metrics of MetricRegistry as attributes of an MBean.
+ *
+ * Metrics are registered while components are initialized, so attributes
+ * are listed at every call of getMBeanInfo instead of generated once by
+ * jmxutils annotations.
+ */
+public class JmxMetricsExporter
+        implements DynamicMBean
+{
+    private static final String OBJECT_NAME = "io.digdag.core.metrics:name=MetricRegistry";
+
+    private final MBeanServer mbeanServer;
+    private final MetricRegistry metrics;
+
+    @Inject
+    public JmxMetricsExporter(MBeanServer mbeanServer, MetricRegistry metrics)
+    {
+        this.mbeanServer = mbeanServer;
+        this.metrics = metrics;
+    }
+
+    @PostConstruct
+    public void start()
+    {
+        try {
+            mbeanServer.registerMBean(this, new ObjectName(OBJECT_NAME));
+        }
+        catch (JMException ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        try {
+            mbeanServer.unregisterMBean(new ObjectName(OBJECT_NAME));
+        }
+        catch (JMException ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute)
+        throws AttributeNotFoundException
+    {
+        Number value = metrics.getValues().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes)
+    {
+        Map<String, Number> values = metrics.getValues();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Number value = values.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute)
+    {
+        throw new UnsupportedOperationException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes)
+    {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature)
+    {
+        throw new UnsupportedOperationException("Metrics don't have operations");
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo()
+    {
+        Map<String, Number> values = metrics.getValues();
+        MBeanAttributeInfo[] attributes = values.entrySet().stream()
+            .map(pair -> new MBeanAttributeInfo(pair.getKey(), pair.getValue().getClass().getName(),
+                        pair.getKey(), true, false, false))
+            .toArray(MBeanAttributeInfo[]::new);
+        return new MBeanInfo(getClass().getName(), "Metrics of digdag", attributes, null, null, null);
+    }
+}
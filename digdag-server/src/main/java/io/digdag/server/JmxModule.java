@@ -44,6 +44,7 @@ public class JmxModule
         binder.bind(JmxAgent.class).asEagerSingleton();
         binder.bind(ErrorReporter.class).to(JmxErrorReporter.class).in(Scopes.SINGLETON);
         newExporter(binder).export(ErrorReporter.class).withGeneratedName();
+        binder.bind(JmxMetricsExporter.class).asEagerSingleton();
     }
 
     private static class JmxAgent
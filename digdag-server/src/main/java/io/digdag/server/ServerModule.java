@@ -16,7 +16,9 @@ import io.digdag.core.repository.ResourceNotFoundException;
 import io.digdag.core.workflow.LimitExceededException;
 import io.digdag.guice.rs.GuiceRsModule;
 import io.digdag.server.rs.AttemptResource;
+import io.digdag.server.rs.LogFileWatcher;
 import io.digdag.server.rs.LogResource;
+import io.digdag.server.rs.MetricsResource;
 import io.digdag.server.rs.ProjectResource;
 import io.digdag.server.rs.ScheduleResource;
 import io.digdag.server.rs.SessionResource;
@@ -45,6 +47,7 @@ public class ServerModule
     {
         ApplicationBindingBuilder builder = bindApplication()
             .matches("/api/*")
+            .withAsyncSupported(true)  // for long polling of LogResource
             .addProvider(JacksonJsonProvider.class, JsonProviderProvider.class)
             .addProvider(AuthRequestFilter.class)
             .addProvider(CustomHeaderFilter.class)
@@ -65,6 +68,7 @@ public class ServerModule
 
     protected void bindResources(ApplicationBindingBuilder builder)
     {
+        binder().bind(LogFileWatcher.class).in(Scopes.SINGLETON);
         builder.addResources(
                 ProjectResource.class,
                 WorkflowResource.class,
@@ -72,6 +76,7 @@ public class ServerModule
                 SessionResource.class,
                 AttemptResource.class,
                 LogResource.class,
+                MetricsResource.class,
                 VersionResource.class
             );
     }
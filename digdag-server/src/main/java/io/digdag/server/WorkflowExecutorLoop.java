@@ -3,27 +3,66 @@ package io.digdag.server;
 import com.google.inject.Inject;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigException;
 import io.digdag.core.BackgroundExecutor;
 import io.digdag.core.ErrorReporter;
+import io.digdag.core.agent.AgentId;
+import io.digdag.core.session.AttemptPartition;
+import io.digdag.core.session.SessionStoreManager;
 import io.digdag.core.workflow.WorkflowExecutor;
+import io.digdag.core.workflow.WorkflowExecutorLeaseStoreManager;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.function.Supplier;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BooleanSupplier;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
+/**
+ * Runs WorkflowExecutor loops.
+ *
+ * By default (executor.partitions: 1), a single loop handles all attempts.
+ * If executor.partitions is more than 1, attempts are split into partitions
+ * by attempt id and a loop runs for each partition in its own thread.
+ * Servers sharing the database lease partitions through
+ * workflow_executor_leases so that each server takes a fair share of
+ * partitions (ceil(partitions / number of servers)). A lease expires if
+ * it's not renewed in executor.partition_lease_ttl seconds, and then
+ * another server takes over the partition. Expiration is based on the
+ * clock of the database so that clock skew of servers doesn't matter.
+ *
+ * executor.partitions can be up to AttemptPartition.BUCKETS. On PostgreSQL,
+ * indexes on the bucket of attempts let each loop scan only tasks of its
+ * partition with any number of partitions.
+ */
 public class WorkflowExecutorLoop
         implements BackgroundExecutor
 {
     private static final Logger logger = LoggerFactory.getLogger(WorkflowExecutorLoop.class);
 
-    private final Supplier<Thread> threadFactory;
+    private final ThreadFactory threadFactory;
     private final WorkflowExecutor workflowExecutor;
+    private final WorkflowExecutorLeaseStoreManager leaseManager;
+    private final SessionStoreManager sessionStoreManager;
+    private final int partitions;
+    private final int leaseTtl;
+    private final String owner;
 
-    private volatile Thread thread = null;
+    // partition index -> thread running the loop of the partition
+    private final Map<Integer, Thread> ownedPartitions = new ConcurrentHashMap<>();
+    private final List<Thread> threads = new CopyOnWriteArrayList<>();
+    private volatile Thread leaseThread = null;
     private volatile boolean stop = false;
 
     @Inject(optional = true)
@@ -32,26 +71,41 @@ public class WorkflowExecutorLoop
     @Inject
     public WorkflowExecutorLoop(
             ServerConfig serverConfig,
-            WorkflowExecutor workflowExecutor)
+            Config systemConfig,
+            AgentId agentId,
+            WorkflowExecutor workflowExecutor,
+            WorkflowExecutorLeaseStoreManager leaseManager,
+            SessionStoreManager sessionStoreManager)
     {
         if (serverConfig.getExecutorEnabled()) {
-            this.threadFactory = () -> new ThreadFactoryBuilder()
+            this.threadFactory = new ThreadFactoryBuilder()
                 .setDaemon(true)
                 .setNameFormat("workflow-executor-%d")
-                .build()
-                .newThread(this::run);
+                .build();
         }
         else {
             this.threadFactory = null;
         }
         this.workflowExecutor = workflowExecutor;
+        this.leaseManager = leaseManager;
+        this.sessionStoreManager = sessionStoreManager;
+        this.partitions = systemConfig.get("executor.partitions", int.class, 1);
+        if (partitions < 1 || partitions > AttemptPartition.BUCKETS) {
+            throw new ConfigException("executor.partitions must be between 1 and " + AttemptPartition.BUCKETS + ": " + partitions);
+        }
+        this.leaseTtl = systemConfig.get("executor.partition_lease_ttl", int.class, 30);
+        // agent.id may be same on servers. a random suffix distinguishes processes
+        this.owner = agentId + ":" + UUID.randomUUID();
     }
 
-    private void run()
+    private void run(AttemptPartition partition)
     {
-        while (!stop) {
+        // a partition stopped and acquired again is run by another thread
+        Thread self = Thread.currentThread();
+        BooleanSupplier running = () -> !stop && ownedPartitions.get(partition.getIndex()) == self;
+        while (running.getAsBoolean()) {
             try {
-                workflowExecutor.runWhile(() -> !stop);
+                workflowExecutor.runWhile(partition, running);
             }
             catch (Throwable t) {
                 logger.error("Uncaught error during executing workflow state machine. Ignoring. Loop will be retried.", t);
@@ -67,23 +121,124 @@ public class WorkflowExecutorLoop
         }
     }
 
+    private void runLeases()
+    {
+        while (!stop) {
+            try {
+                updateLeases();
+            }
+            catch (Throwable t) {
+                logger.error("Uncaught error during updating leases of workflow executor partitions. Ignoring. Leases will be updated again.", t);
+                errorReporter.reportUncaughtError(t);
+            }
+            try {
+                // renew leases at least 3 times in a ttl
+                Thread.sleep(leaseTtl * 1000L / 3);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private synchronized void updateLeases()
+    {
+        if (stop) {
+            return;
+        }
+
+        // all servers compare expiration times with the clock of the database
+        Instant now = sessionStoreManager.getStoreTime();
+        Instant expireTime = now.plusSeconds(leaseTtl);
+
+        for (int index : new ArrayList<>(ownedPartitions.keySet())) {
+            if (!leaseManager.tryAcquireLease(index, owner, now, expireTime)) {
+                logger.warn("Lease of workflow executor partition {} expired and another server took it over", index);
+                stopPartition(index);
+            }
+        }
+
+        leaseManager.heartbeat(owner, now, expireTime);
+        int liveOwners = Math.max(leaseManager.countLiveOwners(now), 1);
+        int share = (partitions + liveOwners - 1) / liveOwners;
+
+        // start from a random partition so that servers starting at the same
+        // time don't compete for the same partitions
+        int offset = ThreadLocalRandom.current().nextInt(partitions);
+        for (int i = 0; i < partitions && ownedPartitions.size() < share; i++) {
+            int index = (offset + i) % partitions;
+            if (!ownedPartitions.containsKey(index) && leaseManager.tryAcquireLease(index, owner, now, expireTime)) {
+                startPartition(index);
+            }
+        }
+
+        // hand over partitions if more servers started
+        List<Integer> owned = new ArrayList<>(ownedPartitions.keySet());
+        for (int i = 0; i < owned.size() - share; i++) {
+            int index = owned.get(i);
+            stopPartition(index);
+            leaseManager.releaseLease(index, owner);
+        }
+    }
+
+    private void startPartition(int index)
+    {
+        logger.info("Starting workflow executor loop of partition {}/{}", index, partitions);
+        startThread(AttemptPartition.of(index, partitions));
+    }
+
+    private void startThread(AttemptPartition partition)
+    {
+        threads.removeIf(thread -> !thread.isAlive());
+        Thread thread = threadFactory.newThread(() -> run(partition));
+        ownedPartitions.put(partition.getIndex(), thread);
+        threads.add(thread);
+        thread.start();
+    }
+
+    private void stopPartition(int index)
+    {
+        logger.info("Stopping workflow executor loop of partition {}/{}", index, partitions);
+        ownedPartitions.remove(index);
+        // the thread exits when runWhile checks the condition.
+        // shutdown() joins it.
+        workflowExecutor.noticeRunWhileConditionChange();
+    }
+
     @PostConstruct
     public synchronized void start()
     {
-        if (threadFactory != null && thread == null) {
-            Thread thread = threadFactory.get();
+        if (threadFactory == null || !threads.isEmpty() || leaseThread != null) {
+            return;
+        }
+        if (partitions <= 1) {
+            startThread(AttemptPartition.all());
+        }
+        else {
+            Thread thread = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("workflow-executor-lease")
+                .build()
+                .newThread(this::runLeases);
             thread.start();
-            this.thread = thread;
+            this.leaseThread = thread;
         }
     }
 
     @PreDestroy
-    public synchronized void shutdown()
+    public void shutdown()
         throws InterruptedException
     {
         startShutdown();
 
-        if (thread != null) {
+        if (leaseThread != null) {
+            leaseThread.interrupt();
+            leaseThread.join();
+            leaseThread = null;
+        }
+
+        for (Thread thread : threads) {
             thread.join(100);
             if (thread.isAlive()) {
                 logger.info("Waiting for completion of workflow executor loop...");
@@ -92,7 +247,17 @@ public class WorkflowExecutorLoop
                     thread.join(1000);
                 } while (thread.isAlive());
             }
-            thread = null;
+        }
+        threads.clear();
+
+        if (partitions > 1) {
+            synchronized (this) {
+                for (int index : ownedPartitions.keySet()) {
+                    leaseManager.releaseLease(index, owner);
+                }
+                ownedPartitions.clear();
+                leaseManager.removeOwner(owner);
+            }
         }
     }
 
@@ -128,10 +128,19 @@ public class AttemptResource
 
     @GET
     @Path("/api/attempts/{id}/tasks")
-    public List<RestTask> getTasks(@PathParam("id") long id)
+    public List<RestTask> getTasks(
+            @PathParam("id") long id,
+            @QueryParam("name_prefix") String namePrefix)
     {
-        return sm.getSessionStore(getSiteId())
-            .getTasksOfAttempt(id)
+        SessionStore ss = sm.getSessionStore(getSiteId());
+        List<ArchivedTask> tasks;
+        if (namePrefix != null) {
+            tasks = ss.getTasksOfAttemptByNamePrefix(id, namePrefix);
+        }
+        else {
+            tasks = ss.getTasksOfAttempt(id);
+        }
+        return tasks
             .stream()
             .map(task -> RestModels.task(task))
             .collect(Collectors.toList());
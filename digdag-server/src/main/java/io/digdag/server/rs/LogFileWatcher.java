@@ -0,0 +1,101 @@
+package io.digdag.server.rs;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import javax.annotation.PreDestroy;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import io.digdag.spi.LogFileHandle;
+
+/**
+ * Waits for changes of log files for long polling requests.
+ *
+ * A waiting request doesn't occupy a request thread. Files are listed
+ * again every CHECK_INTERVAL_MILLIS on a shared scheduler thread, and the
+ * request is resumed when total size of the files changes or wait time
+ * elapses. Number of waiting requests is capped so that listing files
+ * doesn't overload the log server. Requests exceeding the cap return
+ * immediately and clients fall back to regular polling.
+ */
+public class LogFileWatcher
+{
+    static final int MAX_WAIT_SECONDS = 10;
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+    private static final int MAX_WAITING_REQUESTS = 64;
+
+    private final ScheduledExecutorService executor;
+    private final Semaphore waitingPermits = new Semaphore(MAX_WAITING_REQUESTS);
+
+    @Inject
+    public LogFileWatcher()
+    {
+        this.executor = Executors.newScheduledThreadPool(2,
+                new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("log-file-watcher-%d")
+                .build()
+                );
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    // Completes with files when total size of the files becomes different
+    // from knownSize, or when waitSeconds elapsed. Files don't shrink and a
+    // new file always makes the total size larger.
+    public CompletableFuture<List<LogFileHandle>> waitForChange(
+            Supplier<List<LogFileHandle>> lister, long knownSize, int waitSeconds)
+    {
+        CompletableFuture<List<LogFileHandle>> future = new CompletableFuture<>();
+        List<LogFileHandle> handles = lister.get();
+        if (waitSeconds <= 0 || totalSize(handles) != knownSize || !waitingPermits.tryAcquire()) {
+            future.complete(handles);
+            return future;
+        }
+        future.whenComplete((result, error) -> waitingPermits.release());
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(Math.min(waitSeconds, MAX_WAIT_SECONDS));
+        scheduleCheck(future, lister, knownSize, handles, deadline);
+        return future;
+    }
+
+    private void scheduleCheck(CompletableFuture<List<LogFileHandle>> future,
+            Supplier<List<LogFileHandle>> lister, long knownSize,
+            List<LogFileHandle> lastHandles, long deadline)
+    {
+        try {
+            executor.schedule(() -> {
+                try {
+                    List<LogFileHandle> handles = lister.get();
+                    if (totalSize(handles) != knownSize || System.nanoTime() - deadline >= 0) {
+                        future.complete(handles);
+                    }
+                    else {
+                        scheduleCheck(future, lister, knownSize, handles, deadline);
+                    }
+                }
+                catch (RuntimeException ex) {
+                    future.completeExceptionally(ex);
+                }
+            }, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException ex) {
+            // shutting down
+            future.complete(lastHandles);
+        }
+    }
+
+    private static long totalSize(List<LogFileHandle> handles)
+    {
+        return handles.stream().mapToLong(it -> it.getFileSize()).sum();
+    }
+}
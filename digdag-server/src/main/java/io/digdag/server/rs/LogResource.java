@@ -6,13 +6,18 @@ import java.util.stream.Collectors;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.FileNotFoundException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.Produces;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.PUT;
 import javax.ws.rs.GET;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.GenericEntity;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.ServerErrorException;
 import com.google.inject.Inject;
@@ -22,6 +27,7 @@ import io.digdag.core.session.SessionStoreManager;
 import io.digdag.core.session.*;
 import io.digdag.core.repository.*;
 import io.digdag.core.log.LogServerManager;
+import io.digdag.client.DigdagClient;
 import io.digdag.client.api.*;
 import io.digdag.spi.*;
 
@@ -33,20 +39,23 @@ public class LogResource
     extends AuthenticatedResource
 {
     // PUT  /api/logs/{attempt_id}/files?task=<name>&file_time=<unixtime sec>&node_id=<node_id>
-    // GET  /api/logs/{attempt_id}/files[?task=<name>]
-    // GET  /api/logs/{attempt_id}/files/{file_name}
+    // GET  /api/logs/{attempt_id}/files[?task=<name>][&known_size=<bytes>&wait=<sec>]
+    // GET  /api/logs/{attempt_id}/files/{file_name}[?offset=<bytes>]
     // GET  /api/logs/{attempt_id}/upload_handle?task=<name>&file_time=<unixtime sec>&node_id=<nodeId>
 
     private final SessionStoreManager sm;
     private final LogServer logServer;
+    private final LogFileWatcher watcher;
 
     @Inject
     public LogResource(
             SessionStoreManager sm,
-            LogServerManager lm)
+            LogServerManager lm,
+            LogFileWatcher watcher)
     {
         this.sm = sm;
         this.logServer = lm.getLogServer();
+        this.watcher = watcher;
     }
 
     @PUT
@@ -57,15 +66,31 @@ public class LogResource
             @QueryParam("task") String taskName,
             @QueryParam("file_time") long unixFileTime,
             @QueryParam("node_id") String nodeId,
-            InputStream body)
+            InputStream body, @HeaderParam("Content-Length") long contentLength)
         throws ResourceNotFoundException, IOException
     {
         // TODO null check taskName
         // TODO null check nodeId
         LogFilePrefix prefix = getPrefix(attemptId);
 
-        byte[] data = ByteStreams.toByteArray(body);
-        String fileName = logServer.putFile(prefix, taskName, Instant.ofEpochSecond(unixFileTime), nodeId, data);
+        String fileName;
+        if (contentLength > 0) {
+            // stream the body to log server without materializing it.
+            // the body can't be read twice. retrying upload fails.
+            AtomicBoolean opened = new AtomicBoolean(false);
+            fileName = logServer.putFile(prefix, taskName, Instant.ofEpochSecond(unixFileTime), nodeId,
+                    contentLength, () -> {
+                        if (opened.getAndSet(true)) {
+                            throw new IOException("Request body of a log file can't be read twice");
+                        }
+                        return body;
+                    });
+        }
+        else {
+            // chunked request doesn't have Content-Length
+            byte[] data = ByteStreams.toByteArray(body);
+            fileName = logServer.putFile(prefix, taskName, Instant.ofEpochSecond(unixFileTime), nodeId, data);
+        }
         return RestLogFilePutResult.of(fileName);
     }
 
@@ -98,29 +123,48 @@ public class LogResource
 
     @GET
     @Path("/api/logs/{attempt_id}/files")
-    public List<RestLogFileHandle> getFileHandles(
+    public void getFileHandles(
             @PathParam("attempt_id") long attemptId,
-            @QueryParam("task") String taskName)
+            @QueryParam("task") String taskName,
+            @QueryParam("known_size") long knownSize,
+            @QueryParam("wait") int waitSeconds,
+            @Suspended AsyncResponse response)
         throws ResourceNotFoundException
     {
         LogFilePrefix prefix = getPrefix(attemptId);
-        List<LogFileHandle> handles = logServer.getFileHandles(prefix, Optional.fromNullable(taskName));
 
-        return handles.stream()
-            .map(it -> RestModels.logFileHandle(it))
-            .collect(Collectors.toList());
+        // long polling. if wait is set, the response is resumed when total
+        // size of the files becomes different from known_size.
+        watcher.waitForChange(() -> logServer.getFileHandles(prefix, Optional.fromNullable(taskName)), knownSize, waitSeconds)
+            .whenComplete((handles, error) -> {
+                if (error != null) {
+                    response.resume(error);
+                }
+                else {
+                    List<RestLogFileHandle> list = handles.stream()
+                        .map(it -> RestModels.logFileHandle(it))
+                        .collect(Collectors.toList());
+                    response.resume(new GenericEntity<List<RestLogFileHandle>>(list) { });
+                }
+            });
     }
 
     @GET
     @Produces("application/gzip")
     @Path("/api/logs/{attempt_id}/files/{file_name}")
-    public byte[] getFile(
+    public Response getFile(
             @PathParam("attempt_id") long attemptId,
-            @PathParam("file_name") String fileName)
-        throws StorageFileNotFoundException, ResourceNotFoundException
+            @PathParam("file_name") String fileName,
+            @QueryParam("offset") long offset)
+        throws StorageFileNotFoundException, ResourceNotFoundException, IOException
     {
         LogFilePrefix prefix = getPrefix(attemptId);
-        return logServer.getFile(prefix, fileName);
+        // the stream is closed after the response is written.
+        // the header tells clients that the data starts at offset because
+        // old servers ignore offset and return the whole file.
+        return Response.ok(logServer.openFile(prefix, fileName, offset))
+            .header(DigdagClient.LOG_FILE_OFFSET_HEADER, offset)
+            .build();
     }
 
     private LogFilePrefix getPrefix(long attemptId)
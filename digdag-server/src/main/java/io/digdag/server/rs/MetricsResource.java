@@ -0,0 +1,29 @@
+package io.digdag.server.rs;
+
+import com.google.inject.Inject;
+import io.digdag.core.metrics.MetricRegistry;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+
+@Path("/")
+public class MetricsResource
+{
+    private final MetricRegistry metrics;
+
+    @Inject
+    public MetricsResource(MetricRegistry metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    // Prometheus text format
+    @GET
+    @Path("/api/metrics")
+    @Produces("text/plain; version=0.0.4")
+    public String getMetrics()
+    {
+        return metrics.toPrometheusText();
+    }
+}
@@ -10,8 +10,8 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
-import java.io.InputStream;
-import java.nio.file.Files;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Paths;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.Produces;
 import javax.ws.rs.Path;
@@ -47,10 +47,9 @@ import io.digdag.client.api.RestSetSecretRequest;
 import io.digdag.client.api.RestWorkflowDefinition;
 import io.digdag.client.config.Config;
 import io.digdag.client.config.ConfigFactory;
-import io.digdag.core.TempFileManager;
-import io.digdag.core.TempFileManager.TempDir;
-import io.digdag.core.TempFileManager.TempFile;
+import io.digdag.core.archive.ArchiveIndex;
 import io.digdag.core.archive.ArchiveMetadata;
+import io.digdag.core.archive.IndexedArchiveWriter;
 import io.digdag.core.config.YamlConfigLoader;
 import io.digdag.core.repository.ArchiveType;
 import io.digdag.core.repository.Project;
@@ -101,7 +100,6 @@ import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.file.Files;
 import java.time.Instant;
 import java.util.List;
 import java.util.Map;
@@ -109,6 +107,7 @@ import java.util.stream.Collectors;
 
 import static io.digdag.server.rs.RestModels.sessionModels;
 import static java.util.Locale.ENGLISH;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 @Path("/")
 @Produces("application/json")
@@ -147,7 +146,6 @@ public class ProjectResource
     private final ProjectStoreManager rm;
     private final ScheduleStoreManager sm;
     private final SchedulerManager srm;
-    private final TempFileManager tempFiles;
     private final SessionStoreManager ssm;
     private final SecretControlStoreManager scsp;
 
@@ -160,7 +158,6 @@ public class ProjectResource
             ProjectStoreManager rm,
             ScheduleStoreManager sm,
             SchedulerManager srm,
-            TempFileManager tempFiles,
             SessionStoreManager ssm,
             SecretControlStoreManager scsp)
     {
@@ -171,7 +168,6 @@ public class ProjectResource
         this.archiveManager = archiveManager;
         this.rm = rm;
         this.sm = sm;
-        this.tempFiles = tempFiles;
         this.ssm = ssm;
         this.scsp = scsp;
     }
@@ -448,136 +444,147 @@ public class ProjectResource
                         "Size of the uploaded archive file exceeds limit (%d bytes)",
                         ARCHIVE_TOTAL_SIZE_LIMIT));
         }
-        int size = (int) contentLength;
-
-        try (TempFile tempFile = tempFiles.createTempFile("upload-", ".tar.gz")) {
-            // Read uploaded data to the temp file and following variables
-            ArchiveMetadata meta;
-            byte[] md5;
-            try (OutputStream writeToTemp = Files.newOutputStream(tempFile.get())) {
-                Md5CountInputStream md5Count = new Md5CountInputStream(body);
-                meta = readArchiveMetadata(new DuplicateInputStream(md5Count, writeToTemp), name);
-                md5 = md5Count.getDigest();
-                if (md5Count.getCount() != contentLength) {
-                    throw new IllegalArgumentException("Content-Length header doesn't match with uploaded data size");
-                }
+
+        // Read uploaded data in a single pass. It computes MD5 digest, validates
+        // entries, and parses ArchiveMetadata.FILE_NAME while keeping the data in
+        // memory. Keeping it in memory is fine because size of the data is limited
+        // by ARCHIVE_TOTAL_SIZE_LIMIT.
+        ArchiveMetadata meta;
+        byte[] md5;
+        byte[] data;
+        Optional<ArchiveIndex> index;
+        {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) contentLength);
+            Md5CountInputStream md5Count = new Md5CountInputStream(body);
+            meta = readArchiveMetadata(new DuplicateInputStream(md5Count, buffer));
+            if (md5Count.getCount() != contentLength) {
+                throw new IllegalArgumentException("Content-Length header doesn't match with uploaded data size");
             }
+            // archive_md5 is the digest of the uploaded data even if the stored data is rewritten
+            md5 = md5Count.getDigest();
+            if (archiveManager.isIndexEnabled()) {
+                // rewrite the archive so that agents can fetch only files they need
+                IndexedArchiveWriter.Result indexed = IndexedArchiveWriter.rewrite(buffer.toByteArray());
+                data = indexed.getData();
+                index = Optional.of(indexed.getIndex());
+            }
+            else {
+                data = buffer.toByteArray();
+                index = Optional.absent();
+            }
+        }
+        int size = data.length;
 
-            ArchiveManager.Location location =
-                archiveManager.newArchiveLocation(getSiteId(), name, revision, size);
-            boolean storeInDb = location.getArchiveType().equals(ArchiveType.DB);
+        ArchiveManager.Location location =
+            archiveManager.newArchiveLocation(getSiteId(), name, revision, size);
+        boolean storeInDb = location.getArchiveType().equals(ArchiveType.DB);
 
-            if (!storeInDb) {
-                // upload to storage
-                try {
-                    archiveManager
-                        .getStorage(location.getArchiveType())
-                        .put(location.getPath(), size, () -> Files.newInputStream(tempFile.get()));
-                }
-                catch (RuntimeException | IOException ex) {
-                    throw new InternalServerErrorException("Failed to upload archive to a remote storage", ex);
-                }
+        if (!storeInDb) {
+            // upload to storage
+            try {
+                archiveManager
+                    .getStorage(location.getArchiveType())
+                    .put(location.getPath(), size, () -> new ByteArrayInputStream(data));
+            }
+            catch (RuntimeException | IOException ex) {
+                throw new InternalServerErrorException("Failed to upload archive to a remote storage", ex);
             }
-
-            // Getting secrets might fail. To avoid ending up with a project without secrets, get the secrets _before_ storing the project.
-            // If getting the project secrets fails, the project will not be stored and the push can then be retried with the same revision.
-            Map<String, String> secrets = getSecrets().get();
-
-            RestProject restProject = rm.getProjectStore(getSiteId()).putAndLockProject(
-                    Project.of(name),
-                    (store, storedProject) -> {
-                        ProjectControl lockedProj = new ProjectControl(store, storedProject);
-                        StoredRevision rev;
-                        if (storeInDb) {
-                            // store data in db
-                            byte[] data = new byte[size];
-                            try (InputStream in = Files.newInputStream(tempFile.get())) {
-                                ByteStreams.readFully(in, data);
-                            }
-                            catch (RuntimeException | IOException ex) {
-                                throw new InternalServerErrorException("Failed to load archive data in memory", ex);
-                            }
-                            rev = lockedProj.insertRevision(
-                                    Revision.builderFromArchive(revision, meta, getUserInfo())
-                                            .archiveType(ArchiveType.DB)
-                                            .archivePath(Optional.absent())
-                                            .archiveMd5(Optional.of(md5))
-                                            .build()
-                            );
-                            lockedProj.insertRevisionArchiveData(rev.getId(), data);
-                        }
-                        else {
-                            // store location of the uploaded file in db
-                            rev = lockedProj.insertRevision(
-                                    Revision.builderFromArchive(revision, meta, getUserInfo())
-                                            .archiveType(location.getArchiveType())
-                                            .archivePath(Optional.of(location.getPath()))
-                                            .archiveMd5(Optional.of(md5))
-                                            .build()
-                            );
-                        }
-
-                        List<StoredWorkflowDefinition> defs =
-                            lockedProj.insertWorkflowDefinitions(rev,
-                                    meta.getWorkflowList().get(),
-                                    srm, scheduleFrom);
-                        return RestModels.project(storedProject, rev);
-                    });
-
-            SecretControlStore secretControlStore = scsp.getSecretControlStore(getSiteId());
-            secrets.forEach((k, v) -> secretControlStore.setProjectSecret(restProject.getId(), SecretScopes.PROJECT_DEFAULT, k, v));
-            return restProject;
         }
-    }
 
-    private ArchiveMetadata readArchiveMetadata(InputStream in, String projectName)
-        throws IOException
-    {
-        try (TempDir dir = tempFiles.createTempDir("push", projectName)) {
-            long totalSize = 0;
-            try (TarArchiveInputStream archive = new TarArchiveInputStream(new GzipCompressorInputStream(new BufferedInputStream(in, 32*1024)))) {
-                totalSize = extractConfigFiles(dir.get(), archive);
-            }
+        // Getting secrets might fail. To avoid ending up with a project without secrets, get the secrets _before_ storing the project.
+        // If getting the project secrets fails, the project will not be stored and the push can then be retried with the same revision.
+        Map<String, String> secrets = getSecrets().get();
+
+        RestProject restProject = rm.getProjectStore(getSiteId()).putAndLockProject(
+                Project.of(name),
+                (store, storedProject) -> {
+                    ProjectControl lockedProj = new ProjectControl(store, storedProject);
+                    StoredRevision rev;
+                    if (storeInDb) {
+                        // store data in db. revision_archives references revisions.
+                        // data is inserted in the same transaction so that the revision
+                        // is never visible without its archive.
+                        rev = lockedProj.insertRevision(
+                                Revision.builderFromArchive(revision, meta, getUserInfo())
+                                        .archiveType(ArchiveType.DB)
+                                        .archivePath(Optional.absent())
+                                        .archiveMd5(Optional.of(md5))
+                                        .build()
+                        );
+                        lockedProj.insertRevisionArchiveData(rev.getId(), data);
+                    }
+                    else {
+                        // store location of the uploaded file in db
+                        rev = lockedProj.insertRevision(
+                                Revision.builderFromArchive(revision, meta, getUserInfo())
+                                        .archiveType(location.getArchiveType())
+                                        .archivePath(Optional.of(location.getPath()))
+                                        .archiveMd5(Optional.of(md5))
+                                        .build()
+                        );
+                    }
+                    if (index.isPresent()) {
+                        lockedProj.insertRevisionArchiveIndex(rev.getId(), index.get().toBytes());
+                    }
 
-            if (totalSize > ARCHIVE_TOTAL_SIZE_LIMIT) {
-                throw new IllegalArgumentException(String.format(ENGLISH,
-                            "Total size of the archive exceeds limit (%d > %d bytes)",
-                            totalSize, ARCHIVE_TOTAL_SIZE_LIMIT));
-            }
+                    List<StoredWorkflowDefinition> defs =
+                        lockedProj.insertWorkflowDefinitions(rev,
+                                meta.getWorkflowList().get(),
+                                srm, scheduleFrom);
+                    return RestModels.project(storedProject, rev);
+                });
 
-            Config renderedConfig = rawLoader.loadFile(
-                    dir.child(ArchiveMetadata.FILE_NAME).toFile()).toConfig(cf);
-            return renderedConfig.convert(ArchiveMetadata.class);
-        }
+        SecretControlStore secretControlStore = scsp.getSecretControlStore(getSiteId());
+        secrets.forEach((k, v) -> secretControlStore.setProjectSecret(restProject.getId(), SecretScopes.PROJECT_DEFAULT, k, v));
+        return restProject;
     }
 
-    // TODO here doesn't have to extract files exception ArchiveMetadata.FILE_NAME
-    //      rawLoader.loadFile doesn't have to render the file because it's already rendered.
-    private long extractConfigFiles(java.nio.file.Path dir, TarArchiveInputStream archive)
+    private ArchiveMetadata readArchiveMetadata(InputStream in)
         throws IOException
     {
         long totalSize = 0;
-        TarArchiveEntry entry;
-        while (true) {
-            entry = archive.getNextTarEntry();
-            if (entry == null) {
-                break;
-            }
-            if (entry.isDirectory()) {
-                // do nothing
-            }
-            else {
-                validateTarEntry(entry);
-                totalSize += entry.getSize();
-
-                java.nio.file.Path file = dir.resolve(entry.getName());
-                Files.createDirectories(file.getParent());
-                try (OutputStream out = Files.newOutputStream(file)) {
-                    ByteStreams.copy(archive, out);
+        String metadata = null;
+
+        try (TarArchiveInputStream archive = new TarArchiveInputStream(new GzipCompressorInputStream(new BufferedInputStream(in, 32*1024)))) {
+            TarArchiveEntry entry;
+            while (true) {
+                entry = archive.getNextTarEntry();
+                if (entry == null) {
+                    break;
+                }
+                if (entry.isDirectory()) {
+                    // do nothing
+                }
+                else {
+                    validateTarEntry(entry);
+                    totalSize += entry.getSize();
+
+                    // only ArchiveMetadata.FILE_NAME is necessary. contents of
+                    // other entries are skipped by getNextTarEntry.
+                    if (Paths.get(entry.getName()).normalize().toString().equals(ArchiveMetadata.FILE_NAME)) {
+                        metadata = new String(ByteStreams.toByteArray(archive), UTF_8);
+                    }
                 }
             }
+
+            // consume padding after the end of the archive so that MD5 digest
+            // and size include the whole uploaded data
+            ByteStreams.copy(in, ByteStreams.nullOutputStream());
+        }
+
+        if (totalSize > ARCHIVE_TOTAL_SIZE_LIMIT) {
+            throw new IllegalArgumentException(String.format(ENGLISH,
+                        "Total size of the archive exceeds limit (%d > %d bytes)",
+                        totalSize, ARCHIVE_TOTAL_SIZE_LIMIT));
+        }
+
+        if (metadata == null) {
+            throw new IllegalArgumentException("Archive doesn't include " + ArchiveMetadata.FILE_NAME);
         }
-        return totalSize;
+
+        // the file is already rendered by the client. it doesn't have to be rendered again.
+        Config renderedConfig = rawLoader.loadString(metadata).toConfig(cf);
+        return renderedConfig.convert(ArchiveMetadata.class);
     }
 
     private void validateTarEntry(TarArchiveEntry entry)
@@ -1,18 +1,57 @@
 package io.digdag.spi;
 
+import java.util.Arrays;
 import java.util.List;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.IOException;
 import java.time.Instant;
 import java.time.ZoneId;
 import com.google.common.base.Optional;
+import com.google.common.io.ByteStreams;
 
 public interface LogServer
 {
     String putFile(LogFilePrefix prefix, String taskName, Instant firstLogTime, String agentId, byte[] gzData);
 
+    /**
+     * Puts a log file without materializing it on heap.
+     *
+     * gzData may be opened more than once if the upload is retried.
+     * Default implementation reads whole data into memory and calls
+     * putFile(byte[]) so that existing implementations keep working.
+     */
+    default String putFile(LogFilePrefix prefix, String taskName, Instant firstLogTime, String agentId,
+            long gzDataLength, Storage.UploadStreamProvider gzData)
+        throws IOException
+    {
+        byte[] data;
+        try (InputStream in = gzData.open()) {
+            data = ByteStreams.toByteArray(in);
+        }
+        return putFile(prefix, taskName, firstLogTime, agentId, data);
+    }
+
     Optional<DirectUploadHandle> getDirectUploadHandle(LogFilePrefix prefix, String taskName, Instant firstLogTime, String agentId);
 
     List<LogFileHandle> getFileHandles(LogFilePrefix prefix, Optional<String> taskName);
 
     byte[] getFile(LogFilePrefix prefix, String fileName)
         throws StorageFileNotFoundException;
+
+    /**
+     * Opens a log file as a stream starting from offset.
+     *
+     * offset is a position in the gzip data. It must be 0 or the end of data
+     * returned by a previous call. Implementations of log files that can grow
+     * return only complete gzip members so that callers can resume reading
+     * from the end of the returned data.
+     */
+    default InputStream openFile(LogFilePrefix prefix, String fileName, long offset)
+        throws StorageFileNotFoundException, IOException
+    {
+        byte[] data = getFile(prefix, fileName);
+        int from = (int) Math.min(offset, data.length);
+        return new ByteArrayInputStream(Arrays.copyOfRange(data, from, data.length));
+    }
 }
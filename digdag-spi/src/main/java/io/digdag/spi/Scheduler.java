@@ -2,6 +2,8 @@ package io.digdag.spi;
 
 import java.time.Instant;
 import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
 
 public interface Scheduler
 {
@@ -18,4 +20,21 @@ public interface Scheduler
     // align given time with the last schedule time.
     // getTime of returned ScheduleTime is before currentScheduleTime.
     ScheduleTime lastScheduleTime(Instant currentScheduleTime);
+
+    // list schedule times whose getTime is after lastScheduleTime and before
+    // endTime in order, up to limit times.
+    default List<ScheduleTime> enumerate(Instant lastScheduleTime, Instant endTime, int limit)
+    {
+        List<ScheduleTime> times = new ArrayList<>();
+        Instant time = lastScheduleTime;
+        while (times.size() < limit) {
+            ScheduleTime next = nextScheduleTime(time);
+            if (!next.getTime().isBefore(endTime)) {
+                break;
+            }
+            times.add(next);
+            time = next.getTime();
+        }
+        return times;
+    }
 }
@@ -4,12 +4,31 @@ import java.io.InputStream;
 import java.io.IOException;
 import java.util.List;
 import com.google.common.base.Optional;
+import com.google.common.io.ByteStreams;
 
 public interface Storage
 {
     StorageObject open(String key)
         throws StorageFileNotFoundException;
 
+    /**
+     * Opens a range of a file. Default implementation opens the whole
+     * file and skips bytes before offset.
+     */
+    default StorageObject openRange(String key, long offset, long length)
+        throws StorageFileNotFoundException, IOException
+    {
+        InputStream in = open(key).getContentInputStream();
+        try {
+            ByteStreams.skipFully(in, offset);
+        }
+        catch (IOException ex) {
+            in.close();
+            throw ex;
+        }
+        return new StorageObject(ByteStreams.limit(in, length), length);
+    }
+
     interface UploadStreamProvider
     {
         InputStream open() throws IOException;
@@ -3,6 +3,7 @@ package io.digdag.spi;
 import java.util.List;
 import java.util.function.Function;
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import io.digdag.client.config.Config;
 
 public interface TaskQueueServer
@@ -18,6 +19,21 @@ public interface TaskQueueServer
     void enqueueQueueBoundTask(int queueId, TaskQueueRequest request)
         throws TaskConflictException;
 
+    // returns unique names of tasks that are already queued and skipped
+    default List<String> enqueueDefaultQueueTasks(int siteId, List<TaskQueueRequest> requests)
+    {
+        ImmutableList.Builder<String> conflicts = ImmutableList.builder();
+        for (TaskQueueRequest request : requests) {
+            try {
+                enqueueDefaultQueueTask(siteId, request);
+            }
+            catch (TaskConflictException ex) {
+                conflicts.add(request.getUniqueName());
+            }
+        }
+        return conflicts.build();
+    }
+
     void deleteTask(int siteId, String lockId, String agentId)
         throws TaskNotFoundException, TaskConflictException;
 
@@ -0,0 +1,294 @@
+package io.digdag.standards.command;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.digdag.spi.CommandExecutor;
+import io.digdag.spi.CommandLogger;
+import io.digdag.spi.TaskRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Pool of long-running script interpreters that run tasks one by one so that
+ * tasks don't pay for interpreter startup and imports of libraries every time.
+ *
+ * Workers are keyed by project revision. A worker runs a task in the
+ * workspace of the task, and is recycled after maxTasksPerWorker tasks or
+ * when its memory usage exceeds maxMemoryKb. Idle workers are terminated
+ * by a background thread after idleTimeout even if no more tasks of the
+ * revision run.
+ *
+ * Protocol between this pool and a worker process:
+ *
+ * 1. This pool writes a request as a line of JSON to stdin of the worker:
+ *    {"token": "...", "cwd": "...", "script": "...", "args": [...]}
+ * 2. The worker changes the current directory to cwd and runs the script
+ *    with args as its command-line arguments. The script sees a fresh
+ *    environment (environment variables, import path) and an empty stdin.
+ *    Outputs of the script are written to stdout and stderr of the worker,
+ *    which are merged and copied to the task log.
+ * 3. When the script finishes, the worker writes a marker line:
+ *    "\0DIGDAG-WORKER-DONE &lt;token&gt; &lt;status&gt; &lt;max rss in KB&gt;\n"
+ *    where status is 0 if the script succeeded.
+ *
+ * Results of tasks are not part of the protocol. Scripts write them to files
+ * in the workspace as they do when they run in their own processes. A worker
+ * for another language needs to implement only the worker side of this
+ * protocol (see digdag/standards/py/worker.py).
+ */
+public class ScriptWorkerPool
+        implements AutoCloseable
+{
+    private static Logger logger = LoggerFactory.getLogger(ScriptWorkerPool.class);
+
+    private static final long MIN_REAP_INTERVAL_MILLIS = 100;
+
+    private final String name;
+    private final List<String> workerCommand;
+    private final CommandExecutor exec;
+    private final ObjectMapper mapper;
+    private final int maxTasksPerWorker;
+    private final long maxMemoryKb;
+    private final int maxIdleWorkers;
+    private final Duration idleTimeout;
+    private final ScheduledExecutorService reaper;
+
+    private final Map<String, Deque<Worker>> idleWorkers = new HashMap<>();
+    private int idleCount = 0;
+    private boolean closed = false;
+
+    public ScriptWorkerPool(String name, List<String> workerCommand,
+            CommandExecutor exec, ObjectMapper mapper,
+            int maxTasksPerWorker, long maxMemoryKb,
+            int maxIdleWorkers, Duration idleTimeout)
+    {
+        this.name = name;
+        this.workerCommand = ImmutableList.copyOf(workerCommand);
+        this.exec = exec;
+        this.mapper = mapper;
+        this.maxTasksPerWorker = maxTasksPerWorker;
+        this.maxMemoryKb = maxMemoryKb;
+        this.maxIdleWorkers = maxIdleWorkers;
+        this.idleTimeout = idleTimeout;
+        this.reaper = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("script-worker-reaper-%d")
+                .build()
+                );
+        long reapInterval = Math.max(idleTimeout.toMillis() / 2, MIN_REAP_INTERVAL_MILLIS);
+        reaper.scheduleWithFixedDelay(this::evictExpiredWorkers, reapInterval, reapInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private static class Worker
+    {
+        private final Process process;
+        private final Writer stdin;
+        private final InputStream stdout;
+        private int taskCount = 0;
+        private long idleSince;
+
+        Worker(Process process)
+        {
+            this.process = process;
+            this.stdin = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), UTF_8));
+            this.stdout = new BufferedInputStream(process.getInputStream());
+        }
+
+        boolean isExpired(long now, Duration idleTimeout)
+        {
+            return !process.isAlive() || now - idleSince > idleTimeout.toNanos();
+        }
+
+        void destroy()
+        {
+            process.destroy();
+        }
+    }
+
+    // key of a worker is computed from siteId, projectId and revision of the task
+    public static String workerKey(TaskRequest request)
+    {
+        return request.getSiteId() + "/" + request.getProjectId() + "/" + request.getRevision().or("");
+    }
+
+    /**
+     * Runs a script in a worker and returns its exit status. Outputs of the
+     * script are copied to clog.
+     */
+    public int run(Path workspacePath, TaskRequest request,
+            String script, List<String> args,
+            CommandLogger clog, OutputStream copy)
+        throws IOException, InterruptedException
+    {
+        String key = workerKey(request);
+        Worker worker = checkout(key, workspacePath, request);
+        boolean reusable = false;
+        try {
+            String token = UUID.randomUUID().toString();
+            worker.stdin.write(mapper.writeValueAsString(ImmutableMap.of(
+                            "token", token,
+                            "cwd", workspacePath.toAbsolutePath().toString(),
+                            "script", script,
+                            "args", args)));
+            worker.stdin.write("\n");
+            worker.stdin.flush();
+
+            WorkerOutputInputStream out = new WorkerOutputInputStream(worker.stdout, token);
+            clog.copy(out, copy);
+
+            if (!out.getStatusLine().isPresent()) {
+                throw new IOException(name + " worker exited unexpectedly");
+            }
+            String[] fields = out.getStatusLine().get().split(" ");
+            int status = Integer.parseInt(fields[0]);
+            long maxRss = Long.parseLong(fields[1]);
+
+            worker.taskCount++;
+            if (worker.taskCount >= maxTasksPerWorker) {
+                logger.debug("Recycling {} worker after {} tasks", name, worker.taskCount);
+            }
+            else if (maxRss > maxMemoryKb) {
+                logger.debug("Recycling {} worker using {}KB memory", name, maxRss);
+            }
+            else {
+                reusable = true;
+            }
+            return status;
+        }
+        finally {
+            if (reusable) {
+                checkin(key, worker);
+            }
+            else {
+                worker.destroy();
+            }
+        }
+    }
+
+    private Worker checkout(String key, Path workspacePath, TaskRequest request)
+        throws IOException
+    {
+        long now = System.nanoTime();
+        synchronized (idleWorkers) {
+            Deque<Worker> workers = idleWorkers.get(key);
+            while (workers != null && !workers.isEmpty()) {
+                Worker worker = workers.pollLast();
+                idleCount--;
+                if (!worker.isExpired(now, idleTimeout)) {
+                    return worker;
+                }
+                worker.destroy();
+            }
+        }
+        ProcessBuilder pb = new ProcessBuilder(workerCommand);
+        pb.redirectErrorStream(true);
+        return new Worker(exec.start(workspacePath, request, pb));
+    }
+
+    private void checkin(String key, Worker worker)
+    {
+        worker.idleSince = System.nanoTime();
+        synchronized (idleWorkers) {
+            if (closed || maxIdleWorkers <= 0) {
+                worker.destroy();
+                return;
+            }
+            if (idleCount >= maxIdleWorkers) {
+                evictLeastRecentlyUsed();
+            }
+            idleWorkers.computeIfAbsent(key, k -> new ArrayDeque<>()).addLast(worker);
+            idleCount++;
+        }
+    }
+
+    // terminates idle workers of all revisions that exceeded idleTimeout
+    private void evictExpiredWorkers()
+    {
+        try {
+            long now = System.nanoTime();
+            synchronized (idleWorkers) {
+                Iterator<Deque<Worker>> it = idleWorkers.values().iterator();
+                while (it.hasNext()) {
+                    Deque<Worker> workers = it.next();
+                    workers.removeIf(worker -> {
+                        if (worker.isExpired(now, idleTimeout)) {
+                            worker.destroy();
+                            idleCount--;
+                            return true;
+                        }
+                        return false;
+                    });
+                    if (workers.isEmpty()) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+        catch (RuntimeException ex) {
+            // keep the scheduled task running
+            logger.warn("Failed to terminate idle {} workers", name, ex);
+        }
+    }
+
+    @VisibleForTesting
+    int getIdleWorkerCount()
+    {
+        synchronized (idleWorkers) {
+            return idleCount;
+        }
+    }
+
+    private void evictLeastRecentlyUsed()
+    {
+        Deque<Worker> oldest = null;
+        for (Deque<Worker> workers : idleWorkers.values()) {
+            if (!workers.isEmpty() && (oldest == null || workers.peekFirst().idleSince < oldest.peekFirst().idleSince)) {
+                oldest = workers;
+            }
+        }
+        if (oldest != null) {
+            oldest.pollFirst().destroy();
+            idleCount--;
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        reaper.shutdownNow();
+        synchronized (idleWorkers) {
+            closed = true;
+            for (Deque<Worker> workers : idleWorkers.values()) {
+                for (Worker worker : workers) {
+                    worker.destroy();
+                }
+            }
+            idleWorkers.clear();
+            idleCount = 0;
+        }
+    }
+}
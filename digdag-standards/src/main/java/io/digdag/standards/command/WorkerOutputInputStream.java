@@ -0,0 +1,131 @@
+package io.digdag.standards.command;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import com.google.common.base.Optional;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads output of a script worker until the end-of-task marker.
+ *
+ * A marker is a line that starts with a NUL byte followed by
+ * "DIGDAG-WORKER-DONE &lt;token&gt; ". This stream returns bytes before the
+ * marker, and returns EOF at the marker. Rest of the marker line is
+ * available from getStatusLine(). If the worker exits before writing the
+ * marker, this stream returns EOF and getStatusLine() returns absent.
+ */
+class WorkerOutputInputStream
+        extends InputStream
+{
+    static final String MARKER = "DIGDAG-WORKER-DONE";
+
+    private final InputStream in;
+    private final String prefix;
+    private byte[] pending = null;
+    private int pendingOffset = 0;
+    private boolean pendingNul = false;
+    private boolean done = false;
+    private Optional<String> statusLine = Optional.absent();
+
+    WorkerOutputInputStream(InputStream in, String token)
+    {
+        this.in = in;
+        this.prefix = MARKER + " " + token + " ";
+    }
+
+    public Optional<String> getStatusLine()
+    {
+        return statusLine;
+    }
+
+    @Override
+    public int read()
+        throws IOException
+    {
+        if (pending != null) {
+            int b = pending[pendingOffset++] & 0xff;
+            if (pendingOffset >= pending.length) {
+                pending = null;
+            }
+            return b;
+        }
+        if (done) {
+            return -1;
+        }
+        int b;
+        if (pendingNul) {
+            pendingNul = false;
+            b = 0;
+        }
+        else {
+            b = in.read();
+        }
+        if (b < 0) {
+            done = true;
+            return -1;
+        }
+        if (b != 0) {
+            return b;
+        }
+
+        // NUL byte. check whether the rest of the line is the marker
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true) {
+            int c = in.read();
+            if (c < 0) {
+                break;
+            }
+            if (c == 0) {
+                // another marker may start here
+                pendingNul = true;
+                break;
+            }
+            line.write(c);
+            if (c == '\n') {
+                break;
+            }
+        }
+        String text = new String(line.toByteArray(), UTF_8);
+        if (text.startsWith(prefix)) {
+            statusLine = Optional.of(text.substring(prefix.length()).trim());
+            done = true;
+            return -1;
+        }
+        pending = line.toByteArray();
+        pendingOffset = 0;
+        if (pending.length == 0) {
+            pending = null;
+        }
+        return 0;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+        throws IOException
+    {
+        if (len == 0) {
+            return 0;
+        }
+        int n = 0;
+        while (n < len) {
+            int c = read();
+            if (c < 0) {
+                break;
+            }
+            b[off + n] = (byte) c;
+            n++;
+            // return what is read so far instead of blocking for more output
+            if (pending == null && !pendingNul && in.available() <= 0) {
+                break;
+            }
+        }
+        return n == 0 ? -1 : n;
+    }
+
+    @Override
+    public void close()
+    {
+        // the underlying stream is owned by the worker
+    }
+}
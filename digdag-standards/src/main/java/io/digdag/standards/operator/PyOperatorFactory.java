@@ -9,6 +9,9 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.file.Path;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import javax.annotation.PreDestroy;
+import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -25,20 +28,34 @@ import io.digdag.spi.TaskResult;
 import io.digdag.spi.Operator;
 import io.digdag.spi.OperatorFactory;
 import io.digdag.client.config.Config;
+import io.digdag.standards.command.ScriptWorkerPool;
 import io.digdag.util.BaseOperator;
+import io.digdag.util.DurationParam;
 
 public class PyOperatorFactory
         implements OperatorFactory
 {
     private static Logger logger = LoggerFactory.getLogger(PyOperatorFactory.class);
 
-    private final String runnerScript;
+    private static final String WORKER_ENABLED = "config.py.worker.enabled";
+    private static final String WORKER_MAX_TASKS = "config.py.worker.max_tasks";
+    private static final String WORKER_MAX_MEMORY_MB = "config.py.worker.max_memory_mb";
+    private static final String WORKER_MAX_IDLE = "config.py.worker.max_idle";
+    private static final String WORKER_IDLE_TIMEOUT = "config.py.worker.idle_timeout";
 
+    private static final int DEFAULT_WORKER_MAX_TASKS = 100;
+    private static final long DEFAULT_WORKER_MAX_MEMORY_MB = 1024;
+    private static final int DEFAULT_WORKER_MAX_IDLE = 8;
+    private static final Duration DEFAULT_WORKER_IDLE_TIMEOUT = Duration.ofMinutes(5);
+
+    private final String runnerScript = readResource("/digdag/standards/py/runner.py");
+
+    private static String readResource(String path)
     {
         try (InputStreamReader reader = new InputStreamReader(
-                    PyOperatorFactory.class.getResourceAsStream("/digdag/standards/py/runner.py"),
+                    PyOperatorFactory.class.getResourceAsStream(path),
                     StandardCharsets.UTF_8)) {
-            runnerScript = CharStreams.toString(reader);
+            return CharStreams.toString(reader);
         }
         catch (IOException ex) {
             throw Throwables.propagate(ex);
@@ -48,14 +65,37 @@ public class PyOperatorFactory
     private final CommandExecutor exec;
     private final CommandLogger clog;
     private final ObjectMapper mapper;
+    private final Optional<ScriptWorkerPool> workerPool;
 
     @Inject
     public PyOperatorFactory(CommandExecutor exec, CommandLogger clog,
-            ObjectMapper mapper)
+            ObjectMapper mapper, Config systemConfig)
     {
         this.exec = exec;
         this.clog = clog;
         this.mapper = mapper;
+        if (systemConfig.get(WORKER_ENABLED, boolean.class, false)) {
+            // warm interpreters that run tasks of the same revision one by one
+            this.workerPool = Optional.of(new ScriptWorkerPool("Python",
+                        ImmutableList.of("python", "-c", readResource("/digdag/standards/py/worker.py")),
+                        exec, mapper,
+                        systemConfig.get(WORKER_MAX_TASKS, int.class, DEFAULT_WORKER_MAX_TASKS),
+                        systemConfig.get(WORKER_MAX_MEMORY_MB, long.class, DEFAULT_WORKER_MAX_MEMORY_MB) * 1024,
+                        systemConfig.get(WORKER_MAX_IDLE, int.class, DEFAULT_WORKER_MAX_IDLE),
+                        systemConfig.getOptional(WORKER_IDLE_TIMEOUT, DurationParam.class)
+                            .transform(DurationParam::getDuration).or(DEFAULT_WORKER_IDLE_TIMEOUT)));
+        }
+        else {
+            this.workerPool = Optional.absent();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        if (workerPool.isPresent()) {
+            workerPool.get().close();
+        }
     }
 
     public String getType()
@@ -122,6 +162,15 @@ public class PyOperatorFactory
                 mapper.writeValue(fo, ImmutableMap.of("params", params));
             }
 
+            if (workerPool.isPresent() && !params.has("docker")) {
+                // worker processes can't be shared with tasks that run in docker containers
+                int ecode = workerPool.get().run(workspacePath, request, script, args, clog, System.out);
+                if (ecode != 0) {
+                    throw new RuntimeException("Python command failed with code " + ecode);
+                }
+                return mapper.readValue(workspace.getFile(outFile), Config.class);
+            }
+
             List<String> cmdline = ImmutableList.<String>builder()
                 .add("python").add("-")  // script is fed from stdin
                 .addAll(args)
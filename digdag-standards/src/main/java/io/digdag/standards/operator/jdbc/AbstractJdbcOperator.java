@@ -16,12 +16,13 @@ import io.digdag.util.BaseOperator;
 import io.digdag.util.DurationParam;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.util.List;
 import java.util.UUID;
-import java.util.stream.Collectors;
 
 import static io.digdag.spi.TaskExecutionException.buildExceptionErrorConfig;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -82,6 +83,8 @@ public abstract class AbstractJdbcOperator <C>
             throw new ConfigException("Can't use download_file with insert_into or create_table");
         }
 
+        boolean downloadWithCopy = params.get("download_with_copy", boolean.class, false);
+
         // TODO support store_last_results
 
         boolean readOnlyMode = downloadFile.isPresent();  // or store_last_results == true
@@ -118,13 +121,20 @@ public abstract class AbstractJdbcOperator <C>
         }
 
         try (JdbcConnection connection = connect(connectionConfig)) {
+            if (downloadWithCopy && !(connection instanceof CopyableJdbcConnection)) {
+                throw new ConfigException("download_with_copy is not supported by " + type() + ">");
+            }
+
             Exception statementError = connection.validateStatement(query);
             if (statementError != null) {
                 throw new ConfigException("Given query is invalid", statementError);
             }
 
             if (readOnlyMode) {
-                if (downloadFile.isPresent()) {
+                if (downloadFile.isPresent() && downloadWithCopy) {
+                    copyResultsToFile((CopyableJdbcConnection) connection, query, downloadFile.get());
+                }
+                else if (downloadFile.isPresent()) {
                     connection.executeReadOnlyQuery(query, (results) -> downloadResultsToFile(results, downloadFile.get()));
                 }
                 else {
@@ -215,19 +225,7 @@ public abstract class AbstractJdbcOperator <C>
                 if (values == null) {
                     break;
                 }
-                List<String> row = values.stream().map(value -> {
-                    if (value == null) {
-                        return (String) value;
-                    }
-                    else if (value instanceof String) {
-                        return (String) value;
-                    }
-                    else {
-                        return value.toString();  // TODO use jackson to serialize?
-                    }
-                })
-                .collect(Collectors.toList());
-                csvWriter.addCsvRow(row);
+                csvWriter.addCsvRowValues(values);
             }
         }
         catch (IOException ex) {
@@ -235,6 +233,17 @@ public abstract class AbstractJdbcOperator <C>
         }
     }
 
+    private void copyResultsToFile(CopyableJdbcConnection connection, String query, String fileName)
+        throws NotReadOnlyException
+    {
+        try (OutputStream out = new BufferedOutputStream(workspace.newOutputStream(fileName))) {
+            connection.copyReadOnlyQueryAsCsv(query, out);
+        }
+        catch (IOException ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
     private void skipResults(JdbcResultSet results)
     {
         while (results.next() != null)
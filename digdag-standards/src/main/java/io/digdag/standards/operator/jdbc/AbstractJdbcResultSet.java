@@ -1,5 +1,7 @@
 package io.digdag.standards.operator.jdbc;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.sql.SQLException;
 import java.sql.ResultSet;
@@ -57,7 +59,8 @@ public abstract class AbstractJdbcResultSet
             Object raw = resultSet.getObject(i + 1);  // JDBC column index begins from 1
             results[i] = serializableObject(raw);
         }
-        return ImmutableList.copyOf(results);
+        // wrap the array without copying. values may be null.
+        return Collections.unmodifiableList(Arrays.asList(results));
     }
 
     protected abstract Object serializableObject(Object raw)
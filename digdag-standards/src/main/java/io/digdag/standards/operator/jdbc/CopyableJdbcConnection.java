@@ -0,0 +1,14 @@
+package io.digdag.standards.operator.jdbc;
+
+import java.io.OutputStream;
+
+// JdbcConnection of a database that can export results in bulk.
+// download_with_copy option is available only with this connection.
+public interface CopyableJdbcConnection
+    extends JdbcConnection
+{
+    // writes results of a read-only query to out in CSV format with a header line
+    // using a bulk export feature of the database.
+    void copyReadOnlyQueryAsCsv(String sql, OutputStream out)
+        throws NotReadOnlyException;
+}
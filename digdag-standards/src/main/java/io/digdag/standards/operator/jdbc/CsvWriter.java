@@ -41,12 +41,73 @@ public class CsvWriter
         out.write("\r\n");
     }
 
+    // writes values of a row. null is written as an empty field and other
+    // objects are written using toString().
+    public void addCsvRowValues(List<Object> values)
+            throws IOException
+    {
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                out.write(DELIMITER_CHAR);
+            }
+            Object v = values.get(i);
+            if (v != null) {
+                addCsvText(v.toString());  // TODO use jackson to serialize?
+            }
+        }
+        out.write("\r\n");
+    }
+
     public void addCsvText(String value)
             throws IOException
     {
-        if (value != null) {
-            out.write(escapeAndQuoteCsvValue(value));
+        if (value == null) {
+            return;
+        }
+        if (value.isEmpty()) {
+            out.write(QUOTE_CHAR);
+            out.write(QUOTE_CHAR);
+            return;
+        }
+        if (!requiresQuote(value)) {
+            out.write(value);
+            return;
+        }
+
+        // same as escapeAndQuoteCsvValue but writes to out without building a String
+        out.write(QUOTE_CHAR);
+        char previousChar = ' ';
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == QUOTE_CHAR) {
+                out.write(ESCAPE_CHAR);
+                out.write(c);
+            }
+            else if (c == '\r') {
+                out.write('\n');
+            }
+            else if (c == '\n') {
+                if (previousChar != '\r') {
+                    out.write('\n');
+                }
+            }
+            else {
+                out.write(c);
+            }
+            previousChar = c;
+        }
+        out.write(QUOTE_CHAR);
+    }
+
+    private static boolean requiresQuote(String v)
+    {
+        for (int i = 0; i < v.length(); i++) {
+            char c = v.charAt(i);
+            if (c == QUOTE_CHAR || c == '\r' || c == '\n' || c == DELIMITER_CHAR) {
+                return true;
+            }
         }
+        return false;
     }
 
     private static final char DELIMITER_CHAR = ',';
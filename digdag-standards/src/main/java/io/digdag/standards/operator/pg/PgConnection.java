@@ -1,7 +1,10 @@
 package io.digdag.standards.operator.pg;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.UUID;
 import java.util.function.Consumer;
+import java.util.regex.Pattern;
 import java.sql.Connection;
 import java.sql.Statement;
 import java.sql.ResultSet;
@@ -15,48 +18,95 @@ import io.digdag.client.config.Config;
 import io.digdag.standards.operator.jdbc.LockConflictException;
 import io.digdag.util.DurationParam;
 import io.digdag.standards.operator.jdbc.AbstractJdbcConnection;
+import io.digdag.standards.operator.jdbc.CopyableJdbcConnection;
 import io.digdag.standards.operator.jdbc.AbstractPersistentTransactionHelper;
 import io.digdag.standards.operator.jdbc.DatabaseException;
 import io.digdag.standards.operator.jdbc.JdbcResultSet;
 import io.digdag.standards.operator.jdbc.TransactionHelper;
 import io.digdag.standards.operator.jdbc.NotReadOnlyException;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
 import static java.util.Locale.ENGLISH;
 import static org.postgresql.core.Utils.escapeIdentifier;
 
 public class PgConnection
     extends AbstractJdbcConnection
+    implements CopyableJdbcConnection
 {
+    private static final Pattern TRAILING_SEMICOLONS = Pattern.compile("[\\s;]+$");
+
+    private final int fetchSize;
+
     @VisibleForTesting
     public static PgConnection open(PgConnectionConfig config)
     {
-        return new PgConnection(config.openConnection());
+        return new PgConnection(config.openConnection(), config.fetchSize());
     }
 
-    protected PgConnection(Connection connection)
+    protected PgConnection(Connection connection, int fetchSize)
     {
         super(connection);
+        this.fetchSize = fetchSize;
     }
 
-    @Override
-    public void executeReadOnlyQuery(String sql, Consumer<JdbcResultSet> resultHandler)
+    private interface ReadOnlyAction
+    {
+        void run() throws SQLException, IOException;
+    }
+
+    private void runInReadOnlyTransaction(String desc, ReadOnlyAction action)
         throws NotReadOnlyException
     {
         try {
-            execute("SET TRANSACTION READ ONLY");
-            try (Statement stmt = connection.createStatement()) {
-                ResultSet rs = stmt.executeQuery(sql);  // executeQuery throws exception if given query includes multiple statements
-                resultHandler.accept(new PgResultSet(rs));
+            // PostgreSQL JDBC driver fetches rows using a server-side cursor only
+            // in a transaction. With auto-commit, it reads all rows into memory.
+            connection.setAutoCommit(false);
+            try {
+                execute("SET TRANSACTION READ ONLY");
+                action.run();
+            }
+            finally {
+                // read-only transaction has nothing to commit
+                connection.rollback();
+                connection.setAutoCommit(true);
             }
-            execute("SET TRANSACTION READ WRITE");
         }
         catch (SQLException ex) {
-            if (ex.getSQLState().equals("25006")) {  // 25006 = read_only_sql_transaction error
+            if ("25006".equals(ex.getSQLState())) {  // 25006 = read_only_sql_transaction error
                 throw new NotReadOnlyException(ex);
             }
             else {
-                throw new DatabaseException("Failed to execute given SELECT statement", ex);
+                throw new DatabaseException("Failed to " + desc, ex);
             }
         }
+        catch (IOException ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    @Override
+    public void executeReadOnlyQuery(String sql, Consumer<JdbcResultSet> resultHandler)
+        throws NotReadOnlyException
+    {
+        runInReadOnlyTransaction("execute given SELECT statement", () -> {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.setFetchSize(fetchSize);
+                ResultSet rs = stmt.executeQuery(sql);  // executeQuery throws exception if given query includes multiple statements
+                resultHandler.accept(new PgResultSet(rs));
+            }
+        });
+    }
+
+    @Override
+    public void copyReadOnlyQueryAsCsv(String sql, OutputStream out)
+        throws NotReadOnlyException
+    {
+        String query = TRAILING_SEMICOLONS.matcher(sql).replaceFirst("");
+        runInReadOnlyTransaction("copy results of given SELECT statement", () -> {
+            // PostgreSQL server writes CSV. memory usage is bounded by buffer of the driver.
+            CopyManager copyManager = connection.unwrap(PGConnection.class).getCopyAPI();
+            copyManager.copyOut("COPY (\n" + query + "\n) TO STDOUT WITH (FORMAT csv, HEADER true)", out);
+        });
     }
 
     @Override
@@ -15,8 +15,17 @@ import java.util.Properties;
 public abstract class PgConnectionConfig
     extends AbstractJdbcConnectionConfig
 {
+    public static final int DEFAULT_FETCH_SIZE = 10000;
+
     public abstract Optional<String> schema();
 
+    // number of rows fetched at a time by a server-side cursor
+    @Value.Default
+    public int fetchSize()
+    {
+        return DEFAULT_FETCH_SIZE;
+    }
+
     @VisibleForTesting
     public static PgConnectionConfig configure(SecretProvider secrets, Config params)
     {
@@ -32,6 +41,7 @@ public abstract class PgConnectionConfig
                 .socketTimeout(secrets.getSecretOptional("socket_timeout").transform(DurationParam::parse).or(() ->
                         params.get("socket_timeout", DurationParam.class, DurationParam.of(Duration.ofSeconds(1800)))))
                 .schema(secrets.getSecretOptional("schema").or(params.getOptional("schema", String.class)))
+                .fetchSize(params.get("fetch_size", int.class, DEFAULT_FETCH_SIZE))
                 .build();
     }
 
@@ -0,0 +1,390 @@
+package io.digdag.standards.scheduler;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+
+/**
+ * Cron pattern compiled to sorted sets of values of each field.
+ *
+ * This class understands the syntax of cron4j's SchedulingPattern (lists,
+ * ranges including wrapping ranges, steps, month and day-of-week names,
+ * "L" as the last day of month, and multiple patterns joined by "|") and
+ * returns the same times as cron4j's Predictor.nextMatchingTime. Next and
+ * previous matching times are computed by looking up the sorted sets field
+ * by field instead of testing every minute.
+ *
+ * Like Predictor, a local time in a DST gap is shifted forward by the
+ * length of the gap, and a local time in a DST overlap is resolved to the
+ * later offset so that it's fired only once.
+ */
+class CompiledCronPattern
+{
+    // a matching date exists in 400 years (a cycle of gregorian calendar) if it exists at all
+    private static final int MAX_SEARCH_YEARS = 400;
+
+    private static final String[] MONTH_NAMES = {
+        "jan", "feb", "mar", "apr", "may", "jun", "jul", "aug", "sep", "oct", "nov", "dec",
+    };
+
+    private static final String[] DAY_OF_WEEK_NAMES = {
+        "sun", "mon", "tue", "wed", "thu", "fri", "sat",
+    };
+
+    private static final int LAST_DAY_OF_MONTH = 32;
+
+    // returns absent if the pattern uses syntax that this class doesn't understand
+    static Optional<CompiledCronPattern> compile(String pattern)
+    {
+        ImmutableList.Builder<Fields> builder = ImmutableList.builder();
+        for (String sub : pattern.split("\\|")) {
+            Fields fields = Fields.parse(sub.trim());
+            if (fields == null) {
+                return Optional.absent();
+            }
+            builder.add(fields);
+        }
+        return Optional.of(new CompiledCronPattern(builder.build()));
+    }
+
+    private final List<Fields> patterns;
+
+    private CompiledCronPattern(List<Fields> patterns)
+    {
+        this.patterns = patterns;
+    }
+
+    // returns the first matching time after the given time
+    Instant next(Instant time, ZoneId zone)
+    {
+        // same algorithm with Predictor. If the next minute matches wall-clock
+        // time, it's the next time. Otherwise, the next matching local
+        // date-time is converted to an instant as GregorianCalendar does.
+        Instant nextMinute = time.truncatedTo(ChronoUnit.MINUTES).plusSeconds(60);
+        LocalDateTime local = LocalDateTime.ofInstant(nextMinute, zone);
+        for (Fields fields : patterns) {
+            if (fields.matches(local)) {
+                return nextMinute;
+            }
+        }
+
+        Instant next = null;
+        for (Fields fields : patterns) {
+            Instant t = ZonedDateTime.ofLocal(fields.nextLocal(local), zone, null)
+                .withLaterOffsetAtOverlap()
+                .toInstant();
+            if (next == null || t.isBefore(next)) {
+                next = t;
+            }
+        }
+        return next;
+    }
+
+    // returns the last time before the given time that next() returns
+    Instant previous(Instant time, ZoneId zone)
+    {
+        // next() may skip or add a time around an overlap depending on where
+        // it starts. Start from a wall-clock matching time that is not near a
+        // transition and step next() until the given time.
+        ZoneRules rules = zone.getRules();
+        Instant start = time;
+        do {
+            start = previousWallClockTime(start, rules);
+        } while (isNearTransition(start, rules) || !next(start, zone).isBefore(time));
+
+        Instant previous = next(start, zone);
+        while (true) {
+            Instant t = next(previous, zone);
+            if (!t.isBefore(time)) {
+                return previous;
+            }
+            previous = t;
+        }
+    }
+
+    private Instant previousWallClockTime(Instant time, ZoneRules rules)
+    {
+        Instant previous = null;
+        for (Fields fields : patterns) {
+            Instant t = fields.previous(time, rules);
+            if (previous == null || t.isAfter(previous)) {
+                previous = t;
+            }
+        }
+        return previous;
+    }
+
+    private static boolean isNearTransition(Instant time, ZoneRules rules)
+    {
+        return isNear(time, rules.previousTransition(time.plusNanos(1))) ||
+            isNear(time, rules.nextTransition(time));
+    }
+
+    private static boolean isNear(Instant time, ZoneOffsetTransition transition)
+    {
+        if (transition == null) {
+            return false;
+        }
+        Duration distance = Duration.between(transition.getInstant(), time).abs();
+        return distance.compareTo(transition.getDuration().abs().plusMinutes(1)) <= 0;
+    }
+
+    private static class Fields
+    {
+        private final NavigableSet<Integer> minutes;
+        private final NavigableSet<Integer> hours;
+        private final NavigableSet<Integer> daysOfMonth;
+        private final NavigableSet<Integer> months;
+        private final NavigableSet<Integer> daysOfWeek;  // 0 is sunday
+
+        private Fields(NavigableSet<Integer> minutes, NavigableSet<Integer> hours,
+                NavigableSet<Integer> daysOfMonth, NavigableSet<Integer> months,
+                NavigableSet<Integer> daysOfWeek)
+        {
+            this.minutes = minutes;
+            this.hours = hours;
+            this.daysOfMonth = daysOfMonth;
+            this.months = months;
+            this.daysOfWeek = daysOfWeek;
+        }
+
+        static Fields parse(String pattern)
+        {
+            String[] tokens = pattern.split("[ \\t]+");
+            if (tokens.length != 5) {
+                return null;
+            }
+            try {
+                return new Fields(
+                        parseField(tokens[0], 0, 59, null),
+                        parseField(tokens[1], 0, 23, null),
+                        parseField(tokens[2], 1, 31, null),
+                        parseField(tokens[3], 1, 12, MONTH_NAMES),
+                        parseField(tokens[4], 0, 6, DAY_OF_WEEK_NAMES));
+            }
+            catch (IllegalArgumentException ex) {
+                return null;
+            }
+        }
+
+        private static NavigableSet<Integer> parseField(String field, int min, int max, String[] names)
+        {
+            TreeSet<Integer> values = new TreeSet<>();
+            for (String element : field.split(",")) {
+                String[] parts = element.split("/", -1);
+                if (parts.length > 2) {
+                    throw new IllegalArgumentException();
+                }
+                List<Integer> range = parseRange(parts[0], min, max, names);
+                int step = 1;
+                if (parts.length == 2) {
+                    step = Integer.parseInt(parts[1]);
+                    if (step < 1) {
+                        throw new IllegalArgumentException();
+                    }
+                }
+                // cron4j takes every step-th value of the range
+                for (int i = 0; i < range.size(); i += step) {
+                    values.add(range.get(i));
+                }
+            }
+            if (values.isEmpty()) {
+                throw new IllegalArgumentException();
+            }
+            return ImmutableSortedSet.copyOf(values);
+        }
+
+        private static List<Integer> parseRange(String range, int min, int max, String[] names)
+        {
+            List<Integer> list = new ArrayList<>();
+            if (range.equals("*")) {
+                for (int v = min; v <= max; v++) {
+                    list.add(v);
+                }
+                return list;
+            }
+            int hyphen = range.indexOf('-');
+            if (hyphen < 0) {
+                list.add(parseValue(range, min, max, names));
+                return list;
+            }
+            int first = parseValue(range.substring(0, hyphen), min, max, names);
+            int last = parseValue(range.substring(hyphen + 1), min, max, names);
+            if (first == LAST_DAY_OF_MONTH || last == LAST_DAY_OF_MONTH) {
+                // cron4j doesn't accept L in a range
+                throw new IllegalArgumentException();
+            }
+            if (first <= last) {
+                for (int v = first; v <= last; v++) {
+                    list.add(v);
+                }
+            }
+            else {
+                // wrapping range such as 22-2
+                for (int v = first; v <= max; v++) {
+                    list.add(v);
+                }
+                for (int v = min; v <= last; v++) {
+                    list.add(v);
+                }
+            }
+            return list;
+        }
+
+        private static int parseValue(String value, int min, int max, String[] names)
+        {
+            if (max == 31 && value.equalsIgnoreCase("L")) {
+                return LAST_DAY_OF_MONTH;
+            }
+            if (names != null) {
+                String lower = value.toLowerCase(Locale.ENGLISH);
+                for (int i = 0; i < names.length; i++) {
+                    if (names[i].equals(lower)) {
+                        return min + i;
+                    }
+                }
+            }
+            int v = Integer.parseInt(value);
+            if (names == DAY_OF_WEEK_NAMES && v == 7) {
+                // 7 is also sunday
+                return 0;
+            }
+            if (v < min || v > max) {
+                throw new IllegalArgumentException();
+            }
+            return v;
+        }
+
+        private boolean matchesDate(LocalDate date)
+        {
+            int day = date.getDayOfMonth();
+            boolean dayMatches = daysOfMonth.contains(day) ||
+                (daysOfMonth.contains(LAST_DAY_OF_MONTH) && day == date.lengthOfMonth());
+            return dayMatches && daysOfWeek.contains(date.getDayOfWeek().getValue() % 7);
+        }
+
+        boolean matches(LocalDateTime local)
+        {
+            return minutes.contains(local.getMinute()) &&
+                hours.contains(local.getHour()) &&
+                months.contains(local.getMonthValue()) &&
+                matchesDate(local.toLocalDate());
+        }
+
+        // last instant before the given instant whose wall-clock time matches.
+        // Within a period between two offset transitions, order of instants
+        // is same with order of local date-times. Matching local date-time is
+        // searched period by period.
+        Instant previous(Instant time, ZoneRules rules)
+        {
+            Instant before = time;
+            while (true) {
+                ZoneOffset offset = rules.getOffset(before.minusNanos(1));
+                ZoneOffsetTransition transition = rules.previousTransition(before);
+                LocalDateTime local = previousLocal(LocalDateTime.ofInstant(before, offset));
+                Instant instant = local.toInstant(offset);
+                if (transition == null || !instant.isBefore(transition.getInstant())) {
+                    return instant;
+                }
+                before = transition.getInstant();
+            }
+        }
+
+        // first matching local date-time after the given local date-time
+        LocalDateTime nextLocal(LocalDateTime after)
+        {
+            LocalDateTime t = after.truncatedTo(ChronoUnit.MINUTES).plusMinutes(1);
+            int maxYear = t.getYear() + MAX_SEARCH_YEARS;
+            while (t.getYear() <= maxYear) {
+                Integer month = months.ceiling(t.getMonthValue());
+                if (month == null) {
+                    t = LocalDate.of(t.getYear() + 1, 1, 1).atStartOfDay();
+                    continue;
+                }
+                if (month != t.getMonthValue()) {
+                    t = LocalDate.of(t.getYear(), month, 1).atStartOfDay();
+                }
+
+                if (!matchesDate(t.toLocalDate())) {
+                    t = t.toLocalDate().plusDays(1).atStartOfDay();
+                    continue;
+                }
+
+                Integer hour = hours.ceiling(t.getHour());
+                if (hour == null) {
+                    t = t.toLocalDate().plusDays(1).atStartOfDay();
+                    continue;
+                }
+                if (hour != t.getHour()) {
+                    t = t.toLocalDate().atTime(hour, 0);
+                }
+
+                Integer minute = minutes.ceiling(t.getMinute());
+                if (minute == null) {
+                    t = t.withMinute(0).plusHours(1);
+                    continue;
+                }
+                return t.withMinute(minute);
+            }
+            throw new IllegalArgumentException("Cron pattern doesn't match any time in " + MAX_SEARCH_YEARS + " years after " + after);
+        }
+
+        // last matching local date-time before the given local date-time
+        private LocalDateTime previousLocal(LocalDateTime before)
+        {
+            LocalDateTime t = before.truncatedTo(ChronoUnit.MINUTES);
+            if (t.equals(before)) {
+                t = t.minusMinutes(1);
+            }
+            int minYear = t.getYear() - MAX_SEARCH_YEARS;
+            while (t.getYear() >= minYear) {
+                Integer month = months.floor(t.getMonthValue());
+                if (month == null) {
+                    t = LocalDate.of(t.getYear() - 1, 12, 31).atTime(23, 59);
+                    continue;
+                }
+                if (month != t.getMonthValue()) {
+                    LocalDate firstDay = LocalDate.of(t.getYear(), month, 1);
+                    t = firstDay.withDayOfMonth(firstDay.lengthOfMonth()).atTime(23, 59);
+                }
+
+                if (!matchesDate(t.toLocalDate())) {
+                    t = t.toLocalDate().minusDays(1).atTime(23, 59);
+                    continue;
+                }
+
+                Integer hour = hours.floor(t.getHour());
+                if (hour == null) {
+                    t = t.toLocalDate().minusDays(1).atTime(23, 59);
+                    continue;
+                }
+                if (hour != t.getHour()) {
+                    t = t.toLocalDate().atTime(hour, 59);
+                }
+
+                Integer minute = minutes.floor(t.getMinute());
+                if (minute == null) {
+                    t = t.withMinute(59).minusHours(1);
+                    continue;
+                }
+                return t.withMinute(minute);
+            }
+            throw new IllegalArgumentException("Cron pattern doesn't match any time in " + MAX_SEARCH_YEARS + " years before " + before);
+        }
+    }
+}
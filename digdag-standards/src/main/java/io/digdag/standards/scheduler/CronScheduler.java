@@ -4,6 +4,7 @@ import java.util.Date;
 import java.util.TimeZone;
 import java.time.Instant;
 import java.time.ZoneId;
+import com.google.common.base.Optional;
 import io.digdag.spi.ScheduleTime;
 import io.digdag.spi.Scheduler;
 import it.sauronsoftware.cron4j.SchedulingPattern;
@@ -13,6 +14,7 @@ public class CronScheduler
         implements Scheduler
 {
     private final SchedulingPattern pattern;
+    private final Optional<CompiledCronPattern> compiled;
     private final ZoneId timeZone;
     private final long delaySeconds;
 
@@ -27,6 +29,9 @@ public class CronScheduler
                 return match(TimeZone.getTimeZone(timeZone), millis);
             }
         };
+        // SchedulingPattern validates the pattern. Predictor is used only if
+        // CompiledCronPattern can't understand the pattern.
+        this.compiled = CompiledCronPattern.compile(cronPattern);
         this.timeZone = timeZone;
         this.delaySeconds = delaySeconds;
     }
@@ -64,6 +69,11 @@ public class CronScheduler
     @Override
     public ScheduleTime lastScheduleTime(Instant currentScheduleTime)
     {
+        if (compiled.isPresent()) {
+            Instant before = compiled.get().previous(currentScheduleTime, timeZone);
+            return ScheduleTime.of(before, before.plusSeconds(delaySeconds));
+        }
+
         // estimate interval (doesn't have to be exact value)
         Instant next = next(currentScheduleTime);
         Instant nextNext = next(next);
@@ -88,6 +98,9 @@ public class CronScheduler
 
     private Instant next(Instant time)
     {
+        if (compiled.isPresent()) {
+            return compiled.get().next(time, timeZone);
+        }
         Predictor predictor = new Predictor(pattern, Date.from(time));
         predictor.setTimeZone(TimeZone.getTimeZone(timeZone));
         return Instant.ofEpochMilli(predictor.nextMatchingTime());
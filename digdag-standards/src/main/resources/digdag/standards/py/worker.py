@@ -0,0 +1,65 @@
+import sys
+import os
+import json
+import resource
+import traceback
+
+# Runs scripts sent from ScriptWorkerPool one by one.
+# See io.digdag.standards.command.ScriptWorkerPool for the protocol.
+
+# requests are read from the original stdin. scripts and their child
+# processes see /dev/null as stdin so that they can't read requests.
+protocol_in = os.fdopen(os.dup(0), 'r')
+devnull = os.open(os.devnull, os.O_RDONLY)
+os.dup2(devnull, 0)
+os.close(devnull)
+sys.stdin = open(os.devnull)
+
+base_path = list(sys.path)
+base_environ = dict(os.environ)
+last_cwd = None
+
+def unload_workspace_modules(path):
+    # modules imported from the previous workspace refer to files that
+    # don't exist any more. libraries installed in the system stay loaded.
+    for name, mod in list(sys.modules.items()):
+        mod_file = getattr(mod, '__file__', None)
+        if mod_file and os.path.abspath(mod_file).startswith(path + os.sep):
+            del sys.modules[name]
+
+while True:
+    line = protocol_in.readline()
+    if not line:
+        break
+    req = json.loads(line)
+
+    if last_cwd is not None:
+        unload_workspace_modules(last_cwd)
+    last_cwd = os.path.abspath(req['cwd'])
+    os.chdir(last_cwd)
+    sys.path[:] = base_path
+    os.environ.clear()
+    os.environ.update(base_environ)
+    sys.argv = ['-'] + req['args']
+
+    status = 0
+    try:
+        code = compile(req['script'], '<stdin>', 'exec')
+        exec(code, {'__name__': '__main__', '__builtins__': __builtins__})
+    except SystemExit as error:
+        if error.code is not None and error.code != 0:
+            if not isinstance(error.code, int):
+                sys.stderr.write("%s\n" % str(error.code))
+            status = 1
+    except BaseException:
+        traceback.print_exc()
+        status = 1
+
+    sys.stdout.flush()
+    sys.stderr.flush()
+    max_rss = resource.getrusage(resource.RUSAGE_SELF).ru_maxrss
+    if sys.platform == 'darwin':
+        # ru_maxrss is in bytes on macOS and in kilobytes on Linux
+        max_rss //= 1024
+    sys.stdout.write("\0DIGDAG-WORKER-DONE %s %d %d\n" % (req['token'], status, max_rss))
+    sys.stdout.flush()
@@ -0,0 +1,156 @@
+package io.digdag.standards.command;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Resources;
+import io.digdag.spi.CommandLogger;
+import io.digdag.spi.TaskRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ScriptWorkerPoolTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private final CommandLogger clog = (in, copy) -> ByteStreams.copy(in, output);
+
+    private Path workspace;
+    private ScriptWorkerPool pool;
+
+    private static boolean isPythonAvailable()
+    {
+        try {
+            Process p = new ProcessBuilder("python", "--version").redirectErrorStream(true).start();
+            ByteStreams.toByteArray(p.getInputStream());
+            return p.waitFor() == 0;
+        }
+        catch (IOException | InterruptedException ex) {
+            return false;
+        }
+    }
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        assumeTrue(isPythonAvailable());
+        workspace = folder.newFolder("workspace").toPath();
+    }
+
+    @After
+    public void tearDown()
+    {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    private ScriptWorkerPool newPool(int maxTasksPerWorker, Duration idleTimeout)
+        throws IOException
+    {
+        String worker = Resources.toString(getClass().getResource("/digdag/standards/py/worker.py"), UTF_8);
+        return new ScriptWorkerPool("Python",
+                ImmutableList.of("python", "-c", worker),
+                new SimpleCommandExecutor(), new ObjectMapper(),
+                maxTasksPerWorker, 1024 * 1024, 4, idleTimeout);
+    }
+
+    private static TaskRequest request(String revision)
+    {
+        TaskRequest request = mock(TaskRequest.class);
+        when(request.getSiteId()).thenReturn(0);
+        when(request.getProjectId()).thenReturn(1);
+        when(request.getRevision()).thenReturn(Optional.of(revision));
+        return request;
+    }
+
+    private String runPid(TaskRequest request)
+        throws Exception
+    {
+        String script = "import os, sys\n" +
+            "with open(sys.argv[1], 'w') as f:\n" +
+            "    f.write(str(os.getpid()))\n";
+        int status = pool.run(workspace, request, script, ImmutableList.of("pid.txt"), clog, ByteStreams.nullOutputStream());
+        assertThat(status, is(0));
+        return new String(Files.readAllBytes(workspace.resolve("pid.txt")), UTF_8);
+    }
+
+    @Test
+    public void runTasksInOneWorker()
+        throws Exception
+    {
+        pool = newPool(100, Duration.ofMinutes(5));
+        TaskRequest request = request("rev");
+
+        String pid = runPid(request);
+        assertThat(runPid(request), is(pid));
+        assertThat(pool.getIdleWorkerCount(), is(1));
+
+        // another revision uses another worker
+        assertThat(runPid(request("rev2")), is(not(pid)));
+        assertThat(pool.getIdleWorkerCount(), is(2));
+    }
+
+    @Test
+    public void outputAndStatusOfFailedScript()
+        throws Exception
+    {
+        pool = newPool(100, Duration.ofMinutes(5));
+
+        int status = pool.run(workspace, request("rev"),
+                "import sys\nprint('hello ' + sys.argv[1])\nsys.exit(3)\n",
+                ImmutableList.of("world"), clog, ByteStreams.nullOutputStream());
+        assertThat(status, is(1));
+        assertThat(new String(output.toByteArray(), UTF_8), is("hello world\n"));
+
+        // the worker survives the failure
+        assertThat(pool.getIdleWorkerCount(), is(1));
+    }
+
+    @Test
+    public void recycleWorkerAfterMaxTasks()
+        throws Exception
+    {
+        pool = newPool(2, Duration.ofMinutes(5));
+        TaskRequest request = request("rev");
+
+        List<String> pids = ImmutableList.of(runPid(request), runPid(request), runPid(request));
+        assertThat(pids.get(1), is(pids.get(0)));
+        assertThat(pids.get(2), is(not(pids.get(0))));
+    }
+
+    @Test
+    public void idleWorkersAreTerminatedWithoutNextTask()
+        throws Exception
+    {
+        pool = newPool(100, Duration.ofMillis(200));
+        runPid(request("rev"));
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pool.getIdleWorkerCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertThat(pool.getIdleWorkerCount(), is(0));
+    }
+}
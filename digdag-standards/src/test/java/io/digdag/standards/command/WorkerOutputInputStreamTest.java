@@ -0,0 +1,53 @@
+package io.digdag.standards.command;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import com.google.common.base.Optional;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class WorkerOutputInputStreamTest
+{
+    private static InputStream output(String text)
+    {
+        return new ByteArrayInputStream(text.getBytes(UTF_8));
+    }
+
+    @Test
+    public void readUntilMarker()
+        throws Exception
+    {
+        InputStream in = output("line 1\nline 2\u0000DIGDAG-WORKER-DONE t1 0 1024\nnext task\u0000DIGDAG-WORKER-DONE t2 1 2048\n");
+
+        WorkerOutputInputStream first = new WorkerOutputInputStream(in, "t1");
+        assertThat(new String(ByteStreams.toByteArray(first), UTF_8), is("line 1\nline 2"));
+        assertThat(first.getStatusLine(), is(Optional.of("0 1024")));
+
+        WorkerOutputInputStream second = new WorkerOutputInputStream(in, "t2");
+        assertThat(new String(ByteStreams.toByteArray(second), UTF_8), is("next task"));
+        assertThat(second.getStatusLine(), is(Optional.of("1 2048")));
+    }
+
+    @Test
+    public void keepNulBytesOfOutput()
+        throws Exception
+    {
+        String text = "a\u0000b\n\u0000DIGDAG-WORKER-DONE other 0 0\n\u0000";
+        WorkerOutputInputStream out = new WorkerOutputInputStream(output(text + "\u0000DIGDAG-WORKER-DONE t1 0 0\n"), "t1");
+        assertThat(new String(ByteStreams.toByteArray(out), UTF_8), is(text));
+        assertThat(out.getStatusLine(), is(Optional.of("0 0")));
+    }
+
+    @Test
+    public void workerExitsWithoutMarker()
+        throws Exception
+    {
+        WorkerOutputInputStream out = new WorkerOutputInputStream(output("Segmentation fault\n"), "t1");
+        assertThat(new String(ByteStreams.toByteArray(out), UTF_8), is("Segmentation fault\n"));
+        assertThat(out.getStatusLine(), is(Optional.absent()));
+    }
+}
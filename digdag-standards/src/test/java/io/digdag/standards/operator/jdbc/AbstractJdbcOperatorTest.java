@@ -3,6 +3,7 @@ package io.digdag.standards.operator.jdbc;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableMap;
 import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigException;
 import io.digdag.spi.SecretProvider;
 import io.digdag.spi.TaskExecutionContext;
 import io.digdag.spi.TaskExecutionException;
@@ -171,6 +172,25 @@ public class AbstractJdbcOperatorTest
         runTaskReadOnly(configInput, sql);
     }
 
+    @Test(expected = ConfigException.class)
+    public void downloadWithCopyIsRejectedIfNotSupported()
+            throws IOException, NotReadOnlyException
+    {
+        String sql = "SELECT * FROM users";
+        Map<String, Object> configInput = ImmutableMap.<String, Object>builder()
+            .put("host", "foobar.com")
+            .put("user", "testuser")
+            .put("database", "testdb")
+            .put("download_file", "result.csv")
+            .put("download_with_copy", true)
+            .put("query", sql)
+            .build();
+
+        TestOperator operator = getJdbcOperator(configInput, Optional.absent());
+        when(operator.connect(any(TestConnectionConfig.class))).thenReturn(Mockito.mock(TestConnection.class));
+        operator.runTask(taskExecutionContext);
+    }
+
     @Test
     public void createTable()
             throws IOException, LockConflictException
@@ -7,7 +7,11 @@ import io.digdag.standards.operator.jdbc.NotReadOnlyException;
 import io.digdag.standards.operator.jdbc.TransactionHelper;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.ResultSet;
@@ -23,6 +27,7 @@ import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
@@ -57,6 +62,7 @@ public class PgConnectionTest
 
         pgConnectionConfig = mock(PgConnectionConfig.class);
         when(pgConnectionConfig.openConnection()).thenReturn(connection);
+        when(pgConnectionConfig.fetchSize()).thenReturn(1000);
 
         pgConnection = spy(PgConnection.open(pgConnectionConfig));
     }
@@ -68,12 +74,37 @@ public class PgConnectionTest
         AtomicReference<JdbcResultSet> rs = new AtomicReference<>();
         pgConnection.executeReadOnlyQuery(SQL, rs::set);
 
-        verify(pgConnection).execute(eq("SET TRANSACTION READ ONLY"));
-        verify(statement).executeQuery(eq(SQL));
-        verify(pgConnection).execute(eq("SET TRANSACTION READ WRITE"));
+        // rows are fetched using a cursor in a read-only transaction
+        InOrder inOrder = inOrder(connection, pgConnection, statement);
+        inOrder.verify(connection).setAutoCommit(eq(false));
+        inOrder.verify(pgConnection).execute(eq("SET TRANSACTION READ ONLY"));
+        inOrder.verify(statement).setFetchSize(eq(1000));
+        inOrder.verify(statement).executeQuery(eq(SQL));
+        inOrder.verify(connection).rollback();
+        inOrder.verify(connection).setAutoCommit(eq(true));
         assertThat(rs.get(), is(notNullValue()));
     }
 
+    @Test
+    public void copyReadOnlyQueryAsCsv()
+            throws IOException, NotReadOnlyException, SQLException
+    {
+        CopyManager copyManager = mock(CopyManager.class);
+        PGConnection pgConn = mock(PGConnection.class);
+        when(pgConn.getCopyAPI()).thenReturn(copyManager);
+        when(connection.unwrap(PGConnection.class)).thenReturn(pgConn);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pgConnection.copyReadOnlyQueryAsCsv(SQL + ";\n", out);
+
+        InOrder inOrder = inOrder(connection, pgConnection, copyManager);
+        inOrder.verify(connection).setAutoCommit(eq(false));
+        inOrder.verify(pgConnection).execute(eq("SET TRANSACTION READ ONLY"));
+        inOrder.verify(copyManager).copyOut(eq("COPY (\n" + SQL + "\n) TO STDOUT WITH (FORMAT csv, HEADER true)"), eq(out));
+        inOrder.verify(connection).rollback();
+        inOrder.verify(connection).setAutoCommit(eq(true));
+    }
+
     @Test
     public void buildInsertStatement()
             throws IOException, NotReadOnlyException, SQLException
@@ -0,0 +1,155 @@
+package io.digdag.standards.scheduler;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import com.google.common.collect.ImmutableList;
+import io.digdag.spi.ScheduleTime;
+import io.digdag.spi.Scheduler;
+import it.sauronsoftware.cron4j.Predictor;
+import it.sauronsoftware.cron4j.SchedulingPattern;
+import org.junit.Test;
+import static io.digdag.standards.scheduler.DailySchedulerTest.instant;
+import static io.digdag.standards.scheduler.DailySchedulerTest.newConfig;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class CronSchedulerTest
+{
+    private static final List<String> PATTERNS = ImmutableList.of(
+            "* * * * *",
+            "*/7 * * * *",
+            "30 2 * * *",
+            "15 1 * * *",
+            "0 22-2 * * *",
+            "0 0 L * *",
+            "5 9 * jan,mar-may mon-fri",
+            "0 0 13 * 5",
+            "0 0 * * 7|30 12 1 * *",
+            "0 * * * *",
+            "0,30 1-3 * * *");
+
+    static Scheduler newScheduler(String pattern, String timeZone)
+    {
+        return new CronSchedulerFactory().newScheduler(newConfig().set("_command", pattern), ZoneId.of(timeZone));
+    }
+
+    // times returned by cron4j's Predictor from startTime (exclusive) to endTime (exclusive)
+    private static List<Instant> predict(String pattern, String timeZone, Instant startTime, Instant endTime)
+    {
+        TimeZone tz = TimeZone.getTimeZone(ZoneId.of(timeZone));
+        SchedulingPattern p = new SchedulingPattern(pattern) {
+            @Override
+            public boolean match(long millis)
+            {
+                return match(tz, millis);
+            }
+        };
+        Predictor predictor = new Predictor(p, Date.from(startTime));
+        predictor.setTimeZone(tz);
+        List<Instant> times = new ArrayList<>();
+        for (Instant t = Instant.ofEpochMilli(predictor.nextMatchingTime()); t.isBefore(endTime); t = Instant.ofEpochMilli(predictor.nextMatchingTime())) {
+            times.add(t);
+        }
+        return times;
+    }
+
+    @Test
+    public void compiledPatternReturnsSameTimesWithPredictor()
+    {
+        // includes DST transitions of America/Los_Angeles (03-13 and 11-06)
+        // and Australia/Lord_Howe (a 30-minute shift on 04-03 and 10-02)
+        Instant startTime = instant("2016-03-01 00:00:00 +0000");
+        Instant endTime = instant("2016-04-15 00:00:00 +0000");
+        Instant fallStartTime = instant("2016-09-28 00:00:00 +0000");
+        Instant fallEndTime = instant("2016-11-10 00:00:00 +0000");
+
+        for (String timeZone : ImmutableList.of("UTC", "America/Los_Angeles", "Australia/Lord_Howe")) {
+            for (String pattern : PATTERNS) {
+                assertSameTimes(pattern, timeZone, startTime, endTime);
+                assertSameTimes(pattern, timeZone, fallStartTime, fallEndTime);
+            }
+        }
+    }
+
+    @Test
+    public void daylightSavingTimeTransitions()
+    {
+        // a time in the fall-back overlap fires only once at the later offset
+        Scheduler overlap = newScheduler("30 1 * * *", "America/Los_Angeles");
+        assertThat(
+                overlap.nextScheduleTime(instant("2016-11-05 01:30:00 -0700")).getTime(),
+                is(instant("2016-11-06 01:30:00 -0800")));
+        assertThat(
+                overlap.nextScheduleTime(instant("2016-11-06 01:30:00 -0800")).getTime(),
+                is(instant("2016-11-07 01:30:00 -0800")));
+        assertThat(
+                overlap.lastScheduleTime(instant("2016-11-07 01:30:00 -0800")).getTime(),
+                is(instant("2016-11-06 01:30:00 -0800")));
+
+        // a time in the spring-forward gap is shifted forward
+        Scheduler gap = newScheduler("30 2 * * *", "America/Los_Angeles");
+        assertThat(
+                gap.nextScheduleTime(instant("2016-03-12 02:30:00 -0800")).getTime(),
+                is(instant("2016-03-13 03:30:00 -0700")));
+        assertThat(
+                gap.nextScheduleTime(instant("2016-03-13 03:30:00 -0700")).getTime(),
+                is(instant("2016-03-14 02:30:00 -0700")));
+        assertThat(
+                gap.lastScheduleTime(instant("2016-03-14 02:30:00 -0700")).getTime(),
+                is(instant("2016-03-13 03:30:00 -0700")));
+    }
+
+    private static void assertSameTimes(String pattern, String timeZone, Instant startTime, Instant endTime)
+    {
+        List<Instant> expected = predict(pattern, timeZone, startTime.minusSeconds(1), endTime);
+        CompiledCronPattern compiled = CompiledCronPattern.compile(pattern).get();
+        ZoneId zone = ZoneId.of(timeZone);
+
+        List<Instant> next = new ArrayList<>();
+        for (Instant t = compiled.next(startTime.minusSeconds(1), zone); t.isBefore(endTime); t = compiled.next(t, zone)) {
+            next.add(t);
+        }
+        assertThat(pattern + " in " + timeZone, next, is(expected));
+
+        for (int i = 1; i < expected.size(); i++) {
+            assertThat(pattern + " in " + timeZone, compiled.previous(expected.get(i), zone), is(expected.get(i - 1)));
+        }
+    }
+
+    @Test
+    public void enumerateIsSameWithNextScheduleTime()
+    {
+        Scheduler sr = newScheduler("*/15 * * * *", "Asia/Tokyo");
+        Instant lastTime = instant("2016-02-03 09:00:00 +0900");
+        Instant endTime = instant("2016-02-04 09:00:00 +0900");
+
+        List<ScheduleTime> expected = new ArrayList<>();
+        for (ScheduleTime t = sr.nextScheduleTime(lastTime); t.getTime().isBefore(endTime); t = sr.nextScheduleTime(t.getTime())) {
+            expected.add(t);
+        }
+        assertThat(expected.size(), is(95));
+        assertThat(sr.enumerate(lastTime, endTime, Integer.MAX_VALUE), is(expected));
+        assertThat(sr.enumerate(lastTime, endTime, 10), is(expected.subList(0, 10)));
+        assertThat(sr.enumerate(lastTime, lastTime, 10), is(ImmutableList.of()));
+    }
+
+    @Test
+    public void lastScheduleTime()
+    {
+        Scheduler sr = newScheduler("0 0 L * *", "UTC");
+        assertThat(
+                sr.lastScheduleTime(instant("2016-03-31 00:00:00 +0000")),
+                is(ScheduleTime.of(
+                        instant("2016-02-29 00:00:00 +0000"),
+                        instant("2016-02-29 00:00:00 +0000"))));
+        assertThat(
+                sr.lastScheduleTime(instant("2016-03-31 00:00:01 +0000")),
+                is(ScheduleTime.of(
+                        instant("2016-03-31 00:00:00 +0000"),
+                        instant("2016-03-31 00:00:00 +0000"))));
+    }
+}
@@ -0,0 +1,141 @@
+package io.digdag.storage.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import com.google.common.base.Throwables;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * InputStream that downloads consecutive ranges of an object in parallel.
+ *
+ * At most maxInFlight ranges are downloaded or buffered at the same time.
+ * Memory usage is bounded by maxInFlight * partSize.
+ */
+class ParallelRangeInputStream
+    extends InputStream
+{
+    interface RangeReader
+    {
+        byte[] read(long offset, int length) throws IOException;
+    }
+
+    private final long size;
+    private final int partSize;
+    private final int maxInFlight;
+    private final ExecutorService executor;
+    private final RangeReader reader;
+
+    private final Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+    private long nextOffset = 0;
+
+    private byte[] current = null;
+    private int currentPos = 0;
+    private boolean closed = false;
+
+    ParallelRangeInputStream(long size, long partSize, int maxInFlight,
+            ExecutorService executor, RangeReader reader)
+    {
+        checkArgument(partSize > 0 && partSize <= Integer.MAX_VALUE, "part size must be between 1 and 2GB");
+        checkArgument(maxInFlight > 0, "maxInFlight must be positive");
+        this.size = size;
+        this.partSize = (int) partSize;
+        this.maxInFlight = maxInFlight;
+        this.executor = executor;
+        this.reader = reader;
+    }
+
+    private void fillInFlight()
+    {
+        while (inFlight.size() < maxInFlight && nextOffset < size) {
+            long offset = nextOffset;
+            int length = (int) Math.min(partSize, size - offset);
+            inFlight.add(executor.submit(() -> reader.read(offset, length)));
+            nextOffset += length;
+        }
+    }
+
+    // returns false at end of the object
+    private boolean nextPart()
+        throws IOException
+    {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        fillInFlight();
+        Future<byte[]> future = inFlight.poll();
+        if (future == null) {
+            return false;
+        }
+        try {
+            current = future.get();
+            currentPos = 0;
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException ex) {
+            Throwables.propagateIfInstanceOf(ex.getCause(), IOException.class);
+            throw Throwables.propagate(ex.getCause());
+        }
+        // start downloading the next part as soon as this part is taken
+        fillInFlight();
+        return true;
+    }
+
+    @Override
+    public int read()
+        throws IOException
+    {
+        while (current == null || currentPos >= current.length) {
+            if (!nextPart()) {
+                return -1;
+            }
+        }
+        return current[currentPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+        throws IOException
+    {
+        if (len == 0) {
+            return 0;
+        }
+        while (current == null || currentPos >= current.length) {
+            if (!nextPart()) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, current.length - currentPos);
+        System.arraycopy(current, currentPos, b, off, n);
+        currentPos += n;
+        return n;
+    }
+
+    @Override
+    public int available()
+    {
+        return current == null ? 0 : current.length - currentPos;
+    }
+
+    @Override
+    public void close()
+    {
+        if (!closed) {
+            closed = true;
+            for (Future<byte[]> future : inFlight) {
+                future.cancel(true);
+            }
+            inFlight.clear();
+            current = null;
+        }
+    }
+}
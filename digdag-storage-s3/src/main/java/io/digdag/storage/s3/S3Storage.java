@@ -4,14 +4,15 @@ import java.util.Date;
 import java.time.Instant;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ByteArrayInputStream;
 import java.io.FilterInputStream;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.Callable;
 import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.amazonaws.HttpMethod;
 import com.amazonaws.AmazonServiceException;
@@ -25,6 +26,7 @@ import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
 import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerConfiguration;
 import com.amazonaws.services.s3.transfer.model.UploadResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,21 +47,65 @@ public class S3Storage
 {
     private static Logger logger = LoggerFactory.getLogger(S3Storage.class);
 
+    static final long MB = 1024L * 1024L;
+
+    static final int DEFAULT_UPLOAD_THREADS = 10;
+    static final long DEFAULT_UPLOAD_PART_SIZE_MB = 5;
+    static final long DEFAULT_MULTIPART_UPLOAD_THRESHOLD_MB = 16;
+    static final long DEFAULT_DOWNLOAD_PART_SIZE_MB = 8;
+    static final long DEFAULT_PARALLEL_DOWNLOAD_THRESHOLD_MB = 32;
+
     private final AmazonS3Client client;
     private final String bucket;
     private final ExecutorService uploadExecutor;
     private final TransferManager transferManager;
+    private final int downloadThreads;
+    private final long downloadPartSize;
+    private final long parallelDownloadThreshold;
+    private final ExecutorService downloadExecutor;
 
     public S3Storage(AmazonS3Client client, String bucket)
+    {
+        this(client, bucket, DEFAULT_UPLOAD_THREADS, DEFAULT_UPLOAD_PART_SIZE_MB * MB, DEFAULT_MULTIPART_UPLOAD_THRESHOLD_MB * MB,
+                1, DEFAULT_DOWNLOAD_PART_SIZE_MB * MB, DEFAULT_PARALLEL_DOWNLOAD_THRESHOLD_MB * MB);
+    }
+
+    public S3Storage(AmazonS3Client client, String bucket,
+            int uploadThreads, long uploadPartSize, long multipartUploadThreshold,
+            int downloadThreads, long downloadPartSize, long parallelDownloadThreshold)
     {
         checkArgument(!isNullOrEmpty(bucket), "bucket is null or empty");
+        checkArgument(uploadThreads > 0, "upload threads must be positive");
+        checkArgument(downloadThreads > 0, "download threads must be positive");
+        checkArgument(uploadPartSize > 0, "upload part size must be positive");
+        checkArgument(downloadPartSize > 0, "download part size must be positive");
         this.client = client;
         this.bucket = bucket;
-        this.uploadExecutor = Executors.newCachedThreadPool(
+        // TransferManager uploads parts of a multipart upload in parallel using this executor.
+        // number of threads is bounded because instances are shared by all threads.
+        this.uploadExecutor = Executors.newFixedThreadPool(uploadThreads,
                 new ThreadFactoryBuilder()
                     .setNameFormat("storage-s3-upload-transfer-%d")
+                    .setDaemon(true)
                     .build());
         this.transferManager = new TransferManager(client, uploadExecutor);
+        TransferManagerConfiguration transferConfig = new TransferManagerConfiguration();
+        transferConfig.setMinimumUploadPartSize(uploadPartSize);
+        transferConfig.setMultipartUploadThreshold(multipartUploadThreshold);
+        this.transferManager.setConfiguration(transferConfig);
+        this.downloadThreads = downloadThreads;
+        this.downloadPartSize = downloadPartSize;
+        this.parallelDownloadThreshold = parallelDownloadThreshold;
+        if (downloadThreads > 1) {
+            this.downloadExecutor = Executors.newFixedThreadPool(downloadThreads,
+                    new ThreadFactoryBuilder()
+                        .setNameFormat("storage-s3-download-transfer-%d")
+                        .setDaemon(true)
+                        .build());
+        }
+        else {
+            this.downloadExecutor = null;
+        }
         // TODO check existance of the bucket so that following
         //      any GET or PUT don't get 404 Not Found error.
     }
@@ -81,6 +127,17 @@ public class S3Storage
         checkArgument(key != null, "key is null");
 
         String errorMessage = "opening file bucket " + bucket + " key " + key;
+
+        if (downloadExecutor != null) {
+            ObjectMetadata meta = getWithRetry(errorMessage, () -> client.getObjectMetadata(bucket, key));
+            long size = meta.getContentLength();
+            if (size >= parallelDownloadThreshold) {
+                InputStream parallel = new ParallelRangeInputStream(size, downloadPartSize, downloadThreads,
+                        downloadExecutor, (offset, length) -> getRange(key, offset, length));
+                return new StorageObject(parallel, size);
+            }
+        }
+
         GetObjectRequest req = new GetObjectRequest(bucket, key);
 
         S3Object obj = getWithRetry(errorMessage, () -> client.getObject(req));
@@ -110,6 +167,39 @@ public class S3Storage
         return new StorageObject(resumable, actualSize);
     }
 
+    @Override
+    public StorageObject openRange(String key, long offset, long length)
+        throws StorageFileNotFoundException, IOException
+    {
+        checkArgument(key != null, "key is null");
+        checkArgument(length <= Integer.MAX_VALUE, "length is too large");
+
+        byte[] data = getRange(key, offset, (int) length);
+        return new StorageObject(new ByteArrayInputStream(data), data.length);
+    }
+
+    private byte[] getRange(String key, long offset, int length)
+        throws IOException
+    {
+        String errorMessage = "reading range " + offset + "-" + (offset + length - 1) + " of file bucket " + bucket + " key " + key;
+        try {
+            // reading content is included in retry so that partially read range is fetched again
+            return getWithRetry(errorMessage, () -> {
+                GetObjectRequest req = new GetObjectRequest(bucket, key);
+                req.setRange(offset, offset + length - 1);
+                S3Object obj = client.getObject(req);
+                try (InputStream in = obj.getObjectContent()) {
+                    byte[] data = new byte[length];
+                    ByteStreams.readFully(in, data);
+                    return data;
+                }
+            });
+        }
+        catch (StorageFileNotFoundException ex) {
+            throw new IOException(ex);
+        }
+    }
+
     private InputStream overrideCloseToAbort(final S3ObjectInputStream raw)
     {
         return new FilterInputStream(raw)
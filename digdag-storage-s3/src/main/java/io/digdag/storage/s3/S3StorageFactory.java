@@ -32,13 +32,26 @@ public class S3StorageFactory
 
         String bucket = config.get("bucket", String.class);
 
-        return new S3Storage(client, bucket);
+        // multipart upload is used for objects larger than upload.multipart-threshold-mb.
+        // download.threads > 1 enables parallel ranged GET for objects larger than
+        // download.parallel-threshold-mb.
+        return new S3Storage(client, bucket,
+                config.get("upload.threads", int.class, S3Storage.DEFAULT_UPLOAD_THREADS),
+                config.get("upload.part-size-mb", long.class, S3Storage.DEFAULT_UPLOAD_PART_SIZE_MB) * S3Storage.MB,
+                config.get("upload.multipart-threshold-mb", long.class, S3Storage.DEFAULT_MULTIPART_UPLOAD_THRESHOLD_MB) * S3Storage.MB,
+                config.get("download.threads", int.class, 1),
+                config.get("download.part-size-mb", long.class, S3Storage.DEFAULT_DOWNLOAD_PART_SIZE_MB) * S3Storage.MB,
+                config.get("download.parallel-threshold-mb", long.class, S3Storage.DEFAULT_PARALLEL_DOWNLOAD_THRESHOLD_MB) * S3Storage.MB);
     }
 
     private static ClientConfiguration buildClientConfiguration(Config config)
     {
-        // TODO build from config with log-server.s3.client prefix
-        return new ClientConfiguration();
+        ClientConfiguration configuration = new ClientConfiguration();
+        if (config.has("client.max-connections")) {
+            // upload and download threads share this connection pool
+            configuration.setMaxConnections(config.get("client.max-connections", int.class));
+        }
+        return configuration;
     }
 
     private static AWSCredentialsProvider buildCredentialsProvider(Config config)
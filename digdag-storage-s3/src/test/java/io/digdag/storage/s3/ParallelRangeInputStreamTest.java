@@ -0,0 +1,66 @@
+package io.digdag.storage.s3;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.google.common.io.ByteStreams;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+public class ParallelRangeInputStreamTest
+{
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void readRangesInOrder()
+        throws Exception
+    {
+        byte[] data = new byte[1000];
+        new Random(0).nextBytes(data);
+
+        AtomicInteger running = new AtomicInteger(0);
+        AtomicInteger maxRunning = new AtomicInteger(0);
+        ParallelRangeInputStream in = new ParallelRangeInputStream(data.length, 64, 3, executor,
+                (offset, length) -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    try {
+                        Thread.sleep(1);
+                    }
+                    catch (InterruptedException ex) {
+                        throw new IOException(ex);
+                    }
+                    running.decrementAndGet();
+                    return Arrays.copyOfRange(data, (int) offset, (int) offset + length);
+                });
+
+        assertThat(Arrays.equals(ByteStreams.toByteArray(in), data), is(true));
+        assertThat(maxRunning.get(), lessThanOrEqualTo(3));
+    }
+
+    @Test(expected = IOException.class)
+    public void propagateReadErrors()
+        throws Exception
+    {
+        ParallelRangeInputStream in = new ParallelRangeInputStream(100, 10, 2, executor,
+                (offset, length) -> {
+                    if (offset == 50) {
+                        throw new IOException("failed");
+                    }
+                    return new byte[length];
+                });
+        ByteStreams.toByteArray(in);
+    }
+}
@@ -2,6 +2,8 @@ package io.digdag.storage.s3;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
 import java.util.UUID;
 import java.io.InputStream;
 import java.io.ByteArrayInputStream;
@@ -31,6 +33,7 @@ public class S3StorageTest
 {
     private static final String FAKE_S3_ENDPOINT = System.getenv("FAKE_S3_ENDPOINT");
 
+    private Config config;
     private Storage storage;
 
     @Before
@@ -39,7 +42,7 @@ public class S3StorageTest
     {
         assumeThat(FAKE_S3_ENDPOINT, not(isEmptyOrNullString()));
         ConfigFactory cf = new ConfigFactory(objectMapper());
-        Config config = cf.create()
+        config = cf.create()
             .set("endpoint", FAKE_S3_ENDPOINT)
             .set("bucket", UUID.randomUUID().toString())  // use unique bucket name
             .set("credentials.access-key-id", "fake-key-id")
@@ -105,6 +108,27 @@ public class S3StorageTest
         assertThat(all.get(1).getKey(), is("test/file/2"));
     }
 
+    @Test
+    public void multipartPutAndParallelGet()
+        throws Exception
+    {
+        Storage parallel = new S3StorageFactory().newStorage(config.deepCopy()
+                .set("upload.part-size-mb", 5)
+                .set("upload.multipart-threshold-mb", 5)
+                .set("download.threads", 3)
+                .set("download.part-size-mb", 1)
+                .set("download.parallel-threshold-mb", 1));
+
+        byte[] data = new byte[12 * 1024 * 1024 + 13];
+        new Random(0).nextBytes(data);
+        parallel.put("large", data.length, () -> new ByteArrayInputStream(data));
+
+        // read by the parallel ranged GET
+        assertThat(Arrays.equals(ByteStreams.toByteArray(parallel.open("large").getContentInputStream()), data), is(true));
+        // read by a single GET
+        assertThat(Arrays.equals(ByteStreams.toByteArray(storage.open("large").getContentInputStream()), data), is(true));
+    }
+
     private static Storage.UploadStreamProvider contents(String data)
     {
         return () -> new ByteArrayInputStream(data.getBytes(UTF_8));